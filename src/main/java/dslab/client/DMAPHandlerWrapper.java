@@ -2,21 +2,31 @@ package dslab.client;
 
 import dslab.protocols.dmap.DMAPClientHandler;
 import dslab.protocols.dmap.DMAPException;
+import dslab.protocols.dmap.SessionTicket;
 import dslab.protocols.dmtp.Email;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class DMAPHandlerWrapper {
+
     private final Socket socket;
+    // Latest resumption ticket per server address, owned by the client
+    private final Map<String, SessionTicket> tickets;
     private BufferedReader reader;
     private PrintWriter writer;
     private DMAPClientHandler handler;
+    private boolean connected = false;
 
-    public DMAPHandlerWrapper(Socket socket) {
+    /**
+     * @param tickets resumption tickets of the client by server address, updated after the handshake. A ticket holds
+     * the session key of the user it was issued to, so it must not be shared with other clients.
+     */
+    public DMAPHandlerWrapper(Socket socket, Map<String, SessionTicket> tickets) {
         this.socket = socket;
+        this.tickets = tickets;
     }
 
     public boolean init(String username, String password) {
@@ -29,48 +39,62 @@ public class DMAPHandlerWrapper {
             return false;
         }
 
-        handler = new DMAPClientHandler(reader, writer);
+        handler = new DMAPClientHandler(socket, reader, writer);
+        handler.setResumable(true);
+        String server = socket.getRemoteSocketAddress().toString();
+        handler.setTicket(tickets.get(server));
 
         // Initialize handler and clean up on error
         try {
             handler.init(username, password);
+            if (handler.getTicket() != null)
+                tickets.put(server, handler.getTicket());
         } catch (IOException | DMAPException e) {
             System.out.println("DMAP handler init threw exception: " + e.getMessage());
             closeResources();
             return false;
         }
+        connected = true;
         return true;
     }
 
+    /**
+     * @return false if init failed, or the server closed the connection since. Commands then print nothing, and the
+     * client may connect again, resuming the session with the ticket of this connection.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
     public void printInbox(PrintStream printStream) {
-        HashMap<Integer, String[]> emailListing;
+        // All emails in a single request, printed as they arrive
+        int[] printed = {0};
         try {
-            emailListing = handler.list();
+            handler.fetch(1, Integer.MAX_VALUE, email -> {
+                printStream.printf("%s%n", email.prettyPrint());
+                printed[0]++;
+            });
         } catch (IOException | DMAPException e) {
-            printStream.println("error receiving email list: " + e.getMessage());
+            if (!lost(e))
+                printStream.println("error receiving emails: " + e.getMessage());
             return;
         }
 
-        if (emailListing.size() == 0) {
+        if (printed[0] == 0)
             printStream.println("no emails to display");
-            return;
-        }
+    }
 
-        ArrayList<Email> emails = new ArrayList<>();
-        for (int id : emailListing.keySet()) {
-            Email email;
-            try {
-                email = handler.show(id);
-            } catch (IOException | DMAPException e) {
-                printStream.println("error receiving email: " + e.getMessage());
-                continue;
+    public void printSearch(String query, PrintStream printStream) {
+        try {
+            List<Integer> ids = handler.search(query);
+            if (ids.isEmpty()) {
+                printStream.println("no emails found");
+                return;
             }
-
-            emails.add(email);
-        }
-
-        for (Email email : emails) {
-            printStream.printf("%s%n", email.prettyPrint());
+            handler.fetch(ids, email -> printStream.printf("%s%n", email.prettyPrint()));
+        } catch (IOException | DMAPException e) {
+            if (!lost(e))
+                printStream.println("error searching emails: " + e.getMessage());
         }
     }
 
@@ -79,7 +103,8 @@ public class DMAPHandlerWrapper {
         try {
             email = handler.show(id);
         } catch (IOException | DMAPException e) {
-            System.out.printf("error could not get email with id %d for verification: %s%n", id, e.getMessage());
+            if (!lost(e))
+                System.out.printf("error could not get email with id %d for verification: %s%n", id, e.getMessage());
             return null;
         }
 
@@ -90,7 +115,8 @@ public class DMAPHandlerWrapper {
         try {
             handler.delete(id);
         } catch (IOException | DMAPException e) {
-            printStream.printf("error could not delete message with id %d: %s%n", id, e.getMessage());
+            if (!lost(e))
+                printStream.printf("error could not delete message with id %d: %s%n", id, e.getMessage());
             return;
         }
 
@@ -98,7 +124,19 @@ public class DMAPHandlerWrapper {
     }
 
     public void close() throws IOException, DMAPException {
-        handler.close();
+        if (connected)
+            handler.close();
+    }
+
+    /**
+     * @return true if the exception means the connection is gone, closing what is left of it
+     */
+    private boolean lost(Exception e) {
+        if (e instanceof DMAPException && handler.isConnected())
+            return false;
+        connected = false;
+        closeResources();
+        return true;
     }
 
     private void closeResources() {
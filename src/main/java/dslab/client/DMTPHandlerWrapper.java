@@ -14,10 +14,19 @@ public class DMTPHandlerWrapper {
     private DMTPClientHandler handler;
     private final String host;
     private final int port;
+    private final boolean pipelined;
 
     public DMTPHandlerWrapper(String host, int port) {
+        this(host, port, false);
+    }
+
+    /**
+     * @param pipelined if true, the commands of an email are sent without waiting for each reply
+     */
+    public DMTPHandlerWrapper(String host, int port, boolean pipelined) {
         this.host = host;
         this.port = port;
+        this.pipelined = pipelined;
     }
 
     private boolean init() {
@@ -40,7 +49,7 @@ public class DMTPHandlerWrapper {
             return false;
         }
 
-        handler = new DMTPClientHandler(socket, reader, writer);
+        handler = new DMTPClientHandler(socket, reader, writer, pipelined);
 
         return true;
     }
@@ -4,12 +4,16 @@ import java.io.*;
 import java.net.Socket;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.protocols.dmap.DMAPException;
+import dslab.protocols.dmap.SessionTicket;
 import dslab.protocols.dmtp.Email;
 import dslab.protocols.dmtp.VerificationException;
 import dslab.util.Config;
@@ -25,6 +29,8 @@ public class MessageClient implements IMessageClient, Runnable {
     private DMAPHandlerWrapper dmapHandler;
     private final String sender;
     private SecretKeySpec secretKeySpec;
+    // Latest resumption ticket per server address, so that reconnecting skips the full handshake
+    private final Map<String, SessionTicket> tickets = new ConcurrentHashMap<>();
 
     /**
      * Creates a new client instance.
@@ -56,31 +62,64 @@ public class MessageClient implements IMessageClient, Runnable {
         }
 
         // create handler wrapper for DMTP
-        dmtpHandler = new DMTPHandlerWrapper(config.getString("transfer.host"), config.getInt("transfer.port"));
+        dmtpHandler = new DMTPHandlerWrapper(config.getString("transfer.host"), config.getInt("transfer.port"),
+                config.containsKey("transfer.pipelining") && Boolean.parseBoolean(config.getString("transfer.pipelining")));
 
+        if (!connectMailbox()) {
+            shutdown();
+            return;
+        }
+
+        shell.run();
+    }
+
+    /**
+     * Connect and log in to the mailbox server, resuming the session of the previous connection if it has a ticket.
+     * @return false if the connection or the login failed, the error being printed
+     */
+    private boolean connectMailbox() {
         // create socket for DMAP connection
         try {
             dmapSocket = new Socket(config.getString("mailbox.host"), config.getInt("mailbox.port"));
+            // The handshakes send two messages in a row, which would otherwise wait for a delayed acknowledgement
+            dmapSocket.setTcpNoDelay(true);
         } catch (IOException e) {
             System.out.println("Error while creating client DMAP socket: " + e.getMessage());
-            shutdown();
-            return;
+            return false;
         }
 
         // create handler wrapper for DMAP
-        dmapHandler = new DMAPHandlerWrapper(dmapSocket);
-        if (!dmapHandler.init(config.getString("mailbox.user"), config.getString("mailbox.password"))) {
-            shutdown();
+        dmapHandler = new DMAPHandlerWrapper(dmapSocket, tickets);
+        return dmapHandler.init(config.getString("mailbox.user"), config.getString("mailbox.password"));
+    }
+
+    /**
+     * Run a DMAP command, connecting again once if the mailbox server closed the connection, e.g. on a restart.
+     */
+    private void withMailbox(Consumer<DMAPHandlerWrapper> command) {
+        if (dmapHandler.isConnected())
+            command.accept(dmapHandler);
+        if (dmapHandler.isConnected())
             return;
-        }
 
-        shell.run();
+        if (connectMailbox())
+            command.accept(dmapHandler);
+        if (!dmapHandler.isConnected())
+            shell.out().println("error lost the connection to the mailbox server");
     }
 
     @Override
     @Command
     public void inbox() {
-        dmapHandler.printInbox(shell.out());
+        withMailbox(handler -> handler.printInbox(shell.out()));
+    }
+
+    /**
+     * Prints the emails containing all words of the query in their sender, subject or data.
+     */
+    @Command
+    public void search(String query) {
+        withMailbox(handler -> handler.printSearch(query, shell.out()));
     }
 
     @Override
@@ -94,7 +133,7 @@ public class MessageClient implements IMessageClient, Runnable {
             return;
         }
 
-        dmapHandler.delete(parsedId, shell.out());
+        withMailbox(handler -> handler.delete(parsedId, shell.out()));
     }
 
     @Override
@@ -108,13 +147,14 @@ public class MessageClient implements IMessageClient, Runnable {
             return;
         }
 
-        Email email = dmapHandler.getEmail(parsedId);
-        if (email == null) {
+        Email[] email = {null};
+        withMailbox(handler -> email[0] = handler.getEmail(parsedId));
+        if (email[0] == null) {
             return;
         }
 
         try {
-            email.verify(secretKeySpec);
+            email[0].verify(secretKeySpec);
         } catch (VerificationException e) {
             shell.out().printf("error could not verify email: %s%n", e.getMessage());
             return;
@@ -1,59 +1,109 @@
 package dslab.mailbox;
 
+import dslab.mailbox.storage.IEmailStorage;
+import dslab.protocols.dmap.DMAPException;
+import dslab.protocols.dmap.DMAPLineSession;
+import dslab.protocols.dmap.IDMAPServerHandler;
 import dslab.util.Config;
+import dslab.util.CryptoWorkers;
+import dslab.util.SessionTickets;
+import dslab.util.nio.EventLoop;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DMAPListenerThread extends Thread {
 
-    private static final int N_LISTENERS = 10;
+    // Sessions are multiplexed over a few selector threads, so idle clients don't hold a thread each
+    public static final int N_EVENT_LOOPS = 2;
+    // Threads for the storage calls that wait for the disk, e.g. deletions waiting for the group commit of the log
+    public static final int N_STORAGE_WORKERS = 4;
 
-    private final ServerSocket serverSocket;
-    private final Config config;
-    private final Config userConfig;
-    private final String domain;
+    private final ServerSocketChannel serverSocketChannel;
+    private final IDMAPServerHandler.Callback mailboxAccess;
+    private final List<EventLoop> eventLoops;
+    // Shared by the sessions, null if resumption is disabled
+    private final SessionTickets tickets;
+    private final CryptoWorkers workers;
+    private final ExecutorService storageWorkers;
 
     private String componentId;
 
-    ExecutorService executorService;
-
-    public DMAPListenerThread(Config config, ServerSocket serverSocket, String componentId) {
-        this.config = config;
+    public DMAPListenerThread(Config config, ServerSocketChannel serverSocketChannel, String componentId,
+                              IEmailStorage emailStorage, CryptoWorkers workers) {
         this.componentId = componentId;
-        this.serverSocket = serverSocket;
+        this.serverSocketChannel = serverSocketChannel;
+
+        this.mailboxAccess = new MailboxAccess(new Config(config.getString("users.config")), emailStorage);
+        this.workers = workers;
+        AtomicInteger nStorageWorkers = new AtomicInteger();
+        this.storageWorkers = Executors.newFixedThreadPool(N_STORAGE_WORKERS, runnable -> {
+            Thread thread = new Thread(runnable, "dmap-storage-" + nStorageWorkers.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        SessionTickets tickets = null;
+        try {
+            tickets = new SessionTickets(config);
+        } catch (DMAPException e) {
+            System.out.println("Session resumption disabled: " + e.getMessage());
+        }
+        this.tickets = tickets;
 
-        this.userConfig = new Config(config.getString("users.config"));
-        this.domain = config.getString("domain");
+        this.eventLoops = new ArrayList<>();
+        for (int i = 0; i < N_EVENT_LOOPS; i++)
+            eventLoops.add(new EventLoop("dmap-event-loop-" + i));
+    }
 
-        this.executorService = Executors.newFixedThreadPool(N_LISTENERS);
+    /**
+     * @return number of connected clients
+     */
+    public int getSessionCount() {
+        int sessions = 0;
+        for (EventLoop eventLoop : eventLoops)
+            sessions += eventLoop.getChannelCount();
+        return sessions;
     }
 
     @Override
     public void run() {
-        Socket socket = null;
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.start();
+
+        int next = 0;
 
         while (!Thread.currentThread().isInterrupted()) {
 
             try {
-                socket = serverSocket.accept();
-                Runnable clientHandler = new ClientHandler(userConfig, socket, componentId);
-                executorService.submit(clientHandler);
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                // Replies are written as soon as they are complete, often in several parts
+                socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                // Round robin over the event loops
+                eventLoops.get(next).register(socketChannel,
+                        new DMAPLineSession(mailboxAccess, componentId, tickets, workers, storageWorkers));
+                next = (next + 1) % eventLoops.size();
 
-            } catch (SocketException e) {
-                // exit loop
+            } catch (ClosedChannelException e) {
+                // exit loop, the server socket was closed
                 break;
             } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                System.out.println("IOException accepting client: " + e.getMessage());
             }
 
         }
 
-        executorService.shutdownNow();
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.shutdown();
+        storageWorkers.shutdown();
     }
 }
@@ -18,15 +18,20 @@ public class DMTPListenerThread extends Thread {
     private final Config config;
     private final Config userConfig;
     private final String domain;
+    private final EmailIngest ingest;
+    private final MailboxQuota quota;
 
     ExecutorService listenersExecutorService;
 
-    public DMTPListenerThread(Config config, ServerSocket serverSocket) {
+    public DMTPListenerThread(Config config, ServerSocket serverSocket, EmailIngest ingest,
+                              MailboxQuota quota) {
         this.config = config;
         this.serverSocket = serverSocket;
 
         this.userConfig = new Config(config.getString("users.config"));
         this.domain = config.getString("domain");
+        this.ingest = ingest;
+        this.quota = quota;
 
         this.listenersExecutorService = Executors.newFixedThreadPool(N_LISTENERS);
     }
@@ -40,7 +45,7 @@ public class DMTPListenerThread extends Thread {
             try {
                 socket = serverSocket.accept();
 
-                Runnable emailReceiver = new EmailReceiver(userConfig, domain, socket);
+                Runnable emailReceiver = new EmailReceiver(userConfig, domain, socket, ingest, quota);
                 listenersExecutorService.submit(emailReceiver);
 
             } catch (SocketException e) {
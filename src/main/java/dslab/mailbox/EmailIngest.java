@@ -0,0 +1,154 @@
+package dslab.mailbox;
+
+import dslab.mailbox.storage.IEmailStorage;
+import dslab.protocols.dmtp.Email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ingest stage between the DMTP sessions and the storage. Sessions put received emails in a bounded ring buffer, and
+ * a writer thread drains it in batches into {@link IEmailStorage#addEmails(List)}, so that a durable storage commits
+ * a whole batch at once. When the buffer is full, emails are rejected right away, and the sessions reply with an
+ * error instead of piling up.
+ */
+public class EmailIngest {
+
+    public static final int CAPACITY = 4096;
+    public static final int MAX_BATCH_SIZE = 256;
+
+    private final IEmailStorage storage;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // Ring buffer guarded by the lock, the slots from head on hold size emails
+    private final Email[] emails;
+    private final CompletableFuture<Boolean>[] results;
+    private int head = 0;
+    private int size = 0;
+    private boolean closed = false;
+
+    private final Thread writer;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong ingested = new AtomicLong();
+
+    public EmailIngest(IEmailStorage storage) {
+        this(storage, CAPACITY);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public EmailIngest(IEmailStorage storage, int capacity) {
+        this.storage = storage;
+        this.emails = new Email[capacity];
+        this.results = new CompletableFuture[capacity];
+
+        writer = new Thread(this::write, "mailbox-ingest");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue an email for the storage.
+     * @return completed with whether the email was stored, or exceptionally with a
+     * {@link RejectedExecutionException} if the buffer is full or the ingest closed
+     */
+    public CompletableFuture<Boolean> submit(Email email) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        lock.lock();
+        try {
+            if (closed || size == emails.length) {
+                result.completeExceptionally(new RejectedExecutionException(closed ? "shutting down" : "busy"));
+                return result;
+            }
+            int tail = (head + size) % emails.length;
+            emails[tail] = email;
+            results[tail] = result;
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * Reject new emails, and wait until the queued ones are stored.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of batches written to the storage
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return number of emails handed to the storage
+     */
+    public long getIngestedCount() {
+        return ingested.get();
+    }
+
+    private void write() {
+        while (true) {
+            List<Email> batch = new ArrayList<>();
+            List<CompletableFuture<Boolean>> batchResults = new ArrayList<>();
+
+            lock.lock();
+            try {
+                while (size == 0 && !closed)
+                    notEmpty.awaitUninterruptibly();
+                if (size == 0)
+                    return;
+
+                // Everything received since the previous batch, up to the batch size
+                int n = Math.min(size, MAX_BATCH_SIZE);
+                for (int i = 0; i < n; i++) {
+                    batch.add(emails[head]);
+                    batchResults.add(results[head]);
+                    emails[head] = null;
+                    results[head] = null;
+                    head = (head + 1) % emails.length;
+                }
+                size -= n;
+            } finally {
+                lock.unlock();
+            }
+
+            List<Boolean> added;
+            try {
+                added = storage.addEmails(batch);
+            } catch (RuntimeException e) {
+                System.out.println("Couldn't store emails: " + e.getMessage());
+                added = null;
+            }
+
+            batches.incrementAndGet();
+            ingested.addAndGet(batch.size());
+            for (int i = 0; i < batch.size(); i++)
+                batchResults.get(i).complete(added != null && added.get(i));
+        }
+    }
+}
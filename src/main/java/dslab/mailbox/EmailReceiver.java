@@ -1,7 +1,5 @@
 package dslab.mailbox;
 
-import dslab.mailbox.storage.IEmailStorage;
-import dslab.mailbox.storage.InMemoryEmailStorage;
 import dslab.protocols.dmtp.DMTPException;
 import dslab.protocols.dmtp.Email;
 import dslab.protocols.dmtp.server.DMTPServerHandler;
@@ -13,21 +11,29 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 
 public class EmailReceiver implements Runnable {
 
     private final Config userConfig;
     private final String domain;
-    private final IEmailStorage emailStorage;
+    private final EmailIngest ingest;
+    private final MailboxQuota quota;
 
     private final Socket socket;
 
-    public EmailReceiver(Config usersConfig, String domain, Socket socket) {
+    public EmailReceiver(Config usersConfig, String domain, Socket socket, EmailIngest ingest, MailboxQuota quota) {
         this.userConfig = usersConfig;
         this.domain = domain;
         this.socket = socket;
 
-        this.emailStorage = InMemoryEmailStorage.getEmailStorage();
+        this.ingest = ingest;
+        this.quota = quota;
     }
 
     @Override
@@ -47,9 +53,28 @@ public class EmailReceiver implements Runnable {
             serverHandler.receiveEmails(new IDMTPServerHandler.Callback() {
                 @Override
                 public boolean consumeEmail(Email email) {
-                    System.out.println("Email server received: " + email.toString());
-                    emailStorage.addEmail(email);
-                    return true;
+                    try {
+                        return consumeEmailAsync(email).toCompletableFuture().join();
+                    } catch (CompletionException e) {
+                        return false;
+                    }
+                }
+
+                @Override
+                public CompletionStage<Boolean> consumeEmailAsync(Email email) {
+                    long size;
+                    try {
+                        size = quota.admit(email, localUsers(email));
+                    } catch (RejectedExecutionException e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                    // Stored with the emails of the other sessions in the next batch
+                    return ingest.submit(email).whenComplete((stored, error) -> quota.release(size));
+                }
+
+                @Override
+                public boolean acceptsEmails(String recipient) {
+                    return !domain.equals(Email.getDomain(recipient)) || quota.hasRoom(Email.getUser(recipient));
                 }
 
                 @Override
@@ -72,6 +97,19 @@ public class EmailReceiver implements Runnable {
         }
     }
 
+    /**
+     * @return the recipients of an email that have a mailbox on this server
+     */
+    private List<String> localUsers(Email email) {
+        List<String> users = new ArrayList<>();
+        for (String recipient : email.recipients) {
+            String user = Email.getUser(recipient);
+            if (domain.equals(Email.getDomain(recipient)) && userConfig.containsKey(user))
+                users.add(user);
+        }
+        return users;
+    }
+
     private void closeResources(Socket socket, BufferedReader reader, PrintWriter writer) {
         if (reader != null) {
             try {
@@ -20,4 +20,14 @@ public interface IMailboxServer extends Runnable {
      */
     void shutdown();
 
+    /**
+     * CLI command to report the number and bytes of the emails of each user, and of all emails, against their quotas.
+     */
+    void usage();
+
+    /**
+     * CLI command to report the queue of the crypto workers running the DMAP handshakes.
+     */
+    void handshakes();
+
 }
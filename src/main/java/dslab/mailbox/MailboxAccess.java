@@ -0,0 +1,65 @@
+package dslab.mailbox;
+
+import dslab.mailbox.storage.IEmailStorage;
+import dslab.mailbox.storage.IUserEmails;
+import dslab.protocols.dmap.IDMAPServerHandler;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access of the DMAP sessions to the users and their emails. Keeps no state of its own, all the sessions share it.
+ */
+public class MailboxAccess implements IDMAPServerHandler.Callback {
+
+    private final Config userConfig;
+    private final IEmailStorage emailStorage;
+
+    public MailboxAccess(Config usersConfig, IEmailStorage emailStorage) {
+        this.userConfig = usersConfig;
+        this.emailStorage = emailStorage;
+    }
+
+    @Override
+    public Email getEmail(String loggedUser, int id) {
+        IUserEmails userEmails = emailStorage.getUserStorage(loggedUser);
+        return userEmails.getUserEmail(id);
+    }
+
+    @Override
+    public ByteBuffer getEmailText(String loggedUser, int id) {
+        IUserEmails userEmails = emailStorage.getUserStorage(loggedUser);
+        return userEmails.getUserEmailText(id);
+    }
+
+    @Override
+    public boolean deleteEmail(String loggedUser, int id) {
+        IUserEmails userEmails = emailStorage.getUserStorage(loggedUser);
+        return userEmails.deleteEmail(id) != null;
+    }
+
+    @Override
+    public boolean isLoginValid(String user, String password) {
+        return userConfig.containsKey(user) && password.equals(userConfig.getString(user));
+    }
+
+    @Override
+    public List<Map.Entry<Integer, Email>> listUserEmails(String loggedUser, int fromId, int count) {
+        IUserEmails userEmails = emailStorage.getUserStorage(loggedUser);
+        return userEmails.getUserEmails(fromId, count);
+    }
+
+    @Override
+    public List<Integer> searchUserEmails(String loggedUser, String query) {
+        IUserEmails userEmails = emailStorage.getUserStorage(loggedUser);
+        return userEmails.search(query);
+    }
+
+    @Override
+    public boolean userExists(String user) {
+        return userConfig.containsKey(user);
+    }
+}
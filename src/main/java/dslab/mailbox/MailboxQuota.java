@@ -0,0 +1,120 @@
+package dslab.mailbox;
+
+import dslab.mailbox.storage.IEmailStorage;
+import dslab.mailbox.storage.IUserEmails;
+import dslab.mailbox.storage.StorageUsage;
+import dslab.protocols.dmtp.DmtpFormatCodec;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits on the emails a mailbox server takes in, checked by the DMTP sessions before an email is accepted: the
+ * number and bytes of the emails of each user (<code>quota.user.emails</code>, <code>quota.user.bytes</code>), and a
+ * budget for the bytes of all emails, stored or received but not stored yet, and of the memory they left unusable
+ * (<code>quota.total.bytes</code>). Missing limits are unlimited. Usage is read from lock-free counters, so concurrent
+ * deliveries to a user may overshoot its quota by the emails in flight, while the budget is reserved before it is
+ * checked and can't be overshot.
+ */
+public class MailboxQuota {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private final IEmailStorage storage;
+    private final long maxUserEmails;
+    private final long maxUserBytes;
+    private final long maxTotalBytes;
+    // Bytes of the emails admitted but not stored yet
+    private final LongAdder pending = new LongAdder();
+
+    public MailboxQuota(Config config, IEmailStorage storage) {
+        this(storage, limit(config, "quota.user.emails"), limit(config, "quota.user.bytes"),
+                limit(config, "quota.total.bytes"));
+    }
+
+    public MailboxQuota(IEmailStorage storage, long maxUserEmails, long maxUserBytes, long maxTotalBytes) {
+        this.storage = storage;
+        this.maxUserEmails = maxUserEmails;
+        this.maxUserBytes = maxUserBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * @param user a local user
+     * @return false if the user's mailbox is full
+     */
+    public boolean hasRoom(String user) {
+        IUserEmails emails = storage.getUserStorage(user);
+        if (emails == null)
+            return true;
+        StorageUsage usage = emails.getUsage();
+        return usage.getEmailCount() < maxUserEmails && usage.getBytes() < maxUserBytes;
+    }
+
+    /**
+     * Reserve room for an email about to be stored, to {@link #release(long)} once it is.
+     * @param email the email
+     * @param users its local recipients
+     * @return the bytes reserved
+     * @throws RejectedExecutionException if a mailbox is full, or the email doesn't fit in the budget
+     */
+    public long admit(Email email, Collection<String> users) {
+        long size = DmtpFormatCodec.encodedLength(email);
+
+        List<String> full = new ArrayList<>();
+        for (String user : users) {
+            IUserEmails emails = storage.getUserStorage(user);
+            if (emails == null)
+                continue;
+            StorageUsage usage = emails.getUsage();
+            if (usage.getEmailCount() + 1 > maxUserEmails || usage.getBytes() + size > maxUserBytes)
+                full.add(user);
+        }
+        if (!full.isEmpty())
+            throw new RejectedExecutionException("mailbox full " + String.join(",", full));
+
+        // Reserved first, so that concurrent deliveries see each other's emails
+        pending.add(size);
+        StorageUsage total = storage.getUsage();
+        if (total.getBytes() + total.getUnusableBytes() + pending.sum() > maxTotalBytes) {
+            pending.add(-size);
+            throw new RejectedExecutionException("storage full");
+        }
+        return size;
+    }
+
+    /**
+     * Release the bytes reserved for an email, once it is stored or failed.
+     */
+    public void release(long size) {
+        pending.add(-size);
+    }
+
+    /**
+     * @return bytes of the emails admitted but not stored yet
+     */
+    public long getPendingBytes() {
+        return pending.sum();
+    }
+
+    public long getMaxUserEmails() {
+        return maxUserEmails;
+    }
+
+    public long getMaxUserBytes() {
+        return maxUserBytes;
+    }
+
+    public long getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    private static long limit(Config config, String key) {
+        return config.containsKey(key) ? Long.parseLong(config.getString(key)) : UNLIMITED;
+    }
+}
@@ -4,32 +4,43 @@ import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
-import dslab.mailbox.storage.InMemoryEmailStorage;
+import dslab.mailbox.storage.EmailStorageFactory;
+import dslab.mailbox.storage.IEmailStorage;
+import dslab.mailbox.storage.StorageUsage;
 import dslab.nameserver.AlreadyRegisteredException;
 import dslab.nameserver.INameserverRemote;
 import dslab.nameserver.InvalidDomainException;
 import dslab.util.Config;
+import dslab.util.CryptoProvider;
+import dslab.util.CryptoWorkers;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.rmi.AccessException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.TreeSet;
 
 public class MailboxServer implements IMailboxServer, Runnable {
 
     final private Config config;
     final private Shell shell;
     private String componentId;
-    private ServerSocket dmapServerSocket;
+    private ServerSocketChannel dmapServerSocketChannel;
     private ServerSocket dmtpServerSocket;
+    private final IEmailStorage emailStorage;
+    private final EmailIngest ingest;
+    private final MailboxQuota quota;
+    private final CryptoWorkers cryptoWorkers;
 
     /**
      * Creates a new server instance.
@@ -47,7 +58,21 @@ public class MailboxServer implements IMailboxServer, Runnable {
         shell.register(this);
         shell.setPrompt(componentId + "> ");
 
-        InMemoryEmailStorage.init(config);
+        try {
+            emailStorage = EmailStorageFactory.create(config);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while opening email storage", e);
+        }
+        ingest = new EmailIngest(emailStorage);
+        quota = new MailboxQuota(config, emailStorage);
+        cryptoWorkers = new CryptoWorkers(config);
+
+        try {
+            // Read once here, instead of on every startsecure
+            CryptoProvider.preloadPrivateKey(componentId);
+        } catch (IOException e) {
+            System.out.println("Couldn't read the private key of " + componentId + ": " + e.getMessage());
+        }
     }
 
     @Override
@@ -56,10 +81,12 @@ public class MailboxServer implements IMailboxServer, Runnable {
 
         try {
             dmtpServerSocket = new ServerSocket(config.getInt("dmtp.tcp.port"));
-            dmapServerSocket = new ServerSocket(config.getInt("dmap.tcp.port"));
+            // Served by event loops, which send stored emails without copying them
+            dmapServerSocketChannel = ServerSocketChannel.open()
+                    .bind(new InetSocketAddress(config.getInt("dmap.tcp.port")));
 
-            new DMTPListenerThread(config, dmtpServerSocket).start();
-            new DMAPListenerThread(config, dmapServerSocket, componentId).start();
+            new DMTPListenerThread(config, dmtpServerSocket, ingest, quota).start();
+            new DMAPListenerThread(config, dmapServerSocketChannel, componentId, emailStorage, cryptoWorkers).start();
 
 
         } catch (IOException e) {
@@ -80,19 +107,51 @@ public class MailboxServer implements IMailboxServer, Runnable {
                 shell.out().println("Error while closing server socket: " + e.getMessage());
             }
         }
-        if (dmapServerSocket != null) {
+        if (dmapServerSocketChannel != null) {
             try {
-                dmapServerSocket.close();
+                dmapServerSocketChannel.close();
             } catch (IOException e) {
                 shell.out().println("Error while closing server socket: " + e.getMessage());
             }
         }
 
+        cryptoWorkers.close();
+        // Emails already received are stored before the storage is closed
+        ingest.close();
+        emailStorage.close();
+
         shell.out().println("Bye bye");
         // Stop the Shell from reading from System.in by throwing a StopShellException
         throw new StopShellException();
     }
 
+    @Override
+    @Command
+    public void usage() {
+        for (String user : new TreeSet<>(new Config(config.getString("users.config")).listKeys())) {
+            StorageUsage usage = emailStorage.getUserStorage(user).getUsage();
+            shell.out().println(user + " " + usage.getEmailCount() + "/" + limit(quota.getMaxUserEmails())
+                    + " emails " + usage.getBytes() + "/" + limit(quota.getMaxUserBytes()) + " bytes");
+        }
+        StorageUsage total = emailStorage.getUsage();
+        shell.out().println("total " + total.getEmailCount() + " emails " + total.getBytes() + "/"
+                + limit(quota.getMaxTotalBytes()) + " bytes, " + total.getUnusableBytes() + " bytes unusable, "
+                + quota.getPendingBytes() + " bytes pending");
+    }
+
+    @Override
+    @Command
+    public void handshakes() {
+        shell.out().println(cryptoWorkers.getThreads() + " crypto threads, " + cryptoWorkers.getQueueDepth()
+                + " handshakes queued (at most " + cryptoWorkers.getMaxQueueDepth() + "), "
+                + cryptoWorkers.getCompleted() + " done, " + cryptoWorkers.getRejected() + " refused, "
+                + cryptoWorkers.getMeanWaitMicros() + " us mean wait");
+    }
+
+    private static String limit(long limit) {
+        return limit == MailboxQuota.UNLIMITED ? "unlimited" : Long.toString(limit);
+    }
+
     /**
      * Register the mail domain to the nameservers.
      * In case of failure only an error is printed and the server.
@@ -0,0 +1,207 @@
+package dslab.mailbox.storage;
+
+import dslab.protocols.dmtp.DmtpFormatCodec;
+import dslab.protocols.dmtp.Email;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory bodies of emails, stored once by content digest and reference counted by the users' mailboxes.
+ * Bodies are kept off-heap in an {@link OffHeapArena} as [int references][int length][digest][encoded email], and
+ * found by the first 8 bytes of their digest in a {@link LongIndex}; the full digest is compared before a body is
+ * shared. Mailboxes refer to bodies by their address.
+ */
+class BodyStore {
+
+    private static final int REFERENCES = 0;
+    private static final int LENGTH = Integer.BYTES;
+    private static final int DIGEST = 2 * Integer.BYTES;
+    private static final int ENCODED = DIGEST + Digests.SHA256_LENGTH;
+
+    // Each body counted once, however many mailboxes reference it
+    private final StorageUsage usage = new StorageUsage();
+    private final OffHeapArena arena = new OffHeapArena(usage);
+    // Digest prefixes to addresses, guarded by this
+    private final LongIndex digests = new LongIndex();
+    private int size = 0;
+    // Emails decoded by get, the work a list does per email
+    private final LongAdder decoded = new LongAdder();
+
+    /**
+     * Store an email body, or add references to it if it's already stored.
+     * @param encoded the email encoded by {@link DmtpFormatCodec}
+     * @param references number of mailboxes referencing it
+     * @return the address of the body
+     */
+    long retain(byte[] encoded, int references) {
+        byte[] digest = Digests.sha256Bytes(encoded);
+        long key = key(digest);
+
+        synchronized (this) {
+            long address = digests.get(key);
+            if (address != LongIndex.NONE) {
+                ByteBuffer body = arena.buffer(address);
+                int start = body.position();
+                if (Arrays.equals(digest(body), digest)) {
+                    body.putInt(start + REFERENCES, body.getInt(start + REFERENCES) + references);
+                    return address;
+                }
+            }
+
+            address = arena.allocate(ENCODED + encoded.length);
+            ByteBuffer body = arena.buffer(address);
+            body.putInt(references);
+            body.putInt(encoded.length);
+            body.put(digest);
+            body.put(encoded);
+
+            // A different body with the same prefix keeps its entry, this one is just not shared
+            if (digests.get(key) == LongIndex.NONE)
+                digests.put(key, address);
+            size++;
+            usage.add(encoded.length);
+            return address;
+        }
+    }
+
+    /**
+     * Store a body read back from a {@link #snapshot(long)}, without computing its digest again.
+     * @param references number of mailboxes referencing it
+     * @param snapshot the digest followed by the encoded email
+     * @return the address of the body
+     */
+    synchronized long restore(int references, ByteBuffer snapshot) {
+        int length = snapshot.remaining() - Digests.SHA256_LENGTH;
+        long address = arena.allocate(ENCODED + length);
+        ByteBuffer body = arena.buffer(address);
+        int start = body.position();
+        body.putInt(references);
+        body.putInt(length);
+        body.put(snapshot);
+
+        body.position(start);
+        long key = key(digest(body));
+        if (digests.get(key) == LongIndex.NONE)
+            digests.put(key, address);
+        size++;
+        usage.add(length);
+        return address;
+    }
+
+    /**
+     * Drop a reference to a body, and the body with its last reference.
+     */
+    synchronized void release(long address) {
+        ByteBuffer body = arena.buffer(address);
+        if (body == null)
+            return;
+
+        int start = body.position();
+        int references = body.getInt(start + REFERENCES) - 1;
+        body.putInt(start + REFERENCES, references);
+        if (references > 0)
+            return;
+
+        long key = key(digest(body));
+        if (digests.get(key) == address)
+            digests.remove(key);
+        int length = body.getInt(start + LENGTH);
+        arena.free(address, ENCODED + length);
+        size--;
+        usage.remove(length);
+    }
+
+    /**
+     * @return a new copy of the email, decoded from off-heap memory, or null if it was dropped
+     */
+    Email get(long address) {
+        ByteBuffer encoded = encoded(address);
+        if (encoded == null)
+            return null;
+        decoded.increment();
+        return DmtpFormatCodec.decode(encoded);
+    }
+
+    /**
+     * @return a read only view of the email's text, see {@link DmtpFormatCodec#text(ByteBuffer)}, or null if it was
+     * dropped
+     */
+    ByteBuffer getText(long address) {
+        ByteBuffer encoded = encoded(address);
+        return encoded == null ? null : DmtpFormatCodec.text(encoded);
+    }
+
+    /**
+     * @return a view of the digest followed by the encoded email, or null if it was dropped. The memory stays
+     * readable as long as the view is, even if the body is dropped in the meantime.
+     */
+    ByteBuffer snapshot(long address) {
+        ByteBuffer body = arena.buffer(address);
+        if (body == null)
+            return null;
+
+        int start = body.position();
+        body.limit(start + ENCODED + body.getInt(start + LENGTH));
+        body.position(start + DIGEST);
+        return body.slice();
+    }
+
+    /**
+     * @return length of the encoded email, or 0 if it was dropped
+     */
+    int getLength(long address) {
+        ByteBuffer encoded = encoded(address);
+        return encoded == null ? 0 : encoded.remaining();
+    }
+
+    /**
+     * @return number of distinct bodies stored
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    StorageUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return number of emails decoded by {@link #get(long)} so far
+     */
+    long getDecoded() {
+        return decoded.sum();
+    }
+
+    /**
+     * @return bytes of off-heap memory reserved for the bodies
+     */
+    long getOffHeapBytes() {
+        return arena.getReserved();
+    }
+
+    private ByteBuffer encoded(long address) {
+        ByteBuffer body = arena.buffer(address);
+        if (body == null)
+            return null;
+
+        int start = body.position();
+        body.limit(start + ENCODED + body.getInt(start + LENGTH));
+        body.position(start + ENCODED);
+        return body.slice();
+    }
+
+    private static byte[] digest(ByteBuffer body) {
+        ByteBuffer field = body.duplicate();
+        field.position(body.position() + DIGEST);
+        byte[] digest = new byte[Digests.SHA256_LENGTH];
+        field.get(digest);
+        return digest;
+    }
+
+    private static long key(byte[] digest) {
+        long key = ByteBuffer.wrap(digest).getLong();
+        return key == LongIndex.EMPTY ? 1 : key;
+    }
+}
@@ -0,0 +1,38 @@
+package dslab.mailbox.storage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Content addresses of stored email bodies.
+ */
+final class Digests {
+
+    static final int SHA256_LENGTH = 32;
+
+    private Digests() {
+        // static utility class
+    }
+
+    /**
+     * @param content encoded email
+     * @return the Base64 SHA-256 digest of the content
+     */
+    static String sha256(byte[] content) {
+        return Base64.getEncoder().encodeToString(sha256Bytes(content));
+    }
+
+    /**
+     * @param content encoded email
+     * @return the SHA-256 digest of the content, {@link #SHA256_LENGTH} bytes
+     */
+    static byte[] sha256Bytes(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
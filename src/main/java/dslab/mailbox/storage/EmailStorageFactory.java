@@ -0,0 +1,29 @@
+package dslab.mailbox.storage;
+
+import dslab.util.Config;
+
+import java.io.IOException;
+
+/**
+ * Creates the email storage selected by the <code>storage.type</code> property of a mailbox server config:
+ * <code>memory</code> (the default) or <code>log</code>, which keeps the emails in <code>storage.dir</code>.
+ */
+public final class EmailStorageFactory {
+
+    private EmailStorageFactory() {
+        // static utility class
+    }
+
+    public static IEmailStorage create(Config config) throws IOException {
+        String type = config.containsKey("storage.type") ? config.getString("storage.type") : "memory";
+
+        switch (type) {
+            case "memory":
+                return new InMemoryEmailStorage(config);
+            case "log":
+                return new LogEmailStorage(config);
+            default:
+                throw new IOException("Unknown storage type " + type);
+        }
+    }
+}
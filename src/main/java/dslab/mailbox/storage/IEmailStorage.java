@@ -2,7 +2,41 @@ package dslab.mailbox.storage;
 
 import dslab.protocols.dmtp.Email;
 
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public interface IEmailStorage {
     IUserEmails getUserStorage(String user);
     void addEmail(Email email);
+
+    /**
+     * Add several emails at once, so that the storage can commit them together, e.g. with a single fsync.
+     * @param emails the emails to add
+     * @return for each email, whether it was added
+     */
+    default List<Boolean> addEmails(List<Email> emails) {
+        List<Boolean> added = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            try {
+                addEmail(email);
+                added.add(true);
+            } catch (UncheckedIOException e) {
+                added.add(false);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return number and bytes of the emails stored for all users, an email sent to several users counting once if
+     * the storage keeps it once
+     */
+    StorageUsage getUsage();
+
+    /**
+     * Release the resources of the storage, e.g. on server shutdown.
+     */
+    default void close() {
+    }
 }
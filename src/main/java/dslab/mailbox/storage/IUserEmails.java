@@ -2,6 +2,8 @@ package dslab.mailbox.storage;
 
 import dslab.protocols.dmtp.Email;
 
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,5 +28,34 @@ public interface IUserEmails {
      */
     Set<Map.Entry<Integer, Email>> getUserEmails();
 
+    /**
+     * Get a page of user emails, in id order.
+     * @param fromId smallest id of the page
+     * @param count maximum number of emails
+     * @return list of entries (id, email), shorter than count if there are no more emails
+     */
+    List<Map.Entry<Integer, Email>> getUserEmails(int fromId, int count);
+
     Email getUserEmail(Integer id);
+
+    /**
+     * Get the text of an email as printed by {@link Email#printToDmtpFormat()}, followed by a newline, without
+     * copying it.
+     * @param id the id of the email
+     * @return read only buffer of the UTF-8 text. Null if email not found
+     */
+    ByteBuffer getUserEmailText(Integer id);
+
+    /**
+     * Search the sender, subject and data of the emails. Emails are indexed in the background, so an email may be
+     * found only a moment after it was added.
+     * @param query words, all of which must be found in an email, case insensitive
+     * @return ascending ids of the matching emails
+     */
+    List<Integer> search(String query);
+
+    /**
+     * @return number and bytes of the emails of the user, updated as emails are added and deleted
+     */
+    StorageUsage getUsage();
 }
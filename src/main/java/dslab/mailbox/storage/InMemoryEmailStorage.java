@@ -1,39 +1,75 @@
 package dslab.mailbox.storage;
 
+import dslab.protocols.dmtp.DmtpFormatCodec;
 import dslab.protocols.dmtp.Email;
 import dslab.util.Config;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Keeps the emails in memory, off the heap. The body of an email is stored once, however many local recipients it
+ * has, and the mailboxes index it by primitive ids. If the config has a <code>snapshot.file</code>, the emails are
+ * loaded from it on startup, and saved to it in the background every <code>snapshot.interval</code> seconds (60 by
+ * default) and on close, see {@link MailboxSnapshot}.
+ */
 public class InMemoryEmailStorage implements IEmailStorage {
 
-    private static IEmailStorage instance = null;
-    private final ConcurrentMap<String, IUserEmails> userEmails;
+    private final ConcurrentMap<String, InMemoryUserEmails> userEmails;
+    private final BodyStore bodies = new BodyStore();
+    private final SearchIndexer indexer;
     private final String domain;
 
-    // Singleton
-    private InMemoryEmailStorage(Config config) {
-        Config userConfig = new Config(config.getString("users.config"));
-        this.userEmails = new ConcurrentHashMap<>();
-        for (String usr : userConfig.listKeys()) {
-            userEmails.put(usr, new InMemoryUserEmails());
-        }
-        this.domain = config.getString("domain");
-    }
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 60;
+
+    // Null if the storage is not saved
+    private Path snapshotFile;
+    private ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object();
+
+    public InMemoryEmailStorage(Config config) throws IOException {
+        this(config.getString("domain"), new Config(config.getString("users.config")).listKeys());
 
-    public static IEmailStorage getEmailStorage() {
-        if (instance == null) {
-            throw new RuntimeException("Storage not initialized.");
+        if (config.containsKey("snapshot.file")) {
+            snapshotFile = Paths.get(config.getString("snapshot.file"));
+            if (snapshotFile.toFile().exists()) {
+                long start = System.currentTimeMillis();
+                long nEmails = loadSnapshot(snapshotFile);
+                System.out.println("Loaded " + nEmails + " emails from " + snapshotFile + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+
+            long interval = config.containsKey("snapshot.interval")
+                    ? Long.parseLong(config.getString("snapshot.interval")) : DEFAULT_SNAPSHOT_INTERVAL;
+            snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mailbox-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotter.scheduleWithFixedDelay(this::saveSnapshot, interval, interval, TimeUnit.SECONDS);
         }
+    }
 
-        return instance;
+    public InMemoryEmailStorage(String domain, Collection<String> users) {
+        this(domain, users, new SearchIndexer());
     }
 
-    public static void init(Config config) {
-        if (instance == null) {
-            instance = new InMemoryEmailStorage(config);
+    InMemoryEmailStorage(String domain, Collection<String> users, SearchIndexer indexer) {
+        this.indexer = indexer;
+        this.userEmails = new ConcurrentHashMap<>();
+        for (String usr : users) {
+            userEmails.put(usr, new InMemoryUserEmails(bodies, indexer));
         }
+        this.domain = domain;
     }
 
     @Override
@@ -44,11 +80,93 @@ public class InMemoryEmailStorage implements IEmailStorage {
     @Override
     public void addEmail(Email email) {
         // Add email to each recipient that belongs to this server
+        List<InMemoryUserEmails> recipients = new ArrayList<>();
         for (String recipient : email.recipients) {
             if (this.domain.equals(Email.getDomain(recipient))) {
-                IUserEmails recipientStorage = getUserStorage(Email.getUser(recipient));
-                if (recipientStorage != null) recipientStorage.addEmail(email);
+                InMemoryUserEmails recipientStorage = userEmails.get(Email.getUser(recipient));
+                if (recipientStorage != null) recipients.add(recipientStorage);
             }
         }
+
+        if (recipients.isEmpty())
+            return;
+
+        // One body, referenced by every recipient
+        long address = bodies.retain(DmtpFormatCodec.encode(email), recipients.size());
+        for (InMemoryUserEmails recipient : recipients)
+            recipient.add(address);
+    }
+
+    @Override
+    public StorageUsage getUsage() {
+        return bodies.getUsage();
+    }
+
+    @Override
+    public void close() {
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            saveSnapshot();
+        }
+        indexer.close();
+    }
+
+    /**
+     * Write a snapshot of the emails, without blocking deliveries.
+     * @return the number of emails written
+     */
+    long writeSnapshot(Path file) throws IOException {
+        synchronized (snapshotLock) {
+            return MailboxSnapshot.write(file, bodies, userEmails);
+        }
+    }
+
+    /**
+     * Load a snapshot of the emails, before any is added.
+     * @return the number of emails loaded
+     */
+    long loadSnapshot(Path file) throws IOException {
+        return MailboxSnapshot.load(file, bodies, userEmails);
+    }
+
+    private void saveSnapshot() {
+        try {
+            writeSnapshot(snapshotFile);
+        } catch (IOException e) {
+            System.out.println("Couldn't write snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wait until the emails added so far are indexed for search.
+     */
+    void awaitIndexed() throws InterruptedException {
+        indexer.await();
+    }
+
+    /**
+     * @return number of distinct email bodies stored
+     */
+    public int getBodyCount() {
+        return bodies.size();
+    }
+
+    /**
+     * @return bytes of off-heap memory reserved for the bodies
+     */
+    public long getOffHeapBytes() {
+        return bodies.getOffHeapBytes();
+    }
+
+    /**
+     * @return number of emails decoded from off-heap memory so far
+     */
+    long getDecodedCount() {
+        return bodies.getDecoded();
     }
 }
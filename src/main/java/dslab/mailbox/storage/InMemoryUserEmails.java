@@ -1,32 +1,154 @@
 package dslab.mailbox.storage;
 
+import dslab.protocols.dmtp.DmtpFormatCodec;
 import dslab.protocols.dmtp.Email;
 
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
-public class InMemoryUserEmails extends ConcurrentHashMap<Integer, Email> implements IUserEmails {
+/**
+ * Emails of a user: ids mapped to the addresses of bodies kept off-heap in a shared {@link BodyStore}, and listed in
+ * id order by {@link OrderedIds}. Emails are decoded when they are read.
+ */
+public class InMemoryUserEmails implements IUserEmails {
 
-    private final AtomicInteger count = new AtomicInteger(0);
+    private final BodyStore bodies;
+    private final LongIndex addresses = new LongIndex();
+    private final OrderedIds ids = new OrderedIds();
+    private final SearchIndex searchIndex;
+    private final StorageUsage usage = new StorageUsage();
+
+    InMemoryUserEmails(BodyStore bodies, SearchIndexer indexer) {
+        this.bodies = bodies;
+        this.searchIndex = new SearchIndex(indexer, this::getUserEmail);
+    }
 
     @Override
     public void addEmail(Email email) {
-        Integer id = count.incrementAndGet();
-        this.put(id, email);
+        add(bodies.retain(DmtpFormatCodec.encode(email), 1));
+    }
+
+    /**
+     * Add an email whose body is already retained for this user.
+     */
+    void add(long address) {
+        int id = ids.next();
+        addresses.put(id, address);
+        usage.add(bodies.getLength(address));
+        searchIndex.submit(id);
+    }
+
+    /**
+     * Restore the emails of an empty mailbox, e.g. from a snapshot.
+     * @param restoredIds ascending ids
+     * @param restoredAddresses addresses of the bodies of the ids, already retained for this user
+     * @param lastId last id assigned
+     */
+    void restore(int[] restoredIds, long[] restoredAddresses, int lastId) {
+        ids.restore(restoredIds, lastId);
+        for (int i = 0; i < restoredIds.length; i++) {
+            addresses.put(restoredIds[i], restoredAddresses[i]);
+            usage.add(bodies.getLength(restoredAddresses[i]));
+            searchIndex.submit(restoredIds[i]);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<Integer, Email>> getUserEmails() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(getUserEmails(1, Integer.MAX_VALUE)));
     }
 
     @Override
-    public Set<Entry<Integer, Email>> getUserEmails() {
-        return Collections.unmodifiableSet(this.entrySet());
+    public List<Map.Entry<Integer, Email>> getUserEmails(int fromId, int count) {
+        List<Map.Entry<Integer, Email>> emails = new ArrayList<>();
+        for (int id : ids.page(fromId, count)) {
+            Email email = getUserEmail(id);
+            if (email != null)
+                emails.add(new AbstractMap.SimpleImmutableEntry<>(id, email));
+        }
+        return emails;
     }
 
     @Override
     public Email deleteEmail(Integer id) {
-        return this.remove(id);
+        long address = addresses.remove(id);
+        if (address == LongIndex.NONE)
+            return null;
+        ids.remove(id);
+        searchIndex.remove(id);
+        usage.remove(bodies.getLength(address));
+
+        Email email = bodies.get(address);
+        if (email != null)
+            email.id = id;
+        bodies.release(address);
+        return email;
+    }
+
+    @Override
+    public Email getUserEmail(Integer id) {
+        long address = addresses.get(id);
+        if (address == LongIndex.NONE)
+            return null;
+
+        // Null if deleted in the meantime
+        Email email = bodies.get(address);
+        if (email != null)
+            email.id = id;
+        return email;
     }
 
     @Override
-    public Email getUserEmail(Integer id) { return this.get(id); }
+    public ByteBuffer getUserEmailText(Integer id) {
+        long address = addresses.get(id);
+        return address == LongIndex.NONE ? null : bodies.getText(address);
+    }
+
+    @Override
+    public List<Integer> search(String query) {
+        return searchIndex.search(query);
+    }
+
+    @Override
+    public StorageUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return the ids of the emails, ascending
+     */
+    int[] getIds() {
+        return ids.page(1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the last id assigned
+     */
+    int getLastId() {
+        return ids.getLast();
+    }
+
+    /**
+     * @return the address of the body of an email, {@link LongIndex#NONE} if not found
+     */
+    long getAddress(int id) {
+        return addresses.get(id);
+    }
+
+    SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * @return approximate heap bytes of the index
+     */
+    long getIndexFootprint() {
+        return addresses.getFootprint();
+    }
 }
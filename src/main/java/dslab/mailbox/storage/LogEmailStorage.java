@@ -0,0 +1,922 @@
+package dslab.mailbox.storage;
+
+import dslab.protocols.dmtp.DmtpFormatCodec;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Mailbox storage keeping the emails in append-only segment files, so they survive a restart of the server.
+ *
+ * The body of an email is written once, addressed by its digest and reference counted, and every local recipient
+ * gets a small record pointing to it; deleting an email appends a tombstone and drops the body with its last
+ * reference. Only the positions of the records and the digests are kept in memory. A flusher thread forces the log
+ * to disk for all the records written since its previous round at once (group commit), and writers return once their
+ * records are durable. Records are checked against a CRC when the log is read back, and a background task compacts
+ * the segments that are mostly garbage by copying their live records to the end of the log.
+ */
+public class LogEmailStorage implements IEmailStorage, Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // Share of garbage above which a segment is compacted
+    public static final double COMPACTION_THRESHOLD = 0.5;
+    public static final long COMPACTION_INTERVAL = 10000;
+
+    static final byte ADD = 1;
+    static final byte DELETE = 2;
+    static final byte BODY = 3;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "lock";
+
+    private final Path directory;
+    private final String domain;
+    private final long segmentSize;
+    private final Map<String, LogUserEmails> userEmails = new HashMap<>();
+    // Bodies by digest, modified in compute() only
+    private final ConcurrentHashMap<String, Body> bodies = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when there are writes to commit
+    private final Condition dirty = lock.newCondition();
+    // Segments by id, i.e. in log order. Read without the lock, modified holding it.
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile LogSegment activeSegment;
+    private final Set<LogSegment> dirtySegments = new HashSet<>();
+    private List<PendingWrite> pendingWrites = new ArrayList<>();
+
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final SearchIndexer indexer = new SearchIndexer();
+    // Each body counted once, however many mailboxes reference it
+    private final StorageUsage usage = new StorageUsage();
+    private final Thread flusher;
+    private final ScheduledExecutorService compactor;
+    private volatile boolean closed = false;
+
+    public LogEmailStorage(Config config) throws IOException {
+        this(Paths.get(config.getString("storage.dir")), config.getString("domain"),
+                new Config(config.getString("users.config")).listKeys(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    public LogEmailStorage(Path directory, String domain, Collection<String> users, long segmentSize)
+            throws IOException {
+        this.directory = directory;
+        this.domain = domain;
+        this.segmentSize = segmentSize;
+        for (String user : users)
+            userEmails.put(user, new LogUserEmails(this, user, indexer));
+
+        Files.createDirectories(directory);
+
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Locked by this same process
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Storage directory " + directory + " is already in use.");
+        }
+        fileLock = acquired;
+
+        recover();
+
+        flusher = new Thread(this::flush, "storage-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL, COMPACTION_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public IUserEmails getUserStorage(String user) {
+        return userEmails.get(user);
+    }
+
+    @Override
+    public void addEmail(Email email) {
+        store(email, recipients(email));
+    }
+
+    /**
+     * Write the records of all emails before waiting, so that they are made durable together.
+     */
+    @Override
+    public List<Boolean> addEmails(List<Email> emails) {
+        List<PendingStore> pending = new ArrayList<>();
+        List<Boolean> added = new ArrayList<>();
+        for (Email email : emails) {
+            try {
+                // Null if there's nothing to wait for
+                pending.add(beginStore(email, recipients(email)));
+                added.add(true);
+            } catch (UncheckedIOException e) {
+                pending.add(null);
+                added.add(false);
+            }
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            if (pending.get(i) == null)
+                continue;
+            try {
+                pending.get(i).complete();
+            } catch (UncheckedIOException e) {
+                added.set(i, false);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return the mailboxes of the recipients that belong to this server
+     */
+    private List<LogUserEmails> recipients(Email email) {
+        List<LogUserEmails> recipients = new ArrayList<>();
+        for (String recipient : email.recipients) {
+            if (this.domain.equals(Email.getDomain(recipient))) {
+                LogUserEmails recipientStorage = userEmails.get(Email.getUser(recipient));
+                if (recipientStorage != null && !recipients.contains(recipientStorage))
+                    recipients.add(recipientStorage);
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Stop the background threads and close the segments, after the pending writes are durable.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            dirty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        compactor.shutdownNow();
+        indexer.close();
+        try {
+            flusher.join();
+            compactor.awaitTermination(COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (LogSegment segment : segments.values())
+            segment.close();
+        try {
+            fileLock.release();
+            lockChannel.close();
+        } catch (IOException exception) { }
+    }
+
+    /**
+     * Compact the segments with a share of garbage above {@link #COMPACTION_THRESHOLD}. Runs periodically in the
+     * background.
+     */
+    public void compact() {
+        for (LogSegment segment : segments.values()) {
+            if (closed)
+                return;
+            // No more records are appended to a segment once it's not the active one
+            if (segment == activeSegment || segment.hasWriters() || segment.getSize() == 0
+                    || segment.getGarbage() < segment.getSize() * COMPACTION_THRESHOLD)
+                continue;
+
+            try {
+                compact(segment);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Couldn't compact storage segment " + segment.getId() + ": " + e);
+            }
+        }
+    }
+
+    @Override
+    public StorageUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return number of distinct email bodies stored
+     */
+    public int getBodyCount() {
+        return bodies.size();
+    }
+
+    /**
+     * Write an email for the given users and wait until it is durable. The body is written only if it's not stored
+     * yet.
+     */
+    void store(Email email, List<LogUserEmails> recipients) {
+        PendingStore pending = beginStore(email, recipients);
+        if (pending != null)
+            pending.complete();
+    }
+
+    /**
+     * Write the records of an email without waiting until they are durable.
+     * @return the email to complete, null if it has no recipients
+     */
+    private PendingStore beginStore(Email email, List<LogUserEmails> recipients) {
+        if (recipients.isEmpty())
+            return null;
+
+        byte[] encoded = DmtpFormatCodec.encode(email);
+        String digest = Digests.sha256(encoded);
+
+        // References are taken first, so the body can't be dropped while the recipients' records are written
+        Body[] created = new Body[1];
+        Body body = bodies.compute(digest, (key, stored) -> {
+            if (stored == null)
+                stored = created[0] = new Body(encoded.length);
+            stored.references += recipients.size();
+            return stored;
+        });
+
+        List<byte[]> payloads = new ArrayList<>();
+        if (created[0] != null)
+            payloads.add(bodyRecord(digest, encoded));
+        List<Integer> ids = new ArrayList<>();
+        for (LogUserEmails recipient : recipients) {
+            int id = recipient.nextId();
+            ids.add(id);
+            payloads.add(addRecord(recipient.getUser(), id, digest));
+        }
+
+        if (created[0] != null)
+            usage.add(encoded.length);
+
+        PendingStore pending = new PendingStore(recipients, ids, digest, body, created[0] != null);
+        try {
+            pending.writes = write(payloads);
+        } catch (UncheckedIOException e) {
+            pending.fail(e);
+            throw e;
+        }
+        return pending;
+    }
+
+    /**
+     * Wait until the emails added so far are indexed for search.
+     */
+    void awaitIndexed() throws InterruptedException {
+        indexer.await();
+    }
+
+    /**
+     * @return length of the encoded email of a header, 0 if its body was dropped
+     */
+    int getSize(Header header) {
+        Body body = bodies.get(header.digest);
+        return body == null ? 0 : body.size;
+    }
+
+    /**
+     * Write the tombstone of an email removed from the index and wait until it is durable, then drop the reference
+     * to its body.
+     */
+    void delete(String user, int id, Header header) {
+        header.location.segment.addGarbage(header.location.size());
+        writeTombstone(user, id, header.location);
+        release(header.digest);
+    }
+
+    /**
+     * @param header header of an email
+     * @return a new copy of the email
+     * @throws IOException if the body is gone, e.g. the email was deleted in the meantime
+     */
+    Email read(Header header) throws IOException {
+        return DmtpFormatCodec.decode(readBody(header));
+    }
+
+    /**
+     * @param header header of an email
+     * @return the text of the email in the mapped segment, see {@link DmtpFormatCodec#text(ByteBuffer)}
+     * @throws IOException if the body is gone, e.g. the email was deleted in the meantime
+     */
+    ByteBuffer readText(Header header) throws IOException {
+        return DmtpFormatCodec.text(readBody(header));
+    }
+
+    /**
+     * @return the encoded email in the mapped segment of its body record
+     */
+    private ByteBuffer readBody(Header header) throws IOException {
+        while (true) {
+            Body body = bodies.get(header.digest);
+            Location location = body == null ? null : body.location;
+            if (location == null)
+                throw new IOException("Body " + header.digest + " not found");
+
+            try {
+                // Mappings outlive their segment, so the body can be read even if compaction deletes it meanwhile
+                ByteBuffer payload = location.segment.map(location.position, location.length);
+                payload.get();
+                readString(payload);
+                return payload.slice();
+            } catch (IOException e) {
+                // Unless moved by compaction in the meantime
+                if (body.location == location)
+                    throw e;
+            }
+        }
+    }
+
+    private void writeTombstone(String user, int id, Location deleted) {
+        Location tombstone = await(write(List.of(deleteRecord(user, id, deleted.segment.getId())))).get(0);
+        // Only kept by compaction while needed
+        tombstone.segment.addGarbage(tombstone.size());
+        tombstone.segment.endWrite();
+    }
+
+    private void release(String digest) {
+        bodies.computeIfPresent(digest, (key, body) -> {
+            if (--body.references > 0)
+                return body;
+            if (body.location != null)
+                body.location.segment.addGarbage(body.location.size());
+            usage.remove(body.size);
+            return null;
+        });
+    }
+
+    private List<CompletableFuture<Location>> write(List<byte[]> payloads) {
+        List<CompletableFuture<Location>> futures = new ArrayList<>();
+
+        lock.lock();
+        try {
+            if (closed)
+                throw new UncheckedIOException(new IOException("Storage is closed."));
+
+            for (byte[] payload : payloads) {
+                CompletableFuture<Location> future = new CompletableFuture<>();
+                futures.add(future);
+                try {
+                    if (activeSegment.getSize() > 0
+                            && activeSegment.getSize() + LogSegment.HEADER_SIZE + payload.length > segmentSize) {
+                        activeSegment.seal();
+                        activeSegment = createSegment(activeSegment.getId() + 1);
+                    }
+
+                    long position = activeSegment.append(payload);
+                    activeSegment.beginWrite();
+                    dirtySegments.add(activeSegment);
+                    pendingWrites.add(new PendingWrite(
+                            new Location(activeSegment, position, payload.length), future));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+            dirty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return futures;
+    }
+
+    /**
+     * Wait until records appended by {@link #write(List)} are durable. The caller releases their segments with
+     * endWrite() once done with the locations, unless this fails: then the records that were written are released
+     * here, and the failed ones by the flusher.
+     */
+    private static List<Location> await(List<CompletableFuture<Location>> futures) {
+        List<Location> locations = new ArrayList<>();
+        Throwable failure = null;
+        for (CompletableFuture<Location> future : futures) {
+            try {
+                locations.add(future.join());
+            } catch (CompletionException e) {
+                failure = e.getCause();
+            }
+        }
+
+        if (failure != null) {
+            for (Location location : locations)
+                location.segment.endWrite();
+            System.out.println("Couldn't write to storage: " + failure.getMessage());
+            throw new UncheckedIOException(new IOException(failure));
+        }
+        return locations;
+    }
+
+    /**
+     * Group commit loop: every round forces everything written since the previous one.
+     */
+    private void flush() {
+        while (true) {
+            List<PendingWrite> committing;
+            List<LogSegment> forcing;
+
+            lock.lock();
+            try {
+                while (pendingWrites.isEmpty() && !closed)
+                    dirty.awaitUninterruptibly();
+
+                if (pendingWrites.isEmpty())
+                    return;
+
+                committing = pendingWrites;
+                pendingWrites = new ArrayList<>();
+                forcing = new ArrayList<>(dirtySegments);
+                dirtySegments.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            IOException failure = null;
+            for (LogSegment segment : forcing) {
+                try {
+                    segment.force();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            for (PendingWrite write : committing) {
+                if (failure == null) {
+                    write.future.complete(write.location);
+                } else {
+                    // Nobody gets the location to release it, and compaction must not wait for it forever
+                    write.location.segment.endWrite();
+                    write.future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the live records of a segment to the end of the log, then delete it.
+     */
+    private void compact(LogSegment segment) throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        List<CopiedRecord> copied = new ArrayList<>();
+
+        long position = 0;
+        while (position < segment.getSize()) {
+            int length = segment.readLength(position);
+            ByteBuffer payload = segment.read(position, length);
+            Location location = new Location(segment, position, length);
+            position += LogSegment.HEADER_SIZE + length;
+
+            byte type = payload.get();
+            if (type == BODY) {
+                String digest = readString(payload);
+                Body body = bodies.get(digest);
+                if (body == null || !location.equals(body.location))
+                    continue;
+
+                payloads.add(payload.array());
+                copied.add(new CopiedRecord(type, null, 0, digest, location));
+                continue;
+            }
+
+            LogUserEmails user = userEmails.get(readString(payload));
+            int id = payload.getInt();
+            if (user == null)
+                continue;
+
+            if (type == ADD) {
+                Header header = user.getHeader(id);
+                if (header == null || !location.equals(header.location))
+                    continue;
+
+                payloads.add(payload.array());
+                copied.add(new CopiedRecord(type, user, id, header.digest, location));
+            } else {
+                // The tombstone is needed as long as the segment of the deleted email is
+                long addSegment = payload.getLong();
+                if (addSegment == segment.getId() || !segments.containsKey(addSegment))
+                    continue;
+                payloads.add(payload.array());
+                copied.add(new CopiedRecord(type, user, id, null, location));
+            }
+        }
+
+        List<Location> copies = await(write(payloads));
+
+        for (int i = 0; i < copies.size(); i++) {
+            Location copy = copies.get(i);
+            CopiedRecord record = copied.get(i);
+
+            if (record.type == BODY) {
+                boolean[] moved = new boolean[1];
+                bodies.computeIfPresent(record.digest, (key, body) -> {
+                    if (record.location.equals(body.location)) {
+                        body.location = copy;
+                        moved[0] = true;
+                    }
+                    return body;
+                });
+                // Dropped while being copied
+                if (!moved[0])
+                    copy.segment.addGarbage(copy.size());
+            } else if (record.type == DELETE) {
+                copy.segment.addGarbage(copy.size());
+            } else if (!record.user.replace(record.id, new Header(record.location, record.digest),
+                    new Header(copy, record.digest))) {
+                // Deleted while being copied, which dropped the body reference already. The tombstone may precede
+                // the copy in the log, so add one after it.
+                copy.segment.addGarbage(copy.size());
+                writeTombstone(record.user.getUser(), record.id, copy);
+            }
+            copy.segment.endWrite();
+        }
+
+        lock.lock();
+        try {
+            segments.remove(segment.getId());
+            dirtySegments.remove(segment);
+        } finally {
+            lock.unlock();
+        }
+        segment.delete();
+    }
+
+    private void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> ids.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        ids.sort(null);
+
+        // Compacted bodies may come after the records referencing them
+        Map<String, Location> bodyLocations = new HashMap<>();
+        for (long id : ids)
+            segments.put(id, LogSegment.open(segmentPath(id), id,
+                    (segment, position, payload) -> replay(segment, position, payload, bodyLocations)));
+
+        for (LogUserEmails user : userEmails.values()) {
+            for (Map.Entry<Integer, Header> entry : user.getHeaders()) {
+                Header header = entry.getValue();
+                Location location = bodyLocations.get(header.digest);
+                if (location == null) {
+                    System.out.println("Dropping email " + entry.getKey() + " of " + user.getUser()
+                            + ": body not found");
+                    user.remove(entry.getKey());
+                    header.location.segment.addGarbage(header.location.size());
+                    continue;
+                }
+                Body body = bodies.computeIfAbsent(header.digest, digest -> {
+                    Body recovered = new Body(location, location.length - bodyRecordOverhead(digest));
+                    usage.add(recovered.size);
+                    return recovered;
+                });
+                body.references++;
+                user.getUsage().add(body.size);
+            }
+        }
+        bodyLocations.forEach((digest, location) -> {
+            if (!bodies.containsKey(digest))
+                location.segment.addGarbage(location.size());
+        });
+
+        // The search index is not persisted, it's rebuilt in the background once the bodies can be read
+        for (LogUserEmails user : userEmails.values()) {
+            for (Map.Entry<Integer, Header> entry : user.getHeaders())
+                user.index(entry.getKey());
+        }
+
+        if (segments.isEmpty()) {
+            activeSegment = createSegment(0);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+            for (LogSegment segment : segments.headMap(activeSegment.getId()).values())
+                segment.seal();
+        }
+    }
+
+    /**
+     * Apply a record read back from the log to the index.
+     */
+    private void replay(LogSegment segment, long position, ByteBuffer payload, Map<String, Location> bodyLocations) {
+        Location location = new Location(segment, position, payload.remaining());
+
+        byte type = payload.get();
+        if (type == BODY) {
+            Location replaced = bodyLocations.put(readString(payload), location);
+            if (replaced != null)
+                // Copy left over by a compaction interrupted before deleting its segment
+                replaced.segment.addGarbage(replaced.size());
+            return;
+        }
+
+        LogUserEmails user = userEmails.get(readString(payload));
+        int id = payload.getInt();
+
+        if (user == null) {
+            // User removed from the configuration
+            segment.addGarbage(location.size());
+            return;
+        }
+
+        // Ids of deleted emails are not reused, so that no tombstone can apply to a newer email
+        user.recoverId(id);
+
+        if (type == ADD) {
+            Header replaced = user.put(id, new Header(location, readString(payload)));
+            if (replaced != null)
+                replaced.location.segment.addGarbage(replaced.location.size());
+        } else {
+            Header removed = user.remove(id);
+            if (removed != null)
+                removed.location.segment.addGarbage(removed.location.size());
+            segment.addGarbage(location.size());
+        }
+    }
+
+    private LogSegment createSegment(long id) throws IOException {
+        LogSegment segment = LogSegment.create(segmentPath(id), id);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] addRecord(String user, int id, String digest) {
+        byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+        byte[] digestBytes = digest.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 * Short.BYTES + userBytes.length + Integer.BYTES
+                + digestBytes.length);
+        buffer.put(ADD);
+        putString(buffer, userBytes);
+        buffer.putInt(id);
+        putString(buffer, digestBytes);
+        return buffer.array();
+    }
+
+    private static byte[] deleteRecord(String user, int id, long addSegment) {
+        byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + Short.BYTES + userBytes.length + Integer.BYTES + Long.BYTES);
+        buffer.put(DELETE);
+        putString(buffer, userBytes);
+        buffer.putInt(id);
+        buffer.putLong(addSegment);
+        return buffer.array();
+    }
+
+    /**
+     * @return bytes of a body record besides the encoded email
+     */
+    private static int bodyRecordOverhead(String digest) {
+        return 1 + Short.BYTES + digest.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static byte[] bodyRecord(String digest, byte[] email) {
+        byte[] digestBytes = digest.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + Short.BYTES + digestBytes.length + email.length);
+        buffer.put(BODY);
+        putString(buffer, digestBytes);
+        buffer.put(email);
+        return buffer.array();
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    private static String readString(ByteBuffer payload) {
+        byte[] value = new byte[payload.getShort()];
+        payload.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Position of a record in the log.
+     */
+    static class Location {
+
+        final LogSegment segment;
+        final long position;
+        final int length;
+
+        Location(LogSegment segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        /**
+         * @return the size of the record on disk
+         */
+        long size() {
+            return LogSegment.HEADER_SIZE + length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Location))
+                return false;
+            Location other = (Location) o;
+            return segment == other.segment && position == other.position;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(segment.getId()) * 31 + Long.hashCode(position);
+        }
+    }
+
+    /**
+     * Record of an email in a user's mailbox, with the digest of its body.
+     */
+    static class Header {
+
+        final Location location;
+        final String digest;
+
+        Header(Location location, String digest) {
+            this.location = location;
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Header && location.equals(((Header) o).location);
+        }
+
+        @Override
+        public int hashCode() {
+            return location.hashCode();
+        }
+    }
+
+    /**
+     * A stored body, and the number of mailbox records referencing it.
+     */
+    private static class Body {
+
+        // Null until written
+        volatile Location location;
+        // Length of the encoded email
+        final int size;
+        // Completed once the body is durable
+        final CompletableFuture<Location> written;
+        int references;
+
+        Body(int size) {
+            this.size = size;
+            this.written = new CompletableFuture<>();
+        }
+
+        Body(Location location, int size) {
+            this.location = location;
+            this.size = size;
+            this.written = CompletableFuture.completedFuture(location);
+        }
+    }
+
+    private static class CopiedRecord {
+
+        final byte type;
+        final LogUserEmails user;
+        final int id;
+        final String digest;
+        // Location of the original record
+        final Location location;
+
+        CopiedRecord(byte type, LogUserEmails user, int id, String digest, Location location) {
+            this.type = type;
+            this.user = user;
+            this.id = id;
+            this.digest = digest;
+            this.location = location;
+        }
+    }
+
+    /**
+     * An email whose records are written to the log, but not durable yet.
+     */
+    private class PendingStore {
+
+        final List<LogUserEmails> recipients;
+        final List<Integer> ids;
+        final String digest;
+        final Body body;
+        // Whether the body is written along with this email
+        final boolean created;
+        List<CompletableFuture<Location>> writes;
+
+        PendingStore(List<LogUserEmails> recipients, List<Integer> ids, String digest, Body body, boolean created) {
+            this.recipients = recipients;
+            this.ids = ids;
+            this.digest = digest;
+            this.body = body;
+            this.created = created;
+        }
+
+        /**
+         * Wait until the records are durable, then add the email to the recipients' indexes.
+         */
+        void complete() {
+            List<Location> locations;
+            try {
+                locations = await(writes);
+                if (created) {
+                    Location bodyLocation = locations.remove(0);
+                    body.location = bodyLocation;
+                    body.written.complete(bodyLocation);
+                    bodyLocation.segment.endWrite();
+                } else {
+                    // Written by a concurrent delivery of the same email, which releases its segment: wait until
+                    // it's durable too
+                    try {
+                        body.written.join();
+                    } catch (CompletionException e) {
+                        for (Location location : locations)
+                            location.segment.endWrite();
+                        throw new UncheckedIOException(new IOException(e.getCause()));
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                fail(e);
+                throw e;
+            }
+
+            for (int i = 0; i < recipients.size(); i++) {
+                recipients.get(i).put(ids.get(i), new Header(locations.get(i), digest));
+                recipients.get(i).getUsage().add(body.size);
+                locations.get(i).segment.endWrite();
+                recipients.get(i).index(ids.get(i));
+            }
+        }
+
+        void fail(UncheckedIOException e) {
+            if (created)
+                body.written.completeExceptionally(e);
+            for (int i = 0; i < recipients.size(); i++)
+                release(digest);
+        }
+    }
+
+    private static class PendingWrite {
+
+        final Location location;
+        final CompletableFuture<Location> future;
+
+        PendingWrite(Location location, CompletableFuture<Location> future) {
+            this.location = location;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package dslab.mailbox.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of mailbox storage records.
+ * Each record is [int length][int crc32][payload]. Appends are serialized by the storage, reads may happen
+ * concurrently from any thread. Records can also be read from a read-only memory mapping of the segment, which stays
+ * valid after the segment is closed or deleted.
+ */
+class LogSegment {
+
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final Path path;
+    private final long id;
+    private final FileChannel fileChannel;
+    private volatile long size;
+    // Mapping of the segment up to its size when it was mapped. A sealed segment is mapped once in full, records of
+    // the active one past its mapping are read instead of remapping it for every new record.
+    private volatile MappedByteBuffer mapped;
+    private volatile boolean sealed = false;
+    // Bytes of records that are no longer needed, which compaction gets rid of
+    private final AtomicLong garbage = new AtomicLong();
+    // Records written but not in the index yet, compaction would take them for garbage
+    private final AtomicInteger writers = new AtomicInteger();
+
+    private LogSegment(Path path, long id, FileChannel fileChannel, long size) {
+        this.path = path;
+        this.id = id;
+        this.fileChannel = fileChannel;
+        this.size = size;
+    }
+
+    static LogSegment create(Path path, long id) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new LogSegment(path, id, fileChannel, 0);
+    }
+
+    /**
+     * Open an existing segment, passing every valid record to the visitor. A torn or corrupted record (e.g. after a
+     * crash in the middle of a write) and everything after it is cut off.
+     */
+    static LogSegment open(Path path, long id, RecordVisitor visitor) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LogSegment segment = new LogSegment(path, id, fileChannel, 0);
+
+        long fileSize = fileChannel.size();
+        if (fileSize > 0) {
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            int position = 0;
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity())
+                    break;
+
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(position + HEADER_SIZE);
+                payload.limit(position + HEADER_SIZE + length);
+                if (crc(payload.duplicate()) != buffer.getInt(position + Integer.BYTES))
+                    break;
+
+                visitor.visit(segment, position, payload);
+                position += HEADER_SIZE + length;
+            }
+
+            segment.size = position;
+            if (position < fileSize) {
+                System.out.println("Truncating " + path + " at torn record " + position);
+                fileChannel.truncate(position);
+            } else {
+                segment.mapped = buffer;
+            }
+        }
+
+        return segment;
+    }
+
+    /**
+     * Write a record at the end of the segment. Not thread safe, callers synchronize.
+     * @return the position of the record
+     */
+    long append(byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(crc(ByteBuffer.wrap(payload)));
+        record.put(payload);
+        record.flip();
+
+        long position = size;
+        while (record.hasRemaining())
+            fileChannel.write(record, position + record.position());
+
+        size += record.limit();
+        return position;
+    }
+
+    /**
+     * @param position position of a record in this segment
+     * @param length length of its payload
+     * @return the payload of the record
+     * @throws IOException if the segment was deleted in the meantime, or couldn't be read
+     */
+    ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        while (payload.hasRemaining()) {
+            if (fileChannel.read(payload, position + HEADER_SIZE + payload.position()) < 0)
+                throw new IOException("Record at " + position + " past the end of " + path);
+        }
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * @param position position of a record in this segment
+     * @param length length of its payload
+     * @return the payload of the record in the mapped segment, without copying it, or a copy if the record is in
+     * the active segment past its mapping
+     * @throws IOException if the segment was closed before it could be mapped or read
+     */
+    ByteBuffer map(long position, int length) throws IOException {
+        long end = position + HEADER_SIZE + length;
+        MappedByteBuffer buffer = mapped;
+        if (buffer == null || end > buffer.capacity()) {
+            if (!sealed)
+                return read(position, length);
+
+            synchronized (this) {
+                buffer = mapped;
+                if (buffer == null || end > buffer.capacity()) {
+                    if (end > size)
+                        throw new IOException("Record at " + position + " past the end of " + path);
+                    buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    mapped = buffer;
+                }
+            }
+        }
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position((int) position + HEADER_SIZE);
+        payload.limit((int) end);
+        return payload.slice();
+    }
+
+    /**
+     * @param position position of a record in this segment
+     * @return the length of its payload
+     */
+    int readLength(long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        while (length.hasRemaining()) {
+            if (fileChannel.read(length, position + length.position()) < 0)
+                throw new IOException("Record at " + position + " past the end of " + path);
+        }
+        return length.getInt(0);
+    }
+
+    /**
+     * Mark the segment as full: no record is appended to it any more.
+     */
+    void seal() {
+        sealed = true;
+    }
+
+    void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    void close() {
+        try {
+            fileChannel.close();
+        } catch (IOException exception) { }
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return the size of the written records, the position of the next one
+     */
+    long getSize() {
+        return size;
+    }
+
+    void addGarbage(long bytes) {
+        garbage.addAndGet(bytes);
+    }
+
+    long getGarbage() {
+        return garbage.get();
+    }
+
+    void beginWrite() {
+        writers.incrementAndGet();
+    }
+
+    void endWrite() {
+        writers.decrementAndGet();
+    }
+
+    boolean hasWriters() {
+        return writers.get() > 0;
+    }
+
+    private static int crc(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    interface RecordVisitor {
+
+        /**
+         * @param segment the segment being opened
+         * @param position position of the record
+         * @param payload the payload of the record, valid only during the call
+         */
+        void visit(LogSegment segment, long position, ByteBuffer payload);
+    }
+}
@@ -0,0 +1,174 @@
+package dslab.mailbox.storage;
+
+import dslab.mailbox.storage.LogEmailStorage.Header;
+import dslab.protocols.dmtp.Email;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Emails of a user in a {@link LogEmailStorage}: an index from ids to the headers of the emails in the log.
+ */
+public class LogUserEmails implements IUserEmails {
+
+    private final LogEmailStorage storage;
+    private final String user;
+    private final ConcurrentSkipListMap<Integer, Header> index = new ConcurrentSkipListMap<>();
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final SearchIndex searchIndex;
+    private final StorageUsage usage = new StorageUsage();
+
+    LogUserEmails(LogEmailStorage storage, String user, SearchIndexer indexer) {
+        this.storage = storage;
+        this.user = user;
+        this.searchIndex = new SearchIndex(indexer, this::getUserEmail);
+    }
+
+    @Override
+    public void addEmail(Email email) {
+        storage.store(email, Collections.singletonList(this));
+    }
+
+    @Override
+    public Email deleteEmail(Integer id) {
+        while (true) {
+            Header header = index.get(id);
+            if (header == null)
+                return null;
+
+            Email email;
+            try {
+                email = storage.read(header);
+            } catch (IOException e) {
+                if (index.get(id) == header) {
+                    System.out.println("Couldn't read email " + id + " of " + user + ": " + e.getMessage());
+                    return null;
+                }
+                // Deleted concurrently
+                continue;
+            }
+
+            // Fails if moved by compaction or deleted in the meantime
+            if (index.remove(id, header)) {
+                searchIndex.remove(id);
+                usage.remove(storage.getSize(header));
+                storage.delete(user, id, header);
+                email.id = id;
+                return email;
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<Integer, Email>> getUserEmails() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(getUserEmails(1, Integer.MAX_VALUE)));
+    }
+
+    @Override
+    public List<Map.Entry<Integer, Email>> getUserEmails(int fromId, int count) {
+        List<Map.Entry<Integer, Email>> emails = new ArrayList<>();
+        for (Integer id : index.tailMap(fromId).keySet()) {
+            if (emails.size() == count)
+                break;
+            Email email = getUserEmail(id);
+            if (email != null)
+                emails.add(new AbstractMap.SimpleImmutableEntry<>(id, email));
+        }
+        return emails;
+    }
+
+    @Override
+    public Email getUserEmail(Integer id) {
+        Header header = index.get(id);
+        if (header == null)
+            return null;
+
+        try {
+            Email email = storage.read(header);
+            email.id = id;
+            return email;
+        } catch (IOException e) {
+            // Deleted in the meantime, unless still indexed
+            if (index.containsKey(id))
+                System.out.println("Couldn't read email " + id + " of " + user + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public ByteBuffer getUserEmailText(Integer id) {
+        Header header = index.get(id);
+        if (header == null)
+            return null;
+
+        try {
+            return storage.readText(header);
+        } catch (IOException e) {
+            // Deleted in the meantime, unless still indexed
+            if (index.containsKey(id))
+                System.out.println("Couldn't read email " + id + " of " + user + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public List<Integer> search(String query) {
+        return searchIndex.search(query);
+    }
+
+    @Override
+    public StorageUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * Queue an email that was put in the index for search.
+     */
+    void index(int id) {
+        searchIndex.submit(id);
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    int nextId() {
+        return count.incrementAndGet();
+    }
+
+    /**
+     * Make sure ids up to the given one, seen in the log, are not assigned again.
+     */
+    void recoverId(int id) {
+        count.accumulateAndGet(id, Math::max);
+    }
+
+    Header getHeader(int id) {
+        return index.get(id);
+    }
+
+    List<Map.Entry<Integer, Header>> getHeaders() {
+        return new ArrayList<>(index.entrySet());
+    }
+
+    Header put(int id, Header header) {
+        return index.put(id, header);
+    }
+
+    Header remove(int id) {
+        return index.remove(id);
+    }
+
+    boolean replace(int id, Header previous, Header header) {
+        return index.replace(id, previous, header);
+    }
+}
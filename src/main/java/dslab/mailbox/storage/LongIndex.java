@@ -0,0 +1,132 @@
+package dslab.mailbox.storage;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to long values, kept in two primitive arrays: no boxing and no node per entry, so that
+ * millions of entries cost the garbage collector two objects. Open addressing with linear probing; removals shift
+ * the following entries back instead of leaving tombstones. Thread safe.
+ */
+class LongIndex {
+
+    // Value returned for missing keys, values must not be negative
+    static final long NONE = -1;
+    // Key of the empty slots, it can't be stored
+    static final long EMPTY = 0;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final double LOAD_FACTOR = 0.75;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] values = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    synchronized long get(long key) {
+        int slot = find(key);
+        return keys[slot] == EMPTY ? NONE : values[slot];
+    }
+
+    /**
+     * @return the previous value of the key, or {@link #NONE}
+     */
+    synchronized long put(long key, long value) {
+        if (key == EMPTY || value < 0)
+            throw new IllegalArgumentException("Invalid entry " + key + " -> " + value);
+
+        int slot = find(key);
+        if (keys[slot] != EMPTY) {
+            long previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > keys.length * LOAD_FACTOR)
+            resize(keys.length * 2);
+        return NONE;
+    }
+
+    /**
+     * @return the removed value, or {@link #NONE}
+     */
+    synchronized long remove(long key) {
+        int slot = find(key);
+        if (keys[slot] == EMPTY)
+            return NONE;
+        long removed = values[slot];
+
+        // Move back the following entries of the cluster that would not be found past the free slot
+        int mask = keys.length - 1;
+        int free = slot;
+        for (int next = (free + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+        }
+        keys[free] = EMPTY;
+        size--;
+
+        return removed;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the keys, sorted
+     */
+    synchronized long[] keys() {
+        long[] sorted = new long[size];
+        int i = 0;
+        for (long key : keys) {
+            if (key != EMPTY)
+                sorted[i++] = key;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return approximate heap bytes of the arrays
+     */
+    synchronized long getFootprint() {
+        return 2L * keys.length * Long.BYTES;
+    }
+
+    /**
+     * @return the slot of the key, or the empty slot where it belongs
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // Spread sequential ids and digest prefixes alike
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
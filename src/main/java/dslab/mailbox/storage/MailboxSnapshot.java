@@ -0,0 +1,241 @@
+package dslab.mailbox.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binary snapshot of the emails of an {@link InMemoryEmailStorage}, so that they survive restarts. The file holds
+ * every body once, as [int references][int length][digest][encoded email], followed by the mailboxes, as
+ * [short name length][name][int last id][int count] and [int id][int body number] per email.
+ * <p>
+ * A snapshot is taken while emails are delivered and deleted: the ids of a mailbox are copied at once, and the bodies
+ * are held by views of their off-heap memory, which is never reused and stays readable until the views are dropped,
+ * even if the emails are deleted in the meantime. The file is written aside and moved in place, so the previous
+ * snapshot is kept until the new one is complete. It's read back through memory-mapped windows.
+ */
+final class MailboxSnapshot {
+
+    private static final int MAGIC = 0x44534d53;
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private MailboxSnapshot() {
+        // static utility class
+    }
+
+    /**
+     * Write a snapshot of the storage, replacing the file once it is durable.
+     * @return the number of emails written
+     */
+    static long write(Path file, BodyStore bodies, Map<String, InMemoryUserEmails> userEmails) throws IOException {
+        // Copied mailboxes, and the bodies they reference numbered in order of appearance
+        List<String> users = new ArrayList<>();
+        List<int[]> ids = new ArrayList<>();
+        List<int[]> bodyNumbers = new ArrayList<>();
+        List<Integer> lastIds = new ArrayList<>();
+        LongIndex numbers = new LongIndex();
+        List<ByteBuffer> snapshots = new ArrayList<>();
+        List<Integer> references = new ArrayList<>();
+
+        long nEmails = 0;
+        for (Map.Entry<String, InMemoryUserEmails> entry : new TreeMap<>(userEmails).entrySet()) {
+            InMemoryUserEmails emails = entry.getValue();
+            int[] userIds = emails.getIds();
+            // Read after the ids, so that it's not below any of them
+            int lastId = emails.getLastId();
+
+            int[] userBodies = new int[userIds.length];
+            int n = 0;
+            for (int id : userIds) {
+                long address = emails.getAddress(id);
+                if (address == LongIndex.NONE)
+                    continue;
+
+                // Addresses start at 0, an empty key of the index
+                long number = numbers.get(address + 1);
+                if (number == LongIndex.NONE) {
+                    ByteBuffer snapshot = bodies.snapshot(address);
+                    if (snapshot == null)
+                        continue;
+                    number = snapshots.size();
+                    numbers.put(address + 1, number);
+                    snapshots.add(snapshot);
+                    references.add(0);
+                }
+                references.set((int) number, references.get((int) number) + 1);
+                userIds[n] = id;
+                userBodies[n++] = (int) number;
+            }
+
+            users.add(entry.getKey());
+            ids.add(Arrays.copyOf(userIds, n));
+            bodyNumbers.add(Arrays.copyOf(userBodies, n));
+            lastIds.add(lastId);
+            nEmails += n;
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+
+            buffer.putInt(snapshots.size());
+            for (int i = 0; i < snapshots.size(); i++) {
+                ByteBuffer snapshot = snapshots.get(i);
+                ensure(channel, buffer, 2 * Integer.BYTES);
+                buffer.putInt(references.get(i));
+                buffer.putInt(snapshot.remaining() - Digests.SHA256_LENGTH);
+                if (snapshot.remaining() <= buffer.remaining()) {
+                    buffer.put(snapshot);
+                } else {
+                    flush(channel, buffer);
+                    while (snapshot.hasRemaining())
+                        channel.write(snapshot);
+                }
+            }
+
+            ensure(channel, buffer, Integer.BYTES);
+            buffer.putInt(users.size());
+            for (int u = 0; u < users.size(); u++) {
+                byte[] name = users.get(u).getBytes(StandardCharsets.UTF_8);
+                ensure(channel, buffer, Short.BYTES + name.length + 2 * Integer.BYTES);
+                buffer.putShort((short) name.length);
+                buffer.put(name);
+                buffer.putInt(lastIds.get(u));
+                buffer.putInt(ids.get(u).length);
+                for (int i = 0; i < ids.get(u).length; i++) {
+                    ensure(channel, buffer, 2 * Integer.BYTES);
+                    buffer.putInt(ids.get(u)[i]);
+                    buffer.putInt(bodyNumbers.get(u)[i]);
+                }
+            }
+
+            flush(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return nEmails;
+    }
+
+    /**
+     * Load a snapshot into an empty storage. Mailboxes of users that are not configured anymore are dropped.
+     * @return the number of emails loaded
+     */
+    static long load(Path file, BodyStore bodies, Map<String, InMemoryUserEmails> userEmails) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedReader reader = new MappedReader(channel);
+            if (reader.get(Integer.BYTES).getInt() != MAGIC)
+                throw new IOException("Not a mailbox snapshot: " + file);
+            int version = reader.get(Integer.BYTES).getInt();
+            if (version != VERSION)
+                throw new IOException("Unknown snapshot version " + version);
+
+            long[] addresses = new long[reader.get(Integer.BYTES).getInt()];
+            for (int i = 0; i < addresses.length; i++) {
+                ByteBuffer header = reader.get(2 * Integer.BYTES);
+                int references = header.getInt();
+                int length = header.getInt();
+                addresses[i] = bodies.restore(references, reader.get(Digests.SHA256_LENGTH + length));
+            }
+
+            long nEmails = 0;
+            int nUsers = reader.get(Integer.BYTES).getInt();
+            for (int u = 0; u < nUsers; u++) {
+                byte[] name = new byte[Short.toUnsignedInt(reader.get(Short.BYTES).getShort())];
+                reader.get(name.length).get(name);
+                ByteBuffer header = reader.get(2 * Integer.BYTES);
+                int lastId = header.getInt();
+                int[] ids = new int[header.getInt()];
+                long[] userAddresses = new long[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ByteBuffer email = reader.get(2 * Integer.BYTES);
+                    ids[i] = email.getInt();
+                    userAddresses[i] = addresses[email.getInt()];
+                }
+
+                InMemoryUserEmails emails = userEmails.get(new String(name, StandardCharsets.UTF_8));
+                if (emails == null) {
+                    // User removed from the configuration
+                    for (long address : userAddresses)
+                        bodies.release(address);
+                    continue;
+                }
+                emails.restore(ids, userAddresses, lastId);
+                nEmails += ids.length;
+            }
+            return nEmails;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt snapshot " + file, e);
+        }
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int size) throws IOException {
+        if (buffer.remaining() < size)
+            flush(channel, buffer);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Reads a file sequentially through read only mappings of up to {@link #WINDOW_SIZE} bytes, as a single mapping
+     * can't exceed 2 GB.
+     */
+    private static class MappedReader {
+
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * @return a view of the next bytes, advancing past them
+         */
+        ByteBuffer get(int length) throws IOException {
+            if (length < 0)
+                throw new IOException("Invalid length " + length);
+            if (window == null || window.remaining() < length) {
+                long position = window == null ? 0 : windowStart + window.position();
+                if (position + length > size)
+                    throw new EOFException("Truncated snapshot");
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(Math.max(WINDOW_SIZE, length), size - position));
+                windowStart = position;
+            }
+
+            ByteBuffer view = window.slice();
+            view.limit(length);
+            window.position(window.position() + length);
+            return view;
+        }
+    }
+}
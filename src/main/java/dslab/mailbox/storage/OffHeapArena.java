@@ -0,0 +1,127 @@
+package dslab.mailbox.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Off-heap memory for email bodies, allocated in direct chunks by bumping a pointer. Space is not reused within a
+ * chunk: a chunk is dropped once everything allocated in it is freed, and its memory is released when the last
+ * buffer reading it is garbage collected, so a reader never sees reused memory. A single live allocation keeps its
+ * whole chunk: the freed space that can't be reused is reported to the {@link StorageUsage} of the bodies, so that
+ * the storage budget counts it. An address is the id of the chunk in the upper 32 bits and the offset in the lower
+ * ones.
+ */
+class OffHeapArena {
+
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private final ConcurrentHashMap<Integer, Chunk> chunks = new ConcurrentHashMap<>();
+    private final StorageUsage usage;
+    // Guarded by this
+    private Chunk current;
+    private int nextChunkId = 0;
+    private long reserved = 0;
+    private long live = 0;
+    // Last value reported to the usage
+    private long unusable = 0;
+
+    OffHeapArena(StorageUsage usage) {
+        this.usage = usage;
+    }
+
+    /**
+     * @param size number of bytes, written by the caller through {@link #buffer(long)}
+     * @return the address of the allocated space
+     */
+    synchronized long allocate(int size) {
+        Chunk chunk;
+        if (size > CHUNK_SIZE) {
+            // Own chunk, dropped with it
+            chunk = newChunk(size);
+        } else {
+            if (current == null || current.used + size > CHUNK_SIZE) {
+                Chunk full = current;
+                current = newChunk(CHUNK_SIZE);
+                if (full != null && full.live == 0)
+                    drop(full);
+            }
+            chunk = current;
+        }
+
+        long address = ((long) chunk.id << 32) | chunk.used;
+        chunk.used += size;
+        chunk.live += size;
+        live += size;
+        account();
+        return address;
+    }
+
+    /**
+     * @return a buffer of the chunk positioned at the address, or null if it was freed and its chunk dropped
+     */
+    ByteBuffer buffer(long address) {
+        Chunk chunk = chunks.get((int) (address >>> 32));
+        if (chunk == null)
+            return null;
+
+        ByteBuffer buffer = chunk.buffer.duplicate();
+        buffer.position((int) address);
+        return buffer;
+    }
+
+    synchronized void free(long address, int size) {
+        Chunk chunk = chunks.get((int) (address >>> 32));
+        if (chunk == null)
+            return;
+
+        chunk.live -= size;
+        live -= size;
+        if (chunk.live == 0 && chunk != current)
+            drop(chunk);
+        account();
+    }
+
+    /**
+     * @return bytes of the chunks in use
+     */
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Report the bytes of the chunks that are neither allocated nor free to allocate: freed space, and the ends of
+     * the chunks that were full. Must be called holding the arena.
+     */
+    private void account() {
+        long free = current == null ? 0 : CHUNK_SIZE - current.used;
+        long now = reserved - live - free;
+        usage.addUnusable(now - unusable);
+        unusable = now;
+    }
+
+    private Chunk newChunk(int size) {
+        Chunk chunk = new Chunk(nextChunkId++, ByteBuffer.allocateDirect(size));
+        chunks.put(chunk.id, chunk);
+        reserved += size;
+        return chunk;
+    }
+
+    private void drop(Chunk chunk) {
+        chunks.remove(chunk.id);
+        reserved -= chunk.buffer.capacity();
+    }
+
+    private static class Chunk {
+
+        final int id;
+        final ByteBuffer buffer;
+        // Guarded by the arena
+        int used;
+        long live;
+
+        Chunk(int id, ByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package dslab.mailbox.storage;
+
+import java.util.Arrays;
+
+/**
+ * Ids of a mailbox in the order they were assigned, which is ascending, so that pages starting from any id are found
+ * by binary search. Removed ids are negated and dropped once they are half of the array. Thread safe.
+ */
+class OrderedIds {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private int removed = 0;
+    private int last = 0;
+
+    /**
+     * @return a new id, greater than all the previous ones
+     */
+    synchronized int next() {
+        if (size == ids.length)
+            ids = Arrays.copyOf(ids, size * 2);
+        ids[size++] = ++last;
+        return last;
+    }
+
+    synchronized void remove(int id) {
+        int i = search(id);
+        if (i >= size || ids[i] != id)
+            return;
+
+        ids[i] = -id;
+        if (++removed > size / 2)
+            compact();
+    }
+
+    /**
+     * @return the last id assigned
+     */
+    synchronized int getLast() {
+        return last;
+    }
+
+    /**
+     * Restore the ids of a mailbox, e.g. from a snapshot.
+     * @param restored ascending ids
+     * @param lastId last id assigned, the next one is greater
+     */
+    synchronized void restore(int[] restored, int lastId) {
+        if (size > 0)
+            throw new IllegalStateException("Ids already assigned");
+        ids = Arrays.copyOf(restored, Math.max(INITIAL_CAPACITY, restored.length));
+        size = restored.length;
+        last = Math.max(lastId, size == 0 ? 0 : restored[size - 1]);
+    }
+
+    /**
+     * @param fromId smallest id of the page
+     * @param count maximum number of ids
+     * @return the ids from the given one on, ascending
+     */
+    synchronized int[] page(int fromId, int count) {
+        int[] page = new int[Math.min(count, size - removed)];
+        int n = 0;
+        for (int i = search(fromId); i < size && n < page.length; i++) {
+            if (ids[i] > 0)
+                page[n++] = ids[i];
+        }
+        return n == page.length ? page : Arrays.copyOf(page, n);
+    }
+
+    /**
+     * @return index of the first id greater or equal to the given one, removed or not
+     */
+    private int search(int id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Math.abs(ids[middle]) < id)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private void compact() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] > 0)
+                ids[n++] = ids[i];
+        }
+        size = n;
+        removed = 0;
+        if (ids.length > INITIAL_CAPACITY && size < ids.length / 4)
+            ids = Arrays.copyOf(ids, Math.max(INITIAL_CAPACITY, ids.length / 2));
+    }
+}
@@ -0,0 +1,108 @@
+package dslab.mailbox.storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Ascending email ids of a search term, compressed as the varint encoded differences between consecutive ids, so that
+ * the ids of a busy mailbox mostly take a byte each. Not thread safe, guarded by its {@link SearchIndex}.
+ */
+class Postings {
+
+    private byte[] data = new byte[4];
+    private int length = 0;
+    private int count = 0;
+    private int last = 0;
+
+    /**
+     * Add an id, cheaply if it's greater than the previous ones.
+     */
+    void add(int id) {
+        if (id > last) {
+            append(id);
+            return;
+        }
+
+        // Indexed out of order, e.g. after concurrent deliveries
+        int[] ids = toArray();
+        int i = Arrays.binarySearch(ids, id);
+        if (i >= 0)
+            return;
+        i = -i - 1;
+        int[] inserted = new int[ids.length + 1];
+        System.arraycopy(ids, 0, inserted, 0, i);
+        inserted[i] = id;
+        System.arraycopy(ids, i, inserted, i + 1, ids.length - i);
+        reset(inserted);
+    }
+
+    /**
+     * Drop the given ids.
+     * @return the number of ids left
+     */
+    int removeAll(BitSet removed) {
+        int[] ids = toArray();
+        int n = 0;
+        for (int id : ids) {
+            if (!removed.get(id))
+                ids[n++] = id;
+        }
+        if (n < ids.length)
+            reset(Arrays.copyOf(ids, n));
+        return n;
+    }
+
+    int[] toArray() {
+        int[] ids = new int[count];
+        int id = 0;
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return bytes of the encoded ids
+     */
+    int getEncodedLength() {
+        return length;
+    }
+
+    private void append(int id) {
+        // At most 5 bytes for a 32 bit delta
+        if (length + 5 > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+
+        int delta = id - last;
+        while ((delta & ~0x7F) != 0) {
+            data[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        data[length++] = (byte) delta;
+        last = id;
+        count++;
+    }
+
+    private void reset(int[] ids) {
+        data = new byte[Math.max(4, ids.length)];
+        length = 0;
+        count = 0;
+        last = 0;
+        for (int id : ids)
+            append(id);
+    }
+}
@@ -0,0 +1,238 @@
+package dslab.mailbox.storage;
+
+import dslab.protocols.dmtp.Email;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Inverted index of the emails of a user, from the terms of their sender, subject and data to compressed
+ * {@link Postings}. Terms are kept as 64 bit hashes in a {@link LongIndex}, and a term found in a single email keeps
+ * its id in place of postings, so that the many terms unique to an email cost a slot each. Emails are indexed in the
+ * background by a {@link SearchIndexer}, so they are found a moment after they are delivered. Deleted emails are
+ * filtered out at once, and dropped from the postings once they are half of the indexed ones. Thread safe.
+ */
+class SearchIndex {
+
+    // Longer terms are cut, in the index and in queries alike
+    static final int MAX_TERM_LENGTH = 64;
+
+    // Marks a value of the term index that is the id of the only email containing the term
+    private static final long SINGLE = 1L << 32;
+
+    private final SearchIndexer indexer;
+    // Reads an email back from the storage, null if deleted
+    private final IntFunction<Email> emails;
+
+    // Guarded by this. Term hashes to an email id or a position in the postings.
+    private LongIndex terms = new LongIndex();
+    private List<Postings> postings = new ArrayList<>();
+    private final BitSet indexed = new BitSet();
+    private final BitSet deleted = new BitSet();
+    private int nIndexed = 0;
+    private int nDeleted = 0;
+
+    SearchIndex(SearchIndexer indexer, IntFunction<Email> emails) {
+        this.indexer = indexer;
+        this.emails = emails;
+    }
+
+    /**
+     * Queue a new email for indexing.
+     */
+    void submit(int id) {
+        indexer.submit(() -> {
+            Email email = emails.apply(id);
+            if (email != null)
+                add(id, email);
+        });
+    }
+
+    synchronized void add(int id, Email email) {
+        if (indexed.get(id) || deleted.get(id))
+            return;
+
+        Set<String> emailTerms = new LinkedHashSet<>();
+        emailTerms.addAll(terms(email.sender));
+        emailTerms.addAll(terms(email.subject));
+        emailTerms.addAll(terms(email.data));
+        for (String term : emailTerms) {
+            long key = hash(term);
+            long value = terms.get(key);
+            if (value == LongIndex.NONE) {
+                terms.put(key, SINGLE | id);
+            } else if ((value & SINGLE) != 0) {
+                // Second email with the term
+                Postings termPostings = new Postings();
+                termPostings.add(Math.min((int) value, id));
+                termPostings.add(Math.max((int) value, id));
+                terms.put(key, postings.size());
+                postings.add(termPostings);
+            } else {
+                postings.get((int) value).add(id);
+            }
+        }
+
+        indexed.set(id);
+        nIndexed++;
+    }
+
+    synchronized void remove(int id) {
+        if (deleted.get(id))
+            return;
+        // Also marked if not indexed yet, so that it won't be
+        deleted.set(id);
+        if (!indexed.get(id))
+            return;
+
+        indexed.clear(id);
+        nIndexed--;
+        if (++nDeleted > nIndexed)
+            purge();
+    }
+
+    /**
+     * @param query terms, all of which must be found
+     * @return ascending ids of the emails containing all terms of the query
+     */
+    synchronized List<Integer> search(String query) {
+        List<Integer> found = new ArrayList<>();
+        Set<String> queryTerms = terms(query);
+        if (queryTerms.isEmpty())
+            return found;
+
+        // Intersected starting from the shortest postings
+        List<int[]> termIds = new ArrayList<>();
+        for (String term : queryTerms) {
+            long value = terms.get(hash(term));
+            if (value == LongIndex.NONE)
+                return found;
+            termIds.add(ids(value));
+        }
+        termIds.sort((a, b) -> Integer.compare(a.length, b.length));
+
+        int[] ids = termIds.get(0);
+        int n = ids.length;
+        for (int i = 1; i < termIds.size() && n > 0; i++)
+            n = intersect(ids, n, termIds.get(i));
+
+        for (int i = 0; i < n; i++) {
+            if (!deleted.get(ids[i]))
+                found.add(ids[i]);
+        }
+        return found;
+    }
+
+    /**
+     * @return number of distinct terms
+     */
+    synchronized int getTermCount() {
+        return terms.size();
+    }
+
+    /**
+     * @return total number of ids in the postings
+     */
+    synchronized long getPostingCount() {
+        long count = 0;
+        for (long key : terms.keys())
+            count += ids(terms.get(key)).length;
+        return count;
+    }
+
+    /**
+     * @return bytes of the encoded postings, and of the ids kept in place of postings
+     */
+    synchronized long getPostingBytes() {
+        long bytes = 0;
+        for (long key : terms.keys()) {
+            long value = terms.get(key);
+            bytes += (value & SINGLE) != 0 ? Integer.BYTES : postings.get((int) value).getEncodedLength();
+        }
+        return bytes;
+    }
+
+    /**
+     * Lower case words, i.e. runs of letters and digits, of a text.
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null)
+            return terms;
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH));
+                terms.add(term.toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private void purge() {
+        LongIndex purgedTerms = new LongIndex();
+        List<Postings> purgedPostings = new ArrayList<>();
+        for (long key : terms.keys()) {
+            long value = terms.get(key);
+            if ((value & SINGLE) != 0) {
+                if (!deleted.get((int) value))
+                    purgedTerms.put(key, value);
+                continue;
+            }
+            Postings termPostings = postings.get((int) value);
+            if (termPostings.removeAll(deleted) > 0) {
+                purgedTerms.put(key, purgedPostings.size());
+                purgedPostings.add(termPostings);
+            }
+        }
+        terms = purgedTerms;
+        postings = purgedPostings;
+        // Deleted ids stay marked, a bit each, so that an email still queued is never indexed
+        nDeleted = 0;
+    }
+
+    private int[] ids(long value) {
+        return (value & SINGLE) != 0 ? new int[] {(int) value} : postings.get((int) value).toArray();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a term. Terms with the same hash would share their postings, which is unlikely enough
+     * for the terms of a mailbox.
+     */
+    private static long hash(String term) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash ^= term.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == LongIndex.EMPTY ? 1 : hash;
+    }
+
+    /**
+     * Keep the first n ids that are also in the other ones, both ascending.
+     * @return the number of ids kept
+     */
+    private static int intersect(int[] ids, int n, int[] other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            while (j < other.length && other[j] < ids[i])
+                j++;
+            if (j == other.length)
+                break;
+            if (other[j] == ids[i])
+                ids[kept++] = ids[i];
+        }
+        return kept;
+    }
+}
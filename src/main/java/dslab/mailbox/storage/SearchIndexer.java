@@ -0,0 +1,51 @@
+package dslab.mailbox.storage;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Background thread that indexes the emails of a storage for search, so that delivering an email only queues its id.
+ * Emails are read back from the storage when they are indexed.
+ */
+class SearchIndexer {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Queue a task, dropped if the indexer is closed.
+     */
+    void submit(Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Couldn't index email: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed with the storage
+        }
+    }
+
+    /**
+     * Wait until the tasks queued so far are done.
+     */
+    void await() throws InterruptedException {
+        try {
+            executor.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,45 @@
+package dslab.mailbox.storage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number and bytes of stored emails, the bytes being the size of the emails as encoded by
+ * {@link dslab.protocols.dmtp.DmtpFormatCodec}. Counted with {@link LongAdder}s, so that concurrent deliveries update
+ * them without contending on a lock or a single counter; the sums are exact only while no email is added or removed.
+ */
+public class StorageUsage {
+
+    private final LongAdder emails = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    // Memory held because of the emails but not used by them, e.g. freed space that can't be reused yet
+    private final LongAdder unusable = new LongAdder();
+
+    void add(long size) {
+        emails.increment();
+        bytes.add(size);
+    }
+
+    void remove(long size) {
+        emails.decrement();
+        bytes.add(-size);
+    }
+
+    void addUnusable(long bytes) {
+        unusable.add(bytes);
+    }
+
+    public long getEmailCount() {
+        return emails.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return bytes of memory held by the storage beyond those of the emails, which it can't reuse yet
+     */
+    public long getUnusableBytes() {
+        return unusable.sum();
+    }
+}
@@ -5,10 +5,14 @@ import java.io.UncheckedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 public class ListenerThread extends Thread {
 
+    // Largest UDP payload: a datagram may hold many newline separated log messages
+    private static final int BUFFER_SIZE = 65507;
+
     private final DatagramSocket datagramSocket;
     final Map<String, Integer> nEmailsPerAddress;
     final Map<String, Integer> nEmailsPerServer;
@@ -22,33 +26,38 @@ public class ListenerThread extends Thread {
     @Override
     public void run() {
 
-        DatagramPacket packet;
-        byte[] buffer;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
         try {
 
             while (!Thread.currentThread().isInterrupted()) {
-                buffer = new byte[1024];
-                packet = new DatagramPacket(buffer, buffer.length);
+                // receive() shrinks the length to the size of the last datagram
+                packet.setLength(buffer.length);
 
                 datagramSocket.receive(packet);
 
-                String message = new String(packet.getData(), 0, packet.getLength());
+                String messages = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
 
-                LogMessage log = null;
-                try {
-                    log = parseLogMessage(message);
-                } catch (Exception e) {
-                    System.out.println("Failed parsing: " + message + " for reason: " + e.getMessage());
-                    continue;
-                }
+                for (String message : messages.split("\n")) {
+                    if (message.isBlank())
+                        continue;
 
-                Integer prev = nEmailsPerAddress.getOrDefault(log.emailAddress, 0);
-                nEmailsPerAddress.put(log.emailAddress, prev + 1);
+                    LogMessage log = null;
+                    try {
+                        log = parseLogMessage(message.trim());
+                    } catch (Exception e) {
+                        System.out.println("Failed parsing: " + message + " for reason: " + e.getMessage());
+                        continue;
+                    }
 
-                String hostKey = String.join(":", log.host, log.port.toString());
-                prev = nEmailsPerServer.getOrDefault(hostKey, 0);
-                nEmailsPerServer.put(hostKey, prev + 1);
+                    Integer prev = nEmailsPerAddress.getOrDefault(log.emailAddress, 0);
+                    nEmailsPerAddress.put(log.emailAddress, prev + 1);
+
+                    String hostKey = String.join(":", log.host, log.port.toString());
+                    prev = nEmailsPerServer.getOrDefault(hostKey, 0);
+                    nEmailsPerServer.put(hostKey, prev + 1);
+                }
             }
 
         } catch (SocketException e) {
@@ -2,6 +2,8 @@ package dslab.nameserver;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * The remote object of a nameserver which can be called via RMI.
@@ -56,4 +58,25 @@ public interface INameserverRemote extends Remote {
      */
     String lookup(String domain) throws RemoteException;
 
+    /**
+     * Recursively resolves a mail domain below the zone of this nameserver, asking the child nameservers on behalf of
+     * the caller. For example, if called with 'earth.planet' on the root nameserver, the root asks the nameserver of
+     * 'planet' to resolve 'earth'.
+     *
+     * @param domain the mail domain, relative to the zone of this nameserver, e.g. <code>earth.planet</code>
+     * @return the socket address of the mailbox server's DMTP socket, or <code>null</code> if the domain is unknown
+     * @throws RemoteException RMI exception (declaration required by RMI)
+     */
+    String resolve(String domain) throws RemoteException;
+
+    /**
+     * Batch variant of {@link #resolve(String)}: the domains below the same child zone are forwarded to its
+     * nameserver with a single call.
+     *
+     * @param domains the mail domains, relative to the zone of this nameserver. Must be serializable.
+     * @return the socket addresses of the known domains, keyed by domain as given. Unknown domains are missing.
+     * @throws RemoteException RMI exception (declaration required by RMI)
+     */
+    Map<String, String> resolveAll(Collection<String> domains) throws RemoteException;
+
 }
@@ -2,7 +2,9 @@ package dslab.nameserver;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -11,12 +13,20 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class NameserverRemote implements INameserverRemote {
+
+    // Time answers of child nameservers are memoized. Registrations below a memoized domain pass through this
+    // nameserver and drop the memo, so this only bounds staleness after e.g. a child nameserver restarted.
+    public static final long MEMO_TTL = 30000;
+
     private final ConcurrentMap<String, INameserverRemote> subdomains;
     private final ConcurrentMap<String, String> mailboxServerAddresses;
+    // Answers of child nameservers by domain, null address for unknown domains
+    private final ConcurrentMap<String, Memo> memos;
 
     public NameserverRemote() {
         this.subdomains = new ConcurrentHashMap<>();
         this.mailboxServerAddresses = new ConcurrentHashMap<>();
+        this.memos = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -48,6 +58,10 @@ public class NameserverRemote implements INameserverRemote {
             nextNameserver.registerNameserver(domain.substring(0, domain.lastIndexOf(".")), nameserver);
         }
 
+        // Unknown domains below the new zone may become resolvable
+        String zone = domain;
+        memos.keySet().removeIf(memoized -> memoized.equals(zone) || memoized.endsWith("." + zone));
+
     }
 
     @Override
@@ -78,6 +92,7 @@ public class NameserverRemote implements INameserverRemote {
 
             INameserverRemote nextNameserver = subdomains.get(zones[nZones-1]);
             nextNameserver.registerMailboxServer(domain.substring(0, domain.lastIndexOf(".")), address);
+            memos.remove(domain);
         }
     }
 
@@ -97,6 +112,66 @@ public class NameserverRemote implements INameserverRemote {
         return mailboxServerAddresses.getOrDefault(domain, null);
     }
 
+    @Override
+    public String resolve(String domain) throws RemoteException {
+        return resolveAll(Collections.singletonList(domain)).get(domain);
+    }
+
+    @Override
+    public Map<String, String> resolveAll(Collection<String> domains) throws RemoteException {
+        System.out.println("Resolution of " + domains.size() + " domain(s) requested.");
+
+        Map<String, String> addresses = new HashMap<>();
+        // Domains to ask the child nameservers for, grouped by child zone
+        Map<String, List<String>> forwarded = new HashMap<>();
+        long now = System.currentTimeMillis();
+
+        for (String domain : domains) {
+            // domain must be case insensitive
+            String name = domain.toLowerCase();
+            int lastDot = name.lastIndexOf('.');
+
+            if (lastDot == -1) {
+                String address = mailboxServerAddresses.get(name);
+                if (address != null)
+                    addresses.put(domain, address);
+                continue;
+            }
+
+            Memo memo = memos.get(name);
+            if (memo != null && memo.expiresAt > now) {
+                if (memo.address != null)
+                    addresses.put(domain, memo.address);
+                continue;
+            }
+
+            forwarded.computeIfAbsent(name.substring(lastDot + 1), zone -> new ArrayList<>()).add(domain);
+        }
+
+        for (Map.Entry<String, List<String>> entry : forwarded.entrySet()) {
+            INameserverRemote nextNameserver = subdomains.get(entry.getKey());
+            if (nextNameserver == null)
+                continue;
+
+            ArrayList<String> remainders = new ArrayList<>();
+            for (String domain : entry.getValue())
+                remainders.add(domain.toLowerCase().substring(0, domain.lastIndexOf('.')));
+
+            Map<String, String> answers = nextNameserver.resolveAll(remainders);
+            long expiresAt = System.currentTimeMillis() + MEMO_TTL;
+
+            for (int i = 0; i < remainders.size(); i++) {
+                String domain = entry.getValue().get(i);
+                String address = answers.get(remainders.get(i));
+                memos.put(domain.toLowerCase(), new Memo(address, expiresAt));
+                if (address != null)
+                    addresses.put(domain, address);
+            }
+        }
+
+        return addresses;
+    }
+
     public List<String> getNameservers() {
         return new ArrayList<>(subdomains.keySet());
     }
@@ -125,4 +200,15 @@ public class NameserverRemote implements INameserverRemote {
         else
             return true;
     }
+
+    private static class Memo {
+
+        final String address;
+        final long expiresAt;
+
+        Memo(String address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
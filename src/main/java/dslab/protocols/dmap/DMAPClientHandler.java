@@ -2,16 +2,23 @@ package dslab.protocols.dmap;
 
 import dslab.protocols.dmtp.Email;
 import dslab.util.CipherDMAP;
+import dslab.util.EncryptedFrames;
 import dslab.util.SecurityHelper;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.channels.Channels;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class DMAPClientHandler implements IDMAPClientHandler {
 
@@ -20,14 +27,39 @@ public class DMAPClientHandler implements IDMAPClientHandler {
     private static final String MALFORMED_ANSWER = "protocol error malformed answer";
     private static final String WRONG_ANSWER = "protocol error wrong answer while establishing connection";
 
+    // Emails requested per list command
+    public static final int PAGE_SIZE = 50;
+
+    private final Socket socket;
     private final BufferedReader reader;
     private final PrintWriter writer;
 
     private boolean isEncrypted = false;
 
     private CipherDMAP aesCipher;
+    // Binary transport, if the server accepted it after startsecure
+    private EncryptedFrames frames;
+    // Ticket to resume the session with on the next connection
+    private SessionTicket ticket;
+    // Whether to ask for a ticket after the handshake, only worth a round trip if the caller reconnects with it
+    private boolean resumable = false;
+    // False once the server closed the connection
+    private boolean connected = true;
 
+    /**
+     * A handler exchanging Base64 lines after startsecure.
+     */
     public DMAPClientHandler(BufferedReader reader, PrintWriter writer) {
+        this(null, reader, writer);
+    }
+
+    /**
+     * A handler switching to encrypted frames after startsecure, see {@link EncryptedFrames}, or keeping Base64
+     * lines if the server refuses them. See {@link #setResumable} to also get a ticket for the next connection.
+     * @param socket the socket of the reader and the writer
+     */
+    public DMAPClientHandler(Socket socket, BufferedReader reader, PrintWriter writer) {
+        this.socket = socket;
         this.reader = reader;
         this.writer = writer;
     }
@@ -40,33 +72,49 @@ public class DMAPClientHandler implements IDMAPClientHandler {
 
         message = reader.readLine();
         if (message == null)
-            throw new DMAPException(NO_ANSWER);
+            throw noAnswer();
         if (!message.equals("ok DMAP2.0"))
             throw new DMAPException(UNEXPECTED_ANSWER);
 
-        stSecure();
+        // A full handshake if there is no ticket, or the server refuses it
+        if (ticket == null || !resume())
+            stSecure();
 
         command = String.format("login %s %s", username, password);
         executeOrThrowException(command, "ok");
     }
 
     @Override
-    public HashMap<Integer, String[]> list() throws IOException, DMAPException {
-        HashMap<Integer, String[]> emails = new HashMap<>();
+    public LinkedHashMap<Integer, String[]> list() throws IOException, DMAPException {
+        LinkedHashMap<Integer, String[]> emails = new LinkedHashMap<>();
+
+        // Page by page, so that the server never lists the whole mailbox at once
+        int fromId = 1;
+        Map<Integer, String[]> page;
+        do {
+            page = list(fromId, PAGE_SIZE);
+            emails.putAll(page);
+            for (int id : page.keySet())
+                fromId = id + 1;
+        } while (page.size() == PAGE_SIZE);
 
-        String command = "list";
-        List<String> response = getResponseOrThrowException(command);
-        // check for empty inbox
-        if (response.get(0).startsWith("no emails")) {
-            return emails;
-        }
+        return emails;
+    }
 
-        for (String line : response) {
-            int id;
-            if(line.startsWith("ok")){
+    @Override
+    public LinkedHashMap<Integer, String[]> list(int fromId, int count) throws IOException, DMAPException {
+        LinkedHashMap<Integer, String[]> emails = new LinkedHashMap<>();
+
+        sendMessage(String.format("list %d %d", fromId, count));
+        String line;
+        while (true) {
+            line = readLine();
+            if (line.equals("ok"))
                 break;
-            }
+            if (line.startsWith("error "))
+                throw new DMAPException(line.substring(6));
 
+            int id;
             int idStringLength = 0;
             try {
                 String[] idString = line.split(" ", 2);
@@ -94,11 +142,70 @@ public class DMAPClientHandler implements IDMAPClientHandler {
         return emails;
     }
 
-
     @Override
     public Email show(int id) throws IOException, DMAPException {
         String command = String.format("show %d", id);
         List<String> response = getResponseOrThrowException(command);
+        Email email = parse(response);
+        email.id = id;
+
+        return email;
+    }
+
+    @Override
+    public void fetch(int fromId, int toId, Consumer<Email> consumer) throws IOException, DMAPException {
+        fetch(String.format("fetch %d-%d", fromId, toId), consumer);
+    }
+
+    @Override
+    public void fetch(Collection<Integer> ids, Consumer<Email> consumer) throws IOException, DMAPException {
+        if (ids.isEmpty())
+            return;
+        fetch("fetch " + ids.stream().map(String::valueOf).collect(Collectors.joining(",")), consumer);
+    }
+
+    /**
+     * Send a fetch command and parse its records as they arrive.
+     */
+    private void fetch(String command, Consumer<Email> consumer) throws IOException, DMAPException {
+        sendMessage(command);
+        while (true) {
+            String header = readLine();
+            if (header.equals("ok"))
+                return;
+            if (header.startsWith("error "))
+                throw new DMAPException(header.substring(6));
+
+            // email <id> <lines>
+            String[] tokens = header.split(" ");
+            int id;
+            int lines;
+            try {
+                if (tokens.length != 3 || !tokens[0].equals("email"))
+                    throw new DMAPException(UNEXPECTED_ANSWER);
+                id = Integer.parseInt(tokens[1]);
+                lines = Integer.parseInt(tokens[2]);
+            } catch (NumberFormatException e) {
+                throw new DMAPException(MALFORMED_ANSWER);
+            }
+
+            List<String> record = new ArrayList<>(lines);
+            for (int i = 0; i < lines; i++)
+                record.add(readLine());
+
+            Email email = parse(record);
+            email.id = id;
+            consumer.accept(email);
+        }
+    }
+
+    /**
+     * Parse an email as sent by show, one field per line.
+     * @param response the lines, a line may contain several fields separated by newlines
+     * @return the email, without id
+     * @throws DMAPException if the email is malformed
+     */
+    private Email parse(List<String> response) throws DMAPException {
         Email email = new Email();
 
         for (String line : response) {
@@ -182,8 +289,6 @@ public class DMAPClientHandler implements IDMAPClientHandler {
             throw new DMAPException(MALFORMED_ANSWER);
         }
 
-        email.id = id;
-
         return email;
     }
 
@@ -226,6 +331,7 @@ public class DMAPClientHandler implements IDMAPClientHandler {
             if(results[1].equals(numBase64) && Arrays.equals(challenge, num)){
                 isEncrypted = true;
                 sendMessage("ok");
+                afterSecure();
             }else{
                 aesCipher.destroy();
                 throw new DMAPException(WRONG_ANSWER);
@@ -235,6 +341,116 @@ public class DMAPClientHandler implements IDMAPClientHandler {
         }
     }
 
+    /**
+     * Resume the session of the ticket instead of startsecure, see {@link dslab.util.SessionTickets}.
+     * @return false if the server refused the ticket, the connection being still unencrypted
+     */
+    private boolean resume() throws IOException, DMAPException {
+        byte[] challenge = SecurityHelper.generateRandom(32);
+        String challengeBase64 = SecurityHelper.enocdeToBase64(challenge);
+        writer.println("resume " + ticket.getTicket() + " " + challengeBase64);
+
+        String response = reader.readLine();
+        if (response == null)
+            throw noAnswer();
+        if (response.startsWith("error ")) {
+            // Expired, or issued with a key the server rotated out
+            ticket = null;
+            return false;
+        }
+
+        // ok <random> <proof>
+        String[] tokens = response.split(" ");
+        if (tokens.length != 3 || !tokens[0].equals("ok"))
+            throw new DMAPException(UNEXPECTED_ANSWER);
+        CipherDMAP resumed;
+        try {
+            resumed = SecurityHelper.deriveResumedCipher(ticket.getSessionKey(), challenge,
+                    SecurityHelper.decodeBase64(tokens[1]), "AES/CTR/NoPadding");
+            if (!resumed.decryptString(tokens[2]).equals("ok " + challengeBase64))
+                throw new DMAPException(WRONG_ANSWER);
+        } catch (IllegalArgumentException e) {
+            throw new DMAPException(MALFORMED_ANSWER);
+        }
+
+        aesCipher = resumed;
+        isEncrypted = true;
+        sendMessage("ok");
+        afterSecure();
+        return true;
+    }
+
+    /**
+     * Negotiate frames, and a ticket for the next connection if resumable, if the handler knows its socket.
+     */
+    private void afterSecure() throws IOException, DMAPException {
+        if (socket == null)
+            return;
+        startFrames();
+        if (!resumable)
+            return;
+
+        String response = writeAndGetResponse("ticket");
+        ticket = response.startsWith("ok ")
+                ? new SessionTicket(response.substring(3), aesCipher.getKey().getEncoded()) : null;
+    }
+
+    /**
+     * @return a ticket to resume the session with on another connection, null if the server issued none
+     */
+    public SessionTicket getTicket() {
+        return ticket;
+    }
+
+    /**
+     * @param resumable whether to ask the server for a ticket after the handshake, see {@link #getTicket()}
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * @return false once the server closed the connection, which may then be resumed with the ticket on a new one
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @param ticket a ticket of an earlier connection to the same server, used by the next {@link #init}
+     */
+    public void setTicket(SessionTicket ticket) {
+        this.ticket = ticket;
+    }
+
+    /**
+     * Ask the server to switch to encrypted frames, keeping the lines if it answers with an error.
+     */
+    private void startFrames() throws IOException, DMAPException {
+        // The server sends nothing after the answer until the next request, so the reader has nothing buffered
+        if (!writeAndGetResponse("frames").equals("ok"))
+            return;
+        frames = new EncryptedFrames(aesCipher.getKey(), aesCipher.getIv().getIV(), false,
+                Channels.newChannel(socket.getInputStream()), Channels.newChannel(socket.getOutputStream()));
+    }
+
+    @Override
+    public List<Integer> search(String query) throws IOException, DMAPException {
+        String response = writeAndGetResponse("search " + query);
+        String[] tokens = response.split(" ");
+        if (!tokens[0].equals("ok"))
+            throw new DMAPException(UNEXPECTED_ANSWER);
+
+        List<Integer> ids = new ArrayList<>();
+        try {
+            for (int i = 1; i < tokens.length; i++)
+                ids.add(Integer.parseInt(tokens[i]));
+        } catch (NumberFormatException e) {
+            throw new DMAPException(MALFORMED_ANSWER);
+        }
+        return ids;
+    }
+
     @Override
     public void delete(int id) throws IOException, DMAPException {
         String command = String.format("delete %d", id);
@@ -251,6 +467,15 @@ public class DMAPClientHandler implements IDMAPClientHandler {
     }
 
     private void sendMessage(String msg) throws DMAPException {
+        if (frames != null) {
+            try {
+                frames.send(msg);
+            } catch (IOException e) {
+                connected = false;
+                throw new DMAPException("Could not send frame: " + e.getMessage());
+            }
+            return;
+        }
         msg = encrypt(msg);
         writer.println(msg);
     }
@@ -260,8 +485,7 @@ public class DMAPClientHandler implements IDMAPClientHandler {
         String message = writeAndGetResponse(command);
 
         response.add(message);
-        while ((message = reader.readLine()) != null) {
-            message = decrypt(message);
+        while ((message = receive()) != null) {
             if (message.equals("ok")) {
                 break;
             }
@@ -288,16 +512,39 @@ public class DMAPClientHandler implements IDMAPClientHandler {
     }
 
     private String writeAndGetResponse(String command) throws DMAPException, IOException{
-        command = encrypt(command);
-        writer.println(command);
+        sendMessage(command);
+        if (frames != null)
+            return readLine();
         String message = reader.readLine();
-        if (message == null) throw new DMAPException(NO_ANSWER);
+        if (message == null) throw noAnswer();
         if (message.startsWith("error ")) {
             throw new DMAPException(message.substring(6));
         }
         return decrypt(message);
     }
 
+    private String readLine() throws IOException, DMAPException {
+        String line = receive();
+        if (line == null)
+            throw noAnswer();
+        return line;
+    }
+
+    private DMAPException noAnswer() {
+        connected = false;
+        return new DMAPException(NO_ANSWER);
+    }
+
+    /**
+     * @return the next message, decrypted, or null if the server closed the connection
+     */
+    private String receive() throws IOException, DMAPException {
+        if (frames != null)
+            return frames.receive();
+        String line = reader.readLine();
+        return line == null ? null : decrypt(line);
+    }
+
     /**
      * Encrypt a command with the cipher
      * @param command Command to be encrypted
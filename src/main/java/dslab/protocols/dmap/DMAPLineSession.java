@@ -0,0 +1,99 @@
+package dslab.protocols.dmap;
+
+import dslab.util.CryptoWorkers;
+import dslab.util.EncryptedFrames;
+import dslab.util.SessionTickets;
+import dslab.util.nio.ILineSession;
+import dslab.util.nio.LineChannel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves a DMAP session on a non-blocking {@link LineChannel}, switching it to frames when the client asks for them.
+ * While the handshake cryptography runs on the crypto workers, or a deletion on the storage workers, the following
+ * requests stay buffered.
+ */
+public class DMAPLineSession implements ILineSession {
+
+    private final IDMAPServerHandler.Callback callback;
+    private final String componentId;
+    private final SessionTickets tickets;
+    private final CryptoWorkers workers;
+    private final Executor storageWorkers;
+
+    private DMAPServerSession session;
+
+    public DMAPLineSession(IDMAPServerHandler.Callback callback, String componentId, SessionTickets tickets,
+                           CryptoWorkers workers, Executor storageWorkers) {
+        this.callback = callback;
+        this.componentId = componentId;
+        this.tickets = tickets;
+        this.workers = workers;
+        this.storageWorkers = storageWorkers;
+    }
+
+    @Override
+    public void onOpen(LineChannel channel) {
+        session = new DMAPServerSession(callback, componentId, tickets, workers, storageWorkers,
+                new ChannelOutput(channel));
+        session.open();
+    }
+
+    @Override
+    public void onLine(LineChannel channel, String line) {
+        session.handleLine(line);
+    }
+
+    @Override
+    public void onFrame(LineChannel channel, ByteBuffer frame) {
+        session.handleFrame(frame);
+    }
+
+    @Override
+    public void onClose(LineChannel channel) { }
+
+    private static class ChannelOutput implements DMAPServerSession.Output {
+
+        private final LineChannel channel;
+
+        ChannelOutput(LineChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void println(String line) {
+            channel.println(line);
+        }
+
+        @Override
+        public void write(ByteBuffer bytes) {
+            channel.write(bytes);
+        }
+
+        @Override
+        public void startFrames() {
+            channel.startFrames(EncryptedFrames.MAX_FRAME_SIZE);
+        }
+
+        @Override
+        public void suspend() {
+            channel.suspendReading();
+        }
+
+        @Override
+        public void resume() {
+            channel.resumeReading();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            channel.execute(task);
+        }
+
+        @Override
+        public void close() {
+            channel.closeAfterFlush();
+        }
+    }
+}
@@ -1,233 +1,168 @@
 package dslab.protocols.dmap;
 
-import dslab.protocols.dmtp.Email;
-import dslab.util.CipherDMAP;
-import dslab.util.Keys;
-import dslab.util.SecurityHelper;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
+import dslab.util.CryptoWorkers;
+import dslab.util.EncryptedFrames;
+import dslab.util.SessionTickets;
+
 import java.io.BufferedReader;
-import java.io.File;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.Socket;
-import java.security.PrivateKey;
-import java.util.List;
-import java.util.Map;
-
-public class DMAPServerHandler implements IDMAPServerHandler {
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Serves a DMAP session on a thread of its own, blocking on the socket.
+ * The thread waits while the handshake cryptography runs on the crypto workers: the pool bounds how many handshakes
+ * use the CPU at once, but a burst of handshakes still holds as many session threads. Only the event loops of
+ * {@link DMAPLineSession} are free to serve the other sessions meanwhile.
+ */
+public class DMAPServerHandler implements IDMAPServerHandler, DMAPServerSession.Output {
 
     private final Socket socket;
     private final BufferedReader reader;
     private final PrintWriter writer;
-    private boolean isEncrypted = false;
-    private CipherDMAP cipher;
-    private String loggedUser = null;
     private final String componentId;
-
-    public DMAPServerHandler(Socket socket, BufferedReader reader, PrintWriter writer, String componentId) {
+    private final SessionTickets tickets;
+    private final CryptoWorkers workers;
+
+    // Raw output for email texts and frames, created on first use
+    private WritableByteChannel output;
+    // Frames input, once negotiated by the frames command
+    private DataInputStream frameInput;
+    // Tasks of the session, run while it is suspended
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private boolean suspended = false;
+
+    public DMAPServerHandler(Socket socket, BufferedReader reader, PrintWriter writer, String componentId,
+                             SessionTickets tickets, CryptoWorkers workers) {
         this.socket = socket;
         this.reader = reader;
         this.writer = writer;
         this.componentId = componentId;
+        this.tickets = tickets;
+        this.workers = workers;
     }
 
-    private void initSecureCommunication() throws IOException, DMAPException {
-        String request = "";
-
-        // Get private key for the server and create a new cipher based on it
-        PrivateKey key = SecurityHelper.getPrivateKey(componentId);
-        cipher = new CipherDMAP("RSA/ECB/PKCS1Padding", key);
-
-        while ((request = reader.readLine())!= null) {
-            request = new String(cipher.decrypt(
-                    SecurityHelper.decodeBase64(request)
-            ));
-
-            String[] tokens = request.split(" ");
-
-            // Check if the message matches: ok <challenge> <sk> <iv>
-            if (tokens.length == 4) {
-                if(!tokens[0].equals("ok")) throw new DMAPException("error protocol error");
-
-                // Decode the secret and iv from base64
-                byte[] secret = SecurityHelper.decodeBase64(tokens[2]);
-                byte[] iv = SecurityHelper.decodeBase64(tokens[3]);
-                cipher = new CipherDMAP(secret, iv,"AES/CTR/NoPadding");
-
-                // Build response with the challenge
-                String answer = "ok " + tokens[1];
-                answer = SecurityHelper.enocdeToBase64(
-                        cipher.encrypt(answer.getBytes())
-                );
-                writer.println(answer);
-                isEncrypted = true;
-            }else if(tokens.length == 1 && tokens[0].equals("ok") && isEncrypted){
-                break;
-            }else{
-                throw new DMAPException("error protocol");
+    @Override
+    public void handleClient(Callback callback) throws IOException, DMAPException {
+        DMAPServerSession session = new DMAPServerSession(callback, componentId, tickets, workers, null, this);
+        session.open();
+
+        try {
+            while (!session.isClosed()) {
+                if (frameInput != null) {
+                    ByteBuffer frame = readFrame();
+                    if (frame == null)
+                        break;
+                    session.handleFrame(frame);
+                } else {
+                    String request = reader.readLine();
+                    if (request == null)
+                        break;
+                    session.handleLine(request);
+                }
+
+                while (suspended)
+                    tasks.take().run();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DMAPException("interrupted");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+
+        if (session.getFailure() != null)
+            throw session.getFailure();
+        if (!session.isClosed())
+            throw new DMAPException("protocol error");
+    }
+
+    @Override
+    public void println(String line) {
+        writer.println(line);
     }
 
     /**
-     * Sends a message to the client. The message is encrypted if a secure connection has already been successfully established
-     * @param msg Message which is going to be sent to the server
-     * @throws DMAPException Thorwn if there is a problem with the encryption or the sending of the message
+     * Sends bytes as they are, e.g. the text of an email as it is stored, without converting it to a string.
      */
-    private void sendMessage(String msg) throws DMAPException{
-        if (isEncrypted) {
-            writer.println(cipher.encryptString(msg));
-        } else {
-            writer.println(msg);
+    @Override
+    public void write(ByteBuffer bytes) {
+        writer.flush();
+        try {
+            WritableByteChannel output = output();
+            while (bytes.hasRemaining())
+                output.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * The client waits for the answer to frames before sending frames, so nothing is left buffered in the line
+     * reader.
+     */
     @Override
-    public void handleClient(Callback callback) throws IOException, DMAPException {
-
-        writer.println("ok DMAP2.0");
-        String request;
-
-        while ((request = reader.readLine())!= null) {
-
-
-            if(isEncrypted) {
-                request = new String(cipher.decrypt(
-                        SecurityHelper.decodeBase64(request)
-                ));
-            }
+    public void startFrames() {
+        try {
+            frameInput = new DataInputStream(socket.getInputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            String[] tokens = request.split(" ");
+    @Override
+    public void suspend() {
+        suspended = true;
+    }
 
-            switch (tokens[0]) {
-                case "startsecure":
-                    if(isEncrypted) {
-                        // check if there is already a secure communication
-                        sendMessage("A secure communication has already been started!");
-                        break;
-                    }
-                    writer.println("ok " + componentId);
-                    initSecureCommunication();
-                    break;
-                case "login":
-
-                    if (this.loggedUser != null) {
-                        sendMessage("error already logged in");
-                        break;
-                    }
-                    if (tokens.length == 3) {
-                        String user = tokens[1];
-                        String password = tokens[2];
-
-                        if (!callback.userExists(user)) {
-                            sendMessage("error unknown user");
-                            break;
-                        }
-                        if (!callback.isLoginValid(user, password)) {
-                            sendMessage("error wrong password");
-                            break;
-                        } else {
-                            this.loggedUser = user;
-                            sendMessage("ok");
-                        }
-
-                    } else {
-                        sendMessage("error protocol error");
-                        throw new DMAPException("protocol error");
-                    }
-                    break;
-                case "list":
-
-                    if (!request.equals("list")) {
-                        sendMessage("error protocol error");
-                        throw new DMAPException("error protocol error");
-                    }
-                    if (this.loggedUser == null) {
-                        sendMessage("error not logged in");
-                        break;
-                    }
-
-                    List<Map.Entry<Integer, Email>> userEmails = callback.listUserEmails(this.loggedUser);
-                    if (userEmails.isEmpty()) {
-                        sendMessage("no emails :(");
-                    }else {
-                        for (Map.Entry<Integer, Email> entry : userEmails) {
-                            String header = entry.getKey().toString() + " " + entry.getValue().sender + " " + entry.getValue().subject;
-                            sendMessage(header);
-                        }
-                    }
-                    sendMessage("ok");
-
-                    break;
-                case "show":
-
-                    if (tokens.length != 2) {
-                        sendMessage("error protocol error");
-                        throw new DMAPException("error protocol error");
-                    }
-                    if (this.loggedUser == null) {
-                        sendMessage("error not logged in");
-                        break;
-                    }
-
-                    Email email = callback.getEmail(this.loggedUser, Integer.parseInt(tokens[1]));
-                    if (email != null) {
-                        sendMessage(email.printToDmtpFormat());
-                        sendMessage("ok");
-                    } else {
-                        sendMessage("error unknown message id");
-                    }
-
-                    break;
-                case "delete":
-
-                    if (tokens.length != 2) {
-                        sendMessage("error protocol error");
-                        throw new DMAPException("error protocol error");
-                    }
-                    if (this.loggedUser == null) {
-                        sendMessage("error not logged in");
-                        break;
-                    }
-
-                    if (callback.deleteEmail(this.loggedUser, Integer.parseInt(tokens[1]))) {
-                        sendMessage("ok");
-                    } else {
-                        sendMessage("error unknown message id");
-                    }
-
-                    break;
-                case "logout":
-
-                    if (!request.equals("logout")) {
-                        sendMessage("error protocol error");
-                        throw new DMAPException("error protocol error");
-                    }
-                    if (this.loggedUser == null) {
-                        sendMessage("error not logged in");
-                        break;
-                    }
+    @Override
+    public void resume() {
+        suspended = false;
+    }
 
-                    this.loggedUser = null;
-                    sendMessage("ok");
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+    }
 
-                    break;
-                case "quit":
-                    sendMessage("ok bye");
-                    this.isEncrypted = false;
-                    this.loggedUser = null;
-                    return;
+    @Override
+    public void close() {
+        // The socket is closed by the owner of the handler
+        writer.flush();
+    }
 
-                default:
-                    sendMessage("error protocol error");
-                    throw new DMAPException("protocol error");
-            }
+    private WritableByteChannel output() throws IOException {
+        if (output == null) {
+            // Sockets accepted by a server socket channel write straight from the buffer
+            output = socket.getChannel() != null
+                    ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
         }
+        return output;
+    }
 
-        throw new DMAPException("protocol error");
+    /**
+     * @return the next frame, header included, or null if the client closed the connection between frames
+     */
+    private ByteBuffer readFrame() throws IOException, DMAPException {
+        int length;
+        try {
+            length = frameInput.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < EncryptedFrames.TAG_LENGTH || length > EncryptedFrames.MAX_FRAME_SIZE)
+            throw new DMAPException("error protocol error invalid frame length " + length);
 
+        byte[] frame = new byte[EncryptedFrames.HEADER_LENGTH + length];
+        frameInput.readFully(frame, EncryptedFrames.HEADER_LENGTH, length);
+        return ByteBuffer.wrap(frame).putInt(0, length);
     }
 }
@@ -0,0 +1,603 @@
+package dslab.protocols.dmap;
+
+import dslab.protocols.dmtp.Email;
+import dslab.util.CipherDMAP;
+import dslab.util.CryptoWorkers;
+import dslab.util.EncryptedFrames;
+import dslab.util.SecurityHelper;
+import dslab.util.SessionTickets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Server side of the DMAP protocol as a state machine driven one request at a time, holding the state of the
+ * handshake, the encryption and the logged in user. The session does no I/O on its own, it writes to an
+ * {@link Output}, so it can be driven both by a blocking reader loop (see {@link DMAPServerHandler}) and by a
+ * non-blocking event loop (see {@link DMAPLineSession}). An idle session costs this object and its cipher.
+ */
+public class DMAPServerSession {
+
+    public static final String GREETING = "ok DMAP2.0";
+    // Emails read from the storage at once while listing
+    public static final int MAX_PAGE_SIZE = 100;
+
+    private static final String SESSION_ALGORITHM = "AES/CTR/NoPadding";
+    private static final String RSA_ALGORITHM = "RSA/ECB/PKCS1Padding";
+
+    /**
+     * Where a session writes to. Except for {@link #execute(Runnable)}, only called from the thread driving the
+     * session.
+     */
+    public interface Output {
+        // A line, the terminator is appended
+        void println(String line);
+        // Bytes as they are, after the lines before. The buffer is not changed afterwards.
+        void write(ByteBuffer bytes);
+        // The requests after the current one are frames, see EncryptedFrames
+        void startFrames();
+        // No further request until resume(), while the current one completes on another thread
+        void suspend();
+        void resume();
+        // Run a task on the thread driving the session, can be called from any thread
+        void execute(Runnable task);
+        // Close the connection once everything written so far was sent
+        void close();
+    }
+
+    private enum State {
+        // Requests, encrypted once a handshake completed
+        COMMANDS,
+        // startsecure answered, waiting for "ok <challenge> <key> <iv>" encrypted with the public key
+        CHALLENGE,
+        // Challenge answered or session resumed, waiting for "ok" encrypted with the session key
+        CONFIRMATION,
+        CLOSED
+    }
+
+    private final IDMAPServerHandler.Callback callback;
+    private final String componentId;
+    // Issues and opens resumption tickets, null if resumption is disabled
+    private final SessionTickets tickets;
+    // Pool for the handshake cryptography, null to run it on the session's thread
+    private final CryptoWorkers workers;
+    // Threads for the storage calls waiting for the disk, null to make them on the session's thread
+    private final Executor storageWorkers;
+    private final Output output;
+
+    private State state = State.COMMANDS;
+    private boolean isEncrypted = false;
+    private CipherDMAP cipher;
+    // Binary transport, once negotiated by the frames command
+    private EncryptedFrames frames;
+    private String loggedUser = null;
+    private DMAPException failure = null;
+
+    public DMAPServerSession(IDMAPServerHandler.Callback callback, String componentId, SessionTickets tickets,
+                             CryptoWorkers workers, Executor storageWorkers, Output output) {
+        this.callback = callback;
+        this.componentId = componentId;
+        this.tickets = tickets;
+        this.workers = workers;
+        this.storageWorkers = storageWorkers;
+        this.output = output;
+    }
+
+    /**
+     * Send the greeting.
+     */
+    public void open() {
+        output.println(GREETING);
+    }
+
+    /**
+     * Process a line sent by the client, until frames were started.
+     * @param line the line, without terminator
+     */
+    public void handleLine(String line) {
+        if (state == State.CLOSED)
+            throw new IllegalStateException("Session already closed");
+
+        try {
+            switch (state) {
+                case CHALLENGE:
+                    handleChallenge(line);
+                    break;
+                case CONFIRMATION:
+                    confirm(line);
+                    break;
+                default:
+                    handleRequest(isEncrypted ? new String(cipher.decrypt(SecurityHelper.decodeBase64(line)))
+                            : line);
+            }
+        } catch (DMAPException e) {
+            fail(e);
+        } catch (IllegalArgumentException e) {
+            // Not Base64, or not a number where one is expected
+            fail(new DMAPException("error protocol"));
+        }
+    }
+
+    /**
+     * Process a frame sent by the client, once frames were started.
+     * @param frame the whole frame, decrypted in place
+     */
+    public void handleFrame(ByteBuffer frame) {
+        if (state == State.CLOSED)
+            throw new IllegalStateException("Session already closed");
+
+        try {
+            if (frames == null)
+                throw new DMAPException("error protocol error");
+            handleRequest(frames.open(frame));
+        } catch (DMAPException e) {
+            fail(e);
+        } catch (IllegalArgumentException e) {
+            // Not a number where one is expected
+            fail(new DMAPException("error protocol"));
+        }
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return why the session was closed, null if it wasn't or the client quit
+     */
+    public DMAPException getFailure() {
+        return failure;
+    }
+
+    private void fail(DMAPException e) {
+        failure = e;
+        close();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        isEncrypted = false;
+        frames = null;
+        loggedUser = null;
+        output.close();
+    }
+
+    /**
+     * Answers the challenge of startsecure, on the crypto workers if any, not to hold up the other sessions.
+     * Meanwhile no request is handled.
+     */
+    private void handleChallenge(String message) throws DMAPException {
+        if (workers == null) {
+            try {
+                challengeAnswered(answerChallenge(componentId, message));
+            } catch (IOException e) {
+                throw new DMAPException("Could not read the private key: " + e.getMessage());
+            }
+            return;
+        }
+
+        output.suspend();
+        workers.submit(() -> answerChallenge(componentId, message)).whenComplete((answer, e) -> output.execute(() -> {
+            if (state == State.CLOSED)
+                return;
+            if (e != null) {
+                DMAPException failure = CryptoWorkers.failure(e);
+                // e.g. error server busy, so that the client can tell a refusal from a dropped connection
+                if (failure.getMessage().startsWith("error "))
+                    output.println(failure.getMessage());
+                fail(failure);
+            } else {
+                challengeAnswered(answer);
+            }
+            output.resume();
+        }));
+    }
+
+    /**
+     * Deletes an email of the logged user. The deletion waits until it is durable, so it runs on the storage workers
+     * if any, and meanwhile no request is handled.
+     */
+    private void delete(int id) throws DMAPException {
+        if (storageWorkers == null) {
+            deleted(callback.deleteEmail(loggedUser, id));
+            return;
+        }
+
+        String user = loggedUser;
+        output.suspend();
+        CompletableFuture.supplyAsync(() -> callback.deleteEmail(user, id), storageWorkers)
+                .whenComplete((deleted, e) -> output.execute(() -> {
+                    if (state == State.CLOSED)
+                        return;
+                    try {
+                        if (e != null) {
+                            System.out.println("Error deleting email " + id + " of " + user + ": " + e.getMessage());
+                            sendMessage("error could not delete message");
+                        } else {
+                            deleted(deleted);
+                        }
+                    } catch (DMAPException exception) {
+                        fail(exception);
+                    }
+                    output.resume();
+                }));
+    }
+
+    private void deleted(boolean deleted) throws DMAPException {
+        sendMessage(deleted ? "ok" : "error unknown message id");
+    }
+
+    /**
+     * Decrypts the message of the client, creates the session cipher from it and answers the challenge
+     * @param componentId Id of the server, whose private key decrypts the message
+     * @param message The message, Base64 encoded: ok &lt;challenge&gt; &lt;sk&gt; &lt;iv&gt;
+     * @return The answer, encrypted with the session cipher and Base64 encoded: ok &lt;challenge&gt;
+     * @throws DMAPException Thrown if the message is malformed
+     */
+    private String answerChallenge(String componentId, String message) throws DMAPException, IOException {
+        // The private key of the server is read once at startup
+        CipherDMAP rsaCipher = new CipherDMAP(RSA_ALGORITHM, SecurityHelper.getPrivateKey(componentId));
+        String[] tokens = new String(rsaCipher.decrypt(
+                SecurityHelper.decodeBase64(message)
+        )).split(" ");
+
+        // Check if the message matches: ok <challenge> <sk> <iv>
+        if (tokens.length != 4 || !tokens[0].equals("ok"))
+            throw new DMAPException("error protocol error");
+
+        // Decode the secret and iv from base64
+        byte[] secret = SecurityHelper.decodeBase64(tokens[2]);
+        byte[] iv = SecurityHelper.decodeBase64(tokens[3]);
+        cipher = new CipherDMAP(secret, iv, SESSION_ALGORITHM);
+
+        // Build response with the challenge
+        String answer = "ok " + tokens[1];
+        return SecurityHelper.enocdeToBase64(
+                cipher.encrypt(answer.getBytes())
+        );
+    }
+
+    private void challengeAnswered(String answer) {
+        output.println(answer);
+        state = State.CONFIRMATION;
+    }
+
+    private void confirm(String message) throws DMAPException {
+        if (!cipher.decryptString(message).equals("ok"))
+            throw new DMAPException("error protocol");
+        isEncrypted = true;
+        state = State.COMMANDS;
+    }
+
+    /**
+     * Resumes the session of a ticket instead of a full handshake: the server answers "ok &lt;random&gt; &lt;proof&gt;"
+     * with the proof being "ok &lt;challenge&gt;" encrypted with the cipher derived from the key in the ticket and
+     * both randoms, and the client confirms with "ok" encrypted the same way. An invalid or expired ticket is refused
+     * without closing the connection, so that the client can startsecure instead.
+     * @param ticket Ticket issued by this server
+     * @param challenge Random of the client, Base64 encoded
+     */
+    private void resume(String ticket, String challenge) throws DMAPException {
+        byte[] sessionKey = tickets == null ? null : tickets.open(ticket);
+        if (sessionKey == null) {
+            output.println("error invalid ticket");
+            return;
+        }
+
+        byte[] random = SecurityHelper.generateRandom(32);
+        cipher = SecurityHelper.deriveResumedCipher(sessionKey, SecurityHelper.decodeBase64(challenge), random,
+                SESSION_ALGORITHM);
+        output.println("ok " + SecurityHelper.enocdeToBase64(random) + " " + cipher.encryptString("ok " + challenge));
+        state = State.CONFIRMATION;
+    }
+
+    /**
+     * Sends a message to the client. The message is encrypted if a secure connection has already been successfully established
+     * @param msg Message which is going to be sent to the client
+     * @throws DMAPException Thrown if there is a problem with the encryption of the message
+     */
+    private void sendMessage(String msg) throws DMAPException {
+        if (frames != null) {
+            output.write(frames.seal(msg));
+        } else if (isEncrypted) {
+            output.println(cipher.encryptString(msg));
+        } else {
+            output.println(msg);
+        }
+    }
+
+    /**
+     * Switches the session to encrypted frames, see {@link EncryptedFrames}. The client waits for the answer before
+     * sending frames.
+     */
+    private void startFrames() throws DMAPException {
+        if (!isEncrypted || frames != null) {
+            sendMessage("error frames need a secure connection");
+            return;
+        }
+        sendMessage("ok");
+        frames = new EncryptedFrames(cipher.getKey(), cipher.getIv().getIV(), true);
+        output.startFrames();
+    }
+
+    /**
+     * Sends the emails selected by a range "from-to" or a list "id,id,..." of ids, skipping the ids that don't exist.
+     * Each email is a record of a line "email &lt;id&gt; &lt;lines&gt;" followed by that many lines with the email as
+     * sent by show.
+     * @param selection the ids to send
+     * @throws DMAPException if the selection is malformed
+     */
+    private void fetch(String selection) throws DMAPException {
+        // Parsed as a whole before anything is sent
+        int fromId = 0;
+        int toId = 0;
+        int[] ids = null;
+        int dash = selection.indexOf('-');
+        try {
+            if (dash > 0) {
+                fromId = Integer.parseInt(selection.substring(0, dash));
+                toId = Integer.parseInt(selection.substring(dash + 1));
+            } else {
+                String[] idStrings = selection.split(",");
+                ids = new int[idStrings.length];
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = Integer.parseInt(idStrings[i]);
+            }
+        } catch (NumberFormatException e) {
+            sendMessage("error protocol error");
+            throw new DMAPException("error protocol error");
+        }
+
+        if (ids != null) {
+            for (int id : ids) {
+                Email email = callback.getEmail(this.loggedUser, id);
+                if (email != null)
+                    sendRecord(id, email);
+            }
+            return;
+        }
+
+        // Streamed page by page like list
+        while (fromId <= toId) {
+            List<Map.Entry<Integer, Email>> page = callback.listUserEmails(this.loggedUser, fromId, MAX_PAGE_SIZE);
+            for (Map.Entry<Integer, Email> entry : page) {
+                if (entry.getKey() > toId)
+                    return;
+                sendRecord(entry.getKey(), entry.getValue());
+            }
+            if (page.size() < MAX_PAGE_SIZE)
+                return;
+            fromId = page.get(page.size() - 1).getKey() + 1;
+        }
+    }
+
+    private void sendRecord(int id, Email email) throws DMAPException {
+        String text = email.printToDmtpFormat();
+        // An encrypted message is a single line whatever it contains
+        int lines = 1;
+        if (!isEncrypted) {
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n')
+                    lines++;
+            }
+        }
+        sendMessage("email " + id + " " + lines);
+        sendMessage(text);
+    }
+
+    private void handleRequest(String request) throws DMAPException {
+        String[] tokens = request.split(" ");
+
+        switch (tokens[0]) {
+            case "startsecure":
+                if (isEncrypted) {
+                    // check if there is already a secure communication
+                    sendMessage("A secure communication has already been started!");
+                    break;
+                }
+                output.println("ok " + componentId);
+                state = State.CHALLENGE;
+                break;
+            case "resume":
+                if (isEncrypted) {
+                    sendMessage("A secure communication has already been started!");
+                    break;
+                }
+                if (tokens.length != 3) {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("error protocol error");
+                }
+                resume(tokens[1], tokens[2]);
+                break;
+            case "ticket":
+                if (!isEncrypted) {
+                    sendMessage("error tickets need a secure connection");
+                    break;
+                }
+                if (tickets == null) {
+                    sendMessage("error tickets disabled");
+                    break;
+                }
+                sendMessage("ok " + tickets.issue(cipher.getKey().getEncoded()));
+                break;
+            case "frames":
+                startFrames();
+                break;
+            case "login":
+
+                if (this.loggedUser != null) {
+                    sendMessage("error already logged in");
+                    break;
+                }
+                if (tokens.length == 3) {
+                    String user = tokens[1];
+                    String password = tokens[2];
+
+                    if (!callback.userExists(user)) {
+                        sendMessage("error unknown user");
+                        break;
+                    }
+                    if (!callback.isLoginValid(user, password)) {
+                        sendMessage("error wrong password");
+                        break;
+                    } else {
+                        this.loggedUser = user;
+                        sendMessage("ok");
+                    }
+
+                } else {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("protocol error");
+                }
+                break;
+            case "list":
+
+                int fromId = 1;
+                int count = Integer.MAX_VALUE;
+                try {
+                    if (tokens.length == 3) {
+                        fromId = Integer.parseInt(tokens[1]);
+                        count = Integer.parseInt(tokens[2]);
+                    }
+                } catch (NumberFormatException e) {
+                    count = -1;
+                }
+                if ((tokens.length != 1 && tokens.length != 3) || count < 0) {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("error protocol error");
+                }
+                if (this.loggedUser == null) {
+                    sendMessage("error not logged in");
+                    break;
+                }
+
+                // Streamed page by page, the mailbox is never copied as a whole
+                int listed = 0;
+                while (listed < count) {
+                    int pageSize = Math.min(count - listed, MAX_PAGE_SIZE);
+                    List<Map.Entry<Integer, Email>> page =
+                            callback.listUserEmails(this.loggedUser, fromId, pageSize);
+                    for (Map.Entry<Integer, Email> entry : page) {
+                        String header = entry.getKey().toString() + " " + entry.getValue().sender + " " + entry.getValue().subject;
+                        sendMessage(header);
+                    }
+                    listed += page.size();
+                    if (page.size() < pageSize)
+                        break;
+                    fromId = page.get(page.size() - 1).getKey() + 1;
+                }
+                if (listed == 0 && tokens.length == 1)
+                    sendMessage("no emails :(");
+                sendMessage("ok");
+
+                break;
+            case "show":
+
+                if (tokens.length != 2) {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("error protocol error");
+                }
+                if (this.loggedUser == null) {
+                    sendMessage("error not logged in");
+                    break;
+                }
+
+                int id = Integer.parseInt(tokens[1]);
+                if (!isEncrypted || frames != null) {
+                    // Sent as stored, or encrypted straight from it
+                    ByteBuffer text = callback.getEmailText(this.loggedUser, id);
+                    if (text != null) {
+                        output.write(frames != null ? frames.seal(text) : text);
+                        sendMessage("ok");
+                    } else {
+                        sendMessage("error unknown message id");
+                    }
+                    break;
+                }
+
+                Email email = callback.getEmail(this.loggedUser, id);
+                if (email != null) {
+                    sendMessage(email.printToDmtpFormat());
+                    sendMessage("ok");
+                } else {
+                    sendMessage("error unknown message id");
+                }
+
+                break;
+            case "fetch":
+
+                if (tokens.length != 2) {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("error protocol error");
+                }
+                if (this.loggedUser == null) {
+                    sendMessage("error not logged in");
+                    break;
+                }
+
+                fetch(tokens[1]);
+                sendMessage("ok");
+
+                break;
+            case "search":
+
+                if (tokens.length < 2) {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("error protocol error");
+                }
+                if (this.loggedUser == null) {
+                    sendMessage("error not logged in");
+                    break;
+                }
+
+                // ok followed by the ids of the matching emails
+                StringBuilder found = new StringBuilder("ok");
+                for (int foundId : callback.searchUserEmails(this.loggedUser, request.substring(7)))
+                    found.append(' ').append(foundId);
+                sendMessage(found.toString());
+
+                break;
+            case "delete":
+
+                if (tokens.length != 2) {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("error protocol error");
+                }
+                if (this.loggedUser == null) {
+                    sendMessage("error not logged in");
+                    break;
+                }
+
+                delete(Integer.parseInt(tokens[1]));
+
+                break;
+            case "logout":
+
+                if (!request.equals("logout")) {
+                    sendMessage("error protocol error");
+                    throw new DMAPException("error protocol error");
+                }
+                if (this.loggedUser == null) {
+                    sendMessage("error not logged in");
+                    break;
+                }
+
+                this.loggedUser = null;
+                sendMessage("ok");
+
+                break;
+            case "quit":
+                sendMessage("ok bye");
+                close();
+                break;
+
+            default:
+                sendMessage("error protocol error");
+                throw new DMAPException("protocol error");
+        }
+    }
+}
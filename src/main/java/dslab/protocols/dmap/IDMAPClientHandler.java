@@ -5,13 +5,43 @@ import dslab.protocols.dmtp.Email;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public interface IDMAPClientHandler {
 
     void init(String username, String password) throws DMAPException, IOException;
     Map<Integer, String[]> list() throws DMAPException, IOException;
+
+    /**
+     * List a page of the emails, in id order.
+     * @param fromId smallest id of the page
+     * @param count maximum number of emails
+     * @return ids mapped to sender and subject, fewer than count if there are no more emails
+     */
+    Map<Integer, String[]> list(int fromId, int count) throws DMAPException, IOException;
     Email show(int id) throws DMAPException, IOException;
+
+    /**
+     * Fetch the emails with ids in a range with a single request, in id order.
+     * @param consumer called with each email as soon as it is received
+     */
+    void fetch(int fromId, int toId, Consumer<Email> consumer) throws DMAPException, IOException;
+
+    /**
+     * Fetch the given emails with a single request, skipping the ones that don't exist.
+     * @param consumer called with each email as soon as it is received
+     */
+    void fetch(Collection<Integer> ids, Consumer<Email> consumer) throws DMAPException, IOException;
+
+    /**
+     * Search the sender, subject and data of the emails.
+     * @param query words, all of which must be found in an email
+     * @return ascending ids of the matching emails
+     */
+    List<Integer> search(String query) throws DMAPException, IOException;
     void delete(int id) throws DMAPException, IOException;
     void close() throws DMAPException, IOException;
     void stSecure() throws DMAPException, IOException, NoSuchAlgorithmException;
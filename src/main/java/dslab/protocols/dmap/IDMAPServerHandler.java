@@ -3,6 +3,7 @@ package dslab.protocols.dmap;
 import dslab.protocols.dmtp.Email;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -12,7 +13,12 @@ public interface IDMAPServerHandler {
     interface Callback {
         boolean deleteEmail(String loggedUser, int id);
         Email getEmail(String loggedUser, int id);
-        List<Map.Entry<Integer, Email>> listUserEmails(String loggedUser);
+        // The email as printed by Email.printToDmtpFormat() plus a newline, null if not found
+        ByteBuffer getEmailText(String loggedUser, int id);
+        // A page of the emails in id order, starting from the given id
+        List<Map.Entry<Integer, Email>> listUserEmails(String loggedUser, int fromId, int count);
+        // Ascending ids of the emails containing all words of the query
+        List<Integer> searchUserEmails(String loggedUser, String query);
         boolean userExists(String user);
         boolean isLoginValid(String user, String password);
     }
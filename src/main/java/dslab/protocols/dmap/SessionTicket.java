@@ -0,0 +1,24 @@
+package dslab.protocols.dmap;
+
+/**
+ * A resumption ticket issued by a DMAP server, with the key of the session it resumes, which only the client and,
+ * inside the ticket, the server know.
+ */
+public class SessionTicket {
+
+    private final String ticket;
+    private final byte[] sessionKey;
+
+    public SessionTicket(String ticket, byte[] sessionKey) {
+        this.ticket = ticket;
+        this.sessionKey = sessionKey;
+    }
+
+    public String getTicket() {
+        return ticket;
+    }
+
+    public byte[] getSessionKey() {
+        return sessionKey;
+    }
+}
@@ -0,0 +1,169 @@
+package dslab.protocols.dmtp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Representation of an {@link Email} that contains it as printed by {@link Email#printToDmtpFormat()}, so that it
+ * can be served by the DMAP <code>show</code> command without decoding it.
+ * The encoding is a header with the number of recipients and the UTF-8 lengths of the fields (-1 encodes null),
+ * followed by the text in UTF-8 with a trailing newline. The id is not part of the encoding, it is assigned by the
+ * storage.
+ */
+public final class DmtpFormatCodec {
+
+    private static final int N_FIELDS = 5;
+    // Offset of the text in an encoded email
+    public static final int TEXT_OFFSET = (1 + N_FIELDS) * Integer.BYTES;
+
+    private static final byte[] FROM = "from ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TO = "\nto ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SUBJECT = "\nsubject ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DATA = "\ndata ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HASH = "\nhash ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY = new byte[0];
+
+    private DmtpFormatCodec() {
+        // static utility class
+    }
+
+    public static byte[] encode(Email email) {
+        byte[][] fields = {
+                toBytes(email.sender),
+                String.join(",", email.recipients).getBytes(StandardCharsets.UTF_8),
+                toBytes(email.subject),
+                toBytes(email.data),
+                toBytes(email.hash)
+        };
+        // Printed like printToDmtpFormat() does it
+        byte[][] printed = {
+                fields[0] == null ? NULL : fields[0],
+                fields[1],
+                fields[2] == null ? NULL : fields[2],
+                fields[3] == null ? NULL : fields[3],
+                fields[4] == null ? EMPTY : fields[4]
+        };
+        byte[][] prefixes = {FROM, TO, SUBJECT, DATA, HASH};
+
+        int size = TEXT_OFFSET + 1;
+        for (int i = 0; i < N_FIELDS; i++)
+            size += prefixes[i].length + printed[i].length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(email.recipients.size());
+        for (byte[] field : fields)
+            buffer.putInt(field == null ? -1 : field.length);
+        for (int i = 0; i < N_FIELDS; i++) {
+            buffer.put(prefixes[i]);
+            buffer.put(printed[i]);
+        }
+        buffer.put((byte) '\n');
+
+        return buffer.array();
+    }
+
+    /**
+     * @return the length of {@link #encode(Email)}, computed without encoding the email
+     */
+    public static int encodedLength(Email email) {
+        int size = TEXT_OFFSET + 1 + FROM.length + TO.length + SUBJECT.length + DATA.length + HASH.length;
+        size += email.sender == null ? NULL.length : utf8Length(email.sender);
+        for (String recipient : email.recipients)
+            size += utf8Length(recipient);
+        size += Math.max(0, email.recipients.size() - 1);
+        size += email.subject == null ? NULL.length : utf8Length(email.subject);
+        size += email.data == null ? NULL.length : utf8Length(email.data);
+        size += email.hash == null ? 0 : utf8Length(email.hash);
+        return size;
+    }
+
+    /**
+     * Decode an email starting at the buffer's position, advancing it past the email.
+     * @param buffer the encoded email
+     * @return the email
+     * @throws IllegalArgumentException if the buffer doesn't contain a valid encoding
+     */
+    public static Email decode(ByteBuffer buffer) {
+        try {
+            int nRecipients = buffer.getInt();
+            int[] lengths = new int[N_FIELDS];
+            for (int i = 0; i < N_FIELDS; i++)
+                lengths[i] = buffer.getInt();
+
+            Email email = new Email();
+            email.sender = readField(buffer, FROM, lengths[0], NULL);
+            String recipients = readField(buffer, TO, lengths[1], NULL);
+            email.subject = readField(buffer, SUBJECT, lengths[2], NULL);
+            email.data = readField(buffer, DATA, lengths[3], NULL);
+            email.hash = readField(buffer, HASH, lengths[4], EMPTY);
+            buffer.get();
+
+            if (recipients == null)
+                throw new IllegalArgumentException("Missing recipients");
+            email.recipients = nRecipients == 0
+                    ? new ArrayList<>() : new ArrayList<>(Arrays.asList(recipients.split(",", -1)));
+            if (email.recipients.size() != nRecipients)
+                throw new IllegalArgumentException("Invalid number of recipients " + nRecipients);
+
+            return email;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated email encoding", e);
+        }
+    }
+
+    public static Email decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param encoded an encoded email, from its position to its limit
+     * @return a read only view of its text, as printed by {@link Email#printToDmtpFormat()} followed by a newline
+     */
+    public static ByteBuffer text(ByteBuffer encoded) {
+        ByteBuffer text = encoded.asReadOnlyBuffer();
+        text.position(text.position() + TEXT_OFFSET);
+        return text.slice();
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // Unpaired surrogates are encoded as '?'
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] toBytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readField(ByteBuffer buffer, byte[] prefix, int length, byte[] printedNull) {
+        buffer.position(buffer.position() + prefix.length);
+        if (length == -1) {
+            buffer.position(buffer.position() + printedNull.length);
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalArgumentException("Invalid field length " + length);
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
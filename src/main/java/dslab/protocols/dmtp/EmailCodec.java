@@ -0,0 +1,95 @@
+package dslab.protocols.dmtp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary representation of an {@link Email}, used to store emails on disk.
+ * Strings are written as a length prefix followed by their UTF-8 bytes; a length of -1 encodes null.
+ * The id is not part of the encoding, it is assigned by the storage.
+ */
+public final class EmailCodec {
+
+    private EmailCodec() {
+        // static utility class
+    }
+
+    public static byte[] encode(Email email) {
+        List<byte[]> fields = new ArrayList<>();
+        int size = Integer.BYTES;
+
+        fields.add(toBytes(email.sender));
+        for (String recipient : email.recipients)
+            fields.add(toBytes(recipient));
+        fields.add(toBytes(email.subject));
+        fields.add(toBytes(email.data));
+        fields.add(toBytes(email.hash));
+
+        for (byte[] field : fields)
+            size += Integer.BYTES + (field == null ? 0 : field.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(email.recipients.size());
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(field.length);
+                buffer.put(field);
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Decode an email starting at the buffer's position, advancing it past the email.
+     * @param buffer the encoded email
+     * @return the email
+     * @throws IllegalArgumentException if the buffer doesn't contain a valid encoding
+     */
+    public static Email decode(ByteBuffer buffer) {
+        try {
+            Email email = new Email();
+            int nRecipients = buffer.getInt();
+            if (nRecipients < 0 || nRecipients > buffer.remaining() / Integer.BYTES)
+                throw new IllegalArgumentException("Invalid number of recipients " + nRecipients);
+
+            email.sender = readString(buffer);
+            List<String> recipients = new ArrayList<>(nRecipients);
+            for (int i = 0; i < nRecipients; i++)
+                recipients.add(readString(buffer));
+            email.recipients = recipients;
+            email.subject = readString(buffer);
+            email.data = readString(buffer);
+            email.hash = readString(buffer);
+
+            return email;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated email encoding", e);
+        }
+    }
+
+    public static Email decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    private static byte[] toBytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalArgumentException("Invalid string length " + length);
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -7,22 +7,39 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class DMTPClientHandler implements IDMTPClientHandler {
 
     private static final String UNEXPECTED_ANSWER = "protocol error unexpected answer";
     private static final String NO_ANSWER = "protocol error no answer";
 
+    // Emails written before their replies are read in pipelined mode. The replies of a window must fit in the socket
+    // buffers, otherwise both sides could block writing.
+    public static final int PIPELINE_WINDOW = 64;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
 
     Socket socket;
     BufferedReader reader;
     PrintWriter writer;
+    private final boolean pipelined;
 
     public DMTPClientHandler(Socket socket, BufferedReader reader, PrintWriter writer) {
+        this(socket, reader, writer, false);
+    }
+
+    /**
+     * @param pipelined if true, all the commands of an email are written at once and the replies are read afterwards,
+     *                  instead of waiting for the reply to each command
+     */
+    public DMTPClientHandler(Socket socket, BufferedReader reader, PrintWriter writer, boolean pipelined) {
         this.socket = socket;
         this.reader = reader;
         this.writer = writer;
+        this.pipelined = pipelined;
     }
 
     @Override
@@ -44,22 +61,21 @@ public class DMTPClientHandler implements IDMTPClientHandler {
     @Override
     public void sendEmail(Email email, UnknownRecipientCallback callback) throws DMTPException, IOException {
 
+        if (pipelined) {
+            DMTPException error = sendEmails(List.of(email), (e, recipients) -> callback.onUnknownRecipients(recipients))
+                    .get(0);
+            if (error != null)
+                throw error;
+            return;
+        }
+
         String message;
         String command;
 
         command = "to " + String.join(",", email.recipients);
         writer.println(command);
         message = reader.readLine();
-        if (message == null) throw new DMTPException(NO_ANSWER);
-        if (!message.equals("ok " + email.recipients.size())) {
-            // Check if unknown recipients with content (i.e. length >24)
-            if (message.startsWith("error unknown recipient ") && message.length() > 24) {
-                String unknownRecipients = message.split(" ")[3];
-                callback.onUnknownRecipients(Arrays.asList(unknownRecipients.split(",")));
-            } else {
-                throw new DMTPException(UNEXPECTED_ANSWER);
-            }
-        }
+        checkRecipientsAnswer(message, email, callback);
 
         command = "from " + email.sender;
         executeOrThrowException(command, "ok", reader, writer);
@@ -78,12 +94,99 @@ public class DMTPClientHandler implements IDMTPClientHandler {
 
     }
 
+    @Override
+    public List<DMTPException> sendEmails(List<Email> emails, BatchUnknownRecipientCallback callback)
+            throws DMTPException, IOException {
+
+        List<DMTPException> errors = new ArrayList<>(emails.size());
+
+        if (!pipelined) {
+            for (Email email : emails) {
+                try {
+                    sendEmail(email, recipients -> callback.onUnknownRecipients(email, recipients));
+                    errors.add(null);
+                } catch (DMTPException e) {
+                    errors.add(e);
+                }
+            }
+            return errors;
+        }
+
+        for (int start = 0; start < emails.size(); start += PIPELINE_WINDOW) {
+            List<Email> window = emails.subList(start, Math.min(start + PIPELINE_WINDOW, emails.size()));
+
+            // Write the commands of the whole window with a single flush
+            for (Email email : window) {
+                print("to " + String.join(",", email.recipients));
+                print("from " + email.sender);
+                print("subject " + email.subject);
+                print("data " + email.data);
+                print("hash " + email.hash);
+                print("send");
+            }
+            writer.flush();
+
+            // Read all the replies in order, even after an error, so the connection stays usable
+            for (Email email : window) {
+                DMTPException error = null;
+
+                try {
+                    checkRecipientsAnswer(reader.readLine(), email,
+                            recipients -> callback.onUnknownRecipients(email, recipients));
+                } catch (DMTPException e) {
+                    error = e;
+                }
+
+                for (int i = 0; i < 5; i++) {
+                    String message = reader.readLine();
+                    if (message == null)
+                        // Server closed the session after a fatal error, which is the first one seen
+                        throw error != null ? error : new DMTPException(NO_ANSWER);
+                    try {
+                        checkAnswer(message, "ok");
+                    } catch (DMTPException e) {
+                        if (error == null)
+                            error = e;
+                    }
+                }
+
+                errors.add(error);
+            }
+        }
+
+        return errors;
+    }
+
     @Override
     public void close() throws IOException, DMTPException {
         String command = "quit";
         executeOrThrowException(command, "ok bye", reader, writer);
     }
 
+    private void print(String command) {
+        // print() doesn't trigger the auto flush of the writer
+        writer.print(command);
+        writer.print(LINE_SEPARATOR);
+    }
+
+    private static void checkRecipientsAnswer(String message, Email email, UnknownRecipientCallback callback)
+            throws DMTPException {
+
+        if (message == null) throw new DMTPException(NO_ANSWER);
+        if (!message.equals("ok " + email.recipients.size())) {
+            // Check if unknown recipients with content (i.e. length >24)
+            if (message.startsWith("error unknown recipient ") && message.length() > 24) {
+                String unknownRecipients = message.split(" ")[3];
+                callback.onUnknownRecipients(Arrays.asList(unknownRecipients.split(",")));
+            } else if (message.startsWith("error ")) {
+                // e.g. mailbox full <users>
+                throw new DMTPException(message.substring(6));
+            } else {
+                throw new DMTPException(UNEXPECTED_ANSWER);
+            }
+        }
+    }
+
     private static void executeOrThrowException(
             String command,
             String expectedAnswer,
@@ -92,7 +195,10 @@ public class DMTPClientHandler implements IDMTPClientHandler {
     ) throws IOException, DMTPException {
 
         writer.println(command);
-        String message = reader.readLine();
+        checkAnswer(reader.readLine(), expectedAnswer);
+    }
+
+    private static void checkAnswer(String message, String expectedAnswer) throws DMTPException {
         if (message == null) throw new DMTPException(NO_ANSWER);
         if (!message.equals(expectedAnswer)) {
             if (message.startsWith("error ")) {
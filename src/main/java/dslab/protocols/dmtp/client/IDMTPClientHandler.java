@@ -11,10 +11,27 @@ public interface IDMTPClientHandler {
 
     void init() throws DMTPException, IOException;
     void sendEmail(Email email, UnknownRecipientCallback callback) throws DMTPException, IOException;
+
+    /**
+     * Send several emails over the same session.
+     * @param emails the emails to send
+     * @param callback called with the email the unknown recipients were reported for
+     * @return for each email in the same order, null if the server accepted it, otherwise the error it reported
+     * @throws DMTPException if the session can't continue, e.g. the server closed it
+     * @throws IOException on connection errors
+     */
+    List<DMTPException> sendEmails(List<Email> emails, BatchUnknownRecipientCallback callback)
+            throws DMTPException, IOException;
+
     void close() throws DMTPException, IOException;
 
     @FunctionalInterface
     interface UnknownRecipientCallback {
         void onUnknownRecipients(List<String> recipients);
     }
+
+    @FunctionalInterface
+    interface BatchUnknownRecipientCallback {
+        void onUnknownRecipients(Email email, List<String> recipients);
+    }
 }
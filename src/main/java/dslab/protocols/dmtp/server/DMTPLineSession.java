@@ -0,0 +1,56 @@
+package dslab.protocols.dmtp.server;
+
+import dslab.util.nio.ILineSession;
+import dslab.util.nio.LineChannel;
+
+/**
+ * Serves a DMTP session on a non-blocking {@link LineChannel}.
+ * While the reply to a request is pending (e.g. a sent email being stored), the following requests stay buffered.
+ */
+public class DMTPLineSession implements ILineSession {
+
+    private final DMTPServerSession session;
+    private boolean handling = false;
+    private boolean replied = false;
+
+    public DMTPLineSession(IDMTPServerHandler.Callback callback) {
+        this.session = new DMTPServerSession(callback);
+    }
+
+    @Override
+    public void onOpen(LineChannel channel) {
+        channel.println(DMTPServerSession.GREETING);
+    }
+
+    @Override
+    public void onLine(LineChannel channel, String line) {
+        handling = true;
+        replied = false;
+
+        session.handle(line, reply -> {
+            if (handling && channel.inEventLoop()) {
+                replied = true;
+                sendReply(channel, reply);
+            } else {
+                channel.execute(() -> {
+                    sendReply(channel, reply);
+                    channel.resumeReading();
+                });
+            }
+        });
+
+        handling = false;
+        if (!replied)
+            channel.suspendReading();
+    }
+
+    @Override
+    public void onClose(LineChannel channel) { }
+
+    private void sendReply(LineChannel channel, String reply) {
+        channel.println(reply);
+
+        if (session.isClosed())
+            channel.closeAfterFlush();
+    }
+}
@@ -0,0 +1,229 @@
+package dslab.protocols.dmtp.server;
+
+import dslab.protocols.dmtp.DMTPException;
+import dslab.protocols.dmtp.Email;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Server side of the DMTP protocol as a state machine driven one request line at a time.
+ * The session does no I/O on its own, so it can be driven both by a blocking reader loop (see
+ * {@link DMTPServerHandler}) and by a non-blocking event loop (see {@link DMTPLineSession}).
+ */
+public class DMTPServerSession {
+
+    public static final String GREETING = "ok DMTP2.0";
+
+    private final IDMTPServerHandler.Callback callback;
+
+    private Email email;
+    private boolean begun = false;
+    private boolean closed = false;
+    private DMTPException failure = null;
+
+    public DMTPServerSession(IDMTPServerHandler.Callback callback) {
+        this.callback = callback;
+        this.email = new Email();
+    }
+
+    /**
+     * Process a request line. The reply can be delivered later from another thread (e.g. once a sent email has been
+     * stored): the caller must not pass the next request before the reply of the previous one.
+     * @param request the line sent by the client
+     * @param reply receives the reply to send back to the client
+     */
+    public void handle(String request, Consumer<String> reply) {
+        String response = process(request, reply);
+        if (response != null)
+            reply.accept(response);
+    }
+
+    /**
+     * @return the reply, null if it is delivered asynchronously
+     */
+    private String process(String request, Consumer<String> reply) {
+        if (closed)
+            throw new IllegalStateException("Session already closed");
+
+        if (!begun) {
+            // Begin protocol
+            if (request.equals("begin")) {
+                begun = true;
+                return "ok";
+            }
+            return fail("protocol error");
+        }
+
+        String[] tokens = request.split(" ");
+
+        if (tokens.length == 0)
+            return fail("protocol error");
+
+        switch (tokens[0]) {
+            case "to":
+
+                if (tokens.length != 2)
+                    return fail("protocol error");
+
+                String[] recipients = tokens[1].split(",");
+                // Validate and check unknown recipients
+                List<String> unknownRecipients = new LinkedList<>();
+                List<String> fullRecipients = new LinkedList<>();
+
+                for (String r : recipients) {
+                    if (!Email.isValidAddress(r))
+                        return fail("invalid recipient");
+                    if (!callback.validateRecipient(r)) {
+                        unknownRecipients.add(r);
+                    } else if (!callback.acceptsEmails(r)) {
+                        fullRecipients.add(r);
+                    }
+                }
+
+                email.recipients = Arrays.asList(recipients);
+
+                if (!unknownRecipients.isEmpty()) {
+                    // Report unknown recipients removing domain
+                    List<String> unknownRecNoDomain = unknownRecipients.stream()
+                            .map(Email::getUser)
+                            .filter(user -> !Objects.isNull(user))
+                            .collect(Collectors.toList());
+                    return "error unknown recipient " + String.join(",", unknownRecNoDomain);
+                }
+
+                if (!fullRecipients.isEmpty()) {
+                    // Refused before the client sends the data
+                    return "error mailbox full " + fullRecipients.stream()
+                            .map(Email::getUser)
+                            .collect(Collectors.joining(","));
+                }
+
+                return "ok " + recipients.length;
+
+            case "from":
+
+                if (tokens.length != 2)
+                    return fail("protocol error");
+
+                if (Email.isValidAddress(tokens[1])) {
+                    email.sender = tokens[1];
+                    return "ok";
+                }
+                return "error invalid address " + tokens[1];
+
+            case "subject":
+
+                if (request.length() < 8)
+                    return fail("protocol error");
+
+                // subject starts at index 8
+                email.subject = request.substring(8);
+                return "ok";
+
+            case "data":
+
+                if (request.length() < 5)
+                    return fail("protocol error");
+
+                // data starts at index 5
+                email.data = request.substring(5);
+                return "ok";
+
+            case "hash":
+
+                if (request.length() < 5)
+                    return fail("protocol error");
+
+                email.hash = request.substring(5);
+                return "ok";
+
+            case "send":
+
+                if (!request.equals("send"))
+                    return fail("protocol error");
+
+                String missingParameter = findMissingParameter(email);
+                if (missingParameter != null)
+                    return "error no " + missingParameter;
+
+                callback.consumeEmailAsync(email).whenComplete((consumed, error) -> {
+                    if (error == null && consumed) {
+                        this.email = new Email();
+                        reply.accept("ok");
+                    } else if (rejection(error) != null) {
+                        // Overloaded or over quota, the client may send it again later
+                        reply.accept("error " + rejection(error).getMessage());
+                    } else {
+                        reply.accept("error consuming email");
+                    }
+                });
+                return null;
+
+            case "quit":
+
+                if (!request.equals("quit"))
+                    return fail("protocol error");
+
+                closed = true;
+                return "ok bye";
+
+            default:
+                return fail("protocol error");
+        }
+    }
+
+    /**
+     * @return true if the session ended, either because the client quit or because of a fatal protocol error.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the fatal protocol error that closed the session, null if none.
+     */
+    public DMTPException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the {@link RejectedExecutionException} an email was refused with, null if none
+     */
+    private static Throwable rejection(Throwable error) {
+        if (error instanceof RejectedExecutionException)
+            return error;
+        if (error != null && error.getCause() instanceof RejectedExecutionException)
+            return error.getCause();
+        return null;
+    }
+
+    private String fail(String message) {
+        closed = true;
+        failure = new DMTPException(message);
+        return "error " + message;
+    }
+
+    /**
+     * Find missing property in email.
+     * @param email email
+     * @return name of missing parameter, null if none.
+     */
+    private static String findMissingParameter(Email email) {
+        if (email.sender == null)
+            return "sender";
+        else if (email.recipients == null)
+            return "recipient";
+        else if (email.subject == null)
+            return "subject";
+        else if (email.data == null)
+            return "data";
+
+        return null;
+    }
+}
@@ -4,6 +4,8 @@ import dslab.protocols.dmtp.DMTPException;
 import dslab.protocols.dmtp.Email;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface IDMTPServerHandler {
 
@@ -19,12 +21,33 @@ public interface IDMTPServerHandler {
          */
         boolean consumeEmail(Email email);
 
+        /**
+         * Asynchronous variant of {@link #consumeEmail(Email)}, used by the session to reply to "send" only once the
+         * returned stage completes, without blocking the calling thread.
+         * @param email the Email composed by the client.
+         * @return stage completed with true if the email has been successfully processed, false otherwise, or
+         * exceptionally with a {@link java.util.concurrent.RejectedExecutionException} if the server refuses it for
+         * now, whose message is the reason sent to the client (e.g. "busy")
+         */
+        default CompletionStage<Boolean> consumeEmailAsync(Email email) {
+            return CompletableFuture.completedFuture(consumeEmail(email));
+        }
+
         /**
          * Called to validate a recipient (e.g. validate the domain or the existence).
          * @param recipient recipient of the email.
          * @return true if valid and the recipient can be assigned, false otherwise.
          */
         boolean validateRecipient(String recipient);
+
+        /**
+         * Called for a valid recipient, to check that it can take more emails (e.g. that its mailbox isn't full).
+         * @param recipient recipient of the email.
+         * @return true if the recipient can receive the email, false otherwise.
+         */
+        default boolean acceptsEmails(String recipient) {
+            return true;
+        }
     }
 
 }
@@ -0,0 +1,15 @@
+package dslab.transfer;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link DMTPConnectionPool#borrow(String)} when all the connections to a mailbox server stayed in use until
+ * the deadline. Unlike other IOExceptions it doesn't mean that the server is unreachable.
+ */
+public class ConnectionUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ConnectionUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,344 @@
+package dslab.transfer;
+
+import dslab.protocols.dmtp.DMTPException;
+import dslab.protocols.dmtp.client.DMTPClientHandler;
+import dslab.protocols.dmtp.client.IDMTPClientHandler;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps DMTP connections to mailbox servers open between deliveries, keyed by the resolved host:port.
+ * A borrowed connection has already completed the begin handshake, so delivering an email only costs the commands of
+ * the email itself.
+ */
+public class DMTPConnectionPool implements Closeable {
+
+    // Every open connection holds a listener thread of the mailbox server
+    public static final int MAX_CONNECTIONS_PER_HOST = 2;
+    public static final long IDLE_TIMEOUT = 5000;
+    // Connections idle for longer are checked before being handed out again
+    public static final long HEALTH_CHECK_INTERVAL = 1000;
+    public static final long BORROW_TIMEOUT = 10000;
+    // An unresponsive mailbox server must not hold a delivery worker forever
+    public static final int CONNECT_TIMEOUT = 5000;
+    public static final int READ_TIMEOUT = 10000;
+
+    private final ConcurrentMap<String, HostPool> hostPools;
+    private final ScheduledExecutorService idleReaper;
+    private final boolean pipelined;
+    private volatile boolean closed = false;
+
+    public DMTPConnectionPool() {
+        this(false);
+    }
+
+    /**
+     * @param pipelined if true, the handlers of the connections send the commands of an email without waiting for
+     *                  each reply
+     */
+    public DMTPConnectionPool(boolean pipelined) {
+        this.pipelined = pipelined;
+        this.hostPools = new ConcurrentHashMap<>();
+        this.idleReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dmtp-pool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.idleReaper.scheduleWithFixedDelay(this::closeIdleConnections,
+                IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get an initialized connection to a mailbox server, reusing an idle one if possible.
+     * The connection must be given back with either {@link #release(PooledConnection)} or
+     * {@link #invalidate(PooledConnection)}.
+     * @param address the mailbox server address, e.g. 127.0.0.1:16503
+     * @return the connection
+     * @throws IOException if the connection couldn't be opened
+     * @throws ConnectionUnavailableException if all the connections to the server stayed in use until the deadline
+     * @throws InterruptedIOException if interrupted while waiting, with the interrupt status set
+     * @throws DMTPException if the server didn't accept the begin handshake
+     */
+    public PooledConnection borrow(String address) throws IOException, DMTPException {
+        if (closed)
+            throw new IOException("Connection pool is closed.");
+
+        HostPool hostPool = hostPools.computeIfAbsent(address, a -> new HostPool(a, pipelined));
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+
+        while (true) {
+            PooledConnection connection = hostPool.take(deadline);
+            if (connection == null)
+                break;
+
+            long idleTime = System.currentTimeMillis() - connection.lastUsed;
+            if (idleTime < IDLE_TIMEOUT && (idleTime < HEALTH_CHECK_INTERVAL || connection.isHealthy())) {
+                connection.reused = true;
+                return connection;
+            }
+            hostPool.discard(connection);
+        }
+
+        // A slot for a new connection was reserved
+        try {
+            return hostPool.open();
+        } catch (IOException | DMTPException | RuntimeException e) {
+            hostPool.closed();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a connection that can be used for further emails.
+     * @param connection a borrowed connection
+     */
+    public void release(PooledConnection connection) {
+        if (closed) {
+            connection.hostPool.discard(connection);
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        connection.hostPool.put(connection);
+    }
+
+    /**
+     * Close a connection that is in an unknown protocol state, e.g. after an error.
+     * @param connection a borrowed connection
+     */
+    public void invalidate(PooledConnection connection) {
+        connection.close();
+        connection.hostPool.closed();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        idleReaper.shutdownNow();
+
+        for (HostPool hostPool : hostPools.values()) {
+            for (PooledConnection connection : hostPool.removeIdle(Long.MAX_VALUE))
+                hostPool.discard(connection);
+        }
+    }
+
+    private void closeIdleConnections() {
+        long expiredBefore = System.currentTimeMillis() - IDLE_TIMEOUT;
+
+        for (HostPool hostPool : hostPools.values()) {
+            for (PooledConnection connection : hostPool.removeIdle(expiredBefore))
+                hostPool.discard(connection);
+        }
+    }
+
+    /**
+     * Connections to one mailbox server. Guarded by its own monitor, which borrowers wait on when all the connections
+     * are in use.
+     */
+    private static class HostPool {
+
+        private final String address;
+        private final boolean pipelined;
+        // Most recently used first: the others can reach the idle timeout and be closed
+        private final Deque<PooledConnection> idle;
+        // Idle and borrowed connections, plus the ones being opened
+        private int nOpen = 0;
+
+        HostPool(String address, boolean pipelined) {
+            this.address = address;
+            this.pipelined = pipelined;
+            this.idle = new ArrayDeque<>();
+        }
+
+        /**
+         * Wait for an idle connection, or for a free slot to open a new one.
+         * @return an idle connection, or null if a slot was reserved for a new connection
+         * @throws ConnectionUnavailableException if nothing became available before the deadline
+         * @throws InterruptedIOException if interrupted, with the interrupt status set
+         */
+        synchronized PooledConnection take(long deadline) throws IOException {
+            while (true) {
+                if (!idle.isEmpty())
+                    return idle.pollFirst();
+                if (nOpen < MAX_CONNECTIONS_PER_HOST) {
+                    nOpen++;
+                    return null;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    throw new ConnectionUnavailableException("No connection to " + address + " available.");
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a connection to " + address);
+                }
+            }
+        }
+
+        synchronized void put(PooledConnection connection) {
+            idle.offerFirst(connection);
+            notify();
+        }
+
+        /**
+         * Free the slot of a connection that was closed.
+         */
+        synchronized void closed() {
+            nOpen--;
+            notify();
+        }
+
+        synchronized List<PooledConnection> removeIdle(long lastUsedBefore) {
+            List<PooledConnection> removed = new ArrayList<>();
+            Iterator<PooledConnection> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                PooledConnection connection = iterator.next();
+                if (connection.lastUsed < lastUsedBefore) {
+                    iterator.remove();
+                    removed.add(connection);
+                }
+            }
+            return removed;
+        }
+
+        PooledConnection open() throws IOException, DMTPException {
+            String ip = address.split(":")[0];
+            int port = Integer.parseInt(address.split(":")[1]);
+
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+
+            PooledConnection connection = new PooledConnection(this, socket);
+            try {
+                connection.handler.init();
+            } catch (IOException | DMTPException e) {
+                connection.close();
+                throw e;
+            }
+            return connection;
+        }
+
+        /**
+         * Quit and close a connection that is not borrowed, freeing its slot.
+         */
+        void discard(PooledConnection connection) {
+            connection.quit();
+            closed();
+        }
+    }
+
+    /**
+     * A DMTP connection owned by the pool, on which the begin handshake was already done.
+     */
+    public static class PooledConnection {
+
+        private final HostPool hostPool;
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+        private final IDMTPClientHandler handler;
+
+        private long lastUsed;
+        private boolean reused = false;
+
+        private PooledConnection(HostPool hostPool, Socket socket) throws IOException {
+            this.hostPool = hostPool;
+            this.socket = socket;
+            try {
+                this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                this.writer = new PrintWriter(socket.getOutputStream(), true);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.handler = new DMTPClientHandler(socket, reader, writer, hostPool.pipelined);
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public IDMTPClientHandler getHandler() {
+            return handler;
+        }
+
+        public String getAddress() {
+            return hostPool.address;
+        }
+
+        /**
+         * @return true if the connection was used before, and could have been closed by the server meanwhile
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * An idle connection must have nothing to read: end of stream means the server closed it.
+         */
+        private boolean isHealthy() {
+            if (socket.isClosed())
+                return false;
+
+            try {
+                socket.setSoTimeout(1);
+                reader.read();
+                // Either end of stream or unexpected data
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    socket.setSoTimeout(READ_TIMEOUT);
+                } catch (IOException exception) { }
+            }
+        }
+
+        private void quit() {
+            try {
+                handler.close();
+            } catch (IOException | DMTPException e) {
+                // An error here can be ignored: the connection is closed anyway
+            }
+            close();
+        }
+
+        private void close() {
+            try {
+                reader.close();
+            } catch (IOException exception) { }
+
+            writer.close();
+
+            if (!socket.isClosed()) {
+                try {
+                    socket.close();
+                } catch (IOException exception) { }
+            }
+        }
+    }
+}
@@ -1,78 +1,124 @@
 package dslab.transfer;
 
-import dslab.nameserver.INameserverRemote;
-import dslab.protocols.dmtp.Email;
+import dslab.protocols.dmtp.server.DMTPLineSession;
+import dslab.transfer.queue.DurableEmailQueue;
 import dslab.util.Config;
+import dslab.util.nio.EventLoop;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.rmi.NotBoundException;
-import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class DMTPListenerThread extends Thread {
 
     public static final int N_CONSUMERS = 3;
-    public static final int N_PRODUCERS = 2;
-
-    private final ServerSocket serverSocket;
+    // Workers of the delivery scheduler, shared by all the destination domains
+    public static final int N_DELIVERY_WORKERS = 16;
+    // Emails taken from the queue and waiting for their first delivery attempts, the others stay on disk only
+    public static final int MAX_EMAILS_IN_DELIVERY = 10000;
+    // Client sessions are multiplexed over a few selector threads, so idle clients don't hold a thread each
+    public static final int N_EVENT_LOOPS = 2;
+    // Time given to consumers to finish the email in progress before the queue is closed
+    private static final long CONSUMERS_TERMINATION_WAIT = 1000;
+
+    private final ServerSocketChannel serverSocketChannel;
     private final Config transferConfig;
-    private final INameserverRemote rootNameserver;
-    private final ExecutorService producersExecutorService;
+    private final DomainResolver domainResolver;
+    private final List<EventLoop> eventLoops;
     private final ExecutorService consumersExecutorService;
-    private final ArrayBlockingQueue<Email> blockingQueue;
-
-    public DMTPListenerThread(ServerSocket serverSocket, Config config, INameserverRemote rootNameserver) {
-        this.serverSocket = serverSocket;
-        this.rootNameserver = rootNameserver;
+    private final DurableEmailQueue emailQueue;
+    private final DeliveryScheduler deliveryScheduler;
+    private final RetryScheduler retryScheduler;
+    private final TelemetrySender telemetrySender;
+    private final Semaphore inDelivery;
+
+    public DMTPListenerThread(ServerSocketChannel serverSocketChannel, Config config, DomainResolver domainResolver,
+                              DurableEmailQueue emailQueue, DeliveryScheduler deliveryScheduler,
+                              RetryScheduler retryScheduler, TelemetrySender telemetrySender) {
+        this.serverSocketChannel = serverSocketChannel;
+        this.domainResolver = domainResolver;
 
         // Unlimited size thread pool vs limited size: this is an heuristic. Risk is thread starvation
-        this.producersExecutorService = Executors.newFixedThreadPool(N_PRODUCERS);
         this.consumersExecutorService = Executors.newFixedThreadPool(N_CONSUMERS);
 
+        this.eventLoops = new ArrayList<>();
+        for (int i = 0; i < N_EVENT_LOOPS; i++)
+            eventLoops.add(new EventLoop("dmtp-event-loop-" + i));
+
         this.transferConfig = config;
 
-        // Alternative is an unbounded LinkedBlockingQueue, but if producers produce more than consumers and the server
-        // crashes, all the emails in the queue would be lost. This way, if capacity is reached, I can show an error
-        // to the client and notify him that the email couldn't be sent.
-        this.blockingQueue = new ArrayBlockingQueue<>(40);
+        // Emails are persisted until delivered, so the queue doesn't need to be bounded to limit the emails lost in
+        // case of a crash.
+        this.emailQueue = emailQueue;
+
+        this.deliveryScheduler = deliveryScheduler;
+        this.retryScheduler = retryScheduler;
+        this.telemetrySender = telemetrySender;
+        this.inDelivery = new Semaphore(MAX_EMAILS_IN_DELIVERY);
 
     }
 
+    /**
+     * Start the email consumers and the event loops of the client sessions. Called before the server socket is
+     * bound, so that the first clients find them running.
+     */
+    public void startWorkers() {
+        for (int i = 0; i < N_CONSUMERS; i++)
+            consumersExecutorService.submit(new EmailConsumer(domainResolver, emailQueue, deliveryScheduler,
+                    retryScheduler, inDelivery));
+
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.start();
+    }
+
     @Override
     public void run() {
 
-        for (int i = 0; i < N_CONSUMERS; i++)
-            consumersExecutorService.submit(new EmailConsumer(rootNameserver, blockingQueue));
-
-        Socket socket = null;
+        int next = 0;
 
         while (!Thread.currentThread().isInterrupted()) {
 
             try {
-                socket = serverSocket.accept();
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                InetSocketAddress localAddress = (InetSocketAddress) socketChannel.getLocalAddress();
 
-                Runnable clientEmailProducer = new EmailProducer(transferConfig, socket, blockingQueue);
-                producersExecutorService.submit(clientEmailProducer);
+                EmailProducer emailProducer = new EmailProducer(
+                        telemetrySender, localAddress.getAddress(), localAddress.getPort(), emailQueue);
 
-            } catch (SocketException e) {
+                // Round robin over the event loops
+                eventLoops.get(next).register(socketChannel, new DMTPLineSession(emailProducer));
+                next = (next + 1) % eventLoops.size();
+
+            } catch (ClosedChannelException e) {
                 // exit loop
                 break;
             } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                System.out.println("IOException accepting client: " + e.getMessage());
             }
         }
 
         // Close open running services
-        producersExecutorService.shutdownNow();
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.shutdown();
         consumersExecutorService.shutdownNow();
+        try {
+            consumersExecutorService.awaitTermination(CONSUMERS_TERMINATION_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retryScheduler.close();
+        deliveryScheduler.close();
+        emailQueue.close();
+        telemetrySender.close();
 
     }
+
 }
@@ -0,0 +1,387 @@
+package dslab.transfer;
+
+import dslab.protocols.dmtp.DMTPException;
+import dslab.protocols.dmtp.Email;
+import dslab.protocols.dmtp.client.IDMTPClientHandler;
+import dslab.transfer.DMTPConnectionPool.PooledConnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers emails to mailbox servers from one queue per destination domain.
+ *
+ * Workers serve the destinations with pending deliveries round robin, one delivery at a time, so a busy destination
+ * can't starve the others. A destination is served by at most {@link #MAX_WORKERS_PER_DESTINATION} workers at once,
+ * and one that can't be reached is paused with exponential backoff, leaving the workers to the healthy ones.
+ */
+public class DeliveryScheduler implements Closeable {
+
+    // Connections the pool opens to a mailbox server, more workers would only wait for one
+    public static final int MAX_WORKERS_PER_DESTINATION = DMTPConnectionPool.MAX_CONNECTIONS_PER_HOST;
+    public static final long INITIAL_BACKOFF = 500;
+    public static final long MAX_BACKOFF = 60000;
+    // Consecutive failures of a destination after which its pending deliveries fail
+    public static final int MAX_ATTEMPTS = 3;
+    // Time constant of the delivery rate average
+    private static final double RATE_WINDOW = 10000;
+    // Time given to workers to finish the delivery in progress on close
+    private static final long WORKERS_TERMINATION_WAIT = 1000;
+
+    private final DMTPConnectionPool connectionPool;
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a destination becomes ready
+    private final Condition available = lock.newCondition();
+    private final Map<String, Destination> destinations = new HashMap<>();
+    // Destinations a worker can take a delivery from, in round robin order
+    private final Deque<Destination> ready = new ArrayDeque<>();
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService backoffTimer;
+    private boolean closed = false;
+
+    public DeliveryScheduler(DMTPConnectionPool connectionPool, int nWorkers) {
+        this(connectionPool, nWorkers, INITIAL_BACKOFF, MAX_BACKOFF);
+    }
+
+    public DeliveryScheduler(DMTPConnectionPool connectionPool, int nWorkers, long initialBackoff, long maxBackoff) {
+        this.connectionPool = connectionPool;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+
+        this.backoffTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "delivery-backoff");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = Executors.newFixedThreadPool(nWorkers);
+        for (int i = 0; i < nWorkers; i++)
+            workers.submit(this::work);
+    }
+
+    /**
+     * Queue the delivery of an email to the mailbox server of a domain.
+     * @param domain the destination domain, which selects the queue
+     * @param address the address of the mailbox server of the domain
+     * @param email the email
+     * @param callback called with the unknown recipients reported by the mailbox server
+     * @return a future completed once the email is delivered, or completed exceptionally with the
+     * {@link IOException} or {@link DMTPException} that made the delivery fail
+     */
+    public CompletableFuture<Void> submit(String domain, String address, Email email,
+                                          IDMTPClientHandler.UnknownRecipientCallback callback) {
+
+        Delivery delivery = new Delivery(address, email, callback);
+
+        lock.lock();
+        try {
+            if (closed) {
+                delivery.result.completeExceptionally(new IOException("Delivery scheduler is closed."));
+                return delivery.result;
+            }
+
+            Destination destination = destinations.computeIfAbsent(domain, Destination::new);
+            destination.pending.add(delivery);
+            makeReadyIfPossible(destination);
+        } finally {
+            lock.unlock();
+        }
+
+        return delivery.result;
+    }
+
+    /**
+     * @return a snapshot of the metrics of every destination seen so far
+     */
+    public List<DestinationStats> getStats() {
+        List<DestinationStats> stats = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        lock.lock();
+        try {
+            for (Destination destination : destinations.values()) {
+                Delivery oldest = destination.pending.peekFirst();
+                stats.add(new DestinationStats(
+                        destination.domain,
+                        destination.pending.size(),
+                        oldest == null ? 0 : now - oldest.queuedAt,
+                        destination.active,
+                        destination.delivered,
+                        destination.decayedRate(now),
+                        destination.failures,
+                        Math.max(0, destination.resumeAt - now)));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        stats.sort((a, b) -> a.domain.compareTo(b.domain));
+        return stats;
+    }
+
+    /**
+     * Stop the workers and close the connections. Pending deliveries are dropped without completing their futures.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        workers.shutdownNow();
+        backoffTimer.shutdownNow();
+        try {
+            workers.awaitTermination(WORKERS_TERMINATION_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connectionPool.close();
+    }
+
+    private void work() {
+        while (true) {
+            Destination destination;
+            Delivery delivery;
+
+            lock.lock();
+            try {
+                while (ready.isEmpty() && !closed)
+                    available.awaitUninterruptibly();
+                if (closed)
+                    return;
+
+                destination = ready.poll();
+                destination.inReady = false;
+                delivery = destination.pending.poll();
+                destination.active++;
+                // Back at the tail: the other ready destinations are served first
+                makeReadyIfPossible(destination);
+            } finally {
+                lock.unlock();
+            }
+
+            Exception failure = attempt(delivery);
+            // Interrupted by close: the delivery is dropped like the other pending ones
+            if (Thread.currentThread().isInterrupted())
+                return;
+
+            List<Delivery> failed = new ArrayList<>();
+            lock.lock();
+            try {
+                destination.active--;
+                long now = System.currentTimeMillis();
+
+                if (failure instanceof ConnectionUnavailableException) {
+                    // The other deliveries to the destination hold its connections: not a failure of the destination
+                    destination.pending.addFirst(delivery);
+                } else if (failure == null) {
+                    destination.failures = 0;
+                    destination.delivered++;
+                    destination.recordDelivery(now);
+                } else if (failure instanceof IOException) {
+                    // Mailbox server unreachable: pause the destination and retry the email later
+                    destination.failures++;
+                    long backoff = Math.min(maxBackoff, initialBackoff << Math.min(destination.failures - 1, 20));
+                    destination.resumeAt = Math.max(destination.resumeAt, now + backoff);
+                    destination.pending.addFirst(delivery);
+
+                    if (destination.failures >= MAX_ATTEMPTS) {
+                        failed.addAll(destination.pending);
+                        destination.pending.clear();
+                        // Emails submitted later get attempts of their own once the pause is over
+                        destination.failures = 0;
+                    }
+
+                    if (destination.inReady) {
+                        ready.remove(destination);
+                        destination.inReady = false;
+                    }
+                } else {
+                    // Refused by the mailbox server, retrying wouldn't help
+                    failed.add(delivery);
+                }
+
+                makeReadyIfPossible(destination);
+            } finally {
+                lock.unlock();
+            }
+
+            if (failure == null)
+                delivery.result.complete(null);
+            for (Delivery d : failed)
+                d.result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Send an email over a pooled connection to the given mailbox server.
+     * A reused connection may have been closed by the server while idle: in that case the email is sent again once
+     * over a new connection.
+     * @return null if delivered, otherwise the error
+     */
+    private Exception attempt(Delivery delivery) {
+        try {
+            PooledConnection connection = connectionPool.borrow(delivery.address);
+            try {
+                connection.getHandler().sendEmail(delivery.email, delivery.callback);
+            } catch (IOException | DMTPException e) {
+                connectionPool.invalidate(connection);
+                if (!connection.isReused())
+                    throw e;
+
+                connection = connectionPool.borrow(delivery.address);
+                try {
+                    connection.getHandler().sendEmail(delivery.email, delivery.callback);
+                } catch (IOException | DMTPException retryException) {
+                    connectionPool.invalidate(connection);
+                    throw retryException;
+                }
+            }
+            connectionPool.release(connection);
+            return null;
+        } catch (IOException | DMTPException e) {
+            return e;
+        } catch (RuntimeException e) {
+            System.out.println("Unexpected error delivering email: " + e);
+            return new DMTPException(e.toString());
+        }
+    }
+
+    private void scheduleResume(Destination destination, long delay) {
+        destination.resumeScheduled = true;
+        try {
+            backoffTimer.schedule(() -> {
+                lock.lock();
+                try {
+                    destination.resumeScheduled = false;
+                    makeReadyIfPossible(destination);
+                } finally {
+                    lock.unlock();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Rejected after close
+        }
+    }
+
+    /**
+     * Must be called holding the lock. A paused destination with pending deliveries gets a timer for the end of its
+     * pause, which tries again then.
+     */
+    private void makeReadyIfPossible(Destination destination) {
+        if (destination.inReady || destination.pending.isEmpty()
+                || destination.active >= MAX_WORKERS_PER_DESTINATION)
+            return;
+
+        long pause = destination.resumeAt - System.currentTimeMillis();
+        if (pause > 0) {
+            if (!destination.resumeScheduled)
+                scheduleResume(destination, pause);
+            return;
+        }
+
+        destination.inReady = true;
+        ready.add(destination);
+        available.signal();
+    }
+
+    /**
+     * Queue and state of a destination domain, guarded by the scheduler lock.
+     */
+    private static class Destination {
+
+        final String domain;
+        final Deque<Delivery> pending = new ArrayDeque<>();
+        boolean inReady = false;
+        int active = 0;
+
+        // Consecutive failures, and end of the pause they caused
+        int failures = 0;
+        long resumeAt = 0;
+        // A timer is set for resumeAt
+        boolean resumeScheduled = false;
+
+        long delivered = 0;
+        // Exponentially weighted deliveries per second
+        double rate = 0;
+        long rateUpdatedAt = System.currentTimeMillis();
+
+        Destination(String domain) {
+            this.domain = domain;
+        }
+
+        void recordDelivery(long now) {
+            rate = decayedRate(now) + 1000 / RATE_WINDOW;
+            rateUpdatedAt = now;
+        }
+
+        double decayedRate(long now) {
+            return rate * Math.exp(-(now - rateUpdatedAt) / RATE_WINDOW);
+        }
+    }
+
+    private static class Delivery {
+
+        final String address;
+        final Email email;
+        final IDMTPClientHandler.UnknownRecipientCallback callback;
+        final long queuedAt = System.currentTimeMillis();
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Delivery(String address, Email email, IDMTPClientHandler.UnknownRecipientCallback callback) {
+            this.address = address;
+            this.email = email;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Metrics of a destination domain.
+     */
+    public static class DestinationStats {
+
+        public final String domain;
+        // Queued deliveries, and the time the oldest one has been waiting
+        public final int depth;
+        public final long oldestAge;
+        public final int active;
+        public final long delivered;
+        // Deliveries per second, averaged over the last seconds
+        public final double rate;
+        public final int failures;
+        // Time until the destination is served again after failures
+        public final long backoff;
+
+        DestinationStats(String domain, int depth, long oldestAge, int active, long delivered, double rate,
+                         int failures, long backoff) {
+            this.domain = domain;
+            this.depth = depth;
+            this.oldestAge = oldestAge;
+            this.active = active;
+            this.delivered = delivered;
+            this.rate = rate;
+            this.failures = failures;
+            this.backoff = backoff;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package dslab.transfer;
+
+import dslab.nameserver.INameserverRemote;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves mail domains to mailbox server addresses through the nameservers, caching the answers.
+ *
+ * The root nameserver resolves all the missing domains of a request recursively with a single remote call. Found
+ * addresses are kept for a TTL, unknown domains for a separate (usually shorter) one. Failures to reach the
+ * nameservers are not cached. Concurrent misses for the same domain share a single remote call.
+ */
+public class DomainResolver {
+
+    public static final long DEFAULT_TTL = 60000;
+    public static final long DEFAULT_NEGATIVE_TTL = 5000;
+
+    private final INameserverRemote rootNameserver;
+    private final long ttl;
+    private final long negativeTtl;
+
+    private final ConcurrentMap<String, Resolution> cache = new ConcurrentHashMap<>();
+    // Resolutions in progress, shared by the threads missing the same domain
+    private final ConcurrentMap<String, CompletableFuture<Resolution>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DomainResolver(INameserverRemote rootNameserver) {
+        this(rootNameserver, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    public DomainResolver(INameserverRemote rootNameserver, long ttl, long negativeTtl) {
+        this.rootNameserver = rootNameserver;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * @param domain the mail domain, e.g. <code>earth.planet</code>
+     * @return the socket address of the mailbox server's DMTP socket, e.g. <code>127.0.0.1:16503</code>
+     * @throws DomainNotFoundException if the domain is unknown, or the nameservers couldn't be reached
+     */
+    public String resolve(String domain) throws DomainNotFoundException {
+        return resolveAll(List.of(domain)).get(domain).getAddress();
+    }
+
+    /**
+     * Resolve several domains, e.g. all the recipient domains of an email, asking the nameservers for all the
+     * domains that are not cached with a single remote call.
+     * @param domains the mail domains
+     * @return the resolution of every given domain
+     */
+    public Map<String, Resolution> resolveAll(Collection<String> domains) {
+        Map<String, Resolution> resolutions = new HashMap<>();
+        // Misses resolved by another thread, and by this one
+        Map<String, CompletableFuture<Resolution>> joined = new HashMap<>();
+        Map<String, CompletableFuture<Resolution>> owned = new HashMap<>();
+        long now = System.currentTimeMillis();
+
+        for (String domain : domains) {
+            if (resolutions.containsKey(domain) || joined.containsKey(domain) || owned.containsKey(domain))
+                continue;
+
+            Resolution cached = cache.get(domain);
+            if (cached != null && cached.expiresAt > now) {
+                hits.increment();
+                resolutions.put(domain, cached);
+                continue;
+            }
+
+            misses.increment();
+
+            CompletableFuture<Resolution> flight = new CompletableFuture<>();
+            CompletableFuture<Resolution> running = inFlight.putIfAbsent(domain, flight);
+            if (running != null)
+                joined.put(domain, running);
+            else
+                owned.put(domain, flight);
+        }
+
+        if (!owned.isEmpty()) {
+            Map<String, Resolution> resolved;
+            try {
+                resolved = ask(new ArrayList<>(owned.keySet()));
+            } catch (RuntimeException e) {
+                owned.forEach((domain, flight) -> {
+                    inFlight.remove(domain);
+                    flight.completeExceptionally(e);
+                });
+                throw e;
+            }
+
+            owned.forEach((domain, flight) -> {
+                Resolution resolution = resolved.get(domain);
+                if (resolution.expiresAt > 0)
+                    cache.put(domain, resolution);
+                inFlight.remove(domain);
+                flight.complete(resolution);
+                resolutions.put(domain, resolution);
+            });
+        }
+
+        joined.forEach((domain, flight) -> resolutions.put(domain, flight.join()));
+
+        return resolutions;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of cached domains, including expired ones not replaced yet
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Recursive resolution by the root nameserver.
+     * @return the resolutions, with expiresAt 0 if they must not be cached
+     */
+    private Map<String, Resolution> ask(ArrayList<String> domains) {
+        Map<String, Resolution> resolutions = new HashMap<>();
+
+        if (rootNameserver == null) {
+            for (String domain : domains)
+                resolutions.put(domain, new Resolution(null,
+                        new DomainNotFoundException("Null reference to root nameserver."), 0));
+            return resolutions;
+        }
+
+        Map<String, String> addresses;
+        try {
+            addresses = rootNameserver.resolveAll(domains);
+        } catch (RemoteException e) {
+            for (String domain : domains)
+                resolutions.put(domain, new Resolution(null,
+                        new DomainNotFoundException("Error executing nameserver remote method: " + e.getMessage()), 0));
+            return resolutions;
+        }
+
+        long now = System.currentTimeMillis();
+        for (String domain : domains) {
+            String address = addresses.get(domain);
+            if (address == null)
+                resolutions.put(domain, new Resolution(null,
+                        new DomainNotFoundException(domain + " is unknown to nameservers."), now + negativeTtl));
+            else
+                resolutions.put(domain, new Resolution(address, null, now + ttl));
+        }
+        return resolutions;
+    }
+
+    /**
+     * The result of resolving a domain: either an address or the reason why there is none.
+     */
+    public static class Resolution {
+
+        private final String address;
+        private final DomainNotFoundException error;
+        private final long expiresAt;
+
+        private Resolution(String address, DomainNotFoundException error, long expiresAt) {
+            this.address = address;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the socket address of the mailbox server's DMTP socket
+         * @throws DomainNotFoundException if the domain couldn't be resolved
+         */
+        public String getAddress() throws DomainNotFoundException {
+            if (error != null)
+                // New instance, so every caller gets its own stack trace
+                throw new DomainNotFoundException(error.getMessage(), error);
+            return address;
+        }
+    }
+}
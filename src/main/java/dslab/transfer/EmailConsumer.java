@@ -1,197 +1,225 @@
 package dslab.transfer;
 
-import dslab.nameserver.INameserverRemote;
 import dslab.protocols.dmtp.DMTPException;
 import dslab.protocols.dmtp.Email;
-import dslab.protocols.dmtp.client.DMTPClientHandler;
 import dslab.protocols.dmtp.client.IDMTPClientHandler;
-import dslab.util.Config;
+import dslab.transfer.queue.DurableEmailQueue;
+import dslab.transfer.queue.DurableEmailQueue.QueuedEmail;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.rmi.RemoteException;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 public class EmailConsumer extends Thread {
 
-    private final BlockingQueue<Email> blockingQueue;
-    private final INameserverRemote rootNameserver;
-
-    public EmailConsumer(INameserverRemote rootNameserver, BlockingQueue<Email> blockingQueue) {
-        this.rootNameserver = rootNameserver;
-        this.blockingQueue = blockingQueue;
+    private final DurableEmailQueue emailQueue;
+    private final DomainResolver domainResolver;
+    private final DeliveryScheduler deliveryScheduler;
+    private final RetryScheduler retryScheduler;
+    // Bounds the emails taken from the queue whose first delivery attempts are not finished yet. Deferred emails
+    // don't count, so an unreachable domain can't hold up the emails to the other ones.
+    private final Semaphore inDelivery;
+
+    public EmailConsumer(DomainResolver domainResolver, DurableEmailQueue emailQueue,
+                         DeliveryScheduler deliveryScheduler, RetryScheduler retryScheduler, Semaphore inDelivery) {
+        this.domainResolver = domainResolver;
+        this.emailQueue = emailQueue;
+        this.deliveryScheduler = deliveryScheduler;
+        this.retryScheduler = retryScheduler;
+        this.inDelivery = inDelivery;
     }
 
     @Override
     public void run() {
-        Socket socket = null;
-        BufferedReader reader = null;
-        PrintWriter writer = null;
-        IDMTPClientHandler dmtpClientHandler = null;
 
         while (!Thread.currentThread().isInterrupted()) {
 
             try {
-                Email email = blockingQueue.take();
-
-                // Stores a list of recipients to which it wasn't possible to send the email
-                Set<String> failedRecipients = new HashSet<>();
-                // Stores any DMTP error encountered while processing the email
-                Set<String> encounteredProtocolErrors = new HashSet<>();
-
-                List<String> domains = email.getRecipientsDomains();
-
-
-
-                for (String domain : domains) {
-
-                    // Try sending the email to all the recipients within a domain using one connection
-                    try {
-
-                        // If connection refused (e.g. email server down) the sender will be notified that the users
-                        // of this domain didn't receive the email.
-                        socket = initSocketTo(domain);
-
-
-                        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        writer = new PrintWriter(socket.getOutputStream(), true);
-
-                        dmtpClientHandler = new DMTPClientHandler(socket, reader, writer);
-                        dmtpClientHandler.init();
-
-                        dmtpClientHandler.sendEmail(email, recipients -> {
-                                    recipients = recipients.stream()
-                                            .map(recipient -> recipient + "@" + domain).collect(Collectors.toList());
-                                    encounteredProtocolErrors.add("error unknown recipient " + String.join(",", recipients));
-                                }
-                        );
-
-                        try {
-                            dmtpClientHandler.close();
-                        } catch (IOException | DMTPException e) {
-                            // An error here can be ignored: all the important work has already been done
-                            System.out.println(e.getMessage());
-                        }
-
-                    } catch (DomainNotFoundException e) {
-                        System.out.println("Skipping unknown domain " + domain + ": " + e.getMessage());
-                        encounteredProtocolErrors.add("error unknown domain " + domain);
-                    } catch (IOException e) {
-                        // In that case the error has been thrown during init() or sendEmail(), I assume that the email
-                        // wasn't sent to any recipient so the sender can handle the issue.
-                        System.out.println("IOException when consuming email for domain " + domain + ": " + e.getMessage());
-                        List<String> failed = email.recipients.stream()
-                                .filter(r -> domain.equals(Email.getDomain(r)))
-                                .collect(Collectors.toList());
-                        failedRecipients.addAll(failed);
-                    } catch (DMTPException e) {
-                        // Error from init() or sendEmail() methods, store the error and the list of recipients that
-                        // didn't receive the email to create a report.
-                        System.out.println("DMTP Exception consuming email: " + e.getMessage());
-                        encounteredProtocolErrors.add(e.getMessage());
-                        List<String> failed = email.recipients.stream()
-                                .filter(r -> domain.equals(Email.getDomain(r)))
-                                .collect(Collectors.toList());
-                        failedRecipients.addAll(failed);
-                    } finally {
-                        closeResources(socket, reader, writer);
-                    }
-
-                }
-
-                // (try) Send error email
-                if (!encounteredProtocolErrors.isEmpty() || !failedRecipients.isEmpty()) {
-                    Email errorEmail = getErrorEmail(email, encounteredProtocolErrors, failedRecipients);
-
-                    try {
-                        String domain = Email.getDomain(email.sender);
-
-                        socket = initSocketTo(domain);
-                        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        writer = new PrintWriter(socket.getOutputStream(), true);
-
-                        dmtpClientHandler = new DMTPClientHandler(socket, reader, writer);
-                        dmtpClientHandler.init();
-                        dmtpClientHandler.sendEmail(errorEmail, recipients -> {});
-
-                        try {
-                            dmtpClientHandler.close();
-                        } catch (IOException | DMTPException e) {
-                            // An error here can be ignored: all the important work has already been done
-                            System.out.println(e.getMessage());
-                        }
-
-                    } catch (DomainNotFoundException e) {
-                        System.out.println("Skipping error email: " + e.getMessage());
-                    } catch (IOException | DMTPException e ) {
-                        // Ignore errors at this point
-                        System.out.println("Error sending error email: " + e.getMessage());
-                    } finally {
-                        closeResources(socket, reader, writer);
-                    }
+                inDelivery.acquire();
+                QueuedEmail queuedEmail;
+                try {
+                    queuedEmail = emailQueue.take();
+                } catch (InterruptedException e) {
+                    inDelivery.release();
+                    throw e;
                 }
 
+                process(queuedEmail.email, inDelivery::release).whenComplete((result, error) ->
+                        // Only now the email can be dropped from the queue: if the server stops before this point,
+                        // the email is delivered again after the restart.
+                        emailQueue.acknowledge(queuedEmail));
 
             } catch (InterruptedException e) {
-                // In case of interruption, email will be lost.
-                // A better approach could permanently store email data and remove that data only after an email has
-                // been processed.
                 Thread.currentThread().interrupt();
             }
         }
     }
 
-    private void closeResources(Socket socket, BufferedReader reader, PrintWriter writer) {
-        if (reader != null) {
-            try {
-                reader.close();
-            } catch (IOException exception) { }
-        }
+    CompletableFuture<Void> process(Email email) {
+        return process(email, () -> {});
+    }
+
+    /**
+     * Queue the deliveries of an email to all its recipient domains, then report the failures to the sender.
+     * Deliveries failing because the mailbox server can't be reached are retried later, until the retry period is
+     * over.
+     * @param attempted called once every domain has been attempted once
+     * @return a future completed once all the deliveries, and the error email if any, are done
+     */
+    CompletableFuture<Void> process(Email email, Runnable attempted) {
+        return process(email, attempted, System.currentTimeMillis(), 1);
+    }
 
-        if (writer != null) {
-            writer.close();
+    private CompletableFuture<Void> process(Email email, Runnable attempted, long firstAttemptAt, int attempt) {
+        // Stores a list of recipients to which it wasn't possible to send the email
+        Set<String> failedRecipients = ConcurrentHashMap.newKeySet();
+        // Stores any DMTP error encountered while processing the email
+        Set<String> encounteredProtocolErrors = ConcurrentHashMap.newKeySet();
+
+        List<String> domains = email.getRecipientsDomains();
+        // One request to the nameservers for all the domains that are not cached
+        Map<String, DomainResolver.Resolution> resolutions;
+        try {
+            resolutions = domainResolver.resolveAll(domains);
+        } catch (RuntimeException e) {
+            // Nothing was attempted, so the email doesn't hold its delivery slot while it waits
+            attempted.run();
+            return resolveLater(email, firstAttemptAt, attempt, e);
         }
 
-        if (socket != null && !socket.isClosed()) {
+        // Every domain has its own delivery queue, so a slow mailbox server doesn't delay the others
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        List<CompletableFuture<Void>> firstAttempts = new ArrayList<>();
+        for (String domain : domains) {
             try {
-                socket.close();
-            } catch (IOException exception) { }
+                String address = resolutions.get(domain).getAddress();
+
+                CompletableFuture<Void> delivered = new CompletableFuture<>();
+                CompletableFuture<Void> firstAttempt = new CompletableFuture<>();
+                deliver(domain, address, email, recipients -> {
+                    recipients = recipients.stream()
+                            .map(recipient -> recipient + "@" + domain).collect(Collectors.toList());
+                    encounteredProtocolErrors.add("error unknown recipient " + String.join(",", recipients));
+                }, firstAttemptAt, 1, delivered, firstAttempt);
+
+                firstAttempts.add(firstAttempt);
+                deliveries.add(delivered
+                        .exceptionally(e -> {
+                            recordFailure(email, domain, e, encounteredProtocolErrors, failedRecipients);
+                            return null;
+                        }));
+
+            } catch (DomainNotFoundException e) {
+                System.out.println("Skipping unknown domain " + domain + ": " + e.getMessage());
+                encounteredProtocolErrors.add("error unknown domain " + domain);
+            }
         }
-    }
 
-    private Socket initSocketTo(String domain) throws IOException, DomainNotFoundException {
-        if (rootNameserver == null)
-            throw new DomainNotFoundException("Null reference to root nameserver.");
+        CompletableFuture.allOf(firstAttempts.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((done, error) -> attempted.run());
 
-        // Iterative domain resolution
-        INameserverRemote currNameserver = rootNameserver;
-        String[] zones = domain.split("\\.");
+        return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0])).thenCompose(done -> {
+            if (encounteredProtocolErrors.isEmpty() && failedRecipients.isEmpty())
+                return CompletableFuture.completedFuture(null);
 
-        String address = null;
-        try {
-            for (int i=zones.length-1; i>0; i--) {
-                currNameserver = currNameserver.getNameserver(zones[i]);
-                if (currNameserver == null)
-                    throw new DomainNotFoundException("nameserver for zone " + zones[i] + " not found.");
+            // (try) Send error email
+            Email errorEmail = getErrorEmail(email, encounteredProtocolErrors, failedRecipients);
+            String domain = Email.getDomain(email.sender);
+            try {
+                return deliveryScheduler.submit(domain, domainResolver.resolve(domain), errorEmail, recipients -> {})
+                        .exceptionally(e -> {
+                            // Ignore errors at this point
+                            System.out.println("Error sending error email: " + e.getMessage());
+                            return null;
+                        });
+            } catch (DomainNotFoundException e) {
+                System.out.println("Skipping error email: " + e.getMessage());
+                return CompletableFuture.completedFuture(null);
             }
-            address = currNameserver.lookup(zones[0]);
-        } catch (RemoteException e) {
-            throw new DomainNotFoundException("Error executing nameserver remote method: " + e.getMessage());
+        });
+    }
+
+    /**
+     * Process the email again later, after its recipient domains couldn't be resolved at all.
+     * @return a future completed once the deferred processing is done, or exceptionally once given up
+     */
+    private CompletableFuture<Void> resolveLater(Email email, long firstAttemptAt, int attempt,
+                                                 RuntimeException failure) {
+        CompletableFuture<Void> processed = new CompletableFuture<>();
+        if (retryScheduler.defer(firstAttemptAt, attempt, () ->
+                process(email, () -> {}, firstAttemptAt, attempt + 1).whenComplete((result, error) -> {
+                    if (error != null)
+                        processed.completeExceptionally(error);
+                    else
+                        processed.complete(null);
+                }))) {
+            System.out.println("Deferring email after resolution attempt " + attempt + ": " + failure);
+        } else {
+            System.out.println("Giving up email after resolution attempt " + attempt + ": " + failure);
+            processed.completeExceptionally(failure);
         }
+        return processed;
+    }
 
-        if (address == null)
-            throw new DomainNotFoundException(domain + " is unknown to nameservers.");
+    /**
+     * Attempt a delivery, deferring the next attempt if the mailbox server can't be reached.
+     * @param delivered completed once delivered, or exceptionally once given up
+     * @param firstAttempt completed once the first attempt is over
+     */
+    private void deliver(String domain, String address, Email email,
+                         IDMTPClientHandler.UnknownRecipientCallback callback, long firstAttemptAt, int attempt,
+                         CompletableFuture<Void> delivered, CompletableFuture<Void> firstAttempt) {
+
+        deliveryScheduler.submit(domain, address, email, callback).whenComplete((result, error) -> {
+            Throwable failure = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+
+            if (failure == null)
+                delivered.complete(null);
+            else if (failure instanceof IOException && retryScheduler.defer(firstAttemptAt, attempt,
+                    () -> deliver(domain, address, email, callback, firstAttemptAt, attempt + 1, delivered, null)))
+                System.out.println("Deferring delivery to domain " + domain + " after attempt " + attempt + ": "
+                        + failure.getMessage());
+            else
+                delivered.completeExceptionally(failure);
+
+            if (firstAttempt != null)
+                firstAttempt.complete(null);
+        });
+    }
 
-        String ip = address.split(":")[0];
-        int port = Integer.parseInt(address.split(":")[1]);
-        return new Socket(ip, port);
+    private static void recordFailure(
+            Email email,
+            String domain,
+            Throwable failure,
+            Set<String> encounteredProtocolErrors,
+            Set<String> failedRecipients
+    ) {
+        if (failure instanceof CompletionException && failure.getCause() != null)
+            failure = failure.getCause();
+
+        List<String> failed = email.recipients.stream()
+                .filter(r -> domain.equals(Email.getDomain(r)))
+                .collect(Collectors.toList());
+
+        if (failure instanceof DMTPException) {
+            // Error from init() or sendEmail() methods, store the error and the list of recipients that
+            // didn't receive the email to create a report.
+            System.out.println("DMTP Exception consuming email: " + failure.getMessage());
+            encounteredProtocolErrors.add(failure.getMessage());
+        } else {
+            // In that case the error has been thrown during init() or sendEmail(), I assume that the email
+            // wasn't sent to any recipient so the sender can handle the issue.
+            System.out.println("IOException when consuming email for domain " + domain + ": " + failure.getMessage());
+        }
+        failedRecipients.addAll(failed);
     }
 
     private static Email getErrorEmail(
@@ -19,4 +19,19 @@ public interface ITransferServer extends Runnable {
      * should terminate.
      */
     void shutdown();
+
+    /**
+     * CLI command to report the hits and misses of the domain resolution cache.
+     */
+    void resolver();
+
+    /**
+     * CLI command to report the delivery queue metrics of every destination domain.
+     */
+    void destinations();
+
+    /**
+     * CLI command to report the number of deferred deliveries, and a histogram of the time until their next attempt.
+     */
+    void retries();
 }
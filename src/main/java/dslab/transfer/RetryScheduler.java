@@ -0,0 +1,232 @@
+package dslab.transfer;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defers the redelivery of emails that couldn't be delivered, with exponential backoff, until a retry period is over.
+ *
+ * Deferred tasks are kept in a hashed timing wheel: a ring of buckets that a timer thread advances by one every tick.
+ * Scheduling only appends the task to a lock-free queue, which the timer thread moves into the bucket of its deadline
+ * at the next tick, so it costs O(1) whatever the number of deferred tasks. All the tasks expiring in a tick are run
+ * together, in one batch on the dispatcher thread.
+ */
+public class RetryScheduler implements Closeable {
+
+    public static final long DEFAULT_RETRY_PERIOD = 3600000;
+    public static final long INITIAL_RETRY_DELAY = 1000;
+    public static final long MAX_RETRY_DELAY = 300000;
+    // Resolution of the deadlines
+    public static final long TICK = 100;
+    // Buckets of the wheel, a power of two. Deadlines further than a rotation wait for as many rotations.
+    public static final int WHEEL_SIZE = 512;
+    // Upper bounds of the next attempt histogram, the last bin holds everything above
+    public static final long[] HISTOGRAM_BOUNDS = {1000, 10000, 60000, 600000, 3600000};
+
+    private final long retryPeriod;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final long tickDuration;
+
+    // Guarded by itself, only the timer thread and the histogram touch the buckets
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.currentTimeMillis();
+    private long tick = 0;
+
+    private final LongAdder deferred = new LongAdder();
+    private final Thread timer;
+    private final ExecutorService dispatcher;
+    private volatile boolean closed = false;
+
+    public RetryScheduler(long retryPeriod) {
+        this(retryPeriod, INITIAL_RETRY_DELAY, MAX_RETRY_DELAY, TICK);
+    }
+
+    public RetryScheduler(long retryPeriod, long initialDelay, long maxDelay, long tickDuration) {
+        this.retryPeriod = retryPeriod;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.tickDuration = tickDuration;
+
+        this.dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "retry-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = new Thread(this::advance, "retry-timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Defer the next attempt of a failed delivery, unless the retry period of the email is over.
+     * @param firstAttemptAt time of the first delivery attempt of the email
+     * @param attempt number of attempts made so far, at least 1
+     * @param task the next attempt
+     * @return true if the attempt was deferred, false if the email must be given up
+     */
+    public boolean defer(long firstAttemptAt, int attempt, Runnable task) {
+        long delay = Math.min(maxDelay, initialDelay << Math.min(attempt - 1, 30));
+        if (closed || System.currentTimeMillis() + delay > firstAttemptAt + retryPeriod)
+            return false;
+
+        schedule(delay, task);
+        return true;
+    }
+
+    /**
+     * Run a task after a delay, rounded up to the next tick.
+     */
+    public void schedule(long delay, Runnable task) {
+        deferred.increment();
+        added.add(new Timeout(System.currentTimeMillis() + delay, task));
+    }
+
+    /**
+     * @return number of tasks waiting for their deadline
+     */
+    public long getDeferred() {
+        return deferred.sum();
+    }
+
+    /**
+     * @return number of deferred tasks by time until their deadline, one bin per bound of {@link #HISTOGRAM_BOUNDS}
+     * and a last one for later deadlines
+     */
+    public long[] getHistogram() {
+        long[] histogram = new long[HISTOGRAM_BOUNDS.length + 1];
+        long now = System.currentTimeMillis();
+
+        synchronized (wheel) {
+            for (Timeout head : wheel) {
+                for (Timeout timeout = head; timeout != null; timeout = timeout.next)
+                    histogram[bin(timeout.deadline - now)]++;
+            }
+        }
+        for (Timeout timeout : added)
+            histogram[bin(timeout.deadline - now)]++;
+
+        return histogram;
+    }
+
+    /**
+     * Stop the timer. Deferred tasks are dropped: their emails are still in the queue and get delivered again after
+     * a restart.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.interrupt();
+        dispatcher.shutdownNow();
+    }
+
+    private void advance() {
+        while (!closed) {
+            long sleep = startTime + (tick + 1) * tickDuration - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            List<Timeout> expired = new ArrayList<>();
+            synchronized (wheel) {
+                transferAdded();
+                expire(expired);
+                tick++;
+            }
+
+            if (!expired.isEmpty()) {
+                deferred.add(-expired.size());
+                try {
+                    dispatcher.execute(() -> {
+                        for (Timeout timeout : expired)
+                            runTask(timeout.task);
+                    });
+                } catch (RuntimeException e) {
+                    // Rejected after close
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the newly scheduled timeouts into the bucket of their deadline. Must be called holding the wheel.
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            // Ticks are rounded up, so a task never runs early. Deadlines already passed go to the current bucket.
+            long deadlineTick = Math.max(tick, (timeout.deadline - startTime + tickDuration - 1) / tickDuration);
+            timeout.rounds = (deadlineTick - tick) / WHEEL_SIZE;
+
+            int bucket = (int) (deadlineTick & (WHEEL_SIZE - 1));
+            timeout.next = wheel[bucket];
+            wheel[bucket] = timeout;
+        }
+    }
+
+    /**
+     * Unlink the timeouts of the current bucket due in this rotation. Must be called holding the wheel.
+     */
+    private void expire(List<Timeout> expired) {
+        int bucket = (int) (tick & (WHEEL_SIZE - 1));
+        Timeout previous = null;
+        Timeout timeout = wheel[bucket];
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds <= 0) {
+                if (previous == null)
+                    wheel[bucket] = next;
+                else
+                    previous.next = next;
+                timeout.next = null;
+                expired.add(timeout);
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.out.println("Error running deferred delivery: " + e);
+        }
+    }
+
+    private static int bin(long remaining) {
+        int bin = 0;
+        while (bin < HISTOGRAM_BOUNDS.length && remaining >= HISTOGRAM_BOUNDS[bin])
+            bin++;
+        return bin;
+    }
+
+    private static class Timeout {
+
+        final long deadline;
+        final Runnable task;
+        // Rotations of the wheel left before the deadline, and the next timeout of the bucket
+        long rounds;
+        Timeout next;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
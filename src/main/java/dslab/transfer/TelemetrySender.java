@@ -0,0 +1,145 @@
+package dslab.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends usage records to the monitoring server.
+ *
+ * Records are queued without blocking and sent by a single thread over one datagram channel, joining as many
+ * newline separated records as fit into a datagram. When the queue or the socket buffer is full, records are dropped:
+ * statistics are not worth slowing down the delivery of emails.
+ */
+public class TelemetrySender implements Closeable {
+
+    // Payload of a UDP datagram that fits an Ethernet frame without fragmentation
+    public static final int MAX_DATAGRAM_SIZE = 1472;
+    public static final int QUEUE_CAPACITY = 10000;
+    // Time the first record of a datagram waits for others to join it
+    public static final long LINGER = 5;
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress monitoringAddress;
+    private final BlockingQueue<byte[]> records = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    // Record taken from the queue that didn't fit into the previous datagram
+    private byte[] carried;
+
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread sender;
+
+    public TelemetrySender(String host, int port) throws IOException {
+        // Resolved once, not for every record
+        this.monitoringAddress = new InetSocketAddress(host, port);
+        this.channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+
+        this.sender = new Thread(this::send, "telemetry-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queue a record for the monitoring server, or drop it if the queue is full. Never blocks.
+     * @param record the record, e.g. <code>127.0.0.1:10460 arthur@earth.planet</code>
+     */
+    public void record(String record) {
+        if (!records.offer(record.getBytes(StandardCharsets.UTF_8)))
+            dropped.increment();
+    }
+
+    /**
+     * @return number of datagrams sent
+     */
+    public long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    /**
+     * @return number of records dropped because the queue or the socket buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        sender.interrupt();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing telemetry channel: " + e.getMessage());
+        }
+    }
+
+    private void send() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int nRecords = fill();
+                if (nRecords == 0)
+                    continue;
+                datagram.flip();
+
+                try {
+                    if (channel.send(datagram, monitoringAddress) == 0)
+                        // Socket buffer full
+                        dropped.add(nRecords);
+                    else
+                        datagrams.increment();
+                } catch (IOException e) {
+                    if (!channel.isOpen())
+                        return;
+                    System.out.println("Error sending telemetry: " + e.getMessage());
+                    dropped.add(nRecords);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Put the next records into the datagram buffer, waiting for the first one and then at most {@link #LINGER} for
+     * the others.
+     * @return number of records in the datagram
+     */
+    private int fill() throws InterruptedException {
+        datagram.clear();
+        int nRecords = 0;
+
+        byte[] record = carried != null ? carried : records.take();
+        carried = null;
+        long deadline = System.currentTimeMillis() + LINGER;
+
+        while (record != null) {
+            int size = nRecords == 0 ? record.length : record.length + 1;
+
+            if (size > datagram.remaining()) {
+                if (nRecords > 0) {
+                    carried = record;
+                    break;
+                }
+                // Too long for any datagram
+                dropped.increment();
+            } else {
+                if (nRecords > 0)
+                    datagram.put((byte) '\n');
+                datagram.put(record);
+                nRecords++;
+            }
+
+            record = records.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        return nRecords;
+    }
+}
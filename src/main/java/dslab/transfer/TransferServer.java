@@ -5,23 +5,34 @@ import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.nameserver.INameserverRemote;
+import dslab.transfer.queue.DurableEmailQueue;
 import dslab.util.Config;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.List;
 
 public class TransferServer implements ITransferServer, Runnable {
 
+    // Pending connections the OS keeps while the listener thread hands accepted ones to the event loops
+    private static final int BACKLOG = 1024;
+
     final private Config config;
     final private Shell shell;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocketChannel;
+    private DomainResolver domainResolver;
+    private DeliveryScheduler deliveryScheduler;
+    private RetryScheduler retryScheduler;
 
     /**
      * Creates a new server instance.
@@ -43,8 +54,34 @@ public class TransferServer implements ITransferServer, Runnable {
     public void run() {
         // Spawn a thread to accept incoming requests
         try {
-            serverSocket = new ServerSocket(config.getInt("tcp.port"));
-            new DMTPListenerThread(serverSocket, config, getRootNameserver()).start();
+            DurableEmailQueue emailQueue = new DurableEmailQueue(Paths.get(config.getString("queue.dir")));
+            domainResolver = new DomainResolver(getRootNameserver(),
+                    config.containsKey("resolver.ttl") ? config.getInt("resolver.ttl") : DomainResolver.DEFAULT_TTL,
+                    config.containsKey("resolver.negative_ttl")
+                            ? config.getInt("resolver.negative_ttl") : DomainResolver.DEFAULT_NEGATIVE_TTL);
+
+            // Connections to a mailbox server are reused across emails
+            DMTPConnectionPool connectionPool = new DMTPConnectionPool(
+                    config.containsKey("dmtp.pipelining") && Boolean.parseBoolean(config.getString("dmtp.pipelining")));
+            deliveryScheduler = new DeliveryScheduler(connectionPool, DMTPListenerThread.N_DELIVERY_WORKERS);
+
+            // Deliveries to unreachable mailbox servers are retried for this long before the sender is notified
+            retryScheduler = new RetryScheduler(config.containsKey("retry.period")
+                    ? config.getInt("retry.period") : RetryScheduler.DEFAULT_RETRY_PERIOD);
+
+            // One channel for the usage records of all the client sessions
+            TelemetrySender telemetrySender = new TelemetrySender(config.getString("monitoring.host"),
+                    config.getInt("monitoring.port"));
+
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            DMTPListenerThread listener = new DMTPListenerThread(serverSocketChannel, config, domainResolver,
+                    emailQueue, deliveryScheduler, retryScheduler, telemetrySender);
+            listener.startWorkers();
+
+            // Bound last, so that clients connect to a server that is completely started
+            serverSocketChannel.bind(new InetSocketAddress(config.getInt("tcp.port")), BACKLOG);
+            listener.start();
 
         } catch (IOException e) {
             throw new UncheckedIOException("Error while creating server socket", e);
@@ -53,12 +90,55 @@ public class TransferServer implements ITransferServer, Runnable {
         shell.run();
     }
 
+    @Command
+    @Override
+    public void resolver() {
+        if (domainResolver == null)
+            return;
+        shell.out().println("hits " + domainResolver.getHits());
+        shell.out().println("misses " + domainResolver.getMisses());
+        shell.out().println("cached " + domainResolver.size());
+    }
+
+    @Command
+    @Override
+    public void destinations() {
+        if (deliveryScheduler == null)
+            return;
+
+        List<DeliveryScheduler.DestinationStats> stats = deliveryScheduler.getStats();
+        if (stats.isEmpty()) {
+            shell.out().println("None");
+            return;
+        }
+
+        for (DeliveryScheduler.DestinationStats destination : stats)
+            shell.out().printf("%s depth %d oldest %dms active %d delivered %d rate %.2f/s failures %d backoff %dms%n",
+                    destination.domain, destination.depth, destination.oldestAge, destination.active,
+                    destination.delivered, destination.rate, destination.failures, destination.backoff);
+    }
+
+    @Command
+    @Override
+    public void retries() {
+        if (retryScheduler == null)
+            return;
+
+        shell.out().println("deferred " + retryScheduler.getDeferred());
+        long[] histogram = retryScheduler.getHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            String bin = i < RetryScheduler.HISTOGRAM_BOUNDS.length
+                    ? "<" + RetryScheduler.HISTOGRAM_BOUNDS[i] : ">=" + RetryScheduler.HISTOGRAM_BOUNDS[i - 1];
+            shell.out().println("next attempt " + bin + "ms " + histogram[i]);
+        }
+    }
+
     @Override
     @Command
     public void shutdown() {
-        if (serverSocket != null) {
+        if (serverSocketChannel != null) {
             try {
-                serverSocket.close();
+                serverSocketChannel.close();
             } catch (IOException e) {
                 shell.out().println("Error while closing server socket: " + e.getMessage());
             }
@@ -0,0 +1,398 @@
+package dslab.transfer.queue;
+
+import dslab.protocols.dmtp.Email;
+import dslab.protocols.dmtp.EmailCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Append-only, disk-backed queue of emails waiting for delivery.
+ *
+ * Records are appended to memory-mapped segment files. A flusher thread forces the written segments to disk and
+ * completes the futures of all the appends it covered at once (group commit), so a burst of appends costs a single
+ * fsync. Consumers only see durable records and acknowledge them when done; the lowest offset that is not yet
+ * acknowledged is persisted, and a reopened queue delivers again everything from there.
+ */
+public class DurableEmailQueue implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_FILE = "ack";
+    private static final String LOCK_FILE = "lock";
+
+    private final Path directory;
+    private final int segmentSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when records become durable
+    private final Condition durable = lock.newCondition();
+    // Signalled when there are appends to commit
+    private final Condition dirty = lock.newCondition();
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment activeSegment;
+    private final Set<Segment> dirtySegments = new HashSet<>();
+    private List<PendingAppend> pendingAppends = new ArrayList<>();
+
+    private long durableOffset;
+    private long readOffset;
+    // Offsets of the records handed to consumers and not acknowledged yet
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    private long ackOffset;
+    private boolean ackDirty = false;
+    private long nQueued;
+
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final FileChannel ackChannel;
+    private final MappedByteBuffer ackBuffer;
+
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    public DurableEmailQueue(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public DurableEmailQueue(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Locked by this same process
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Queue directory " + directory + " is already in use.");
+        }
+        fileLock = acquired;
+
+        ackChannel = FileChannel.open(directory.resolve(ACK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ackBuffer = ackChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        ackOffset = ackBuffer.getLong(0);
+
+        recover();
+
+        flusher = new Thread(this::flush, "queue-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Append an email at the tail of the queue.
+     * @param email the email
+     * @return a future completed with the offset of the email once it is durable
+     */
+    public CompletableFuture<Long> append(Email email) {
+        byte[] payload = EmailCodec.encode(email);
+        CompletableFuture<Long> future = new CompletableFuture<>();
+
+        if (payload.length + Segment.HEADER_SIZE > segmentSize) {
+            future.completeExceptionally(new IOException("Email of " + payload.length + " bytes is too large."));
+            return future;
+        }
+
+        lock.lock();
+        try {
+            if (closed)
+                throw new IOException("Queue is closed.");
+
+            long offset = activeSegment.append(payload);
+            if (offset == -1) {
+                activeSegment = createSegment(activeSegment.getEndOffset());
+                offset = activeSegment.append(payload);
+            }
+
+            dirtySegments.add(activeSegment);
+            pendingAppends.add(new PendingAppend(offset, activeSegment.getEndOffset(), future));
+            dirty.signal();
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+
+        return future;
+    }
+
+    /**
+     * Take the next durable email, waiting until one is available.
+     * The email must be acknowledged with {@link #acknowledge(QueuedEmail)} once it has been processed.
+     * @return the email with its offset
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public QueuedEmail take() throws InterruptedException {
+        long offset;
+        byte[] payload;
+
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                while (readOffset >= durableOffset)
+                    durable.await();
+
+                Map.Entry<Long, Segment> entry = segments.floorEntry(readOffset);
+                Segment segment = entry.getValue();
+                if (readOffset >= segment.getEndOffset()) {
+                    // Fully read segment: continue with the next one
+                    readOffset = segments.higherKey(entry.getKey());
+                    continue;
+                }
+
+                offset = readOffset;
+                payload = segment.read(offset);
+                readOffset = offset + Segment.HEADER_SIZE + payload.length;
+                inFlight.add(offset);
+                break;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return new QueuedEmail(offset, EmailCodec.decode(payload));
+    }
+
+    /**
+     * Mark an email as processed, so it won't be delivered again after a restart.
+     * @param queuedEmail an email returned by {@link #take()}
+     */
+    public void acknowledge(QueuedEmail queuedEmail) {
+        lock.lock();
+        try {
+            if (!inFlight.remove(queuedEmail.offset))
+                return;
+            nQueued--;
+
+            long newAckOffset = inFlight.isEmpty() ? readOffset : inFlight.first();
+            if (newAckOffset != ackOffset) {
+                ackOffset = newAckOffset;
+                ackBuffer.putLong(0, ackOffset);
+                ackDirty = true;
+                dirty.signal();
+                deleteConsumedSegments();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of durable emails not acknowledged yet
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return nQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            dirty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Segment segment : segments.values())
+            segment.close();
+        try {
+            ackChannel.close();
+            fileLock.release();
+            lockChannel.close();
+        } catch (IOException exception) { }
+    }
+
+    /**
+     * Group commit loop: every round forces everything appended since the previous one.
+     */
+    private void flush() {
+        while (true) {
+            List<PendingAppend> committing;
+            List<Segment> forcing;
+            boolean forceAck;
+
+            lock.lock();
+            try {
+                while (pendingAppends.isEmpty() && !ackDirty && !closed)
+                    dirty.awaitUninterruptibly();
+
+                if (pendingAppends.isEmpty() && !ackDirty)
+                    return;
+
+                committing = pendingAppends;
+                pendingAppends = new ArrayList<>();
+                forcing = new ArrayList<>(dirtySegments);
+                dirtySegments.clear();
+                forceAck = ackDirty;
+                ackDirty = false;
+            } finally {
+                lock.unlock();
+            }
+
+            for (Segment segment : forcing)
+                segment.force();
+            if (forceAck)
+                ackBuffer.force();
+
+            if (committing.isEmpty())
+                continue;
+
+            lock.lock();
+            try {
+                durableOffset = committing.get(committing.size() - 1).endOffset;
+                nQueued += committing.size();
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            for (PendingAppend append : committing)
+                append.future.complete(append.offset);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> baseOffsets.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        baseOffsets.sort(null);
+
+        for (long baseOffset : baseOffsets) {
+            Segment segment = Segment.open(segmentPath(baseOffset), baseOffset);
+            if (segment.getEndOffset() <= ackOffset && baseOffset != baseOffsets.get(baseOffsets.size() - 1)) {
+                // Left over by a crash between acknowledgement and deletion
+                segment.delete();
+                continue;
+            }
+            segments.put(baseOffset, segment);
+        }
+
+        if (segments.isEmpty()) {
+            activeSegment = createSegment(ackOffset);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+
+        // Acknowledged offset pointing outside of the segments, e.g. after segment files were removed by hand
+        if (ackOffset < segments.firstKey())
+            ackOffset = segments.firstKey();
+        if (ackOffset > activeSegment.getEndOffset())
+            ackOffset = activeSegment.getEndOffset();
+
+        readOffset = ackOffset;
+        durableOffset = activeSegment.getEndOffset();
+
+        // Count the records to deliver again
+        nQueued = 0;
+        long offset = readOffset;
+        while (offset < durableOffset) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (offset >= entry.getValue().getEndOffset()) {
+                offset = segments.higherKey(entry.getKey());
+                continue;
+            }
+            offset += Segment.HEADER_SIZE + entry.getValue().read(offset).length;
+            nQueued++;
+        }
+    }
+
+    private Segment createSegment(long baseOffset) throws IOException {
+        Segment segment = Segment.create(segmentPath(baseOffset), baseOffset, segmentSize);
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    private void deleteConsumedSegments() {
+        while (segments.size() > 1) {
+            Segment first = segments.firstEntry().getValue();
+            if (first == activeSegment || first.getEndOffset() > ackOffset)
+                return;
+
+            segments.pollFirstEntry();
+            dirtySegments.remove(first);
+            try {
+                first.delete();
+            } catch (IOException e) {
+                System.out.println("Couldn't delete queue segment: " + e.getMessage());
+            }
+        }
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseOffset, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * An email read from the queue, with the offset used to acknowledge it.
+     */
+    public static class QueuedEmail {
+
+        public final long offset;
+        public final Email email;
+
+        QueuedEmail(long offset, Email email) {
+            this.offset = offset;
+            this.email = email;
+        }
+    }
+
+    private static class PendingAppend {
+
+        final long offset;
+        final long endOffset;
+        final CompletableFuture<Long> future;
+
+        PendingAppend(long offset, long endOffset, CompletableFuture<Long> future) {
+            this.offset = offset;
+            this.endOffset = endOffset;
+            this.future = future;
+        }
+    }
+}
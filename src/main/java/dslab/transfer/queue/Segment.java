@@ -0,0 +1,150 @@
+package dslab.transfer.queue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed size, memory-mapped file holding a contiguous range of queue records.
+ * Each record is [int length][int crc32][payload]; a zero length marks the end of the written data,
+ * since the file is zero filled on creation. Not thread safe, callers synchronize.
+ * <p>
+ * Java has no supported way to unmap a file: closing a segment closes its channel and drops the mapping, which the JVM
+ * unmaps once the buffer is garbage collected. Until then a deleted segment still takes its address space, and its
+ * disk space isn't freed. A closed segment must not be used anymore.
+ */
+class Segment {
+
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final Path path;
+    private final long baseOffset;
+    private final FileChannel fileChannel;
+    // Null once closed, so that the mapping can be collected even if the segment is still referenced
+    private MappedByteBuffer buffer;
+    private final int capacity;
+
+    private int writePosition;
+
+    private Segment(Path path, long baseOffset, FileChannel fileChannel, MappedByteBuffer buffer, int writePosition) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.fileChannel = fileChannel;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+        this.writePosition = writePosition;
+    }
+
+    static Segment create(Path path, long baseOffset, int size) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(path, baseOffset, fileChannel, buffer, 0);
+    }
+
+    /**
+     * Open an existing segment, finding the end of the valid records. A torn or corrupted record (e.g. after a
+     * crash in the middle of a write) and everything after it is discarded.
+     */
+    static Segment open(Path path, long baseOffset) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileChannel.size());
+
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity())
+                break;
+            if (crc(buffer, position + HEADER_SIZE, length) != buffer.getInt(position + Integer.BYTES))
+                break;
+            position += HEADER_SIZE + length;
+        }
+
+        // Wipe the torn tail so that it can't be mistaken for data later on
+        for (int i = position; i < Math.min(position + HEADER_SIZE, buffer.capacity()); i++)
+            buffer.put(i, (byte) 0);
+
+        return new Segment(path, baseOffset, fileChannel, buffer, position);
+    }
+
+    /**
+     * @param payload the record payload
+     * @return the offset of the record, -1 if the segment has no space left
+     */
+    long append(byte[] payload) {
+        if (writePosition + HEADER_SIZE + payload.length > buffer.capacity())
+            return -1;
+
+        int position = writePosition;
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_SIZE);
+        slice.put(payload);
+        buffer.putInt(position + Integer.BYTES, crc(buffer, position + HEADER_SIZE, payload.length));
+        // The length is written last: a record is visible to recovery only once complete
+        buffer.putInt(position, payload.length);
+
+        writePosition += HEADER_SIZE + payload.length;
+        return baseOffset + position;
+    }
+
+    /**
+     * @param offset offset of a record in this segment
+     * @return the payload of the record
+     */
+    byte[] read(long offset) {
+        int position = (int) (offset - baseOffset);
+        int length = buffer.getInt(position);
+
+        byte[] payload = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_SIZE);
+        slice.get(payload);
+        return payload;
+    }
+
+    void force() {
+        if (buffer != null)
+            buffer.force();
+    }
+
+    void close() {
+        buffer = null;
+        try {
+            fileChannel.close();
+        } catch (IOException exception) { }
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * @return the offset following the last record
+     */
+    long getEndOffset() {
+        return baseOffset + writePosition;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    private static int crc(ByteBuffer buffer, int position, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.limit(position + length);
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+}
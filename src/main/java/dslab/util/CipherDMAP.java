@@ -5,7 +5,6 @@ import dslab.protocols.dmap.DMAPException;
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.security.auth.DestroyFailedException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -17,6 +16,8 @@ public class CipherDMAP {
 
     private Cipher encryption;
     private Cipher decryption;
+    // Asymmetric ciphers are not kept: the reused one of the calling thread is initialized for each operation
+    private String sharedAlgorithm;
 
     private IvParameterSpec iv;
 
@@ -67,13 +68,14 @@ public class CipherDMAP {
      */
     public CipherDMAP(String algorithm, Key key) throws DMAPException{
         this.key = key;
-        encryption = SecurityHelper.generateCipher(algorithm, Cipher.ENCRYPT_MODE, key);
-        decryption = SecurityHelper.generateCipher(algorithm, Cipher.DECRYPT_MODE, key);
+        this.sharedAlgorithm = algorithm;
+        // Fails early on an invalid algorithm or key
+        SecurityHelper.initSharedCipher(algorithm, Cipher.ENCRYPT_MODE, key);
     }
 
     public byte[] encrypt(byte[] input) throws DMAPException{
         try {
-            return encryption.doFinal(input);
+            return encryption(Cipher.ENCRYPT_MODE).doFinal(input);
         } catch (IllegalBlockSizeException | BadPaddingException e) {
             throw new DMAPException("Error with Blocksize or Padding");
         }
@@ -85,7 +87,7 @@ public class CipherDMAP {
 
     public String decryptString(String input) throws DMAPException{
         try {
-            return new String(decryption.doFinal(SecurityHelper.decodeBase64(input)));
+            return new String(encryption(Cipher.DECRYPT_MODE).doFinal(SecurityHelper.decodeBase64(input)));
         } catch (IllegalBlockSizeException | BadPaddingException e) {
             throw new DMAPException("Error with Blocksize or Padding");
         }
@@ -93,26 +95,33 @@ public class CipherDMAP {
 
     public byte[] decrypt(byte[] input) throws DMAPException{
         try {
-            return decryption.doFinal(input);
+            return encryption(Cipher.DECRYPT_MODE).doFinal(input);
         } catch (IllegalBlockSizeException | BadPaddingException e) {
             throw new DMAPException("Error with Blocksize or Padding");
         }
     }
 
     public void destroy() throws DMAPException{
-        try {
-            if (key instanceof SecretKey && !((SecretKey) key).isDestroyed()){
-                // set Key to null
-                // There is no implementation for SecretKey.destroy()
-                key = null;
-            }else if(key instanceof PrivateKey && !((PrivateKey) key).isDestroyed()){
-                ((PrivateKey) key).destroy();
-            }
-        } catch (DestroyFailedException e) {
-            throw new DMAPException("Could not destroy secret key");
+        if (key instanceof SecretKey && !((SecretKey) key).isDestroyed()){
+            // set Key to null
+            // There is no implementation for SecretKey.destroy()
+            key = null;
+        }else if(key instanceof PrivateKey && !((PrivateKey) key).isDestroyed()){
+            // Shared by the sessions of the server, see CryptoProvider: only drop the reference
+            key = null;
         }
     }
 
+    /**
+     * @return the cipher for the mode: the ones of the session for symmetric encryption, or the reused one of the
+     * calling thread initialized with the key
+     */
+    private Cipher encryption(int mode) throws DMAPException {
+        if (sharedAlgorithm != null)
+            return SecurityHelper.initSharedCipher(sharedAlgorithm, mode, key);
+        return mode == Cipher.ENCRYPT_MODE ? encryption : decryption;
+    }
+
     public IvParameterSpec getIv() {
         return iv;
     }
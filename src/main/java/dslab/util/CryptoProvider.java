@@ -0,0 +1,106 @@
+package dslab.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Shared cryptographic material for the secure channels: RSA keys read from the <code>keys</code> directory once per
+ * component, {@link Cipher} instances reused per thread and algorithm, and a single {@link SecureRandom}. Keys are
+ * meant to be loaded at startup with {@link #preloadPrivateKey(String)}, so that a handshake does no file I/O.
+ */
+public final class CryptoProvider {
+
+    private static final ConcurrentHashMap<String, PrivateKey> PRIVATE_KEYS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, PublicKey> PUBLIC_KEYS = new ConcurrentHashMap<>();
+
+    // Thread safe, and seeded once
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // A Cipher is not thread safe, but can be initialized again for every operation
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+
+    private CryptoProvider() {
+        // static utility class
+    }
+
+    /**
+     * Read the private key of a server component, so that the first handshake doesn't have to.
+     * @param id the component id
+     * @throws IOException if the key couldn't be read
+     */
+    public static void preloadPrivateKey(String id) throws IOException {
+        getPrivateKey(id);
+    }
+
+    /**
+     * @param id the component id
+     * @return the private key in <code>keys/server/&lt;id&gt;.der</code>, read on the first call. Shared, it must not
+     * be destroyed.
+     * @throws IOException if the key couldn't be read
+     */
+    public static PrivateKey getPrivateKey(String id) throws IOException {
+        try {
+            return PRIVATE_KEYS.computeIfAbsent(id, key -> {
+                try {
+                    return Keys.readPrivateKey(new File("keys/server/" + id + ".der"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param id the component id
+     * @return the public key in <code>keys/client/&lt;id&gt;_pub.der</code>, read on the first call
+     * @throws IOException if the key couldn't be read
+     */
+    public static PublicKey getPublicKey(String id) throws IOException {
+        try {
+            return PUBLIC_KEYS.computeIfAbsent(id, key -> {
+                try {
+                    return Keys.readPublicKey(new File("keys/client/" + id + "_pub.der"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param algorithm the transformation, e.g. "RSA/ECB/PKCS1Padding"
+     * @return a cipher of the calling thread, to initialize before each use. It must not be kept beyond the
+     * operation, nor used by another thread.
+     */
+    public static Cipher getCipher(String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(algorithm);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(algorithm);
+            ciphers.put(algorithm, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * @return the shared random number generator
+     */
+    public static SecureRandom getRandom() {
+        return RANDOM;
+    }
+}
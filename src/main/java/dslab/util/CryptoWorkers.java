@@ -0,0 +1,149 @@
+package dslab.util;
+
+import dslab.protocols.dmap.DMAPException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool for the expensive cryptography of the handshakes, the RSA decryption of startsecure, so that a burst of
+ * handshakes waits in its queue instead of taking the CPU from the sessions already established. It has
+ * <code>crypto.threads</code> threads, by default half of the processors, and a queue of <code>crypto.queue</code>
+ * handshakes; beyond that handshakes are refused. With {@link #call(Callable)} the thread of the session waits for
+ * its task, so the pool only bounds how many run at once and a burst still holds as many waiting threads. With
+ * {@link #submit(Callable)}, as the event loops use it, the session continues once the task is done and no thread
+ * waits for it.
+ */
+public class CryptoWorkers implements AutoCloseable {
+
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+
+    public CryptoWorkers(Config config) {
+        this(config.containsKey("crypto.threads") ? config.getInt("crypto.threads")
+                        : Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                config.containsKey("crypto.queue") ? config.getInt("crypto.queue") : DEFAULT_QUEUE_SIZE);
+    }
+
+    public CryptoWorkers(int nThreads, int queueSize) {
+        AtomicInteger n = new AtomicInteger();
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "crypto-" + n.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Run a task on the pool and wait for it.
+     * @return the result of the task
+     * @throws DMAPException if the queue is full, or the task failed with it
+     */
+    public <T> T call(Callable<T> task) throws DMAPException {
+        CompletableFuture<T> result = submit(task);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DMAPException("interrupted");
+        } catch (ExecutionException e) {
+            throw failure(e.getCause());
+        }
+    }
+
+    /**
+     * Run a task on the pool without waiting for it, for sessions driven by an event loop.
+     * @return the result of the task, completed on a thread of the pool. If the queue is full it is already
+     * completed with a DMAPException.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        long submitted = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                waitNanos.add(System.nanoTime() - submitted);
+                T value;
+                try {
+                    value = task.call();
+                } catch (Throwable e) {
+                    completed.increment();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                completed.increment();
+                result.complete(value);
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            result.completeExceptionally(new DMAPException("error server busy"));
+            return result;
+        }
+        maxQueueDepth.accumulate(executor.getQueue().size());
+        return result;
+    }
+
+    /**
+     * @param cause how a task failed
+     * @return its DMAPException, or one describing it
+     */
+    public static DMAPException failure(Throwable cause) {
+        if (cause instanceof DMAPException)
+            return (DMAPException) cause;
+        return new DMAPException("handshake failed: " + cause);
+    }
+
+    /**
+     * @return tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return most tasks seen waiting at once
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return mean time tasks waited for a thread, in microseconds
+     */
+    public long getMeanWaitMicros() {
+        long n = completed.sum();
+        return n == 0 ? 0 : waitNanos.sum() / n / 1000;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,319 @@
+package dslab.util;
+
+import dslab.protocols.dmap.DMAPException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+/**
+ * Binary transport of a DMAP session, negotiated after startsecure with the <code>frames</code> command. Every message
+ * is a frame [int length][ciphertext][tag], encrypted in place in a direct buffer with AES-GCM, the length being
+ * authenticated as well. Compared to the Base64 lines it saves a quarter of the bytes on the wire, and a message is
+ * converted between string and bytes once instead of twice, stored email texts not at all.
+ * <p>
+ * The key is derived from the session key, so that GCM never shares counter blocks with the AES/CTR stream of the
+ * handshake. Nonces are not sent: both ends count the frames of each direction, and a nonce is the session IV with
+ * the direction and the frame number mixed in, so it's never used twice with the key. A frame that was modified,
+ * dropped or replayed fails the tag check, which ends the session.
+ * <p>
+ * A blocking session sends and receives on the channels given to it. A non-blocking one reads frames itself, opens
+ * them with {@link #open(ByteBuffer)} and writes the frames of {@link #seal(String)}.
+ */
+public class EncryptedFrames {
+
+    public static final String ALGORITHM = "AES/GCM/NoPadding";
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_LENGTH = 12;
+    public static final int HEADER_LENGTH = Integer.BYTES;
+    // Larger frames are refused before anything is allocated for them
+    public static final int MAX_FRAME_SIZE = 64 << 20;
+
+    private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+    private static final byte[] KEY_LABEL = "DMAP frames".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKey key;
+    private final byte[] sendNonce;
+    private final byte[] receiveNonce;
+    private long sendCount = 0;
+    private long receiveCount = 0;
+
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+    private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+
+    /**
+     * @param sessionKey the AES key exchanged by startsecure
+     * @param iv the IV exchanged by startsecure, at least {@link #NONCE_LENGTH} bytes
+     * @param server true at the server end, which sends with the other direction than the client
+     * @param input where frames are read from
+     * @param output where frames are written to
+     * @throws DMAPException if the key can't be derived
+     */
+    public EncryptedFrames(Key sessionKey, byte[] iv, boolean server, ReadableByteChannel input,
+                           WritableByteChannel output) throws DMAPException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(sessionKey.getEncoded(), "HmacSHA256"));
+            key = new SecretKeySpec(mac.doFinal(KEY_LABEL), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new DMAPException("Could not derive the frame key");
+        }
+        if (iv.length < NONCE_LENGTH)
+            throw new DMAPException("IV too short for the frame nonces");
+
+        byte[] clientNonce = new byte[NONCE_LENGTH];
+        System.arraycopy(iv, 0, clientNonce, 0, NONCE_LENGTH);
+        byte[] serverNonce = clientNonce.clone();
+        serverNonce[0] ^= (byte) 0x80;
+        sendNonce = server ? serverNonce : clientNonce;
+        receiveNonce = server ? clientNonce : serverNonce;
+
+        this.input = input;
+        this.output = output;
+    }
+
+    /**
+     * Frames of a non-blocking connection, see {@link #seal(String)} and {@link #open(ByteBuffer)}.
+     */
+    public EncryptedFrames(Key sessionKey, byte[] iv, boolean server) throws DMAPException {
+        this(sessionKey, iv, server, null, null);
+    }
+
+    /**
+     * Send a message as a frame of its UTF-8 bytes.
+     */
+    public void send(String message) throws IOException, DMAPException {
+        // Encoding the string at once is intrinsic, unlike an encoder writing to a direct buffer
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ensureSendCapacity(HEADER_LENGTH + bytes.length);
+        sendBuffer.clear().position(HEADER_LENGTH);
+        sendBuffer.put(bytes);
+        sendFrame();
+    }
+
+    /**
+     * Send bytes as a frame, without converting them. The position of the buffer is not changed.
+     */
+    public void send(ByteBuffer message) throws IOException, DMAPException {
+        ensureSendCapacity(HEADER_LENGTH + message.remaining());
+        sendBuffer.clear().position(HEADER_LENGTH);
+        sendBuffer.put(message.duplicate());
+        sendFrame();
+    }
+
+    /**
+     * @return the next message, or null if the connection was closed between frames
+     * @throws DMAPException if a frame is malformed or fails the integrity check
+     */
+    public String receive() throws IOException, DMAPException {
+        ByteBuffer frame = receiveFrame();
+        if (frame == null)
+            return null;
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the bytes of the next message, valid until the next receive, or null if the connection was closed
+     * between frames
+     * @throws DMAPException if a frame is malformed or fails the integrity check
+     */
+    public ByteBuffer receiveFrame() throws IOException, DMAPException {
+        receiveBuffer.clear().limit(HEADER_LENGTH);
+        if (!readFully(receiveBuffer, true))
+            return null;
+        int length = receiveBuffer.getInt(0);
+        if (length < TAG_LENGTH || length > MAX_FRAME_SIZE)
+            throw new DMAPException("error protocol error invalid frame length " + length);
+
+        if (receiveBuffer.capacity() < HEADER_LENGTH + length) {
+            receiveBuffer = grow(receiveBuffer, HEADER_LENGTH + length);
+            // The header is authenticated
+            receiveBuffer.putInt(0, length);
+        }
+        receiveBuffer.clear().position(HEADER_LENGTH).limit(HEADER_LENGTH + length);
+        readFully(receiveBuffer, false);
+        bytesReceived += HEADER_LENGTH + length;
+
+        ByteBuffer frame = receiveBuffer.duplicate();
+        frame.flip();
+        return decrypt(frame);
+    }
+
+    /**
+     * @return a frame of the UTF-8 bytes of the message, in a buffer of its own, ready to be written
+     */
+    public ByteBuffer seal(String message) throws DMAPException {
+        return seal(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return a frame of the bytes, in a buffer of its own, ready to be written. The position of the message is not
+     * changed.
+     */
+    public ByteBuffer seal(ByteBuffer message) throws DMAPException {
+        checkMessageLength(message.remaining());
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + message.remaining() + TAG_LENGTH);
+        frame.position(HEADER_LENGTH);
+        frame.put(message.duplicate());
+        encrypt(frame);
+        bytesSent += frame.remaining();
+        return frame;
+    }
+
+    /**
+     * Decrypt a received frame in place.
+     * @param frame the whole frame, from its header to its tag
+     * @return the message
+     * @throws DMAPException if the frame is malformed or fails the integrity check
+     */
+    public String open(ByteBuffer frame) throws DMAPException {
+        int length = frame.remaining() - HEADER_LENGTH;
+        if (length < TAG_LENGTH || frame.getInt(frame.position()) != length)
+            throw new DMAPException("error protocol error invalid frame length " + length);
+        bytesReceived += HEADER_LENGTH + length;
+
+        ByteBuffer plaintext = decrypt(frame.slice());
+        byte[] bytes = new byte[plaintext.remaining()];
+        plaintext.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return bytes written, frame headers and tags included
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return bytes read, frame headers and tags included
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Encrypt the message between the header and the position of the send buffer in place, and write the frame.
+     */
+    private void sendFrame() throws IOException, DMAPException {
+        encrypt(sendBuffer);
+        int length = sendBuffer.remaining();
+        while (sendBuffer.hasRemaining())
+            output.write(sendBuffer);
+        bytesSent += length;
+    }
+
+    /**
+     * Encrypt the message between the header and the position of a buffer in place, with room for the tag after it.
+     * The buffer is left flipped around the frame.
+     */
+    private void encrypt(ByteBuffer buffer) throws DMAPException {
+        int messageLength = buffer.position() - HEADER_LENGTH;
+        int length = messageLength + TAG_LENGTH;
+        buffer.putInt(0, length);
+
+        ByteBuffer plaintext = buffer.duplicate();
+        plaintext.position(HEADER_LENGTH).limit(HEADER_LENGTH + messageLength);
+        ByteBuffer ciphertext = buffer.duplicate();
+        ciphertext.clear().position(HEADER_LENGTH);
+        try {
+            Cipher cipher = init(Cipher.ENCRYPT_MODE, sendNonce, sendCount++, buffer);
+            cipher.doFinal(plaintext, ciphertext);
+        } catch (GeneralSecurityException e) {
+            throw new DMAPException("Could not encrypt frame");
+        }
+
+        buffer.clear().limit(HEADER_LENGTH + length);
+    }
+
+    /**
+     * Decrypt a frame in place.
+     * @param frame the frame, starting at index 0 and ending at the limit
+     * @return the message, a view of the frame
+     */
+    private ByteBuffer decrypt(ByteBuffer frame) throws DMAPException {
+        ByteBuffer ciphertext = frame.duplicate();
+        ciphertext.position(HEADER_LENGTH);
+        ByteBuffer plaintext = frame.duplicate();
+        plaintext.position(HEADER_LENGTH);
+        try {
+            Cipher cipher = init(Cipher.DECRYPT_MODE, receiveNonce, receiveCount++, frame);
+            cipher.doFinal(ciphertext, plaintext);
+        } catch (AEADBadTagException e) {
+            throw new DMAPException("error integrity check failed");
+        } catch (GeneralSecurityException e) {
+            throw new DMAPException("Could not decrypt frame");
+        }
+
+        plaintext.flip().position(HEADER_LENGTH);
+        return plaintext.slice();
+    }
+
+    /**
+     * @return the cipher of the calling thread, initialized for a frame and with its header as associated data
+     */
+    private Cipher init(int mode, byte[] nonceBase, long count, ByteBuffer frame) throws GeneralSecurityException {
+        byte[] nonce = nonceBase.clone();
+        for (int i = 0; i < Long.BYTES; i++)
+            nonce[NONCE_LENGTH - 1 - i] ^= (byte) (count >>> (8 * i));
+
+        Cipher cipher = CryptoProvider.getCipher(ALGORITHM);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        ByteBuffer header = frame.duplicate();
+        header.clear().limit(HEADER_LENGTH);
+        cipher.updateAAD(header);
+        return cipher;
+    }
+
+    private void ensureSendCapacity(int messageCapacity) throws DMAPException {
+        checkMessageLength(messageCapacity - HEADER_LENGTH);
+        int capacity = messageCapacity + TAG_LENGTH;
+        if (sendBuffer.capacity() < capacity)
+            sendBuffer = grow(sendBuffer, capacity);
+    }
+
+    private static void checkMessageLength(int messageLength) throws DMAPException {
+        if ((long) messageLength + TAG_LENGTH > MAX_FRAME_SIZE)
+            throw new DMAPException("Message too large for a frame");
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        return ByteBuffer.allocateDirect(Math.max(capacity, Math.min(2 * buffer.capacity(),
+                HEADER_LENGTH + MAX_FRAME_SIZE)));
+    }
+
+    /**
+     * @param atBoundary true if the connection may be closed before the first byte
+     * @return false if it was
+     */
+    private boolean readFully(ByteBuffer buffer, boolean atBoundary) throws IOException {
+        boolean first = true;
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer) < 0) {
+                if (first && atBoundary)
+                    return false;
+                throw new EOFException("Connection closed within a frame");
+            }
+            first = false;
+        }
+        return true;
+    }
+}
@@ -4,12 +4,14 @@ import dslab.protocols.dmap.DMAPException;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
-import java.io.File;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.security.*;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
@@ -23,15 +25,14 @@ public class SecurityHelper {
      * @return Random Number as byte array
      */
     public static byte[] generateRandom(int length){
-        SecureRandom rdm = new SecureRandom();
         final byte[] number = new byte[length];
-        rdm.nextBytes(number);
+        CryptoProvider.getRandom().nextBytes(number);
         return number;
     }
 
     public static SecretKey generateAESKey(int size) throws NoSuchAlgorithmException {
         KeyGenerator gene = KeyGenerator.getInstance("AES");
-        gene.init(size);
+        gene.init(size, CryptoProvider.getRandom());
         return gene.generateKey();
     }
 
@@ -62,6 +63,27 @@ public class SecurityHelper {
     }
 
 
+    /**
+     * Initializes the reused cipher of the calling thread, for a single operation
+     * @param algorithm Used algorithm
+     * @param mode Mode for the Cipher
+     * @param key Key of the scheme
+     * @return The Cipher of the calling thread, see {@link CryptoProvider#getCipher(String)}
+     * @throws DMAPException Throws if there is a issue with the initialization of the cipher
+     */
+    public static Cipher initSharedCipher(String algorithm, int mode, Key key) throws DMAPException {
+        Cipher cipher;
+        try {
+            cipher = CryptoProvider.getCipher(algorithm);
+            cipher.init(mode, key, CryptoProvider.getRandom());
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+            throw new DMAPException("Wrong Padding or Algorithm provided");
+        } catch (InvalidKeyException e) {
+            throw new DMAPException("Invalid key provided");
+        }
+        return cipher;
+    }
+
     /**
      * Generates a cipher for symmetric encryption
      * @param algorithm Used algorithm
@@ -84,18 +106,46 @@ public class SecurityHelper {
         return cipher;
     }
 
+    /**
+     * Derives the symmetric cipher of a resumed session from the key of the session it resumes and fresh randoms of
+     * both ends, so that no two sessions encrypt with the same key and IV
+     * @param sessionKey Key of the resumed session
+     * @param clientRandom Random of the client
+     * @param serverRandom Random of the server
+     * @param algorithm Used algorithm, with a 256 bit key and a 128 bit IV
+     * @return The cipher of the new session
+     * @throws DMAPException Throws if there is a issue with the derivation or the cipher
+     */
+    public static CipherDMAP deriveResumedCipher(byte[] sessionKey, byte[] clientRandom, byte[] serverRandom,
+                                                 String algorithm) throws DMAPException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(sessionKey, "HmacSHA256"));
+            byte[][] derived = new byte[2][];
+            String[] labels = {"key", "iv"};
+            for (int i = 0; i < labels.length; i++) {
+                mac.update(labels[i].getBytes());
+                mac.update(clientRandom);
+                derived[i] = mac.doFinal(serverRandom);
+            }
+            return new CipherDMAP(derived[0], Arrays.copyOf(derived[1], 16), algorithm);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new DMAPException("Could not derive the session key");
+        }
+    }
+
+    /**
+     * @return the private key of a server component, read once, see {@link CryptoProvider#getPrivateKey(String)}
+     */
     public static PrivateKey getPrivateKey(String id) throws IOException {
-        String path = "keys/server/" + id + ".der";
-        File privKey = new File(path);
-        PrivateKey key = Keys.readPrivateKey(privKey);
-        return key;
+        return CryptoProvider.getPrivateKey(id);
     }
 
+    /**
+     * @return the public key of a server component, read once, see {@link CryptoProvider#getPublicKey(String)}
+     */
     public static PublicKey getPublicKey(String id) throws IOException{
-        String compID = "keys/client/" + id + "_pub.der";
-        File pubKey = new File(compID);
-        PublicKey key = Keys.readPublicKey(pubKey);
-        return key;
+        return CryptoProvider.getPublicKey(id);
     }
 
     public static String enocdeToBase64(byte[] data) {
@@ -0,0 +1,170 @@
+package dslab.util;
+
+import dslab.protocols.dmap.DMAPException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+/**
+ * Resumption tickets of a DMAP server, so that a client reconnecting with the <code>resume</code> command skips the
+ * RSA decryption of startsecure. A ticket is the AES key of a session and its expiry, encrypted and authenticated
+ * with AES-GCM under a ticket key only the server knows, as Base64 of [int key id][nonce][ciphertext][tag]. Nothing is
+ * kept per ticket.
+ * <p>
+ * Ticket keys are rotated every <code>ticket.rotation</code> seconds, checked whenever a ticket is issued or opened.
+ * Tickets of the previous key are still accepted, older ones are not, so a ticket lives at most
+ * <code>ticket.lifetime</code> seconds and never longer than two rotations. Keys are in memory only, tickets don't
+ * survive a restart.
+ */
+public class SessionTickets {
+
+    public static final String ALGORITHM = "AES/GCM/NoPadding";
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private static final long DEFAULT_LIFETIME_SECONDS = 3600;
+
+    private final long lifetimeMillis;
+    private final long rotationMillis;
+
+    private volatile TicketKey current;
+    private volatile TicketKey previous;
+
+    public SessionTickets(Config config) throws DMAPException {
+        this(1000 * seconds(config, "ticket.lifetime"), 1000 * seconds(config, "ticket.rotation"));
+    }
+
+    public SessionTickets(long lifetimeMillis, long rotationMillis) throws DMAPException {
+        this.lifetimeMillis = lifetimeMillis;
+        this.rotationMillis = rotationMillis;
+        current = new TicketKey(0, generateKey());
+    }
+
+    /**
+     * @param sessionKey the AES key of a secure session
+     * @return a ticket to resume the session with
+     * @throws DMAPException if the ticket couldn't be encrypted
+     */
+    public String issue(byte[] sessionKey) throws DMAPException {
+        TicketKey ticketKey = currentKey();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        CryptoProvider.getRandom().nextBytes(nonce);
+
+        ByteBuffer plaintext = ByteBuffer.allocate(Long.BYTES + sessionKey.length);
+        plaintext.putLong(System.currentTimeMillis() + lifetimeMillis).put(sessionKey).flip();
+        ByteBuffer ticket = ByteBuffer.allocate(Integer.BYTES + NONCE_LENGTH + plaintext.remaining() + TAG_LENGTH);
+        ticket.putInt(ticketKey.id).put(nonce);
+        try {
+            init(Cipher.ENCRYPT_MODE, ticketKey, nonce).doFinal(plaintext, ticket);
+        } catch (GeneralSecurityException e) {
+            throw new DMAPException("Could not issue ticket");
+        }
+        return Base64.getEncoder().encodeToString(ticket.array());
+    }
+
+    /**
+     * @param ticket a ticket issued by {@link #issue(byte[])}
+     * @return the session key of the ticket, or null if it is malformed, expired, or its ticket key was rotated out
+     */
+    public byte[] open(String ticket) {
+        ByteBuffer bytes;
+        try {
+            bytes = ByteBuffer.wrap(Base64.getDecoder().decode(ticket));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bytes.remaining() < Integer.BYTES + NONCE_LENGTH + Long.BYTES + TAG_LENGTH)
+            return null;
+
+        int id = bytes.getInt();
+        TicketKey ticketKey = currentKey();
+        if (ticketKey.id != id) {
+            ticketKey = previous;
+            if (ticketKey == null || ticketKey.id != id)
+                return null;
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        bytes.get(nonce);
+
+        ByteBuffer plaintext = ByteBuffer.allocate(bytes.remaining());
+        try {
+            init(Cipher.DECRYPT_MODE, ticketKey, nonce).doFinal(bytes, plaintext);
+        } catch (GeneralSecurityException e) {
+            // Modified, or not issued by this server
+            return null;
+        }
+        plaintext.flip();
+        if (plaintext.getLong() < System.currentTimeMillis())
+            return null;
+        byte[] sessionKey = new byte[plaintext.remaining()];
+        plaintext.get(sessionKey);
+        return sessionKey;
+    }
+
+    /**
+     * Replace the ticket key now. Tickets issued before the previous rotation are not accepted anymore.
+     */
+    public synchronized void rotate() throws DMAPException {
+        TicketKey rotated = new TicketKey(current.id + 1, generateKey());
+        previous = current;
+        current = rotated;
+    }
+
+    private TicketKey currentKey() {
+        TicketKey key = current;
+        if (System.currentTimeMillis() - key.created < rotationMillis)
+            return key;
+        synchronized (this) {
+            if (current == key) {
+                try {
+                    rotate();
+                } catch (DMAPException e) {
+                    // Keep the current key, and try again on the next ticket
+                    System.out.println("Could not rotate the ticket key: " + e.getMessage());
+                }
+            }
+            return current;
+        }
+    }
+
+    /**
+     * @return the cipher of the calling thread, initialized for a ticket, with the key id as associated data
+     */
+    private static Cipher init(int mode, TicketKey ticketKey, byte[] nonce) throws GeneralSecurityException {
+        Cipher cipher = CryptoProvider.getCipher(ALGORITHM);
+        cipher.init(mode, ticketKey.key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(Integer.BYTES).putInt(0, ticketKey.id));
+        return cipher;
+    }
+
+    private static SecretKey generateKey() throws DMAPException {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256, CryptoProvider.getRandom());
+            return generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new DMAPException("Could not generate a ticket key");
+        }
+    }
+
+    private static long seconds(Config config, String key) {
+        return config.containsKey(key) ? config.getInt(key) : DEFAULT_LIFETIME_SECONDS;
+    }
+
+    private static class TicketKey {
+
+        private final int id;
+        private final SecretKey key;
+        private final long created = System.currentTimeMillis();
+
+        TicketKey(int id, SecretKey key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package dslab.util.nio;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single thread multiplexing many {@link LineChannel}s over one {@link Selector}.
+ * Idle connections only cost their buffers, not a thread.
+ */
+public class EventLoop extends Thread {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final List<LineChannel> channelsToFlush;
+    private final AtomicInteger nChannels;
+
+    public EventLoop(String name) {
+        super(name);
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while opening selector", e);
+        }
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.channelsToFlush = new ArrayList<>();
+        this.nChannels = new AtomicInteger(0);
+    }
+
+    /**
+     * Hand a connected channel over to this event loop. Can be called from any thread.
+     * @param socketChannel the connection
+     * @param session the protocol logic serving the connection
+     */
+    public void register(SocketChannel socketChannel, ILineSession session) {
+        nChannels.incrementAndGet();
+        execute(() -> {
+            try {
+                socketChannel.configureBlocking(false);
+                SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+                LineChannel channel = new LineChannel(this, socketChannel, key, session);
+                key.attach(channel);
+                channel.open();
+            } catch (IOException e) {
+                System.out.println("Couldn't register channel: " + e.getMessage());
+                nChannels.decrementAndGet();
+                try {
+                    socketChannel.close();
+                } catch (IOException exception) { }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the event loop thread. Can be called from any thread.
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return number of connections currently served by this loop
+     */
+    public int getChannelCount() {
+        return nChannels.get();
+    }
+
+    /**
+     * Close all the connections and stop the loop. Can be called from any thread.
+     */
+    public void shutdown() {
+        interrupt();
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // Like a broken connection, a failed task must not stop the loop
+                        System.out.println("Error running task in event loop " + getName() + ": " + e);
+                    }
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    LineChannel channel = (LineChannel) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            channel.read();
+                        if (key.isValid() && key.isWritable())
+                            channel.flush();
+                    } catch (IOException | RuntimeException e) {
+                        // A broken connection must not stop the loop serving the others
+                        System.out.println("Closing channel: " + e.getMessage());
+                        channel.close();
+                    }
+                }
+
+                flushChannels();
+            }
+        } catch (IOException e) {
+            System.out.println("IOException in event loop " + getName() + ": " + e.getMessage());
+        } finally {
+            closeResources();
+        }
+    }
+
+    void scheduleFlush(LineChannel channel) {
+        channelsToFlush.add(channel);
+    }
+
+    void channelClosed() {
+        nChannels.decrementAndGet();
+    }
+
+    private void flushChannels() {
+        // Flushing can close channels and schedule further flushes
+        for (int i = 0; i < channelsToFlush.size(); i++) {
+            LineChannel channel = channelsToFlush.get(i);
+            try {
+                channel.flush();
+            } catch (IOException e) {
+                channel.close();
+            }
+        }
+        channelsToFlush.clear();
+    }
+
+    private void closeResources() {
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() != null)
+                ((LineChannel) key.attachment()).close();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException exception) { }
+    }
+}
@@ -0,0 +1,39 @@
+package dslab.util.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Protocol logic of a line based connection served by an {@link EventLoop}.
+ * All methods are called from the event loop thread and must not block.
+ */
+public interface ILineSession {
+
+    /**
+     * Called once after the connection has been registered, e.g. to send a greeting.
+     * @param channel the connection
+     */
+    void onOpen(LineChannel channel);
+
+    /**
+     * Called for every complete line received, without the line terminator.
+     * @param channel the connection
+     * @param line the received line
+     */
+    void onLine(LineChannel channel, String line);
+
+    /**
+     * Called for every complete frame received, once the channel was switched with
+     * {@link LineChannel#startFrames(int)}. By default the connection is closed.
+     * @param channel the connection
+     * @param frame the frame, length header included, only valid during the call
+     */
+    default void onFrame(LineChannel channel, ByteBuffer frame) {
+        channel.closeAfterFlush();
+    }
+
+    /**
+     * Called once when the connection has been closed, by either side.
+     * @param channel the connection
+     */
+    void onClose(LineChannel channel);
+}
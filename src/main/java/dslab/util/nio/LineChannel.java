@@ -0,0 +1,281 @@
+package dslab.util.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A non-blocking connection that exchanges text lines, owned by an {@link EventLoop}. Once switched with
+ * {@link #startFrames(int)} it receives frames of an int length and that many bytes instead.
+ * Except for {@link #execute(Runnable)} and {@link #inEventLoop()}, methods must only be called from the event loop
+ * thread.
+ */
+public class LineChannel {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // Protects the server from clients that never send a line terminator
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+
+    private final EventLoop eventLoop;
+    private final SocketChannel socketChannel;
+    private final SelectionKey key;
+    private final ILineSession session;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final Deque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+
+    private boolean frames = false;
+    private int maxFrameLength;
+    private boolean suspended = false;
+    private boolean flushScheduled = false;
+    private boolean closeAfterFlush = false;
+    private boolean closed = false;
+
+    LineChannel(EventLoop eventLoop, SocketChannel socketChannel, SelectionKey key, ILineSession session) {
+        this.eventLoop = eventLoop;
+        this.socketChannel = socketChannel;
+        this.key = key;
+        this.session = session;
+    }
+
+    /**
+     * Queue a line for sending. Lines are written when the current event loop iteration ends.
+     * @param line the line, without terminator
+     */
+    public void println(String line) {
+        if (closed || closeAfterFlush)
+            return;
+
+        byte[] bytes = line.getBytes(CHARSET);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + LINE_SEPARATOR.length);
+        buffer.put(bytes).put(LINE_SEPARATOR).flip();
+        pendingOutput.add(buffer);
+
+        scheduleFlush();
+    }
+
+    /**
+     * Queue bytes for sending as they are, after the lines queued before. The buffer is not copied: its content must
+     * not change until it has been written.
+     * @param bytes the bytes between position and limit
+     */
+    public void write(ByteBuffer bytes) {
+        if (closed || closeAfterFlush)
+            return;
+
+        pendingOutput.add(bytes);
+        scheduleFlush();
+    }
+
+    /**
+     * Receive frames instead of lines, starting with the bytes after the current line. A frame is passed to
+     * {@link ILineSession#onFrame(LineChannel, ByteBuffer)} with its length header once complete.
+     * @param maxFrameLength longest frame accepted, header excluded, the connection is closed on longer ones
+     */
+    public void startFrames(int maxFrameLength) {
+        this.frames = true;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Close the connection once all the queued lines have been written.
+     */
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Stop dispatching received lines until {@link #resumeReading()}, e.g. while the reply to the current line is
+     * computed asynchronously. Lines already received stay buffered.
+     */
+    public void suspendReading() {
+        if (closed)
+            return;
+        suspended = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Continue dispatching lines, starting with the ones buffered while suspended.
+     * Must not be called from {@link ILineSession#onLine(LineChannel, String)}.
+     */
+    public void resumeReading() {
+        if (closed || !suspended)
+            return;
+        suspended = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+        readBuffer.flip();
+        dispatch();
+        readBuffer.compact();
+    }
+
+    /**
+     * @return true if the caller runs on the event loop owning this channel
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == eventLoop;
+    }
+
+    /**
+     * Run a task on the event loop owning this channel. Can be called from any thread. The channel is closed if the
+     * task fails, as if reading it had.
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        eventLoop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Closing channel: " + e.getMessage());
+                close();
+            }
+        });
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return socketChannel.getLocalAddress();
+    }
+
+    public SocketAddress getRemoteAddress() throws IOException {
+        return socketChannel.getRemoteAddress();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void open() {
+        session.onOpen(this);
+    }
+
+    void read() throws IOException {
+        int read = socketChannel.read(readBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        dispatch();
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            int maxLength = frames ? Integer.BYTES + maxFrameLength : MAX_LINE_LENGTH;
+            if (readBuffer.capacity() >= maxLength) {
+                close();
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, maxLength));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        } else if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+            // An idle connection doesn't keep the buffer of its longest line
+            readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    }
+
+    void flush() throws IOException {
+        flushScheduled = false;
+        if (closed)
+            return;
+
+        while (!pendingOutput.isEmpty()) {
+            ByteBuffer buffer = pendingOutput.peek();
+            socketChannel.write(buffer);
+            if (buffer.hasRemaining())
+                break;
+            pendingOutput.poll();
+        }
+
+        if (pendingOutput.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush)
+                close();
+        } else {
+            // Socket buffer is full: continue when the client reads
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        key.cancel();
+        try {
+            socketChannel.close();
+        } catch (IOException exception) { }
+
+        pendingOutput.clear();
+        eventLoop.channelClosed();
+        session.onClose(this);
+    }
+
+    private void dispatch() {
+        boolean framed;
+        do {
+            framed = frames;
+            if (framed)
+                dispatchFrames();
+            else
+                dispatchLines();
+            // The session switched to frames in the middle of the buffer
+        } while (framed != frames);
+    }
+
+    private void dispatchLines() {
+        int start = readBuffer.position();
+
+        for (int i = start; i < readBuffer.limit() && !closed && !closeAfterFlush && !suspended && !frames; i++) {
+            if (readBuffer.get(i) != '\n')
+                continue;
+
+            int end = i;
+            if (end > start && readBuffer.get(end - 1) == '\r')
+                end--;
+
+            String line = new String(readBuffer.array(), readBuffer.arrayOffset() + start, end - start, CHARSET);
+            start = i + 1;
+            readBuffer.position(start);
+
+            session.onLine(this, line);
+        }
+    }
+
+    private void dispatchFrames() {
+        while (readBuffer.remaining() >= Integer.BYTES && !closed && !closeAfterFlush && !suspended) {
+            int start = readBuffer.position();
+            int length = readBuffer.getInt(start);
+            if (length < 0 || length > maxFrameLength) {
+                close();
+                return;
+            }
+            if (readBuffer.remaining() < Integer.BYTES + length)
+                return;
+
+            ByteBuffer frame = readBuffer.duplicate();
+            frame.limit(start + Integer.BYTES + length);
+            readBuffer.position(start + Integer.BYTES + length);
+
+            session.onFrame(this, frame.slice());
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            eventLoop.scheduleFlush(this);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package dslab;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import dslab.protocols.dmtp.DMTPException;
+import dslab.protocols.dmtp.Email;
+import dslab.protocols.dmtp.server.DMTPServerHandler;
+import dslab.protocols.dmtp.server.IDMTPServerHandler;
+
+/**
+ * Used for mocking purposes, a DMTP server on a given or random port that records the received emails and can delay every
+ * reply. Recipients starting with "nobody" are unknown, and the mailboxes of those starting with "full" are full.
+ */
+public class MailboxServerStub implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final long replyDelay;
+    private final List<Email> received = new CopyOnWriteArrayList<>();
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final Transfers transfers;
+
+    public MailboxServerStub(long replyDelay) throws IOException {
+        this(0, replyDelay);
+    }
+
+    public MailboxServerStub(int port, long replyDelay) throws IOException {
+        this(port, replyDelay, new Transfers());
+    }
+
+    /**
+     * @param transfers counts the emails in transfer, shared with other stubs to count them all
+     */
+    public MailboxServerStub(int port, long replyDelay, Transfers transfers) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.replyDelay = replyDelay;
+        this.transfers = transfers;
+
+        new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.add(socket);
+                    new Thread(() -> serve(socket)).start();
+                } catch (IOException e) {
+                    // server socket closed
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * @return the address in the form returned by the nameservers, e.g. 127.0.0.1:16503
+     */
+    public String getAddress() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public List<Email> getReceived() {
+        return received;
+    }
+
+    public Transfers getTransfers() {
+        return transfers;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : connections)
+            socket.close();
+    }
+
+    private void serve(Socket socket) {
+        // Whether the connection is between begin and send
+        boolean[] inTransfer = {false};
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream())) {
+                 @Override
+                 public String readLine() throws IOException {
+                     String request = super.readLine();
+                     if ("begin".equals(request) && !inTransfer[0]) {
+                         inTransfer[0] = true;
+                         transfers.begin();
+                     }
+                     return request;
+                 }
+             };
+             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true) {
+                 @Override
+                 public void println(String reply) {
+                     try {
+                         Thread.sleep(replyDelay);
+                     } catch (InterruptedException e) {
+                         Thread.currentThread().interrupt();
+                     }
+                     super.println(reply);
+                 }
+             }) {
+
+            DMTPServerHandler handler = new DMTPServerHandler(socket, reader, writer);
+            handler.init();
+            handler.receiveEmails(new IDMTPServerHandler.Callback() {
+                @Override
+                public boolean consumeEmail(Email email) {
+                    received.add(email);
+                    if (inTransfer[0]) {
+                        inTransfer[0] = false;
+                        transfers.end();
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean validateRecipient(String recipient) {
+                    return !recipient.startsWith("nobody");
+                }
+
+                @Override
+                public boolean acceptsEmails(String recipient) {
+                    return !recipient.startsWith("full");
+                }
+            });
+        } catch (IOException | DMTPException e) {
+            // connection closed
+        } finally {
+            if (inTransfer[0])
+                transfers.end();
+        }
+    }
+
+    /**
+     * Counts the emails between begin and send at once.
+     */
+    public static class Transfers {
+
+        private int current;
+        private int max;
+
+        synchronized void begin() {
+            max = Math.max(max, ++current);
+        }
+
+        synchronized void end() {
+            current--;
+        }
+
+        /**
+         * @return the most emails in transfer at once since the last call
+         */
+        public synchronized int takeMax() {
+            int taken = max;
+            max = current;
+            return taken;
+        }
+    }
+}
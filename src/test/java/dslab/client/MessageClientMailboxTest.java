@@ -5,7 +5,23 @@ import static org.hamcrest.CoreMatchers.anyOf;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.startsWith;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -19,10 +35,16 @@ import org.junit.rules.ErrorCollector;
 import dslab.ComponentFactory;
 import dslab.Constants;
 import dslab.JunitSocketClient;
+import dslab.SimpleTcpServer;
 import dslab.Sockets;
 import dslab.TestInputStream;
 import dslab.TestOutputStream;
+import dslab.mailbox.DMAPListenerThread;
+import dslab.mailbox.storage.InMemoryEmailStorage;
+import dslab.protocols.dmap.DMAPClientHandler;
+import dslab.protocols.dmtp.Email;
 import dslab.util.Config;
+import dslab.util.CryptoWorkers;
 
 /**
  * Starts a mailbox server and a message client, and injects mails to the mailbox server that are read by the mail
@@ -32,6 +54,10 @@ public class MessageClientMailboxTest {
 
     private static final Log LOG = LogFactory.getLog(MessageClientMailboxTest.class);
 
+    // Mailbox sizes of the inbox benchmark, change with -Ddslab.client.inboxSizes=10,100,1000,10000
+    private static final int[] INBOX_SIZES = Arrays.stream(System.getProperty("dslab.client.inboxSizes", "10,100")
+            .split(",")).mapToInt(Integer::parseInt).toArray();
+
     @Rule
     public ErrorCollector err = new ErrorCollector();
 
@@ -78,6 +104,247 @@ public class MessageClientMailboxTest {
         mailboxServerThread.join(Constants.COMPONENT_TEARDOWN_WAIT);
     }
 
+    @Test(timeout = 120000)
+    public void benchmark_inboxRendering_fetchComparedToShowPerEmail() throws Exception {
+        int delivered = 0;
+        long[] showNanos = new long[INBOX_SIZES.length];
+        long[] fetchNanos = new long[INBOX_SIZES.length];
+        int[] showRequests = new int[INBOX_SIZES.length];
+        int[] fetchRequests = new int[INBOX_SIZES.length];
+
+        for (int size = 0; size < INBOX_SIZES.length; size++) {
+            try (JunitSocketClient client = new JunitSocketClient(mailboxConfig.getInt("dmtp.tcp.port"), err)) {
+                client.read();
+                client.sendAndVerify("begin", "ok");
+                for (; delivered < INBOX_SIZES[size]; delivered++) {
+                    client.sendAndVerify("from arthur@earth.planet", "ok");
+                    client.sendAndVerify("to trillian@earth.planet", "ok");
+                    client.sendAndVerify("subject subject" + delivered, "ok");
+                    client.sendAndVerify("data somedata", "ok");
+                    client.sendAndVerify("send", "ok");
+                }
+                client.send("quit");
+            }
+
+            try (Socket socket = new Socket("localhost", mailboxConfig.getInt("dmap.tcp.port"))) {
+                // Each request waits for its answer, so requests are round trips
+                int[] requests = {0};
+                DMAPClientHandler handler = new DMAPClientHandler(
+                        new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                        new PrintWriter(socket.getOutputStream(), true) {
+                            @Override
+                            public void println(String request) {
+                                requests[0]++;
+                                super.println(request);
+                            }
+                        });
+                handler.init("trillian", "12345");
+
+                // A list, then a round trip per email
+                requests[0] = 0;
+                long start = System.nanoTime();
+                List<Email> shown = new ArrayList<>();
+                for (int id : handler.list().keySet())
+                    shown.add(handler.show(id));
+                showNanos[size] = System.nanoTime() - start;
+                showRequests[size] = requests[0];
+
+                // One request for all of them
+                requests[0] = 0;
+                start = System.nanoTime();
+                List<Email> fetched = new ArrayList<>();
+                handler.fetch(1, Integer.MAX_VALUE, fetched::add);
+                fetchNanos[size] = System.nanoTime() - start;
+                fetchRequests[size] = requests[0];
+
+                handler.close();
+                err.checkThat(fetched.size(), is(INBOX_SIZES[size]));
+                err.checkThat(fetched.get(fetched.size() - 1).subject, is(shown.get(shown.size() - 1).subject));
+            }
+
+            LOG.info(String.format("Inbox of %d emails: list and show %d ms in %d requests, fetch %d ms in %d",
+                    INBOX_SIZES[size], showNanos[size] / 1000000, showRequests[size], fetchNanos[size] / 1000000,
+                    fetchRequests[size]));
+
+            // The pages of the list, the last one not full, and a show per email
+            int pages = INBOX_SIZES[size] / DMAPClientHandler.PAGE_SIZE + 1;
+            err.checkThat(showRequests[size], is(pages + INBOX_SIZES[size]));
+            err.checkThat(fetchRequests[size], is(1));
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void framedTransport_returnsTheSameEmailsAsLines() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(mailboxConfig.getInt("dmtp.tcp.port"), err)) {
+            client.read();
+            client.sendAndVerify("begin", "ok");
+            for (int i = 0; i < 3; i++) {
+                client.sendAndVerify("from arthur@earth.planet", "ok");
+                client.sendAndVerify("to trillian@earth.planet", "ok");
+                client.sendAndVerify("subject framed " + i, "ok");
+                client.sendAndVerify("data framed data " + i, "ok");
+                client.sendAndVerify("send", "ok");
+            }
+            client.send("quit");
+        }
+
+        List<List<String>> results = new ArrayList<>();
+        for (boolean framed : new boolean[]{false, true}) {
+            try (Socket socket = new Socket("localhost", mailboxConfig.getInt("dmap.tcp.port"))) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                DMAPClientHandler handler = framed
+                        ? new DMAPClientHandler(socket, reader, writer) : new DMAPClientHandler(reader, writer);
+                handler.init("trillian", "12345");
+
+                List<String> result = new ArrayList<>();
+                handler.list().forEach((id, senderSubject) -> result.add(id + " " + String.join(" ", senderSubject)));
+                for (int id : handler.search("framed"))
+                    result.add(handler.show(id).prettyPrint());
+                handler.fetch(1, Integer.MAX_VALUE, email -> result.add(email.id + email.prettyPrint()));
+                handler.close();
+                results.add(result);
+            }
+        }
+
+        err.checkThat(results.get(0).size(), is(9));
+        err.checkThat(results.get(1), is(results.get(0)));
+    }
+
+    @Test(timeout = 30000)
+    public void newClient_doesNotResumeTheSessionOfAnEarlierOne() throws Exception {
+        // The running client got a ticket from the mailbox server, which is replaced by a stub on the same port
+        messageClientIn.addLine("shutdown");
+        messageClientThread.join(Constants.COMPONENT_TEARDOWN_WAIT);
+        mailboxServerIn.addLine("shutdown");
+        mailboxServerThread.join(Constants.COMPONENT_TEARDOWN_WAIT);
+
+        int port = mailboxConfig.getInt("dmap.tcp.port");
+        CountDownLatch connected = new CountDownLatch(1);
+        try (SimpleTcpServer dmapServer = new SimpleTcpServer(port)) {
+            dmapServer.setSocketAcceptor(socket -> {
+                try (JunitSocketClient client = new JunitSocketClient(socket)) {
+                    client.send("ok DMAP2.0");
+                    String command = client.listen(2, TimeUnit.SECONDS);
+                    // Nothing from the connection that waited for the socket
+                    if (command.isEmpty())
+                        return;
+                    err.checkThat(command, is("startsecure"));
+                    connected.countDown();
+                }
+            });
+            new Thread(dmapServer).start();
+            Sockets.waitForSocket("localhost", port, Constants.COMPONENT_STARTUP_WAIT);
+
+            TestInputStream in = new TestInputStream();
+            Thread client = new Thread(ComponentFactory.createMessageClient("client-trillian", in,
+                    new TestOutputStream()));
+            client.start();
+
+            err.checkThat(connected.await(15, TimeUnit.SECONDS), is(true));
+            in.addLine("shutdown");
+            client.join(Constants.COMPONENT_TEARDOWN_WAIT);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void droppedConnection_isResumedWithTheTicketOfTheClient() throws Exception {
+        // The client is restarted behind a relay on the mailbox port, which can drop its connection
+        messageClientIn.addLine("shutdown");
+        messageClientThread.join(Constants.COMPONENT_TEARDOWN_WAIT);
+        mailboxServerIn.addLine("shutdown");
+        mailboxServerThread.join(Constants.COMPONENT_TEARDOWN_WAIT);
+
+        InMemoryEmailStorage storage = new InMemoryEmailStorage(mailboxConfig);
+        storage.addEmail(new Email("zaphod@univer.ze", List.of("trillian@earth.planet"), "dropped", "somedata"));
+        CryptoWorkers workers = new CryptoWorkers(mailboxConfig);
+        ServerSocketChannel serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        DMAPListenerThread listener = new DMAPListenerThread(mailboxConfig, serverSocket, "mailbox-earth-planet",
+                storage, workers);
+        listener.start();
+
+        int port = mailboxConfig.getInt("dmap.tcp.port");
+        List<String> firstCommands = new CopyOnWriteArrayList<>();
+        BlockingQueue<Socket> relayed = new LinkedBlockingQueue<>();
+        try (SimpleTcpServer relay = new SimpleTcpServer(port)) {
+            relay.setSocketAcceptor(socket -> {
+                try (Socket client = socket;
+                     Socket server = new Socket("localhost", serverSocket.socket().getLocalPort())) {
+                    new Thread(() -> pipe(server, client)).start();
+                    // Either startsecure or resume, nothing from the connection that waited for the socket
+                    String command = readLine(client.getInputStream());
+                    if (command == null)
+                        return;
+                    firstCommands.add(command);
+                    relayed.add(client);
+                    server.getOutputStream().write((command + "\n").getBytes());
+                    pipe(client, server);
+                }
+            });
+            new Thread(relay).start();
+            Sockets.waitForSocket("localhost", port, Constants.COMPONENT_STARTUP_WAIT);
+
+            messageClientIn = new TestInputStream();
+            messageClientOut = new TestOutputStream();
+            messageClientThread = new Thread(ComponentFactory.createMessageClient("client-trillian", messageClientIn,
+                    messageClientOut));
+            messageClientThread.start();
+
+            Socket first = relayed.poll(15, TimeUnit.SECONDS);
+            messageClientIn.addLine("inbox");
+            err.checkThat(messageClientOut.listen(), containsString("dropped"));
+            first.close();
+
+            messageClientIn.addLine("inbox");
+            String output = messageClientOut.listen();
+            err.checkThat(output, containsString("dropped"));
+            err.checkThat(output, not(containsString("error")));
+
+            err.checkThat(firstCommands.size(), is(2));
+            err.checkThat(firstCommands.get(0), is("startsecure"));
+            err.checkThat(firstCommands.get(1), startsWith("resume "));
+            // The second connection skipped the RSA decryption
+            err.checkThat(workers.getCompleted(), is(1L));
+
+            messageClientIn.addLine("shutdown");
+            messageClientThread.join(Constants.COMPONENT_TEARDOWN_WAIT);
+        } finally {
+            serverSocket.close();
+            listener.join();
+            workers.close();
+            storage.close();
+        }
+    }
+
+    /**
+     * @return a line read byte by byte, so that nothing after it is buffered, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                return null;
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Copy bytes until either side closes, then close the other one.
+     */
+    private static void pipe(Socket from, Socket to) {
+        try {
+            from.getInputStream().transferTo(to.getOutputStream());
+        } catch (IOException e) {
+            // closed
+        } finally {
+            try {
+                to.close();
+            } catch (IOException e) { }
+        }
+    }
+
     @Test(timeout = 20000)
     public void inbox_singleMail_showsAllInboxDataCorrectly() throws Exception {
 
@@ -0,0 +1,198 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.mailbox.storage.IEmailStorage;
+import dslab.mailbox.storage.IUserEmails;
+import dslab.mailbox.storage.LogEmailStorage;
+import dslab.mailbox.storage.StorageUsage;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+
+public class EmailIngestTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(EmailIngestTest.class);
+
+    // Emails sent in each run of the benchmark, raise with -Ddslab.mailbox.ingestEmails=100000
+    private static final int N_EMAILS = Integer.getInteger("dslab.mailbox.ingestEmails", 2000);
+    private static final int[] N_CONNECTIONS = {1, 10, 100};
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("dslab-ingest");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void fullBuffer_rejectsEmails_untilTheWriterCatchesUp() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Email> stored = new ArrayList<>();
+        IEmailStorage storage = new IEmailStorage() {
+            @Override
+            public IUserEmails getUserStorage(String user) {
+                return null;
+            }
+
+            @Override
+            public StorageUsage getUsage() {
+                return new StorageUsage();
+            }
+
+            @Override
+            public void addEmail(Email email) {
+                writing.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (stored) {
+                    stored.add(email);
+                }
+            }
+        };
+
+        EmailIngest ingest = new EmailIngest(storage, 4);
+        List<CompletableFuture<Boolean>> accepted = new ArrayList<>();
+        // The writer is stuck with the first one, then 4 fill the buffer
+        accepted.add(ingest.submit(email(0)));
+        writing.await();
+        for (int i = 1; i <= 4; i++)
+            accepted.add(ingest.submit(email(i)));
+        CompletableFuture<Boolean> rejected = ingest.submit(email(5));
+
+        err.checkThat(rejected.isCompletedExceptionally(), is(true));
+        try {
+            rejected.join();
+        } catch (CompletionException e) {
+            err.checkThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+
+        blocked.countDown();
+        for (CompletableFuture<Boolean> result : accepted)
+            err.checkThat(result.join(), is(true));
+        ingest.close();
+        err.checkThat(stored.size(), is(5));
+        err.checkThat(ingest.getBatchCount(), is(2L));
+        err.checkThat(ingest.submit(email(6)).isCompletedExceptionally(), is(true));
+    }
+
+    @Test
+    public void benchmark_throughput_byConcurrentConnections() throws Exception {
+        Config config = new Config("mailbox-earth-planet");
+        StringBuilder results = new StringBuilder();
+
+        for (int run = 0; run < N_CONNECTIONS.length; run++) {
+            int nConnections = N_CONNECTIONS[run];
+            int perConnection = N_EMAILS / nConnections;
+
+            try (LogEmailStorage storage = new LogEmailStorage(directory.resolve("run-" + run),
+                    config.getString("domain"), new Config(config.getString("users.config")).listKeys(),
+                    LogEmailStorage.DEFAULT_SEGMENT_SIZE)) {
+                // Closed before the storage, which stops the listener
+                ServerSocket serverSocket = new ServerSocket(0);
+                EmailIngest ingest = new EmailIngest(storage);
+                DMTPListenerThread listener = new DMTPListenerThread(config, serverSocket, ingest,
+                        new MailboxQuota(config, storage));
+                listener.start();
+
+                ExecutorService clients = Executors.newFixedThreadPool(nConnections);
+                long start = System.currentTimeMillis();
+                try {
+                    List<Future<Integer>> sent = new ArrayList<>();
+                    for (int c = 0; c < nConnections; c++)
+                        sent.add(clients.submit(() -> send(serverSocket.getLocalPort(), perConnection)));
+                    for (Future<Integer> result : sent)
+                        err.checkThat(result.get(), is(perConnection));
+                } finally {
+                    clients.shutdownNow();
+                }
+                long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+                serverSocket.close();
+                listener.join();
+                ingest.close();
+                err.checkThat(storage.getUserStorage("trillian").getUserEmails().size(),
+                        is(perConnection * nConnections));
+
+                results.append(String.format("%n%d connections: %d emails/s, %.1f emails per batch",
+                        nConnections, perConnection * nConnections * 1000L / elapsed,
+                        (double) ingest.getIngestedCount() / ingest.getBatchCount()));
+            }
+        }
+
+        LOG.info("DMTP ingest into the log storage, " + N_EMAILS + " emails per run:" + results);
+    }
+
+    /**
+     * Send emails to trillian over a DMTP connection, one at a time.
+     * @return the number of emails accepted
+     */
+    private static int send(int port, int nEmails) throws Exception {
+        try (Socket socket = new Socket("localhost", port);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+            reader.readLine();
+            writer.println("begin");
+            reader.readLine();
+
+            int accepted = 0;
+            for (int i = 0; i < nEmails; i++) {
+                writer.println("to trillian@earth.planet");
+                reader.readLine();
+                writer.println("from zaphod@univer.ze");
+                reader.readLine();
+                writer.println("subject ingest " + i);
+                reader.readLine();
+                writer.println("data data of email " + i + " from " + Thread.currentThread().getName());
+                reader.readLine();
+                writer.println("send");
+                if ("ok".equals(reader.readLine()))
+                    accepted++;
+            }
+            writer.println("quit");
+            reader.readLine();
+            return accepted;
+        }
+    }
+
+    private static Email email(int i) {
+        return new Email("zaphod@univer.ze", List.of("trillian@earth.planet"), "subject " + i, "data " + i);
+    }
+}
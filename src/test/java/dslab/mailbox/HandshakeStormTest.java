@@ -0,0 +1,215 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import dslab.JunitSocketClient;
+import dslab.TestBase;
+import dslab.mailbox.storage.InMemoryEmailStorage;
+import dslab.protocols.dmap.DMAPClientHandler;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+import dslab.util.CryptoWorkers;
+
+/**
+ * Established sessions listing emails while other clients storm the server with startsecure handshakes.
+ */
+public class HandshakeStormTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(HandshakeStormTest.class);
+
+    private static final int N_LISTING = 2;
+    private static final int N_STORMING = 6;
+    // Raise with -Ddslab.mailbox.stormHandshakes=200 for a steadier measurement
+    private static final int N_HANDSHAKES = Integer.getInteger("dslab.mailbox.stormHandshakes", 20);
+    private static final int QUEUE_SIZE = 64;
+
+    private final Config config = new Config("mailbox-earth-planet");
+
+    @Test(timeout = 120000)
+    public void benchmark_listLatencyDuringHandshakeStorm_workersComparedToEventLoops() throws Exception {
+        // Warm up
+        storm(null, 2);
+
+        long[] inline = storm(null, N_HANDSHAKES);
+        long[] offloaded;
+        try (CryptoWorkers workers = new CryptoWorkers(1, QUEUE_SIZE)) {
+            offloaded = storm(workers, N_HANDSHAKES);
+            LOG.info(String.format("Crypto workers: at most %d handshakes queued, %d us mean wait",
+                    workers.getMaxQueueDepth(), workers.getMeanWaitMicros()));
+            err.checkThat(workers.getMaxQueueDepth() <= QUEUE_SIZE, is(true));
+            // The handshakes of the listing sessions too
+            err.checkThat(workers.getCompleted(), is((long) N_STORMING * N_HANDSHAKES + N_LISTING));
+        }
+
+        LOG.info(String.format("list latency during %d handshakes: on the event loops p50 %d us p99 %d us, "
+                        + "on the crypto workers p50 %d us p99 %d us", N_STORMING * N_HANDSHAKES,
+                percentile(inline, 50), percentile(inline, 99), percentile(offloaded, 50),
+                percentile(offloaded, 99)));
+    }
+
+    @Test(timeout = 20000)
+    public void queuedHandshakes_doNotHoldUpLists_andBeyondTheQueueAreRefused() throws Exception {
+        InMemoryEmailStorage storage = storage();
+        ServerSocketChannel serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+        int port = serverSocket.socket().getLocalPort();
+        CryptoWorkers workers = new CryptoWorkers(1, 1);
+        DMAPListenerThread listener = new DMAPListenerThread(config, serverSocket, "mailbox-earth-planet", storage,
+                workers);
+        listener.start();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (Socket socket = new Socket("localhost", port)) {
+            DMAPClientHandler listing = connect(socket);
+
+            // Hold the only crypto thread, so that the next handshake stays queued
+            workers.submit(() -> {
+                running.countDown();
+                release.await();
+                return null;
+            });
+            running.await();
+
+            String challenge = "bm90IGEgY2hhbGxlbmdl";
+            try (JunitSocketClient queued = new JunitSocketClient(port, err);
+                 JunitSocketClient refused = new JunitSocketClient(port, err)) {
+                queued.verify("ok DMAP2.0");
+                queued.sendAndVerify("startsecure", "ok mailbox-earth-planet");
+                queued.send(challenge);
+                while (workers.getQueueDepth() == 0)
+                    Thread.sleep(1);
+
+                refused.verify("ok DMAP2.0");
+                refused.sendAndVerify("startsecure", "ok mailbox-earth-planet");
+                refused.sendAndVerify(challenge, "error server busy");
+
+                // Served by the event loops while a handshake waits for the crypto thread
+                err.checkThat(listing.list(1, 20).size(), is(20));
+                err.checkThat(workers.getQueueDepth(), is(1));
+            } finally {
+                release.countDown();
+            }
+
+            err.checkThat(workers.getMaxQueueDepth(), is(1L));
+            err.checkThat(workers.getRejected(), is(1L));
+            listing.close();
+        } finally {
+            serverSocket.close();
+            listener.join();
+            workers.close();
+            storage.close();
+        }
+    }
+
+    /**
+     * @param workers where the server runs the handshake cryptography, null for the event loops
+     * @return latencies of the lists sent while the handshakes ran, in microseconds
+     */
+    private long[] storm(CryptoWorkers workers, int handshakes) throws Exception {
+        InMemoryEmailStorage storage = storage();
+        ServerSocketChannel serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+        int port = serverSocket.socket().getLocalPort();
+        DMAPListenerThread listener = new DMAPListenerThread(config, serverSocket, "mailbox-earth-planet", storage,
+                workers);
+        listener.start();
+        ExecutorService clients = Executors.newFixedThreadPool(N_LISTING + N_STORMING);
+        try {
+            // Sessions established before the storm
+            List<Socket> sockets = new ArrayList<>();
+            List<DMAPClientHandler> listing = new ArrayList<>();
+            for (int i = 0; i < N_LISTING; i++) {
+                Socket socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                listing.add(connect(socket));
+            }
+
+            AtomicBoolean storming = new AtomicBoolean(true);
+            List<Future<List<Long>>> latencies = new ArrayList<>();
+            for (DMAPClientHandler handler : listing) {
+                latencies.add(clients.submit(() -> {
+                    List<Long> micros = new ArrayList<>();
+                    while (storming.get()) {
+                        long start = System.nanoTime();
+                        handler.list(1, 20);
+                        micros.add((System.nanoTime() - start) / 1000);
+                    }
+                    return micros;
+                }));
+            }
+
+            List<Future<?>> storm = new ArrayList<>();
+            for (int i = 0; i < N_STORMING; i++) {
+                storm.add(clients.submit(() -> {
+                    for (int h = 0; h < handshakes; h++) {
+                        try (Socket socket = new Socket("localhost", port)) {
+                            socket.setTcpNoDelay(true);
+                            connect(socket).close();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> client : storm)
+                client.get();
+            storming.set(false);
+
+            List<Long> all = new ArrayList<>();
+            for (Future<List<Long>> micros : latencies)
+                all.addAll(micros.get());
+            for (int i = 0; i < N_LISTING; i++) {
+                listing.get(i).close();
+                sockets.get(i).close();
+            }
+            return all.stream().mapToLong(Long::longValue).toArray();
+        } finally {
+            clients.shutdownNow();
+            serverSocket.close();
+            listener.join();
+            storage.close();
+        }
+    }
+
+    /**
+     * @return a storage with 20 emails of trillian
+     */
+    private InMemoryEmailStorage storage() throws Exception {
+        InMemoryEmailStorage storage = new InMemoryEmailStorage(config);
+        for (int i = 0; i < 20; i++)
+            storage.addEmail(new Email("zaphod@univer.ze", List.of("trillian@earth.planet"), "subject " + i,
+                    "data " + i));
+        return storage;
+    }
+
+    private static DMAPClientHandler connect(Socket socket) throws Exception {
+        DMAPClientHandler handler = new DMAPClientHandler(
+                new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                new PrintWriter(socket.getOutputStream(), true));
+        handler.init("trillian", "12345");
+        return handler;
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
@@ -0,0 +1,156 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.mailbox.storage.InMemoryEmailStorage;
+import dslab.protocols.dmap.DMAPClientHandler;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+
+/**
+ * Many logged in sessions idling on the event loops of the DMAP listener, while one more session keeps listing.
+ */
+public class IdleSessionsTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(IdleSessionsTest.class);
+
+    // Raise with -Ddslab.mailbox.idleSessions=9000, both ends of a session take a file descriptor
+    private static final int N_IDLE = Integer.getInteger("dslab.mailbox.idleSessions", 2000);
+    private static final int N_LISTS = 200;
+
+    private final Config config = new Config("mailbox-earth-planet");
+
+    @Test(timeout = 300000)
+    public void idleSessions_takeNoThreads_andKeepBeingServed() throws Exception {
+        InMemoryEmailStorage storage = new InMemoryEmailStorage(config);
+        for (int i = 0; i < 20; i++)
+            storage.addEmail(new Email("zaphod@univer.ze", List.of("trillian@earth.planet"), "subject " + i,
+                    "data " + i));
+
+        ServerSocketChannel serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+        InetSocketAddress address = new InetSocketAddress("localhost", serverSocket.socket().getLocalPort());
+        DMAPListenerThread listener = new DMAPListenerThread(config, serverSocket, "mailbox-earth-planet", storage,
+                null);
+        listener.start();
+        List<SocketChannel> idle = new ArrayList<>();
+        try (Socket socket = new Socket(address.getHostName(), address.getPort())) {
+            socket.setTcpNoDelay(true);
+            DMAPClientHandler active = new DMAPClientHandler(
+                    new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                    new PrintWriter(socket.getOutputStream(), true));
+            active.init("trillian", "12345");
+            long[] alone = list(active);
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            int threadsBefore = threads.getThreadCount();
+            long heapBefore = usedHeap();
+
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            for (int i = 0; i < N_IDLE; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                idle.add(channel);
+                readLine(channel, buffer);
+                send(channel, "login trillian 12345");
+                if (!readLine(channel, buffer).equals("ok"))
+                    throw new AssertionError("Login refused");
+            }
+            while (listener.getSessionCount() < N_IDLE + 1)
+                Thread.sleep(10);
+
+            long heapPerSession = (usedHeap() - heapBefore) / N_IDLE;
+            int threadsAdded = threads.getThreadCount() - threadsBefore;
+            long[] crowded = list(active);
+
+            LOG.info(String.format("%d idle sessions: %d threads added, %d bytes of heap per session at both ends; "
+                            + "list latency of an active session p50 %d us p99 %d us, alone p50 %d us p99 %d us",
+                    N_IDLE, threadsAdded, heapPerSession, percentile(crowded, 50), percentile(crowded, 99),
+                    percentile(alone, 50), percentile(alone, 99)));
+            err.checkThat(threadsAdded <= 0, is(true));
+
+            // All of them are still logged in
+            for (SocketChannel channel : idle)
+                send(channel, "logout");
+            int loggedOut = 0;
+            for (SocketChannel channel : idle) {
+                if (readLine(channel, buffer).equals("ok"))
+                    loggedOut++;
+            }
+            err.checkThat(loggedOut, is(N_IDLE));
+
+            active.close();
+        } finally {
+            for (SocketChannel channel : idle)
+                channel.close();
+            serverSocket.close();
+            listener.join();
+            storage.close();
+        }
+    }
+
+    /**
+     * @return latencies of the lists, in microseconds
+     */
+    private static long[] list(DMAPClientHandler handler) throws Exception {
+        long[] micros = new long[N_LISTS];
+        for (int i = 0; i < N_LISTS; i++) {
+            long start = System.nanoTime();
+            handler.list(1, 20);
+            micros[i] = (System.nanoTime() - start) / 1000;
+        }
+        return micros;
+    }
+
+    private static void send(SocketChannel channel, String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+    }
+
+    /**
+     * Read a reply, the server sending nothing else before the next request.
+     */
+    private static String readLine(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.position() == 0 || buffer.get(buffer.position() - 1) != '\n') {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Connection closed");
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).trim();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
@@ -0,0 +1,94 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.net.ServerSocket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dslab.JunitSocketClient;
+import dslab.TestBase;
+import dslab.mailbox.storage.InMemoryEmailStorage;
+import dslab.util.Config;
+
+public class MailboxQuotaTest extends TestBase {
+
+    private final Config config = new Config("mailbox-earth-planet");
+
+    private InMemoryEmailStorage storage;
+    private ServerSocket serverSocket;
+    private DMTPListenerThread listener;
+    private EmailIngest ingest;
+
+    @After
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        listener.join();
+        ingest.close();
+        storage.close();
+    }
+
+    @Test
+    public void fullMailbox_isRefusedBeforeTheData() throws Exception {
+        start(2, MailboxQuota.UNLIMITED, MailboxQuota.UNLIMITED);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverSocket.getLocalPort(), err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            for (int i = 0; i < 2; i++) {
+                client.sendAndVerify("from zaphod@univer.ze", "ok");
+                client.sendAndVerify("to trillian@earth.planet", "ok 1");
+                client.sendAndVerify("subject quota " + i, "ok");
+                client.sendAndVerify("data hello from junit", "ok");
+                client.sendAndVerify("send", "ok");
+            }
+
+            err.checkThat(client.sendAndRead("to trillian@earth.planet,arthur@earth.planet"),
+                    is("error mailbox full trillian"));
+            // Other mailboxes still take emails
+            client.sendAndVerify("from zaphod@univer.ze", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject quota", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        err.checkThat(storage.getUserStorage("trillian").getUsage().getEmailCount(), is(2L));
+        err.checkThat(storage.getUserStorage("arthur").getUsage().getEmailCount(), is(1L));
+    }
+
+    @Test
+    public void emailBeyondTheBudget_isRefusedOnSend() throws Exception {
+        start(MailboxQuota.UNLIMITED, MailboxQuota.UNLIMITED, 200);
+
+        try (JunitSocketClient client = new JunitSocketClient(serverSocket.getLocalPort(), err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from zaphod@univer.ze", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject small", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+
+            client.sendAndVerify("from zaphod@univer.ze", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject large", "ok");
+            client.sendAndVerify("data " + "x".repeat(200), "ok");
+            err.checkThat(client.sendAndRead("send"), is("error storage full"));
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        err.checkThat(storage.getUsage().getEmailCount(), is(1L));
+    }
+
+    private void start(long maxUserEmails, long maxUserBytes, long maxTotalBytes) throws Exception {
+        storage = new InMemoryEmailStorage(config);
+        serverSocket = new ServerSocket(0);
+        ingest = new EmailIngest(storage);
+        listener = new DMTPListenerThread(config, serverSocket, ingest,
+                new MailboxQuota(storage, maxUserEmails, maxUserBytes, maxTotalBytes));
+        listener.start();
+    }
+}
@@ -0,0 +1,163 @@
+package dslab.mailbox;
+
+import static dslab.StringMatches.matchesPattern;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.ComponentFactory;
+import dslab.Constants;
+import dslab.JunitSocketClient;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.protocols.dmap.DMAPClientHandler;
+import dslab.protocols.dmap.SessionTicket;
+import dslab.util.Config;
+import dslab.util.SecurityHelper;
+
+public class MailboxResumptionTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(MailboxResumptionTest.class);
+
+    // Concurrent clients of the reconnect storm
+    private static final int N_CLIENTS = 16;
+    // Raise with -Ddslab.mailbox.reconnects=200 for a steadier measurement
+    private static final int N_RECONNECTS = Integer.getInteger("dslab.mailbox.reconnects", 10);
+
+    private int dmapServerPort;
+
+    @Before
+    public void setUp() throws Exception {
+        String componentId = "mailbox-earth-planet";
+
+        IMailboxServer component = ComponentFactory.createMailboxServer(componentId, in, out);
+        dmapServerPort = new Config(componentId).getInt("dmap.tcp.port");
+        new Thread(component).start();
+
+        Sockets.waitForSocket("localhost", dmapServerPort, Constants.COMPONENT_STARTUP_WAIT);
+        Sockets.waitForSocket("localhost", new Config(componentId).getInt("dmtp.tcp.port"),
+                Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    @Test(timeout = 15000)
+    public void ticket_resumesTheSession_andInvalidTicketsAreRefused() throws Exception {
+        SessionTicket ticket = connect(null);
+        err.checkThat(ticket, notNullValue());
+        // Resumed, and issued a new ticket
+        err.checkThat(connect(ticket), notNullValue());
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP2.0");
+            String challenge = SecurityHelper.enocdeToBase64(SecurityHelper.generateRandom(32));
+            client.sendAndVerify("resume bm90IGEgdGlja2V0 " + challenge, "error invalid ticket");
+            // Still unencrypted, a full handshake can follow
+            client.sendAndVerify("startsecure", "ok mailbox-earth-planet");
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP2.0");
+            String challenge = SecurityHelper.enocdeToBase64(SecurityHelper.generateRandom(32));
+            err.checkThat(client.sendAndRead("resume " + ticket.getTicket() + " " + challenge),
+                    matchesPattern("^ok [a-zA-Z0-9+/=]+ [a-zA-Z0-9+/=]+$"));
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void benchmark_reconnectStorm_resumedComparedToFullHandshakes() throws Exception {
+        SessionTicket ticket = connect(null);
+
+        // Warm up both
+        storm(null, 2);
+        storm(ticket, 2);
+
+        int connections = N_CLIENTS * N_RECONNECTS;
+        long handshakes = handshakes();
+        long full = storm(null, N_RECONNECTS);
+        err.checkThat(handshakes(), is(handshakes + connections));
+
+        handshakes = handshakes();
+        long resumed = storm(ticket, N_RECONNECTS);
+        // None of the resumed sessions waited for the RSA decryption on the crypto workers
+        err.checkThat(handshakes(), is(handshakes));
+
+        LOG.info(String.format("%d clients reconnecting %d times: full handshakes %d/s, resumed %d/s", N_CLIENTS,
+                N_RECONNECTS, connections * 1000000000L / full, connections * 1000000000L / resumed));
+    }
+
+    /**
+     * @return full handshakes done by the crypto workers of the server so far, from its handshakes command
+     */
+    private long handshakes() throws InterruptedException {
+        out.reset();
+        in.addLine("handshakes");
+        Matcher done = Pattern.compile("(\\d+) done").matcher(out.listen());
+        if (!done.find())
+            throw new AssertionError("No handshake statistics");
+        return Long.parseLong(done.group(1));
+    }
+
+    /**
+     * @return nanoseconds for all clients to connect and log in the given number of times
+     */
+    private long storm(SessionTicket ticket, int reconnects) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(N_CLIENTS);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> done = new ArrayList<>();
+            for (int c = 0; c < N_CLIENTS; c++) {
+                done.add(clients.submit(() -> {
+                    for (int i = 0; i < reconnects; i++)
+                        connect(ticket);
+                    return null;
+                }));
+            }
+            for (Future<?> client : done)
+                client.get();
+            return System.nanoTime() - start;
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    /**
+     * Log in and out, with a full handshake or resuming the session of a ticket.
+     * @return the ticket issued by the server
+     */
+    private SessionTicket connect(SessionTicket ticket) throws Exception {
+        try (Socket socket = new Socket("localhost", dmapServerPort)) {
+            socket.setTcpNoDelay(true);
+            DMAPClientHandler handler = new DMAPClientHandler(socket,
+                    new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                    new PrintWriter(socket.getOutputStream(), true));
+            handler.setResumable(true);
+            handler.setTicket(ticket);
+            handler.init("trillian", "12345");
+            handler.list();
+            handler.close();
+            return handler.getTicket();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package dslab.mailbox;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -87,11 +88,102 @@ public class MailboxServerProtocolTest extends TestBase {
             String listResult = client.listen();
             err.checkThat(listResult, containsString("arthur@earth.planet hello"));
 
+            client.send("show 1");
+            err.checkThat(client.read(), is("from arthur@earth.planet"));
+            err.checkThat(client.read(), is("to trillian@earth.planet"));
+            err.checkThat(client.read(), is("subject hello"));
+            err.checkThat(client.read(), is("data hello from junit"));
+            err.checkThat(client.read(), is("hash "));
+            err.checkThat(client.read(), is("ok"));
+
             client.sendAndVerify("logout", "ok");
             client.sendAndVerify("quit", "ok bye");
         }
     }
 
+    @Test(timeout = 15000)
+    public void listWithCursor_returnsOnePageInIdOrder() throws Exception {
+        deliverToTrillian(3);
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("list 2 1");
+            err.checkThat(client.read(), is("2 arthur@earth.planet page2"));
+            err.checkThat(client.read(), is("ok"));
+
+            client.send("list 2 10");
+            err.checkThat(client.read(), is("2 arthur@earth.planet page2"));
+            err.checkThat(client.read(), is("3 arthur@earth.planet page3"));
+            err.checkThat(client.read(), is("ok"));
+
+            // Past the end: an empty page
+            client.sendAndVerify("list 4 10", "ok");
+
+            client.sendAndVerify("list two 10", "error protocol error");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void fetch_returnsFramedRecordsInOneResponse() throws Exception {
+        deliverToTrillian(3);
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("fetch 2-5");
+            for (int i = 2; i <= 3; i++) {
+                err.checkThat(client.read(), is("email " + i + " 5"));
+                err.checkThat(client.read(), is("from arthur@earth.planet"));
+                err.checkThat(client.read(), is("to trillian@earth.planet"));
+                err.checkThat(client.read(), is("subject page" + i));
+                err.checkThat(client.read(), is("data hello from junit"));
+                err.checkThat(client.read(), is("hash "));
+            }
+            err.checkThat(client.read(), is("ok"));
+
+            // Unknown ids are skipped
+            client.send("fetch 3,7,1");
+            err.checkThat(client.read(), is("email 3 5"));
+            for (int i = 0; i < 5; i++)
+                client.read();
+            err.checkThat(client.read(), is("email 1 5"));
+            for (int i = 0; i < 5; i++)
+                client.read();
+            err.checkThat(client.read(), is("ok"));
+
+            client.sendAndVerify("fetch 1,x", "error protocol error");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void search_returnsIdsOfMatchingEmails() throws Exception {
+        deliverToTrillian(3);
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("search hello", "error not logged in");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            // Indexed in the background, shortly after delivery
+            String found = client.sendAndRead("search hello");
+            for (int i = 0; i < 50 && !found.equals("ok 1 2 3"); i++) {
+                Thread.sleep(100);
+                found = client.sendAndRead("search hello");
+            }
+            err.checkThat(found, is("ok 1 2 3"));
+            err.checkThat(client.sendAndRead("search PAGE2 Junit"), is("ok 2"));
+            err.checkThat(client.sendAndRead("search vogon"), is("ok"));
+
+            client.sendAndVerify("delete 2", "ok");
+            err.checkThat(client.sendAndRead("search arthur@earth.planet"), is("ok 1 3"));
+
+            client.sendAndVerify("search", "error protocol error");
+        }
+    }
+
     @Test(timeout = 15000)
     public void dmtpMessage_withUnknownRecipient_returnsError() throws Exception {
 
@@ -105,4 +197,19 @@ public class MailboxServerProtocolTest extends TestBase {
         }
     }
 
+    private void deliverToTrillian(int nEmails) throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            for (int i = 1; i <= nEmails; i++) {
+                client.sendAndVerify("from arthur@earth.planet", "ok");
+                client.sendAndVerify("to trillian@earth.planet", "ok 1");
+                client.sendAndVerify("subject page" + i, "ok");
+                client.sendAndVerify("data hello from junit", "ok");
+                client.sendAndVerify("send", "ok");
+            }
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
 }
@@ -0,0 +1,354 @@
+package dslab.mailbox.storage;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.protocols.dmtp.DmtpFormatCodec;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+
+public class InMemoryEmailStorageTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(InMemoryEmailStorageTest.class);
+
+    // Raise with -Ddslab.storage.indexEmails=10000000 (and a larger heap) for the full size measurement
+    private static final int N_EMAILS = Integer.getInteger("dslab.storage.indexEmails", 200_000);
+    // Raise with -Ddslab.storage.snapshotBytes=5368709120 (and -XX:MaxDirectMemorySize) for the startup measurement
+    private static final long SNAPSHOT_BYTES = Long.getLong("dslab.storage.snapshotBytes", 32L << 20);
+    private static final List<String> USERS = List.of("trillian", "arthur");
+
+    @Test
+    public void deletedEmails_areRemovedFromIndexAndArena() throws Exception {
+        int nEmails = 5000;
+        InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS);
+        IUserEmails arthur = storage.getUserStorage("arthur");
+        for (int i = 1; i <= nEmails; i++)
+            storage.addEmail(email(i));
+
+        // Every other one, so that entries are removed from the middle of the probe sequences
+        for (int i = 1; i <= nEmails; i += 2)
+            err.checkThat(arthur.deleteEmail(i).subject, is("subject " + i));
+
+        err.checkThat(arthur.getUserEmail(1), is(nullValue()));
+        err.checkThat(arthur.getUserEmail(nEmails).subject, is("subject " + nEmails));
+        List<Integer> ids = arthur.getUserEmails().stream().map(Map.Entry::getKey).collect(Collectors.toList());
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 2; i <= nEmails; i += 2)
+            expected.add(i);
+        err.checkThat(ids, is(expected));
+
+        for (int i = 2; i <= nEmails; i += 2)
+            arthur.deleteEmail(i);
+        err.checkThat(arthur.getUserEmails().isEmpty(), is(true));
+        err.checkThat(storage.getBodyCount(), is(0));
+        // Only the chunk being filled is kept
+        err.checkThat(storage.getOffHeapBytes() <= OffHeapArena.CHUNK_SIZE, is(true));
+    }
+
+    @Test
+    public void survivingEmails_countTheChunksTheyPin() throws Exception {
+        InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS);
+        IUserEmails arthur = storage.getUserStorage("arthur");
+        int nEmails = 0;
+        while (storage.getOffHeapBytes() < 3 * OffHeapArena.CHUNK_SIZE)
+            storage.addEmail(email(++nEmails));
+        err.checkThat(storage.getUsage().getUnusableBytes() < OffHeapArena.CHUNK_SIZE, is(true));
+
+        // The first email keeps the first chunk, nothing else is freed
+        for (int i = 2; i <= nEmails; i++)
+            arthur.deleteEmail(i);
+
+        StorageUsage usage = storage.getUsage();
+        err.checkThat(usage.getEmailCount(), is(1L));
+        err.checkThat(usage.getUnusableBytes() > OffHeapArena.CHUNK_SIZE - 2 * usage.getBytes(), is(true));
+
+        arthur.deleteEmail(1);
+        err.checkThat(usage.getUnusableBytes() < OffHeapArena.CHUNK_SIZE, is(true));
+        err.checkThat(storage.getOffHeapBytes() <= OffHeapArena.CHUNK_SIZE, is(true));
+    }
+
+    @Test
+    public void usage_countsEmailsOfEachUser_andSharedBodiesOnce() throws Exception {
+        InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS);
+        Email shared = new Email("zaphod@univer.ze", List.of("arthur@earth.planet", "trillian@earth.planet"),
+                "subject", "data");
+        long size = DmtpFormatCodec.encodedLength(shared);
+        storage.addEmail(shared);
+        storage.addEmail(email(2));
+
+        StorageUsage arthur = storage.getUserStorage("arthur").getUsage();
+        err.checkThat(arthur.getEmailCount(), is(2L));
+        err.checkThat(arthur.getBytes(), is(size + DmtpFormatCodec.encodedLength(email(2))));
+        err.checkThat(storage.getUserStorage("trillian").getUsage().getBytes(), is(size));
+        err.checkThat(storage.getUsage().getBytes(), is(arthur.getBytes()));
+
+        storage.getUserStorage("arthur").deleteEmail(1);
+        storage.getUserStorage("arthur").deleteEmail(2);
+        err.checkThat(arthur.getEmailCount(), is(0L));
+        err.checkThat(arthur.getBytes(), is(0L));
+        // Still referenced by trillian
+        err.checkThat(storage.getUsage().getEmailCount(), is(1L));
+        err.checkThat(storage.getUsage().getBytes(), is(size));
+    }
+
+    @Test(timeout = 60000)
+    public void pages_followIdOrder_andCostLessThanFullList() throws Exception {
+        int nEmails = N_EMAILS / 2;
+        InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS);
+        IUserEmails arthur = storage.getUserStorage("arthur");
+        for (int i = 1; i <= nEmails; i++)
+            storage.addEmail(email(i));
+        for (int i = 1; i <= nEmails; i += 3)
+            arthur.deleteEmail(i);
+        // The search index decodes the emails it indexes too
+        storage.awaitIndexed();
+
+        err.checkThat(ids(arthur.getUserEmails(1, 5)), is(List.of(2, 3, 5, 6, 8)));
+        err.checkThat(ids(arthur.getUserEmails(7, 3)), is(List.of(8, 9, 11)));
+        err.checkThat(arthur.getUserEmails(nEmails + 1, 10).isEmpty(), is(true));
+
+        long start = System.nanoTime();
+        int listed = 0;
+        for (int fromId = 1; ; ) {
+            List<Map.Entry<Integer, Email>> page = arthur.getUserEmails(fromId, 100);
+            if (page.isEmpty())
+                break;
+            listed += page.size();
+            fromId = page.get(page.size() - 1).getKey() + 1;
+        }
+        long paged = System.nanoTime() - start;
+
+        long decoded = storage.getDecodedCount();
+        start = System.nanoTime();
+        arthur.getUserEmails(1, 100);
+        long firstPage = System.nanoTime() - start;
+        long firstPageDecoded = storage.getDecodedCount() - decoded;
+
+        decoded = storage.getDecodedCount();
+        start = System.nanoTime();
+        List<Map.Entry<Integer, Email>> copied = List.copyOf(arthur.getUserEmails());
+        long full = System.nanoTime() - start;
+        long fullDecoded = storage.getDecodedCount() - decoded;
+
+        LOG.info(String.format("Mailbox of %d emails: first page %d us, all pages %d ms, full copy %d ms",
+                copied.size(), firstPage / 1000, paged / 1000000, full / 1000000));
+        err.checkThat(listed, is(copied.size()));
+        // A page decodes its own emails only
+        err.checkThat(firstPageDecoded, is(100L));
+        err.checkThat(fullDecoded, is((long) copied.size()));
+    }
+
+    @Test(timeout = 60000)
+    public void search_findsEmailsWithAllTerms_andSkipsDeletedOnes() throws Exception {
+        int nEmails = N_EMAILS / 10;
+        InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS);
+        IUserEmails arthur = storage.getUserStorage("arthur");
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= nEmails; i++) {
+            String data = i % 10 == 0 ? "Don't forget your towel, day " + i : "data of the email number " + i;
+            storage.addEmail(new Email("zaphod@univer.ze", List.of("arthur@earth.planet"), "subject " + i, data));
+        }
+        long ingest = System.nanoTime() - start;
+        storage.awaitIndexed();
+        long indexed = System.nanoTime() - start;
+
+        SearchIndex index = ((InMemoryUserEmails) arthur).getSearchIndex();
+        LOG.info(String.format("%d emails added in %d ms and indexed after %d ms: %d terms, %d postings in %d bytes",
+                nEmails, ingest / 1000000, indexed / 1000000, index.getTermCount(), index.getPostingCount(),
+                index.getPostingBytes()));
+        // Mostly consecutive ids, a byte each
+        err.checkThat(index.getPostingBytes() < index.getPostingCount() * 3 / 2, is(true));
+
+        err.checkThat(arthur.search("TOWEL day").size(), is(nEmails / 10));
+        err.checkThat(arthur.search("subject 20"), is(List.of(20)));
+        err.checkThat(arthur.search("zaphod@univer.ze towel 30"), is(List.of(30)));
+        err.checkThat(arthur.search("vogon").isEmpty(), is(true));
+        err.checkThat(arthur.search(" ,.").isEmpty(), is(true));
+
+        // More than half of them, so that the postings are purged
+        long postings = index.getPostingCount();
+        arthur.deleteEmail(20);
+        for (int i = 1; i <= nEmails; i += 2)
+            arthur.deleteEmail(i);
+        err.checkThat(arthur.search("subject 20").isEmpty(), is(true));
+        err.checkThat(arthur.search("towel").size(), is(nEmails / 10 - 1));
+        err.checkThat(arthur.search("subject").size(), is(nEmails / 2 - 1));
+        err.checkThat(index.getPostingCount() < postings * 6 / 10, is(true));
+        storage.close();
+    }
+
+    @Test
+    public void snapshot_restoresMailboxesIdsAndSharedBodies() throws Exception {
+        Path file = Files.createTempFile("dslab-snapshot", ".bin");
+        try {
+            Email shared = new Email("zaphod@univer.ze", List.of("arthur@earth.planet", "trillian@earth.planet"),
+                    "towel", "shared by both");
+            InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS);
+            storage.addEmail(shared);
+            for (int i = 2; i <= 5; i++)
+                storage.addEmail(email(i));
+            storage.getUserStorage("arthur").deleteEmail(3);
+            storage.getUserStorage("arthur").deleteEmail(5);
+            err.checkThat(storage.writeSnapshot(file), is(4L));
+            storage.close();
+
+            InMemoryEmailStorage restored = new InMemoryEmailStorage("earth.planet", USERS);
+            err.checkThat(restored.loadSnapshot(file), is(4L));
+            IUserEmails arthur = restored.getUserStorage("arthur");
+            err.checkThat(ids(arthur.getUserEmails(1, 10)), is(List.of(1, 2, 4)));
+            err.checkThat(arthur.getUserEmail(4).data, is("data of the email number 4"));
+            err.checkThat(restored.getUserStorage("trillian").getUserEmail(1).subject, is("towel"));
+            err.checkThat(restored.getBodyCount(), is(3));
+            err.checkThat(arthur.getUsage().getEmailCount(), is(3L));
+            err.checkThat(restored.getUsage().getBytes(), is(storage.getUsage().getBytes()));
+
+            // Ids go on after the deleted ones, the shared body is still deduplicated and released by both
+            restored.addEmail(email(6));
+            err.checkThat(ids(arthur.getUserEmails(5, 10)), is(List.of(6)));
+            restored.addEmail(shared);
+            err.checkThat(restored.getBodyCount(), is(4));
+            restored.awaitIndexed();
+            err.checkThat(arthur.search("towel"), is(List.of(1, 7)));
+            arthur.deleteEmail(1);
+            arthur.deleteEmail(7);
+            restored.getUserStorage("trillian").deleteEmail(1);
+            err.checkThat(restored.getBodyCount(), is(4));
+            restored.getUserStorage("trillian").deleteEmail(2);
+            err.checkThat(restored.getBodyCount(), is(3));
+            restored.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void configuredSnapshot_isWrittenOnClose_andLoadedOnStartup() throws Exception {
+        Path directory = Files.createTempDirectory("dslab-snapshot");
+        Path file = directory.resolve("snapshot.bin");
+        try {
+            Config config = new Config("mailbox-earth-planet");
+            config.setProperty("snapshot.file", file.toString());
+
+            InMemoryEmailStorage storage = new InMemoryEmailStorage(config);
+            storage.addEmail(email(1));
+            storage.close();
+
+            storage = new InMemoryEmailStorage(config);
+            err.checkThat(storage.getUserStorage("arthur").getUserEmail(1).subject, is("subject 1"));
+            storage.close();
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test(timeout = 300000)
+    public void benchmark_snapshotWriteAndStartup() throws Exception {
+        Path file = Files.createTempFile("dslab-snapshot", ".bin");
+        try {
+            String data = "x".repeat(4000);
+            int nEmails = (int) (SNAPSHOT_BYTES / 4096);
+            InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS, closedIndexer());
+            for (int i = 1; i <= nEmails; i++)
+                storage.addEmail(new Email("zaphod@univer.ze", List.of("arthur@earth.planet"), "subject " + i,
+                        data + i));
+
+            long start = System.nanoTime();
+            storage.writeSnapshot(file);
+            long written = System.nanoTime() - start;
+            storage = null;
+            System.gc();
+
+            InMemoryEmailStorage restored = new InMemoryEmailStorage("earth.planet", USERS, closedIndexer());
+            start = System.nanoTime();
+            long loaded = restored.loadSnapshot(file);
+            long startup = System.nanoTime() - start;
+
+            LOG.info(String.format("Snapshot of %d emails, %d MB: written in %d ms, loaded in %d ms (%d MB/s)",
+                    nEmails, Files.size(file) >> 20, written / 1000000, startup / 1000000,
+                    (Files.size(file) >> 20) * 1000000000L / Math.max(1, startup)));
+            err.checkThat(loaded, is((long) nEmails));
+            err.checkThat(restored.getUserStorage("arthur").getUserEmail(nEmails).data, is(data + nEmails));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(timeout = 300000)
+    public void benchmark_heapPerEmail_comparedToBoxedMap() throws Exception {
+        long before = usedHeap();
+        Map<Integer, Email> boxed = new ConcurrentHashMap<>();
+        for (int i = 1; i <= N_EMAILS; i++)
+            boxed.put(i, email(i));
+        long boxedHeap = usedHeap() - before;
+        err.checkThat(boxed.size(), is(N_EMAILS));
+        boxed = null;
+
+        // The mailboxes alone, the indexer is closed so that nothing is indexed for search
+        SearchIndexer closed = new SearchIndexer();
+        closed.close();
+        before = usedHeap();
+        InMemoryEmailStorage storage = new InMemoryEmailStorage("earth.planet", USERS, closed);
+        for (int i = 1; i <= N_EMAILS; i++)
+            storage.addEmail(email(i));
+        long indexedHeap = usedHeap() - before;
+        err.checkThat(storage.getUserStorage("arthur").getUserEmail(N_EMAILS).subject, is("subject " + N_EMAILS));
+        long offHeap = storage.getOffHeapBytes();
+        storage = null;
+
+        before = usedHeap();
+        storage = new InMemoryEmailStorage("earth.planet", USERS);
+        for (int i = 1; i <= N_EMAILS; i++)
+            storage.addEmail(email(i));
+        storage.awaitIndexed();
+        long searchableHeap = usedHeap() - before;
+        storage.close();
+
+        LOG.info(String.format("%d emails: boxed map %d bytes of heap per email, primitive index %d bytes of heap "
+                        + "and %d bytes off-heap per email, %d bytes of heap with the search index",
+                N_EMAILS, boxedHeap / N_EMAILS, indexedHeap / N_EMAILS, offHeap / N_EMAILS,
+                searchableHeap / N_EMAILS));
+        err.checkThat(indexedHeap * 2 < boxedHeap, is(true));
+    }
+
+    /**
+     * @return an indexer that indexes nothing
+     */
+    private static SearchIndexer closedIndexer() {
+        SearchIndexer indexer = new SearchIndexer();
+        indexer.close();
+        return indexer;
+    }
+
+    private static List<Integer> ids(List<Map.Entry<Integer, Email>> page) {
+        return page.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Email email(int i) {
+        return new Email("zaphod@univer.ze", List.of("arthur@earth.planet"), "subject " + i,
+                "data of the email number " + i);
+    }
+}
@@ -0,0 +1,424 @@
+package dslab.mailbox.storage;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.protocols.dmtp.DmtpFormatCodec;
+import dslab.protocols.dmtp.Email;
+import dslab.util.Config;
+
+public class LogEmailStorageTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(LogEmailStorageTest.class);
+
+    // Raise with -Ddslab.storage.emails=1000000 for the full size benchmark
+    private static final int N_EMAILS = Integer.getInteger("dslab.storage.emails", 50_000);
+    private static final int N_WRITERS = 8;
+    private static final long SEGMENT_SIZE = 64 * 1024;
+    private static final int N_RECIPIENTS = 500;
+    // Size of the email data for the show benchmark
+    private static final int SHOW_SIZE = Integer.getInteger("dslab.storage.showSize", 10 * 1024 * 1024);
+    private static final List<String> USERS = List.of("trillian", "arthur");
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("dslab-storage");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void emailsAndDeletions_surviveRestart() throws Exception {
+        try (LogEmailStorage storage = open()) {
+            storage.addEmail(email(1, "arthur@earth.planet", "trillian@earth.planet", "zaphod@univer.ze"));
+            storage.addEmail(email(2, "arthur@earth.planet"));
+            err.checkThat(storage.getUserStorage("arthur").deleteEmail(1).subject, is("subject 1"));
+        }
+
+        try (LogEmailStorage storage = open()) {
+            IUserEmails arthur = storage.getUserStorage("arthur");
+            err.checkThat(subjects(arthur), is(List.of("subject 2")));
+            err.checkThat(arthur.getUserEmail(1), is(nullValue()));
+            err.checkThat(arthur.getUserEmail(2).recipients, is(List.of("arthur@earth.planet")));
+            err.checkThat(subjects(storage.getUserStorage("trillian")), is(List.of("subject 1")));
+
+            // Ids are not reused after a restart
+            storage.addEmail(email(3, "arthur@earth.planet"));
+            err.checkThat(arthur.getUserEmail(3).subject, is("subject 3"));
+        }
+    }
+
+    @Test
+    public void usage_countsEmailsOfEachUser_andSharedBodiesOnce_acrossRestart() throws Exception {
+        Email shared = email(1, "arthur@earth.planet", "trillian@earth.planet");
+        Email own = email(2, "arthur@earth.planet");
+        long sharedSize = DmtpFormatCodec.encode(shared).length;
+        long ownSize = DmtpFormatCodec.encode(own).length;
+        err.checkThat((long) DmtpFormatCodec.encodedLength(shared), is(sharedSize));
+
+        try (LogEmailStorage storage = open()) {
+            storage.addEmail(shared);
+            storage.addEmail(own);
+            err.checkThat(usage(storage.getUserStorage("arthur").getUsage()), is(List.of(2L, sharedSize + ownSize)));
+            err.checkThat(usage(storage.getUserStorage("trillian").getUsage()), is(List.of(1L, sharedSize)));
+            err.checkThat(usage(storage.getUsage()), is(List.of(2L, sharedSize + ownSize)));
+        }
+
+        try (LogEmailStorage storage = open()) {
+            err.checkThat(usage(storage.getUserStorage("arthur").getUsage()), is(List.of(2L, sharedSize + ownSize)));
+            err.checkThat(usage(storage.getUsage()), is(List.of(2L, sharedSize + ownSize)));
+
+            storage.getUserStorage("arthur").deleteEmail(1);
+            storage.getUserStorage("arthur").deleteEmail(2);
+            err.checkThat(usage(storage.getUserStorage("arthur").getUsage()), is(List.of(0L, 0L)));
+            // Still referenced by trillian
+            err.checkThat(usage(storage.getUsage()), is(List.of(1L, sharedSize)));
+        }
+    }
+
+    @Test
+    public void searchIndex_isRebuiltOnRecovery() throws Exception {
+        try (LogEmailStorage storage = open()) {
+            IUserEmails arthur = storage.getUserStorage("arthur");
+            storage.addEmail(new Email("zaphod@univer.ze", List.of("arthur@earth.planet"), "Towel", "bring one"));
+            storage.addEmail(email(2, "arthur@earth.planet"));
+            storage.addEmail(new Email("zaphod@univer.ze", List.of("arthur@earth.planet"), "again", "a towel"));
+            storage.awaitIndexed();
+            err.checkThat(arthur.search("towel"), is(List.of(1, 3)));
+
+            arthur.deleteEmail(3);
+            err.checkThat(arthur.search("towel"), is(List.of(1)));
+        }
+
+        try (LogEmailStorage storage = open()) {
+            storage.awaitIndexed();
+            err.checkThat(storage.getUserStorage("arthur").search("towel"), is(List.of(1)));
+            err.checkThat(storage.getUserStorage("arthur").search("zaphod"), is(List.of(1, 2)));
+            err.checkThat(storage.getUserStorage("trillian").search("towel").isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void tornRecord_isCutOffOnRecovery() throws Exception {
+        try (LogEmailStorage storage = open()) {
+            storage.addEmail(email(1, "arthur@earth.planet"));
+            storage.addEmail(email(2, "arthur@earth.planet"));
+        }
+
+        // Header of a record whose payload never made it to disk
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(p -> p.getFileName().toString().startsWith("segment-")).findFirst().get();
+        }
+        Files.write(segment, new byte[]{0, 0, 1, 0, 42, 42, 42, 42, 1, 2}, StandardOpenOption.APPEND);
+
+        try (LogEmailStorage storage = open()) {
+            err.checkThat(subjects(storage.getUserStorage("arthur")), is(List.of("subject 1", "subject 2")));
+            storage.addEmail(email(3, "arthur@earth.planet"));
+        }
+
+        try (LogEmailStorage storage = open()) {
+            err.checkThat(subjects(storage.getUserStorage("arthur")),
+                    is(List.of("subject 1", "subject 2", "subject 3")));
+        }
+    }
+
+    @Test
+    public void compaction_dropsDeletedEmails() throws Exception {
+        int nEmails = 2000;
+        try (LogEmailStorage storage = open()) {
+            IUserEmails arthur = storage.getUserStorage("arthur");
+            for (int i = 1; i <= nEmails; i++)
+                storage.addEmail(email(i, "arthur@earth.planet"));
+            int segmentsBefore = storage.getSegmentCount();
+
+            // Keep every tenth email
+            for (int i = 1; i <= nEmails; i++) {
+                if (i % 10 != 0)
+                    arthur.deleteEmail(i);
+            }
+            storage.compact();
+            storage.compact();
+
+            LOG.info("Segments before compaction " + segmentsBefore + ", after " + storage.getSegmentCount());
+            err.checkThat(storage.getSegmentCount() * 2 < segmentsBefore, is(true));
+            err.checkThat(arthur.getUserEmails().size(), is(nEmails / 10));
+            err.checkThat(arthur.getUserEmail(10).subject, is("subject 10"));
+        }
+
+        try (LogEmailStorage storage = open()) {
+            IUserEmails arthur = storage.getUserStorage("arthur");
+            err.checkThat(arthur.getUserEmails().size(), is(nEmails / 10));
+            err.checkThat(arthur.getUserEmail(nEmails).subject, is("subject " + nEmails));
+            err.checkThat(arthur.getUserEmail(nEmails - 1), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void compaction_dropsTombstonesOfCompactedEmails() throws Exception {
+        int nKept = 500;
+        int nPerRound = 500;
+        int nRounds = 10;
+        int id = 0;
+        // Emails that are never deleted keep the oldest segments alive
+        try (LogEmailStorage storage = open()) {
+            for (; id < nKept; id++)
+                storage.addEmail(email(id, "arthur@earth.planet"));
+        }
+
+        List<Integer> tombstones = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (int round = 0; round < nRounds; round++) {
+            try (LogEmailStorage storage = open()) {
+                IUserEmails arthur = storage.getUserStorage("arthur");
+                int first = id;
+                for (; id < first + nPerRound; id++)
+                    storage.addEmail(email(id, "arthur@earth.planet"));
+                for (Map.Entry<Integer, Email> email : arthur.getUserEmails()) {
+                    if (email.getKey() > nKept)
+                        arthur.deleteEmail(email.getKey());
+                }
+                storage.compact();
+                storage.compact();
+            }
+            tombstones.add(countRecords(LogEmailStorage.DELETE));
+            sizes.add(logSize());
+        }
+
+        LOG.info("Tombstones after each round " + tombstones + ", log bytes " + sizes);
+        for (int round = 0; round < nRounds; round++) {
+            // The tombstones of the last round or two, whose emails may still be in segments not compacted yet
+            err.checkThat(tombstones.get(round) <= 2 * nPerRound, is(true));
+            // Growing only until the active segment rolls over
+            err.checkThat(sizes.get(round) <= sizes.get(0) + SEGMENT_SIZE, is(true));
+        }
+
+        try (LogEmailStorage storage = open()) {
+            err.checkThat(storage.getUserStorage("arthur").getUserEmails().size(), is(nKept));
+        }
+    }
+
+    @Test
+    public void emailToManyRecipients_storesOneBody() throws Exception {
+        List<String> users = new ArrayList<>();
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < N_RECIPIENTS; i++) {
+            users.add("user" + i);
+            recipients.add("user" + i + "@earth.planet");
+        }
+        Email email = new Email("zaphod@univer.ze", recipients, "subject", "data");
+
+        InMemoryEmailStorage memory = new InMemoryEmailStorage("earth.planet", users);
+        memory.addEmail(email);
+        err.checkThat(memory.getBodyCount(), is(1));
+        err.checkThat(memory.getUserStorage("user7").getUserEmail(1).subject, is("subject"));
+        for (String user : users)
+            memory.getUserStorage(user).deleteEmail(1);
+        err.checkThat(memory.getBodyCount(), is(0));
+
+        try (LogEmailStorage storage = new LogEmailStorage(directory, "earth.planet", users, SEGMENT_SIZE)) {
+            storage.addEmail(email);
+            // Delivered again, e.g. retried by a transfer server
+            storage.addEmail(email);
+            err.checkThat(storage.getBodyCount(), is(1));
+            storage.getUserStorage("user0").deleteEmail(1);
+        }
+
+        try (LogEmailStorage storage = new LogEmailStorage(directory, "earth.planet", users, SEGMENT_SIZE)) {
+            err.checkThat(storage.getBodyCount(), is(1));
+            err.checkThat(storage.getUserStorage("user0").getUserEmails().size(), is(1));
+            err.checkThat(storage.getUserStorage("user7").getUserEmail(2).subject, is("subject"));
+
+            for (String user : users) {
+                storage.getUserStorage(user).deleteEmail(1);
+                storage.getUserStorage(user).deleteEmail(2);
+            }
+            err.checkThat(storage.getBodyCount(), is(0));
+        }
+    }
+
+    @Test(timeout = 300000)
+    public void benchmark_ingestAndRecovery_comparedToMemory() throws Exception {
+        Config config = new Config("mailbox-earth-planet");
+
+        long memoryIngest = ingest(new InMemoryEmailStorage(config));
+
+        long logIngest;
+        try (LogEmailStorage storage = new LogEmailStorage(directory, "earth.planet", USERS,
+                LogEmailStorage.DEFAULT_SEGMENT_SIZE)) {
+            logIngest = ingest(storage);
+        }
+
+        long start = System.currentTimeMillis();
+        try (LogEmailStorage storage = new LogEmailStorage(directory, "earth.planet", USERS,
+                LogEmailStorage.DEFAULT_SEGMENT_SIZE)) {
+            long recovery = System.currentTimeMillis() - start;
+            err.checkThat(storage.getUserStorage("arthur").getUserEmails().size(), is(N_EMAILS));
+
+            LOG.info(String.format("%d emails by %d writers: memory %d ms (%.0f/s), log %d ms (%.0f/s), "
+                            + "log recovery %d ms; memory storage loses everything on restart",
+                    N_EMAILS, N_WRITERS, memoryIngest, N_EMAILS * 1000.0 / Math.max(1, memoryIngest),
+                    logIngest, N_EMAILS * 1000.0 / Math.max(1, logIngest), recovery));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void benchmark_showLargeEmail_allocations() throws Exception {
+        char[] data = new char[SHOW_SIZE];
+        Arrays.fill(data, 'x');
+        Email large = new Email("zaphod@univer.ze", List.of("arthur@earth.planet"), "large", new String(data));
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        WritableByteChannel socket = new DiscardingChannel();
+
+        try (LogEmailStorage storage = open()) {
+            storage.addEmail(large);
+            IUserEmails arthur = storage.getUserStorage("arthur");
+            // Warm up, maps the segment
+            arthur.getUserEmailText(1);
+
+            // As show was served before: the email decoded, printed and encoded by the writer
+            long before = threads.getThreadAllocatedBytes(thread);
+            String printed = arthur.getUserEmail(1).printToDmtpFormat();
+            socket.write(ByteBuffer.wrap(printed.getBytes(StandardCharsets.UTF_8)));
+            long copied = threads.getThreadAllocatedBytes(thread) - before;
+
+            before = threads.getThreadAllocatedBytes(thread);
+            ByteBuffer text = arthur.getUserEmailText(1);
+            while (text.hasRemaining())
+                socket.write(text);
+            long mapped = threads.getThreadAllocatedBytes(thread) - before;
+
+            LOG.info(String.format("show of a %d MB email allocates %d KB printed, %d KB from the mapped segment",
+                    SHOW_SIZE >> 20, copied >> 10, mapped >> 10));
+            err.checkThat(mapped * 100 < copied, is(true));
+
+            byte[] expected = (large.printToDmtpFormat() + "\n").getBytes(StandardCharsets.UTF_8);
+            err.checkThat(arthur.getUserEmailText(1).equals(ByteBuffer.wrap(expected)), is(true));
+        }
+    }
+
+    private LogEmailStorage open() throws Exception {
+        return new LogEmailStorage(directory, "earth.planet", USERS, SEGMENT_SIZE);
+    }
+
+    /**
+     * @return records of the given type in the segments of a closed storage
+     */
+    private int countRecords(byte type) throws Exception {
+        int[] count = {0};
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.filter(path -> path.toString().endsWith(".log")).collect(Collectors.toList())) {
+                LogSegment.open(path, 0, (segment, position, payload) -> {
+                    if (payload.get() == type)
+                        count[0]++;
+                }).close();
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * @return bytes of all segments of a closed storage
+     */
+    private long logSize() throws Exception {
+        long size = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.filter(path -> path.toString().endsWith(".log")).collect(Collectors.toList()))
+                size += Files.size(path);
+        }
+        return size;
+    }
+
+    /**
+     * Store N_EMAILS to arthur from N_WRITERS threads, like concurrent DMTP sessions.
+     * @return the elapsed time in ms
+     */
+    private static long ingest(IEmailStorage storage) throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(N_WRITERS);
+        long start = System.currentTimeMillis();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int w = 0; w < N_WRITERS; w++) {
+                int writer = w;
+                results.add(writers.submit(() -> {
+                    for (int i = writer; i < N_EMAILS; i += N_WRITERS)
+                        storage.addEmail(email(i, "arthur@earth.planet"));
+                }));
+            }
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            writers.shutdownNow();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static List<Long> usage(StorageUsage usage) {
+        return List.of(usage.getEmailCount(), usage.getBytes());
+    }
+
+    private static List<String> subjects(IUserEmails userEmails) {
+        Set<String> subjects = userEmails.getUserEmails().stream()
+                .map(entry -> entry.getValue().subject).collect(Collectors.toSet());
+        return subjects.stream().sorted().collect(Collectors.toList());
+    }
+
+    private static class DiscardingChannel implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static Email email(int i, String... recipients) {
+        return new Email("zaphod@univer.ze", List.of(recipients), "subject " + i, "data " + i);
+    }
+}
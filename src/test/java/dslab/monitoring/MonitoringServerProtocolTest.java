@@ -1,6 +1,7 @@
 package dslab.monitoring;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 import java.net.DatagramPacket;
@@ -16,6 +17,7 @@ import org.junit.Test;
 import dslab.ComponentFactory;
 import dslab.Constants;
 import dslab.TestBase;
+import dslab.transfer.TelemetrySender;
 import dslab.util.Config;
 
 /**
@@ -89,4 +91,29 @@ public class MonitoringServerProtocolTest extends TestBase {
         assertThat(output, containsString("127.0.0.1:42 2"));
         assertThat(output, containsString("127.0.0.1:43 1"));
     }
+
+    @Test(timeout = 15000)
+    public void recordsOfTelemetrySender_areCountedFromBatchedPackets() throws Exception {
+        int nRecords = 300;
+        LOG.info("Sending " + nRecords + " records through the telemetry sender");
+
+        try (TelemetrySender sender = new TelemetrySender(addr.getHostString(), addr.getPort())) {
+            for (int i = 0; i < nRecords; i++)
+                sender.record("127.0.0.1:" + (42 + i % 2) + " foo" + i % 3 + "@example.com");
+
+            Thread.sleep(2500);
+            LOG.info(nRecords + " records sent in " + sender.getDatagrams() + " datagrams");
+            err.checkThat(sender.getDropped(), is(0L));
+            err.checkThat(sender.getDatagrams() < nRecords / 10, is(true));
+        }
+
+        in.addLine("addresses");
+        in.addLine("servers");
+        Thread.sleep(2500);
+        String output = String.join(",", out.getLines());
+        assertThat(output, containsString("foo0@example.com 100"));
+        assertThat(output, containsString("foo2@example.com 100"));
+        assertThat(output, containsString("127.0.0.1:42 150"));
+        assertThat(output, containsString("127.0.0.1:43 150"));
+    }
 }
@@ -0,0 +1,89 @@
+package dslab.naming;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import dslab.nameserver.NameserverRemote;
+
+/**
+ * Checks recursive resolution on a hierarchy of nameserver remote objects, without RMI in between.
+ */
+public class NameserverRemoteTest {
+
+    @Rule
+    public ErrorCollector err = new ErrorCollector();
+
+    private NameserverRemote root;
+    private CountingNameserverRemote planet;
+    private CountingNameserverRemote ze;
+
+    @Before
+    public void setUp() throws Exception {
+        root = new NameserverRemote();
+        planet = new CountingNameserverRemote();
+        ze = new CountingNameserverRemote();
+
+        root.registerNameserver("planet", planet);
+        root.registerNameserver("ze", ze);
+        root.registerNameserver("earth.planet", new NameserverRemote());
+        root.registerMailboxServer("earth.planet", "127.0.0.1:10462");
+        root.registerMailboxServer("univer.ze", "127.0.0.1:10472");
+        root.registerMailboxServer("vienna.earth.planet", "127.0.0.1:10482");
+    }
+
+    @Test
+    public void resolve_walksTheZonesOnTheServerSide() throws Exception {
+        err.checkThat(root.resolve("earth.planet"), is("127.0.0.1:10462"));
+        err.checkThat(root.resolve("Vienna.Earth.Planet"), is("127.0.0.1:10482"));
+        err.checkThat(root.resolve("unknown.planet"), nullValue());
+        err.checkThat(root.resolve("earth.unknown"), nullValue());
+    }
+
+    @Test
+    public void resolveAll_forwardsOneRequestPerChildZone() throws Exception {
+        Map<String, String> addresses =
+                root.resolveAll(List.of("earth.planet", "vienna.earth.planet", "univer.ze", "unknown.ze"));
+
+        err.checkThat(addresses, is(Map.of(
+                "earth.planet", "127.0.0.1:10462",
+                "vienna.earth.planet", "127.0.0.1:10482",
+                "univer.ze", "127.0.0.1:10472")));
+        err.checkThat(planet.nCalls.get(), is(1));
+        err.checkThat(ze.nCalls.get(), is(1));
+    }
+
+    @Test
+    public void answersOfChildZones_areMemoizedUntilRegistration() throws Exception {
+        err.checkThat(root.resolve("earth.planet"), is("127.0.0.1:10462"));
+        err.checkThat(root.resolve("mars.planet"), nullValue());
+        err.checkThat(root.resolve("earth.planet"), is("127.0.0.1:10462"));
+        err.checkThat(root.resolve("mars.planet"), nullValue());
+        err.checkThat(planet.nCalls.get(), is(2));
+
+        root.registerMailboxServer("mars.planet", "127.0.0.1:10492");
+        err.checkThat(root.resolve("mars.planet"), is("127.0.0.1:10492"));
+        err.checkThat(planet.nCalls.get(), is(3));
+    }
+
+    private static class CountingNameserverRemote extends NameserverRemote {
+
+        final AtomicInteger nCalls = new AtomicInteger();
+
+        @Override
+        public Map<String, String> resolveAll(Collection<String> domains) throws RemoteException {
+            nCalls.incrementAndGet();
+            return super.resolveAll(domains);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package dslab.protocols.dmtp.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.protocols.dmtp.DMTPException;
+import dslab.protocols.dmtp.Email;
+import dslab.protocols.dmtp.server.DMTPServerHandler;
+import dslab.protocols.dmtp.server.IDMTPServerHandler;
+
+/**
+ * Sends emails through a proxy that delays every chunk of data by a fixed latency, comparing lock-step and pipelined
+ * clients.
+ */
+public class DMTPClientPipeliningTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(DMTPClientPipeliningTest.class);
+
+    // Raise e.g. with -Ddslab.pipelining.emails=1000 -Ddslab.pipelining.latency=50 for a longer benchmark
+    private static final int N_EMAILS = Integer.getInteger("dslab.pipelining.emails", 20);
+    private static final long LATENCY = Long.getLong("dslab.pipelining.latency", 10);
+
+    private ServerSocket serverSocket;
+    private ServerSocket proxySocket;
+    private final AtomicInteger nReceived = new AtomicInteger();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    // One per proxied connection, in order
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0);
+        proxySocket = new ServerSocket(0);
+
+        accept(serverSocket, socket -> serve(socket));
+        accept(proxySocket, socket -> {
+            try {
+                Socket upstream = new Socket("127.0.0.1", serverSocket.getLocalPort());
+                sockets.add(upstream);
+                Link link = new Link();
+                links.add(link);
+                startDelayedPipe(socket.getInputStream(), upstream.getOutputStream(), link::requests);
+                startDelayedPipe(upstream.getInputStream(), socket.getOutputStream(), link::responses);
+            } catch (IOException e) {
+                // connection closed
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        proxySocket.close();
+        for (Socket socket : sockets)
+            socket.close();
+    }
+
+    @Test(timeout = 60000)
+    public void pipelinedEmails_areSentInFewerRoundTrips() throws Exception {
+        List<Email> emails = new ArrayList<>();
+        for (int i = 0; i < N_EMAILS; i++)
+            emails.add(email(i, "arthur@earth.planet"));
+
+        long lockStep = send(false, emails, false);
+        int lockStepInFlight = links.get(0).getMaxInFlight();
+        long pipelined = send(true, emails, false);
+        int pipelinedInFlight = links.get(1).getMaxInFlight();
+        long batched = send(true, emails, true);
+        int batchedInFlight = links.get(2).getMaxInFlight();
+
+        LOG.info(String.format("%d emails over a %d ms link: lock-step %d ms (%.1f emails/s), pipelined %d ms "
+                        + "(%.1f emails/s), pipelined batch %d ms (%.1f emails/s)",
+                N_EMAILS, LATENCY, lockStep, rate(lockStep), pipelined, rate(pipelined), batched, rate(batched)));
+        LOG.info(String.format("Most commands in flight: lock-step %d, pipelined %d, pipelined batch %d",
+                lockStepInFlight, pipelinedInFlight, batchedInFlight));
+
+        err.checkThat(nReceived.get(), is(3 * N_EMAILS));
+        // A round trip per command, per email, and for the whole batch
+        err.checkThat(lockStepInFlight, is(1));
+        err.checkThat(pipelinedInFlight > 1, is(true));
+        err.checkThat(batchedInFlight > pipelinedInFlight, is(true));
+    }
+
+    @Test(timeout = 60000)
+    public void pipelinedBatch_reportsUnknownRecipientsAndErrorsPerEmail() throws Exception {
+        Email unknown = email(1, "arthur@earth.planet,nobody@earth.planet");
+        Email noSender = email(2, "arthur@earth.planet");
+        noSender.sender = "invalid";
+        Email valid = email(3, "arthur@earth.planet");
+
+        List<String> reported = new ArrayList<>();
+        List<DMTPException> errors;
+
+        try (Connection connection = new Connection(proxySocket.getLocalPort(), true)) {
+            errors = connection.handler.sendEmails(List.of(unknown, noSender, valid), (email, recipients) -> {
+                reported.add(email.subject + ": " + String.join(",", recipients));
+            });
+            // the session is still in sync after the errors
+            connection.handler.sendEmail(valid, recipients -> { });
+        }
+
+        err.checkThat(reported, is(List.of("subject 1: nobody")));
+        err.checkThat(errors.get(0), nullValue());
+        err.checkThat(errors.get(1).getMessage(), is("invalid address invalid"));
+        err.checkThat(errors.get(2), nullValue());
+        err.checkThat(nReceived.get(), is(3));
+    }
+
+    private long send(boolean pipelined, List<Email> emails, boolean batch) throws Exception {
+        long start = System.currentTimeMillis();
+        try (Connection connection = new Connection(proxySocket.getLocalPort(), pipelined)) {
+            if (batch) {
+                for (DMTPException error : connection.handler.sendEmails(emails, (email, recipients) -> { }))
+                    err.checkThat(error, nullValue());
+            } else {
+                for (Email email : emails)
+                    connection.handler.sendEmail(email, recipients -> { });
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static double rate(long millis) {
+        return N_EMAILS * 1000.0 / Math.max(millis, 1);
+    }
+
+    private void accept(ServerSocket serverSocket, Consumer<Socket> handler) {
+        new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    new Thread(() -> handler.accept(socket)).start();
+                } catch (IOException e) {
+                    // server socket closed
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Forwards the data read from in to out, each chunk delayed by {@link #LATENCY}.
+     * @param lines told the number of lines of each chunk as soon as it is read
+     */
+    private static void startDelayedPipe(InputStream in, OutputStream out, IntConsumer lines) {
+        BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();
+
+        new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    int n = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n')
+                            n++;
+                    }
+                    lines.accept(n);
+                    chunks.put(new Chunk(System.currentTimeMillis() + LATENCY, Arrays.copyOf(buffer, read)));
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            }
+            chunks.add(new Chunk(0, null));
+        }).start();
+
+        new Thread(() -> {
+            try {
+                while (true) {
+                    Chunk chunk = chunks.take();
+                    if (chunk.data == null)
+                        break;
+                    long wait = chunk.due - System.currentTimeMillis();
+                    if (wait > 0)
+                        Thread.sleep(wait);
+                    out.write(chunk.data);
+                    out.flush();
+                }
+                out.close();
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            }
+        }).start();
+    }
+
+    private void serve(Socket socket) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+
+            DMTPServerHandler handler = new DMTPServerHandler(socket, reader, writer);
+            handler.init();
+            handler.receiveEmails(new IDMTPServerHandler.Callback() {
+                @Override
+                public boolean consumeEmail(Email email) {
+                    nReceived.incrementAndGet();
+                    return true;
+                }
+
+                @Override
+                public boolean validateRecipient(String recipient) {
+                    return !recipient.startsWith("nobody");
+                }
+            });
+        } catch (IOException | DMTPException e) {
+            // connection closed
+        }
+    }
+
+    private static Email email(int i, String recipients) {
+        Email email = new Email();
+        email.sender = "trillian@earth.planet";
+        email.recipients = Arrays.asList(recipients.split(","));
+        email.subject = "subject " + i;
+        email.data = "data " + i;
+        return email;
+    }
+
+    private static class Chunk {
+
+        final long due;
+        final byte[] data;
+
+        Chunk(long due, byte[] data) {
+            this.due = due;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Counts the commands of a connection that are not answered yet, as they pass the proxy.
+     */
+    private static class Link {
+
+        // The greeting of the server is an answer without a command
+        private int requests = 1;
+        private int responses;
+        private int maxInFlight;
+
+        synchronized void requests(int n) {
+            requests += n;
+            maxInFlight = Math.max(maxInFlight, requests - responses);
+        }
+
+        synchronized void responses(int n) {
+            responses += n;
+        }
+
+        synchronized int getMaxInFlight() {
+            return maxInFlight;
+        }
+    }
+
+    private static class Connection implements AutoCloseable {
+
+        final Socket socket;
+        final IDMTPClientHandler handler;
+
+        Connection(int port, boolean pipelined) throws IOException, DMTPException {
+            socket = new Socket("127.0.0.1", port);
+            handler = new DMTPClientHandler(socket,
+                    new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                    new PrintWriter(socket.getOutputStream(), true), pipelined);
+            handler.init();
+        }
+
+        @Override
+        public void close() throws IOException, DMTPException {
+            try {
+                handler.close();
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.protocols.dmtp.DMTPException;
+import dslab.protocols.dmtp.Email;
+import dslab.protocols.dmtp.server.DMTPServerHandler;
+import dslab.protocols.dmtp.server.IDMTPServerHandler;
+import dslab.transfer.DMTPConnectionPool.PooledConnection;
+
+/**
+ * Checks connection reuse, health checks and per-host limits of the {@link DMTPConnectionPool} against a minimal
+ * DMTP server.
+ */
+public class DMTPConnectionPoolTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(DMTPConnectionPoolTest.class);
+
+    private static final int N_EMAILS = 100;
+
+    private ServerSocket serverSocket;
+    private String address;
+    private final AtomicInteger nAccepted = new AtomicInteger();
+    private final AtomicInteger nReceived = new AtomicInteger();
+    private final List<Socket> serverSockets = new CopyOnWriteArrayList<>();
+
+    private DMTPConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0);
+        address = "127.0.0.1:" + serverSocket.getLocalPort();
+
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    nAccepted.incrementAndGet();
+                    serverSockets.add(socket);
+                    new Thread(() -> serve(socket)).start();
+                } catch (IOException e) {
+                    // server socket closed
+                }
+            }
+        });
+        acceptor.start();
+
+        pool = new DMTPConnectionPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        serverSocket.close();
+        for (Socket socket : serverSockets)
+            socket.close();
+    }
+
+    @Test(timeout = 15000)
+    public void sequentialEmails_reuseOneConnection() throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < N_EMAILS; i++) {
+            PooledConnection connection = pool.borrow(address);
+            connection.getHandler().sendEmail(email(i), recipients -> { });
+            pool.release(connection);
+        }
+        LOG.info("Sent " + N_EMAILS + " emails in " + (System.currentTimeMillis() - start) + " ms");
+
+        err.checkThat(nReceived.get(), is(N_EMAILS));
+        err.checkThat(nAccepted.get(), is(1));
+    }
+
+    @Test(timeout = 15000)
+    public void connectionClosedByServer_isReplacedAfterHealthCheck() throws Exception {
+        PooledConnection connection = pool.borrow(address);
+        connection.getHandler().sendEmail(email(0), recipients -> { });
+        pool.release(connection);
+
+        for (Socket socket : serverSockets)
+            socket.close();
+        Thread.sleep(DMTPConnectionPool.HEALTH_CHECK_INTERVAL + 100);
+
+        connection = pool.borrow(address);
+        connection.getHandler().sendEmail(email(1), recipients -> { });
+        pool.release(connection);
+
+        err.checkThat(nReceived.get(), is(2));
+        err.checkThat(nAccepted.get(), is(2));
+    }
+
+    @Test(timeout = 15000)
+    public void borrowBeyondLimit_waitsForRelease() throws Exception {
+        PooledConnection[] borrowed = new PooledConnection[DMTPConnectionPool.MAX_CONNECTIONS_PER_HOST];
+        for (int i = 0; i < borrowed.length; i++)
+            borrowed[i] = pool.borrow(address);
+
+        CompletableFuture<PooledConnection> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.borrow(address);
+            } catch (IOException | DMTPException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Thread.sleep(500);
+        err.checkThat(waiting.isDone(), is(false));
+
+        pool.release(borrowed[0]);
+        PooledConnection connection = waiting.get(5, TimeUnit.SECONDS);
+        err.checkThat(connection == borrowed[0], is(true));
+        err.checkThat(nAccepted.get(), is(DMTPConnectionPool.MAX_CONNECTIONS_PER_HOST));
+
+        pool.release(connection);
+        for (int i = 1; i < borrowed.length; i++)
+            pool.release(borrowed[i]);
+    }
+
+    @Test(timeout = 15000)
+    public void interruptedBorrow_throwsInterruptedIOException_andKeepsTheInterrupt() throws Exception {
+        PooledConnection[] borrowed = new PooledConnection[DMTPConnectionPool.MAX_CONNECTIONS_PER_HOST];
+        for (int i = 0; i < borrowed.length; i++)
+            borrowed[i] = pool.borrow(address);
+
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        Thread waiting = new Thread(() -> {
+            try {
+                pool.borrow(address);
+                interrupted.complete(false);
+            } catch (InterruptedIOException e) {
+                interrupted.complete(Thread.currentThread().isInterrupted());
+            } catch (IOException | DMTPException e) {
+                interrupted.complete(false);
+            }
+        });
+        waiting.start();
+        Thread.sleep(200);
+        waiting.interrupt();
+
+        err.checkThat(interrupted.get(5, TimeUnit.SECONDS), is(true));
+        for (PooledConnection connection : borrowed)
+            pool.release(connection);
+    }
+
+    private void serve(Socket socket) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+
+            DMTPServerHandler handler = new DMTPServerHandler(socket, reader, writer);
+            handler.init();
+            handler.receiveEmails(new IDMTPServerHandler.Callback() {
+                @Override
+                public boolean consumeEmail(Email email) {
+                    nReceived.incrementAndGet();
+                    return true;
+                }
+
+                @Override
+                public boolean validateRecipient(String recipient) {
+                    return true;
+                }
+            });
+        } catch (IOException | DMTPException e) {
+            // connection closed
+        }
+    }
+
+    private static Email email(int i) {
+        Email email = new Email();
+        email.sender = "trillian@earth.planet";
+        email.recipients = List.of("arthur@earth.planet");
+        email.subject = "subject " + i;
+        email.data = "data " + i;
+        return email;
+    }
+}
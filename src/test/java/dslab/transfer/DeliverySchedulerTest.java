@@ -0,0 +1,143 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.MailboxServerStub;
+import dslab.TestBase;
+import dslab.protocols.dmtp.Email;
+
+public class DeliverySchedulerTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(DeliverySchedulerTest.class);
+
+    private MailboxServerStub healthy;
+    private MailboxServerStub slow;
+    private String downAddress;
+
+    private DeliveryScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        healthy = new MailboxServerStub(0);
+        slow = new MailboxServerStub(2);
+
+        // Nothing listens on the port of a closed server socket
+        ServerSocket closed = new ServerSocket(0);
+        downAddress = "127.0.0.1:" + closed.getLocalPort();
+        closed.close();
+
+        scheduler = new DeliveryScheduler(new DMTPConnectionPool(), 4, 50, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.close();
+        healthy.close();
+        slow.close();
+    }
+
+    @Test(timeout = 20000)
+    public void unreachableDestination_failsWithoutDelayingOthers() throws Exception {
+        List<CompletableFuture<Void>> down = submit("down.planet", downAddress, 50);
+        List<CompletableFuture<Void>> up = submit("earth.planet", healthy.getAddress(), 50);
+
+        for (CompletableFuture<Void> delivery : up)
+            delivery.get(5, TimeUnit.SECONDS);
+        err.checkThat(healthy.getReceived().size(), is(50));
+
+        for (CompletableFuture<Void> delivery : down) {
+            try {
+                delivery.get(5, TimeUnit.SECONDS);
+                err.addError(new AssertionError("Delivery to unreachable destination succeeded"));
+            } catch (ExecutionException e) {
+                err.checkThat(e.getCause(), instanceOf(IOException.class));
+            }
+        }
+
+        DeliveryScheduler.DestinationStats downStats = stats("down.planet");
+        err.checkThat(downStats.depth, is(0));
+        // Reset once the pending deliveries failed
+        err.checkThat(downStats.failures, is(0));
+
+        DeliveryScheduler.DestinationStats upStats = stats("earth.planet");
+        err.checkThat(upStats.delivered, is(50L));
+        err.checkThat(upStats.failures, is(0));
+        err.checkThat(upStats.rate > 0, is(true));
+    }
+
+    @Test(timeout = 30000)
+    public void busyDestination_doesNotDelayOtherDestinations() throws Exception {
+        List<CompletableFuture<Void>> busy = submit("slow.planet", slow.getAddress(), 200);
+        List<CompletableFuture<Void>> other = submit("earth.planet", healthy.getAddress(), 5);
+
+        long start = System.currentTimeMillis();
+        CompletableFuture.allOf(other.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        long otherDone = System.currentTimeMillis() - start;
+
+        DeliveryScheduler.DestinationStats busyStats = stats("slow.planet");
+        LOG.info("Other destination served in " + otherDone + " ms, busy destination has " + busyStats.depth
+                + " deliveries queued, oldest waiting " + busyStats.oldestAge + " ms");
+
+        err.checkThat(busyStats.depth > 0, is(true));
+        err.checkThat(busyStats.active <= DeliveryScheduler.MAX_WORKERS_PER_DESTINATION, is(true));
+
+        CompletableFuture.allOf(busy.toArray(new CompletableFuture<?>[0])).get(20, TimeUnit.SECONDS);
+        err.checkThat(slow.getReceived().size(), is(200));
+    }
+
+    @Test(timeout = 20000)
+    public void emailSubmittedWhilePaused_isDeliveredOnceTheDestinationComesBack() throws Exception {
+        for (CompletableFuture<Void> delivery : submit("down.planet", downAddress, 1)) {
+            try {
+                delivery.get(5, TimeUnit.SECONDS);
+                err.addError(new AssertionError("Delivery to unreachable destination succeeded"));
+            } catch (ExecutionException e) {
+                err.checkThat(e.getCause(), instanceOf(IOException.class));
+            }
+        }
+
+        // Still paused after the last failure, no timer pending
+        int port = Integer.parseInt(downAddress.split(":")[1]);
+        try (MailboxServerStub back = new MailboxServerStub(port, 0)) {
+            List<CompletableFuture<Void>> later = submit("down.planet", downAddress, 3);
+            CompletableFuture.allOf(later.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            err.checkThat(back.getReceived().size(), is(3));
+        }
+    }
+
+    private List<CompletableFuture<Void>> submit(String domain, String address, int n) {
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Email email = new Email();
+            email.sender = "trillian@earth.planet";
+            email.recipients = List.of("arthur@" + domain);
+            email.subject = "subject " + i;
+            email.data = "data " + i;
+            deliveries.add(scheduler.submit(domain, address, email, recipients -> { }));
+        }
+        return deliveries;
+    }
+
+    private DeliveryScheduler.DestinationStats stats(String domain) {
+        for (DeliveryScheduler.DestinationStats stats : scheduler.getStats()) {
+            if (stats.domain.equals(domain))
+                return stats;
+        }
+        throw new AssertionError("No stats for " + domain);
+    }
+}
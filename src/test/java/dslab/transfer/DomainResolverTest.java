@@ -0,0 +1,154 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.nameserver.INameserverRemote;
+
+public class DomainResolverTest extends TestBase {
+
+    private final AtomicInteger nRemoteCalls = new AtomicInteger();
+    private volatile List<String> lastRequest;
+
+    private final FakeNameserver root = new FakeNameserver(
+            Map.of("earth.planet", "127.0.0.1:10462", "univer.ze", "127.0.0.1:10472"), 200);
+
+    @Test
+    public void repeatedResolution_isServedFromCache() throws Exception {
+        DomainResolver resolver = new DomainResolver(root);
+
+        for (int i = 0; i < 10; i++)
+            err.checkThat(resolver.resolve("earth.planet"), is("127.0.0.1:10462"));
+
+        err.checkThat(nRemoteCalls.get(), is(1));
+        err.checkThat(resolver.getHits(), is(9L));
+        err.checkThat(resolver.getMisses(), is(1L));
+    }
+
+    @Test
+    public void unknownDomain_isCachedUntilNegativeTtlExpires() throws Exception {
+        DomainResolver resolver = new DomainResolver(root, 60000, 100);
+
+        for (int i = 0; i < 3; i++)
+            err.checkThat(resolves(resolver, "unknown.earth.planet"), is(false));
+        err.checkThat(nRemoteCalls.get(), is(1));
+
+        Thread.sleep(150);
+        err.checkThat(resolves(resolver, "unknown.earth.planet"), is(false));
+        err.checkThat(nRemoteCalls.get(), is(2));
+    }
+
+    @Test
+    public void concurrentMisses_shareOneRemoteCall() throws Exception {
+        DomainResolver resolver = new DomainResolver(root);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                results.add(executor.submit(() -> resolver.resolve("earth.planet")));
+
+            for (Future<String> result : results)
+                err.checkThat(result.get(), is("127.0.0.1:10462"));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        err.checkThat(nRemoteCalls.get(), is(1));
+    }
+
+    @Test
+    public void allDomainsOfAnEmail_areResolvedWithOneRemoteCall() throws Exception {
+        DomainResolver resolver = new DomainResolver(root);
+        resolver.resolve("earth.planet");
+
+        Map<String, DomainResolver.Resolution> resolutions =
+                resolver.resolveAll(List.of("earth.planet", "univer.ze", "unknown.ze", "univer.ze"));
+
+        err.checkThat(resolutions.get("earth.planet").getAddress(), is("127.0.0.1:10462"));
+        err.checkThat(resolutions.get("univer.ze").getAddress(), is("127.0.0.1:10472"));
+        err.checkThat(resolves(resolver, "unknown.ze"), is(false));
+        err.checkThat(nRemoteCalls.get(), is(2));
+        err.checkThat(lastRequest, is(List.of("univer.ze", "unknown.ze")));
+    }
+
+    private static boolean resolves(DomainResolver resolver, String domain) {
+        try {
+            resolver.resolve(domain);
+            return true;
+        } catch (DomainNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Root nameserver resolving all the domains itself.
+     */
+    private class FakeNameserver implements INameserverRemote {
+
+        private final Map<String, String> mailboxServers;
+        private final long delay;
+
+        FakeNameserver(Map<String, String> mailboxServers, long delay) {
+            this.mailboxServers = mailboxServers;
+            this.delay = delay;
+        }
+
+        @Override
+        public void registerNameserver(String domain, INameserverRemote nameserver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void registerMailboxServer(String domain, String address) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public INameserverRemote getNameserver(String zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String lookup(String domain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String resolve(String domain) throws RemoteException {
+            return resolveAll(List.of(domain)).get(domain);
+        }
+
+        @Override
+        public Map<String, String> resolveAll(Collection<String> domains) throws RemoteException {
+            nRemoteCalls.incrementAndGet();
+            lastRequest = new ArrayList<>(domains);
+            lastRequest.sort(null);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            Map<String, String> addresses = new HashMap<>();
+            for (String domain : domains) {
+                if (mailboxServers.containsKey(domain))
+                    addresses.put(domain, mailboxServers.get(domain));
+            }
+            return addresses;
+        }
+    }
+}
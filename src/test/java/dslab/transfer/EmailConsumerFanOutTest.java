@@ -0,0 +1,240 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.MailboxServerStub;
+import dslab.TestBase;
+import dslab.nameserver.INameserverRemote;
+import dslab.protocols.dmtp.Email;
+
+/**
+ * Delivers emails with many recipient domains to mailbox stubs that delay every reply, comparing a single delivery
+ * worker with concurrent per-domain deliveries.
+ */
+public class EmailConsumerFanOutTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(EmailConsumerFanOutTest.class);
+
+    // Raise e.g. with -Ddslab.fanout.domains=50 -Ddslab.fanout.latency=50 for a longer benchmark
+    private static final int N_DOMAINS = Integer.getInteger("dslab.fanout.domains", 10);
+    private static final long LATENCY = Long.getLong("dslab.fanout.latency", 20);
+
+    private final Map<String, String> addresses = new HashMap<>();
+    private final Map<String, MailboxServerStub> stubs = new ConcurrentHashMap<>();
+    // Emails in transfer to any of the stubs
+    private final MailboxServerStub.Transfers transfers = new MailboxServerStub.Transfers();
+    // Calls of resolveAll left that fail with an unchecked exception
+    private final AtomicInteger nameserverFailures = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < N_DOMAINS; i++)
+            startMailboxStub("d" + i + ".planet", LATENCY);
+        startMailboxStub("earth.planet", 0);
+
+        // Nothing listens on the port of a closed server socket
+        ServerSocket closed = new ServerSocket(0);
+        addresses.put("down.planet", "127.0.0.1:" + closed.getLocalPort());
+        closed.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MailboxServerStub stub : stubs.values())
+            stub.close();
+    }
+
+    @Test(timeout = 60000)
+    public void emailToManyDomains_isDeliveredConcurrently() throws Exception {
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < N_DOMAINS; i++)
+            recipients.add("arthur@d" + i + ".planet");
+
+        long sequential = process(email(recipients), 1);
+        int sequentialTransfers = transfers.takeMax();
+        long concurrent = process(email(recipients), DMTPListenerThread.N_DELIVERY_WORKERS);
+        int concurrentTransfers = transfers.takeMax();
+
+        LOG.info(String.format("Email to %d domains with %d ms replies: sequential %d ms, concurrent %d ms, "
+                        + "at most %d and %d deliveries at once", N_DOMAINS, LATENCY, sequential, concurrent,
+                sequentialTransfers, concurrentTransfers));
+
+        for (int i = 0; i < N_DOMAINS; i++)
+            err.checkThat(received("d" + i + ".planet").size(), is(2));
+        err.checkThat(received("earth.planet").isEmpty(), is(true));
+        err.checkThat(sequentialTransfers, is(1));
+        err.checkThat(concurrentTransfers > 1, is(true));
+    }
+
+    @Test(timeout = 60000)
+    public void failuresOfAllDomains_areReportedInOneErrorEmail() throws Exception {
+        process(email(List.of("arthur@d0.planet", "nobody@d1.planet", "zaphod@down.planet",
+                "ford@unknown.planet")), DMTPListenerThread.N_DELIVERY_WORKERS);
+
+        err.checkThat(received("d0.planet").size(), is(1));
+        err.checkThat(received("earth.planet").size(), is(1));
+
+        Email errorEmail = received("earth.planet").get(0);
+        err.checkThat(errorEmail.recipients, is(List.of("trillian@earth.planet")));
+        err.checkThat(errorEmail.data, containsString("error unknown recipient nobody@d1.planet"));
+        err.checkThat(errorEmail.data, containsString("error unknown domain unknown.planet"));
+        err.checkThat(errorEmail.data, containsString("zaphod@down.planet"));
+    }
+
+    @Test(timeout = 60000)
+    public void fullMailbox_isReportedInTheErrorEmail() throws Exception {
+        // The stubs don't tell their own recipients from the others, so a single one
+        process(email(List.of("fullmarvin@d1.planet")), DMTPListenerThread.N_DELIVERY_WORKERS);
+
+        err.checkThat(received("d1.planet").isEmpty(), is(true));
+        err.checkThat(received("earth.planet").size(), is(1));
+
+        Email errorEmail = received("earth.planet").get(0);
+        err.checkThat(errorEmail.data, containsString("mailbox full fullmarvin"));
+        err.checkThat(errorEmail.data, containsString("fullmarvin@d1.planet"));
+    }
+
+    @Test(timeout = 60000)
+    public void unreachableDomain_isRetriedUntilItComesBack() throws Exception {
+        int port = Integer.parseInt(addresses.get("down.planet").split(":")[1]);
+        DeliveryScheduler deliveryScheduler = new DeliveryScheduler(new DMTPConnectionPool(), 4, 10, 20);
+
+        try (RetryScheduler retryScheduler = new RetryScheduler(20000, 100, 400, 10)) {
+            Thread mailboxStarter = new Thread(() -> {
+                try {
+                    Thread.sleep(600);
+                    LOG.info("Deferred deliveries before the mailbox server starts: " + retryScheduler.getDeferred());
+                    stubs.put("down.planet", new MailboxServerStub(port, 0));
+                } catch (InterruptedException | IOException e) {
+                    err.addError(e);
+                }
+            });
+            mailboxStarter.start();
+
+            process(email(List.of("arthur@d0.planet", "zaphod@down.planet")), deliveryScheduler, retryScheduler);
+            mailboxStarter.join();
+
+            err.checkThat(retryScheduler.getDeferred(), is(0L));
+        }
+
+        err.checkThat(received("d0.planet").size(), is(1));
+        err.checkThat(received("down.planet").size(), is(1));
+        err.checkThat(received("earth.planet").isEmpty(), is(true));
+    }
+
+    @Test(timeout = 60000)
+    public void failingNameserver_releasesTheSlotAndDefersTheEmail() throws Exception {
+        nameserverFailures.set(2);
+        Semaphore inDelivery = new Semaphore(0);
+
+        try (DeliveryScheduler deliveryScheduler = new DeliveryScheduler(new DMTPConnectionPool(), 4);
+             RetryScheduler retryScheduler = new RetryScheduler(20000, 100, 400, 10)) {
+            EmailConsumer consumer = new EmailConsumer(new DomainResolver(new FakeNameserver()), null,
+                    deliveryScheduler, retryScheduler, inDelivery);
+
+            consumer.process(email(List.of("arthur@d0.planet")), inDelivery::release).get();
+        }
+
+        err.checkThat(inDelivery.availablePermits(), is(1));
+        err.checkThat(nameserverFailures.get(), is(0));
+        err.checkThat(received("d0.planet").size(), is(1));
+        err.checkThat(received("earth.planet").isEmpty(), is(true));
+    }
+
+    private long process(Email email, int nWorkers) throws Exception {
+        // No retry period: unreachable domains are reported right away
+        try (RetryScheduler retryScheduler = new RetryScheduler(0)) {
+            return process(email, new DeliveryScheduler(new DMTPConnectionPool(), nWorkers), retryScheduler);
+        }
+    }
+
+    private long process(Email email, DeliveryScheduler deliveryScheduler, RetryScheduler retryScheduler)
+            throws Exception {
+        try (DeliveryScheduler scheduler = deliveryScheduler) {
+            EmailConsumer consumer = new EmailConsumer(new DomainResolver(new FakeNameserver()), null, scheduler,
+                    retryScheduler, new Semaphore(1));
+
+            long start = System.currentTimeMillis();
+            consumer.process(email).get();
+            return System.currentTimeMillis() - start;
+        }
+    }
+
+    private void startMailboxStub(String domain, long latency) throws IOException {
+        MailboxServerStub stub = new MailboxServerStub(0, latency, transfers);
+        stubs.put(domain, stub);
+        addresses.put(domain, stub.getAddress());
+    }
+
+    private List<Email> received(String domain) {
+        return stubs.get(domain).getReceived();
+    }
+
+    private static Email email(List<String> recipients) {
+        Email email = new Email();
+        email.sender = "trillian@earth.planet";
+        email.recipients = recipients;
+        email.subject = "fan out";
+        email.data = "hello";
+        return email;
+    }
+
+    private class FakeNameserver implements INameserverRemote {
+
+        @Override
+        public void registerNameserver(String domain, INameserverRemote nameserver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void registerMailboxServer(String domain, String address) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public INameserverRemote getNameserver(String zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String lookup(String domain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String resolve(String domain) {
+            return addresses.get(domain);
+        }
+
+        @Override
+        public Map<String, String> resolveAll(Collection<String> domains) throws RemoteException {
+            if (nameserverFailures.getAndUpdate(failures -> Math.max(0, failures - 1)) > 0)
+                throw new IllegalStateException("nameserver failure");
+            Map<String, String> resolved = new HashMap<>();
+            for (String domain : domains) {
+                if (addresses.containsKey(domain))
+                    resolved.put(domain, addresses.get(domain));
+            }
+            return resolved;
+        }
+    }
+}
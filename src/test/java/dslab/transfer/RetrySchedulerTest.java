@@ -0,0 +1,81 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class RetrySchedulerTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(RetrySchedulerTest.class);
+
+    // Raise e.g. with -Ddslab.retry.tasks=1000000 for a longer benchmark
+    private static final int N_TASKS = Integer.getInteger("dslab.retry.tasks", 200000);
+
+    @Test(timeout = 20000)
+    public void deferredTasks_runAfterTheirDeadline() throws Exception {
+        int nTasks = 1000;
+        CountDownLatch done = new CountDownLatch(nTasks);
+        AtomicInteger early = new AtomicInteger();
+        Random random = new Random(42);
+
+        try (RetryScheduler scheduler = new RetryScheduler(60000, 100, 1000, 10)) {
+            for (int i = 0; i < nTasks; i++) {
+                // Some deadlines are more than a rotation of the wheel away
+                long delay = random.nextInt(10000);
+                long deadline = System.currentTimeMillis() + delay;
+                scheduler.schedule(delay, () -> {
+                    if (System.currentTimeMillis() < deadline)
+                        early.incrementAndGet();
+                    done.countDown();
+                });
+            }
+
+            err.checkThat(done.await(15, TimeUnit.SECONDS), is(true));
+            err.checkThat(early.get(), is(0));
+            err.checkThat(scheduler.getDeferred(), is(0L));
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void manyDeferredTasks_areCountedInTheHistogram() throws Exception {
+        try (RetryScheduler scheduler = new RetryScheduler(RetryScheduler.DEFAULT_RETRY_PERIOD)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < N_TASKS; i++)
+                scheduler.schedule(10000 + i % 50000, () -> {});
+            long elapsed = System.nanoTime() - start;
+
+            LOG.info(String.format("Deferred %d tasks in %d ms (%.0f ns per task)",
+                    N_TASKS, elapsed / 1000000, (double) elapsed / N_TASKS));
+
+            // Let the timer move them into the wheel
+            Thread.sleep(3 * RetryScheduler.TICK);
+
+            long[] histogram = scheduler.getHistogram();
+            err.checkThat(scheduler.getDeferred(), is((long) N_TASKS));
+            err.checkThat(histogram[1] + histogram[2], is((long) N_TASKS));
+            err.checkThat(histogram[2] > histogram[1], is(true));
+        }
+    }
+
+    @Test
+    public void attemptAfterRetryPeriod_isNotDeferred() {
+        try (RetryScheduler scheduler = new RetryScheduler(5000, 1000, 4000, 10)) {
+            long now = System.currentTimeMillis();
+
+            err.checkThat(scheduler.defer(now, 1, () -> {}), is(true));
+            err.checkThat(scheduler.defer(now, 2, () -> {}), is(true));
+            // The third retry would wait 4 s, past the end of the period
+            err.checkThat(scheduler.defer(now - 2000, 3, () -> {}), is(false));
+            err.checkThat(scheduler.getDeferred(), is(2L));
+        }
+    }
+}
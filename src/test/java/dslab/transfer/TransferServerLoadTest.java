@@ -0,0 +1,135 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.ComponentFactory;
+import dslab.Constants;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.util.Config;
+
+/**
+ * Opens thousands of concurrent DMTP sessions to a transfer server and checks that all of them are served while the
+ * number of server threads stays bounded.
+ */
+public class TransferServerLoadTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(TransferServerLoadTest.class);
+
+    private static final int N_CONNECTIONS = 2000;
+    // Threads the server may start lazily while serving the connections (e.g. RMI or JIT helpers)
+    private static final int THREAD_SLACK = 5;
+
+    private String componentId = "transfer-1";
+
+    private ITransferServer component;
+    private int serverPort;
+    private final List<Client> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        component = ComponentFactory.createTransferServer(componentId, in, out);
+        serverPort = new Config(componentId).getInt("tcp.port");
+        new Thread(component).start();
+
+        LOG.info("Waiting for server socket to appear");
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Client client : clients)
+            client.close();
+
+        in.addLine("shutdown"); // send "shutdown" command to command line
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    @Test(timeout = 30000)
+    public void thousandsOfConcurrentSessions_areServedByBoundedThreads() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threads.getThreadCount();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < N_CONNECTIONS; i++) {
+            Client client = new Client(serverPort);
+            clients.add(client);
+            err.checkThat(client.read(), is("ok DMTP2.0"));
+        }
+        LOG.info("Opened " + N_CONNECTIONS + " sessions in " + (System.currentTimeMillis() - start) + " ms");
+
+        // every session is still active while all the others are open and idle
+        for (Client client : clients)
+            client.send("begin");
+        for (Client client : clients)
+            err.checkThat(client.read(), is("ok"));
+
+        int threadsDuring = threads.getThreadCount();
+        LOG.info("Threads before: " + threadsBefore + ", with " + N_CONNECTIONS + " sessions: " + threadsDuring);
+        err.checkThat("Expected server threads to stay bounded, but found " + threadsDuring,
+                threadsDuring <= threadsBefore + THREAD_SLACK, is(true));
+
+        Client client = clients.get(clients.size() - 1);
+        err.checkThat(client.sendAndRead("from trillian@earth.planet"), is("ok"));
+        err.checkThat(client.sendAndRead("to arthur@earth.planet"), is("ok 1"));
+        err.checkThat(client.sendAndRead("subject hello"), is("ok"));
+        err.checkThat(client.sendAndRead("data hello from junit"), is("ok"));
+        err.checkThat(client.sendAndRead("send"), is("ok"));
+
+        for (Client c : clients)
+            c.send("quit");
+        for (Client c : clients)
+            err.checkThat(c.read(), is("ok bye"));
+    }
+
+    private static class Client {
+
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(10000);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            writer = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        void send(String line) {
+            writer.println(line);
+        }
+
+        String read() throws IOException {
+            return reader.readLine();
+        }
+
+        String sendAndRead(String line) throws IOException {
+            send(line);
+            return read();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
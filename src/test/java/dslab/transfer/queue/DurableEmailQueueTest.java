@@ -0,0 +1,141 @@
+package dslab.transfer.queue;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.protocols.dmtp.Email;
+import dslab.transfer.queue.DurableEmailQueue.QueuedEmail;
+
+public class DurableEmailQueueTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(DurableEmailQueueTest.class);
+
+    // Raise with -Ddslab.queue.emails=1000000 to check the queue with millions of emails
+    private static final int N_EMAILS = Integer.getInteger("dslab.queue.emails", 200_000);
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("dslab-queue");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendAndTake_returnsEmailsInOrder() throws Exception {
+        try (DurableEmailQueue queue = new DurableEmailQueue(directory, SEGMENT_SIZE)) {
+            queue.append(email(1)).get();
+            queue.append(email(2)).get();
+
+            QueuedEmail first = queue.take();
+            QueuedEmail second = queue.take();
+            err.checkThat(first.email.subject, is("subject 1"));
+            err.checkThat(first.email.recipients, is(List.of("arthur@earth.planet", "zaphod@univer.ze")));
+            err.checkThat(second.email.subject, is("subject 2"));
+            err.checkThat(queue.size(), is(2L));
+
+            queue.acknowledge(first);
+            queue.acknowledge(second);
+            err.checkThat(queue.size(), is(0L));
+        }
+    }
+
+    @Test
+    public void reopen_deliversUnacknowledgedEmailsAgain() throws Exception {
+        try (DurableEmailQueue queue = new DurableEmailQueue(directory, SEGMENT_SIZE)) {
+            for (int i = 0; i < 3; i++)
+                queue.append(email(i)).get();
+
+            QueuedEmail first = queue.take();
+            QueuedEmail second = queue.take();
+            // acknowledged out of order: only the first one can be skipped after a restart
+            queue.acknowledge(second);
+            queue.acknowledge(first);
+            queue.take();
+        }
+
+        try (DurableEmailQueue queue = new DurableEmailQueue(directory, SEGMENT_SIZE)) {
+            err.checkThat(queue.size(), is(1L));
+            err.checkThat(queue.take().email.subject, is("subject 2"));
+        }
+    }
+
+    @Test
+    public void secondInstance_onSameDirectory_isRejected() throws Exception {
+        DurableEmailQueue queue = new DurableEmailQueue(directory, SEGMENT_SIZE);
+        try {
+            new DurableEmailQueue(directory, SEGMENT_SIZE).close();
+            err.addError(new AssertionError("Expected the directory to be locked"));
+        } catch (IOException e) {
+            // expected
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void manyEmails_spanSegmentsAndSurviveRestart() throws Exception {
+        long start = System.currentTimeMillis();
+        try (DurableEmailQueue queue = new DurableEmailQueue(directory, SEGMENT_SIZE)) {
+            List<CompletableFuture<Long>> appends = new ArrayList<>();
+            for (int i = 0; i < N_EMAILS; i++) {
+                appends.add(queue.append(email(i)));
+                // bound the futures kept in memory
+                if (appends.size() == 10_000) {
+                    CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0])).get();
+                    appends.clear();
+                }
+            }
+            CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0])).get();
+        }
+        long appended = System.currentTimeMillis();
+        LOG.info(String.format("Appended %d emails in %d ms", N_EMAILS, appended - start));
+
+        try (DurableEmailQueue queue = new DurableEmailQueue(directory, SEGMENT_SIZE)) {
+            err.checkThat(queue.size(), is((long) N_EMAILS));
+            for (int i = 0; i < N_EMAILS; i++) {
+                QueuedEmail queued = queue.take();
+                if (!queued.email.subject.equals("subject " + i)) {
+                    err.addError(new AssertionError("Unexpected email " + queued.email.subject + " at " + i));
+                    break;
+                }
+                queue.acknowledge(queued);
+            }
+            err.checkThat(queue.size(), is(0L));
+        }
+        LOG.info(String.format("Recovered and consumed %d emails in %d ms", N_EMAILS,
+                System.currentTimeMillis() - appended));
+
+        try (Stream<Path> files = Files.list(directory)) {
+            err.checkThat("Expected consumed segments to be deleted",
+                    files.filter(p -> p.getFileName().toString().startsWith("segment-")).count(), is(1L));
+        }
+    }
+
+    private static Email email(int i) {
+        return new Email("trillian@earth.planet", List.of("arthur@earth.planet", "zaphod@univer.ze"),
+                "subject " + i, "data " + i);
+    }
+}
@@ -0,0 +1,127 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class CryptoProviderTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(CryptoProviderTest.class);
+
+    private static final String COMPONENT_ID = "mailbox-earth-planet";
+    private static final String RSA = "RSA/ECB/PKCS1Padding";
+    // Raise with -Ddslab.util.handshakes=20000 for a steadier measurement
+    private static final int N_HANDSHAKES = Integer.getInteger("dslab.util.handshakes", 500);
+
+    @Test
+    public void keysAreReadOnce_andCiphersReusedPerThread() throws Exception {
+        CryptoProvider.preloadPrivateKey(COMPONENT_ID);
+        err.checkThat(CryptoProvider.getPrivateKey(COMPONENT_ID),
+                is(sameInstance(CryptoProvider.getPrivateKey(COMPONENT_ID))));
+        err.checkThat(CryptoProvider.getPublicKey(COMPONENT_ID),
+                is(sameInstance(CryptoProvider.getPublicKey(COMPONENT_ID))));
+        err.checkThat(CryptoProvider.getCipher(RSA), is(sameInstance(CryptoProvider.getCipher(RSA))));
+
+        Cipher[] other = new Cipher[1];
+        Thread thread = new Thread(() -> {
+            try {
+                other[0] = CryptoProvider.getCipher(RSA);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        err.checkThat(other[0], is(not(sameInstance(CryptoProvider.getCipher(RSA)))));
+
+        // Both ends of a startsecure, alternating on the cipher of this thread
+        CipherDMAP client = new CipherDMAP(RSA, CryptoProvider.getPublicKey(COMPONENT_ID));
+        CipherDMAP server = new CipherDMAP(RSA, CryptoProvider.getPrivateKey(COMPONENT_ID));
+        for (int i = 0; i < 3; i++)
+            err.checkThat(server.decryptString(client.encryptString("ok challenge " + i)), is("ok challenge " + i));
+
+        // The shared key survives the end of a session
+        server.destroy();
+        err.checkThat(CryptoProvider.getPrivateKey(COMPONENT_ID).isDestroyed(), is(false));
+    }
+
+    @Test
+    public void benchmark_handshakes_cachedComparedToUncached() throws Exception {
+        byte[] request = new CipherDMAP(RSA, CryptoProvider.getPublicKey(COMPONENT_ID))
+                .encrypt("ok challenge secret iv".getBytes());
+
+        // Warm up both paths
+        uncachedHandshakes(request, N_HANDSHAKES / 10 + 1);
+        cachedHandshakes(request, N_HANDSHAKES / 10 + 1);
+
+        long uncached = uncachedHandshakes(request, N_HANDSHAKES);
+        long cached = cachedHandshakes(request, N_HANDSHAKES);
+        LOG.info(String.format("%d server handshakes: uncached %d/s, cached %d/s", N_HANDSHAKES,
+                N_HANDSHAKES * 1000000000L / uncached, N_HANDSHAKES * 1000000000L / cached));
+
+        // Another thread reuses a cipher of its own
+        Cipher[] other = new Cipher[1];
+        Thread thread = new Thread(() -> {
+            try {
+                cachedHandshakes(request, N_HANDSHAKES / 10 + 1);
+                other[0] = CryptoProvider.getCipher(RSA);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        // Null if its handshakes failed
+        err.checkThat(other[0], is(notNullValue()));
+        err.checkThat(other[0], is(not(sameInstance(CryptoProvider.getCipher(RSA)))));
+    }
+
+    /**
+     * The server side of startsecure as it was: the key read from its file, and new ciphers and random generator.
+     */
+    private long uncachedHandshakes(byte[] request, int n) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            PrivateKey key = Keys.readPrivateKey(new File("keys/server/" + COMPONENT_ID + ".der"));
+            Cipher encryption = Cipher.getInstance(RSA);
+            encryption.init(Cipher.ENCRYPT_MODE, key);
+            Cipher decryption = Cipher.getInstance(RSA);
+            decryption.init(Cipher.DECRYPT_MODE, key);
+            decryption.doFinal(request);
+            new SecureRandom().nextBytes(new byte[16]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The server side of startsecure now, checking that every handshake of the thread gets the same key and cipher.
+     */
+    private long cachedHandshakes(byte[] request, int n) throws Exception {
+        PrivateKey key = SecurityHelper.getPrivateKey(COMPONENT_ID);
+        Cipher rsa = CryptoProvider.getCipher(RSA);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            CipherDMAP cipher = new CipherDMAP(RSA, SecurityHelper.getPrivateKey(COMPONENT_ID));
+            cipher.decrypt(request);
+            SecurityHelper.generateRandom(16);
+
+            assertSame(key, SecurityHelper.getPrivateKey(COMPONENT_ID));
+            assertSame(rsa, CryptoProvider.getCipher(RSA));
+        }
+        return System.nanoTime() - start;
+    }
+}
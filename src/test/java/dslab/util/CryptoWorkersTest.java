@@ -0,0 +1,68 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.protocols.dmap.DMAPException;
+
+public class CryptoWorkersTest extends TestBase {
+
+    @Test(timeout = 10000)
+    public void fullQueue_refusesHandshakes_andIsCounted() throws Exception {
+        try (CryptoWorkers workers = new CryptoWorkers(1, 1)) {
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> call(workers, () -> {
+                running.countDown();
+                release.await();
+                return "first";
+            }));
+            running.await();
+            CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> call(workers, () -> "queued"));
+            while (workers.getQueueDepth() == 0)
+                Thread.sleep(1);
+
+            try {
+                workers.call(() -> "refused");
+                err.addError(new AssertionError("Handshake accepted beyond the queue"));
+            } catch (DMAPException e) {
+                err.checkThat(e.getMessage(), is("error server busy"));
+            }
+            release.countDown();
+
+            err.checkThat(first.get(5, TimeUnit.SECONDS), is("first"));
+            err.checkThat(queued.get(5, TimeUnit.SECONDS), is("queued"));
+            err.checkThat(workers.getCompleted(), is(2L));
+            err.checkThat(workers.getRejected(), is(1L));
+            err.checkThat(workers.getMaxQueueDepth(), is(1L));
+            err.checkThat(workers.getQueueDepth(), is(0));
+        }
+    }
+
+    @Test
+    public void failedTask_throwsItsDmapException() throws Exception {
+        try (CryptoWorkers workers = new CryptoWorkers(1, 1)) {
+            workers.call(() -> {
+                throw new DMAPException("error protocol error");
+            });
+            err.addError(new AssertionError("Failure not thrown"));
+        } catch (DMAPException e) {
+            err.checkThat(e.getMessage(), is("error protocol error"));
+        }
+    }
+
+    private static String call(CryptoWorkers workers, Callable<String> task) {
+        try {
+            return workers.call(task);
+        } catch (DMAPException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
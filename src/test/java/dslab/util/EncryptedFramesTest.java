@@ -0,0 +1,234 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import dslab.TestBase;
+import dslab.protocols.dmap.DMAPException;
+import dslab.protocols.dmtp.Email;
+
+public class EncryptedFramesTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(EncryptedFramesTest.class);
+
+    private static final String CTR = "AES/CTR/NoPadding";
+    // Raise with -Ddslab.util.frameMessages=1000000 for a steadier measurement
+    private static final int N_MESSAGES = Integer.getInteger("dslab.util.frameMessages", 20_000);
+
+    private final CipherDMAP session;
+    private final Loopback toServer = new Loopback();
+    private final Loopback toClient = new Loopback();
+    private final EncryptedFrames client;
+    private final EncryptedFrames server;
+
+    public EncryptedFramesTest() throws Exception {
+        session = new CipherDMAP(16, 256, CTR);
+        client = new EncryptedFrames(session.getKey(), session.getIv().getIV(), false, toClient, toServer);
+        server = new EncryptedFrames(session.getKey(), session.getIv().getIV(), true, toServer, toClient);
+    }
+
+    @Test
+    public void messages_roundTripInBothDirections() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            client.send("show " + i);
+            err.checkThat(server.receive(), is("show " + i));
+            server.send(ByteBuffer.wrap(("from zaphod@univer.ze\nsubject " + i + "\ndata größer\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+            server.send("ok");
+            err.checkThat(client.receive(), is("from zaphod@univer.ze\nsubject " + i + "\ndata größer\n"));
+            err.checkThat(client.receive(), is("ok"));
+        }
+
+        // Larger than the initial buffers
+        String large = "x".repeat(1 << 20);
+        server.send(large);
+        err.checkThat(client.receive(), is(large));
+
+        err.checkThat(client.receive(), is((String) null));
+        err.checkThat(client.getBytesReceived(), is(server.getBytesSent()));
+        err.checkThat(server.getBytesReceived(), is(client.getBytesSent()));
+    }
+
+    @Test
+    public void sealedFrames_areReceivedAndOpenedLikeSentOnes() throws Exception {
+        EncryptedFrames sealing = new EncryptedFrames(session.getKey(), session.getIv().getIV(), true);
+        ByteBuffer frame = sealing.seal("ok größer");
+        toClient.write(frame);
+        err.checkThat(client.receive(), is("ok größer"));
+
+        client.send("list");
+        err.checkThat(sealing.open(toServer.drain()), is("list"));
+        err.checkThat(sealing.getBytesReceived(), is(client.getBytesSent()));
+    }
+
+    @Test
+    public void modifiedOrReplayedFrames_failTheIntegrityCheck() throws Exception {
+        client.send("login trillian 12345");
+        ByteBuffer frame = toServer.drain();
+        for (int position : new int[]{3, EncryptedFrames.HEADER_LENGTH, frame.limit() - 1}) {
+            ByteBuffer modified = copy(frame);
+            modified.put(position, (byte) (modified.get(position) ^ 1));
+            err.checkThat(position + " modified", fails(modified), is(true));
+        }
+
+        Loopback replay = new Loopback();
+        EncryptedFrames replayed = new EncryptedFrames(session.getKey(), session.getIv().getIV(), true, replay,
+                new Loopback());
+        replay.write(copy(frame));
+        replay.write(copy(frame));
+        err.checkThat(replayed.receive(), is("login trillian 12345"));
+        try {
+            replayed.receive();
+            err.addError(new AssertionError("Replayed frame accepted"));
+        } catch (DMAPException e) {
+            err.checkThat(e.getMessage(), is("error integrity check failed"));
+        }
+
+        // Frames of the other direction don't decrypt either
+        Loopback reflect = new Loopback();
+        EncryptedFrames reflected = new EncryptedFrames(session.getKey(), session.getIv().getIV(), false, reflect,
+                new Loopback());
+        reflect.write(copy(frame));
+        err.checkThat(fails(reflected), is(true));
+    }
+
+    @Test
+    public void benchmark_bytesAndCpuPerMessage_framesComparedToBase64Lines() throws Exception {
+        Email email = new Email();
+        email.sender = "zaphod@univer.ze";
+        email.recipients = List.of("trillian@earth.planet", "arthur@earth.planet");
+        email.subject = "benchmark";
+        email.data = "y".repeat(1000);
+        String message = email.printToDmtpFormat();
+
+        CipherDMAP lineClient = new CipherDMAP(16, 256, CTR);
+        CipherDMAP lineServer = new CipherDMAP(lineClient.getKey().getEncoded(), lineClient.getIv().getIV(), CTR);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        // Warm up both
+        long lineBytes = lines(lineServer, lineClient, message, N_MESSAGES / 10);
+        frames(message, N_MESSAGES / 10);
+
+        long start = threads.getCurrentThreadCpuTime();
+        lineBytes = lines(lineServer, lineClient, message, N_MESSAGES);
+        long lineCpu = threads.getCurrentThreadCpuTime() - start;
+
+        long sentBefore = server.getBytesSent();
+        start = threads.getCurrentThreadCpuTime();
+        frames(message, N_MESSAGES);
+        long frameCpu = threads.getCurrentThreadCpuTime() - start;
+        long frameBytes = server.getBytesSent() - sentBefore;
+
+        LOG.info(String.format("%d messages of %d bytes: Base64 lines %d bytes and %d ns of CPU per message, "
+                        + "frames %d bytes and %d ns of CPU per message", N_MESSAGES, message.length(),
+                lineBytes / N_MESSAGES, lineCpu / N_MESSAGES, frameBytes / N_MESSAGES, frameCpu / N_MESSAGES));
+        err.checkThat(frameBytes < lineBytes * 4 / 5, is(true));
+    }
+
+    /**
+     * @return the bytes on the wire of the Base64 lines
+     */
+    private long lines(CipherDMAP sender, CipherDMAP receiver, String message, int n) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < n; i++) {
+            String line = sender.encryptString(message);
+            bytes += line.length() + 1;
+            if (receiver.decryptString(line).length() != message.length())
+                throw new AssertionError("Message changed");
+        }
+        return bytes;
+    }
+
+    private void frames(String message, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            server.send(message);
+            if (!client.receive().equals(message))
+                throw new AssertionError("Message changed");
+        }
+    }
+
+    private boolean fails(EncryptedFrames frames) throws Exception {
+        try {
+            frames.receive();
+            return false;
+        } catch (DMAPException | IOException e) {
+            // A longer length runs into the end of the input
+            return true;
+        }
+    }
+
+    private boolean fails(ByteBuffer frame) throws Exception {
+        Loopback input = new Loopback();
+        input.write(frame);
+        return fails(new EncryptedFrames(session.getKey(), session.getIv().getIV(), true, input, new Loopback()));
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    /**
+     * An in-memory connection, read in the order it was written.
+     */
+    private static class Loopback implements ReadableByteChannel, WritableByteChannel {
+
+        private ByteBuffer data = ByteBuffer.allocate(1 << 16);
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (data.remaining() < src.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(2 * (data.position() + src.remaining()));
+                data.flip();
+                larger.put(data);
+                data = larger;
+            }
+            int n = src.remaining();
+            data.put(src);
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (data.position() == 0)
+                return -1;
+            data.flip();
+            int n = Math.min(dst.remaining(), data.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + n);
+            dst.put(chunk);
+            data.position(data.position() + n);
+            data.compact();
+            return n;
+        }
+
+        ByteBuffer drain() {
+            data.flip();
+            ByteBuffer drained = copy(data);
+            data.clear();
+            return drained;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
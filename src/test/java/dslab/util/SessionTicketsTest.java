@@ -0,0 +1,58 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.util.Base64;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class SessionTicketsTest extends TestBase {
+
+    private static final byte[] SESSION_KEY = SecurityHelper.generateRandom(32);
+
+    @Test
+    public void ticket_opensToItsSessionKey_untilItsKeyIsRotatedOut() throws Exception {
+        SessionTickets tickets = new SessionTickets(60_000, 60_000);
+        String ticket = tickets.issue(SESSION_KEY);
+        err.checkThat(tickets.open(ticket), is(SESSION_KEY));
+
+        tickets.rotate();
+        err.checkThat("previous key", tickets.open(ticket), is(SESSION_KEY));
+        String rotated = tickets.issue(SESSION_KEY);
+
+        tickets.rotate();
+        err.checkThat("rotated out", tickets.open(ticket), is(nullValue()));
+        err.checkThat(tickets.open(rotated), is(SESSION_KEY));
+    }
+
+    @Test
+    public void expiredModifiedOrForeignTickets_areRefused() throws Exception {
+        SessionTickets tickets = new SessionTickets(100, 60_000);
+        String ticket = tickets.issue(SESSION_KEY);
+
+        byte[] modified = Base64.getDecoder().decode(ticket);
+        modified[modified.length - 1] ^= 1;
+        err.checkThat(tickets.open(Base64.getEncoder().encodeToString(modified)), is(nullValue()));
+        err.checkThat(tickets.open("not a ticket"), is(nullValue()));
+        err.checkThat(tickets.open(""), is(nullValue()));
+        err.checkThat(new SessionTickets(60_000, 60_000).open(ticket), is(nullValue()));
+
+        Thread.sleep(200);
+        err.checkThat("expired", tickets.open(ticket), is(nullValue()));
+    }
+
+    @Test
+    public void ticketKey_isRotatedAfterTheInterval() throws Exception {
+        SessionTickets tickets = new SessionTickets(60_000, 100);
+        String ticket = tickets.issue(SESSION_KEY);
+
+        Thread.sleep(200);
+        // Rotated once, by this call
+        err.checkThat(tickets.open(ticket), is(SESSION_KEY));
+        Thread.sleep(200);
+        err.checkThat(tickets.open(ticket), is(nullValue()));
+    }
+}
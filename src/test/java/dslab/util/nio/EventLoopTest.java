@@ -0,0 +1,84 @@
+package dslab.util.nio;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class EventLoopTest extends TestBase {
+
+    private EventLoop eventLoop;
+    private ServerSocketChannel serverSocketChannel;
+
+    @Before
+    public void setUp() throws Exception {
+        eventLoop = new EventLoop("test-event-loop");
+        eventLoop.start();
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventLoop.shutdown();
+        eventLoop.join(5000);
+        serverSocketChannel.close();
+    }
+
+    @Test(timeout = 10000)
+    public void failingTask_closesItsChannel_andTheLoopServesTheOthers() throws Exception {
+        try (Socket failing = connect(); Socket other = connect()) {
+            BufferedReader failingReader = new BufferedReader(new InputStreamReader(failing.getInputStream()));
+            new PrintWriter(failing.getOutputStream(), true).println("fail");
+            err.checkThat(failingReader.readLine(), is(nullValue()));
+
+            // Tasks of the loop itself are guarded too
+            eventLoop.execute(() -> {
+                throw new IllegalStateException("failing task");
+            });
+
+            BufferedReader otherReader = new BufferedReader(new InputStreamReader(other.getInputStream()));
+            new PrintWriter(other.getOutputStream(), true).println("hello");
+            err.checkThat(otherReader.readLine(), is("hello"));
+            err.checkThat(eventLoop.isAlive(), is(true));
+        }
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = new Socket("localhost", serverSocketChannel.socket().getLocalPort());
+        eventLoop.register(serverSocketChannel.accept(), new EchoSession());
+        return socket;
+    }
+
+    /**
+     * Echoes lines from a task, failing on "fail".
+     */
+    private static class EchoSession implements ILineSession {
+
+        @Override
+        public void onOpen(LineChannel channel) { }
+
+        @Override
+        public void onLine(LineChannel channel, String line) {
+            channel.execute(() -> {
+                if (line.equals("fail"))
+                    throw new IllegalArgumentException("failing request");
+                channel.println(line);
+            });
+        }
+
+        @Override
+        public void onClose(LineChannel channel) { }
+    }
+}